@@ -15,6 +15,7 @@
 package genericSQL;
 
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Hashtable;
 
 import org.apache.log4j.Logger;
@@ -40,6 +41,22 @@ public class GenericSQLModifier
     //to get case insentive queries.
     public static String  mySqlLikeOverride;
 
+    /**
+     * Default {LIKE} handling on DB2 and Oracle - wrap the column in UCASE(varchar())/UPPER(). Only
+     * sargable if a matching function based index exists (see {@link #getUpperCaseIndexDDL(String, String, String)})
+     */
+    public static final int LIKE_MODE_WRAP_COLUMN    = 0;
+    /**
+     * Rewrite columns that have a registered shadow column (which the application keeps populated with
+     * the upper cased value) to use the shadow column, so a plain index on the shadow column can be used.
+     * Columns without a shadow column are still wrapped.
+     */
+    public static final int LIKE_MODE_SHADOW_COLUMN  = 1;
+
+    private int                       likeMode_                = LIKE_MODE_WRAP_COLUMN;
+    private Hashtable<String, String> shadowColumns_           = new Hashtable<String, String>();
+    private Hashtable<String, String> upperCaseIndexedColumns_ = new Hashtable<String, String>();
+
     /**
      * @param connection the connection
      * @throws Exception
@@ -240,6 +257,7 @@ public class GenericSQLModifier
      * @param sql
      * @param logResult log result if true
      * @return the modified sql statement
+     * @throws IllegalArgumentException if an {IN_LIST:n} token is malformed
      */
     public String modifySQL(String sql, boolean logResult)
     {
@@ -256,73 +274,60 @@ public class GenericSQLModifier
         // UCase DB2 requires UCASE (which requires a varchar cast).
         if (databaseType_.startsWith("DB2"))
         {
-            // get rid of multiple spaces
-            pos = result.indexOf("  ");
-            while (pos != -1)
-            {
-                result.replace(pos, pos + 2, " ");
-                pos = result.indexOf("  ");
-            }
-
+            collapseSpaces(result);
             // need to shove 'UCASE(varchar(' onto the front of the variable name preceding the LIKE,
             // and '))' onto the back
-            pos = 0;
-            int pos2 = result.indexOf("{LIKE}", pos);
-            while (pos2 != -1)
-            {
-                StringBuffer temp = new StringBuffer(result.substring(0, pos2));
-                int lastSpace = temp.lastIndexOf(" ");
-                temp.setLength(lastSpace);
-                int secondLastSpace = temp.lastIndexOf(" ") + 1;
-
-                // don't wrap open parens
-                while (temp.charAt(secondLastSpace) == '(')
-                {
-                    secondLastSpace++;
-                }
-
-                result.insert(secondLastSpace, "UCASE(varchar(");
-                lastSpace += "UCASE(varchar(".length();
-                result.insert(lastSpace, "))");
-                pos = pos2 + "UCASE(varchar())".length() + "{LIKE}".length();
-                pos2 = result.indexOf("{LIKE}", pos);
-            }
+            wrapLikeColumns(result, "UCASE(varchar(", "))");
         }
         
         // Oracle requires UPPER.
         else if (databaseType_.startsWith("Oracle"))
         {
-            // get rid of multiple spaces
-            pos = result.indexOf("  ");
-            while (pos != -1)
-            {
-                result.replace(pos, pos + 2, " ");
-                pos = result.indexOf("  ");
-            }
-
+            collapseSpaces(result);
             // need to shove 'UPPER(' onto the front of the variable name preceding the LIKE,
             // and ')' onto the back
-            pos = 0;
-            int pos2 = result.indexOf("{LIKE}", pos);
-            while (pos2 != -1)
-            {
-                StringBuffer temp = new StringBuffer(result.substring(0, pos2));
-                int lastSpace = temp.lastIndexOf(" ");
-                temp.setLength(lastSpace);
-                int secondLastSpace = temp.lastIndexOf(" ") + 1;
+            wrapLikeColumns(result, "UPPER(", ")");
+        }
 
-                // don't wrap open parens
-                while (temp.charAt(secondLastSpace) == '(')
+        // expand the {IN_LIST:n} tokens
+        pos = result.indexOf("{IN_LIST:");
+        while (pos != -1)
+        {
+            int end = result.indexOf("}", pos);
+            int size = 0;
+            try
+            {
+                size = end == -1 ? 0 : Integer.parseInt(result.substring(pos + "{IN_LIST:".length(), end).trim());
+            }
+            catch (NumberFormatException e)
+            {
+                // reported below
+            }
+            if (size < 1)
+            {
+                throw new IllegalArgumentException("Malformed IN list token \""
+                        + result.substring(pos, end == -1 ? result.length() : end + 1)
+                        + "\" - expected {IN_LIST:n}, where n is the expected number of values: " + sql);
+            }
+            // NOT {IN_LIST:n} - PostgreSQL needs "<> ALL(?)", as NOT = ANY(?) isn't valid
+            int start = pos;
+            boolean not = false;
+            if (databaseType_.equals("PostgreSQL"))
+            {
+                int before = pos;
+                while (before > 0 && Character.isWhitespace(result.charAt(before - 1)))
                 {
-                    secondLastSpace++;
+                    before--;
+                }
+                if (before >= 3 && result.substring(before - 3, before).equalsIgnoreCase("NOT")
+                        && (before == 3 || !Character.isJavaIdentifierPart(result.charAt(before - 4))))
+                {
+                    not = true;
+                    start = before - 3;
                 }
-
-                result.insert(secondLastSpace, "UPPER(");
-                lastSpace += "UPPER(".length();
-                result.insert(lastSpace, ")");
-                pos = pos2 + "UPPER()".length() + "{LIKE}".length();
-                pos2 = result.indexOf("{LIKE}", pos);
             }
+            result.replace(start, end + 1, getInListExpression(size, not));
+            pos = result.indexOf("{IN_LIST:");
         }
 
         // modify the datatypes
@@ -396,7 +401,488 @@ public class GenericSQLModifier
     {
         return modifySQL(sql, true);
     }
+
+    private static void collapseSpaces(StringBuffer result)
+    {
+        // get rid of multiple spaces
+        int pos = result.indexOf("  ");
+        while (pos != -1)
+        {
+            result.replace(pos, pos + 2, " ");
+            pos = result.indexOf("  ");
+        }
+    }
+
+    /**
+     * Find the start of the column expression that precedes the {LIKE} token at likePos. The end of the
+     * column expression is the last space before likePos.
+     */
+    private static int likeColumnStart(StringBuffer sql, int likePos)
+    {
+        StringBuffer temp = new StringBuffer(sql.substring(0, likePos));
+        int lastSpace = temp.lastIndexOf(" ");
+        temp.setLength(lastSpace);
+        int secondLastSpace = temp.lastIndexOf(" ") + 1;
+
+        // don't wrap open parens
+        while (temp.charAt(secondLastSpace) == '(')
+        {
+            secondLastSpace++;
+        }
+        return secondLastSpace;
+    }
+
+    private void wrapLikeColumns(StringBuffer result, String prefix, String suffix)
+    {
+        int pos = 0;
+        int pos2 = result.indexOf("{LIKE}", pos);
+        while (pos2 != -1)
+        {
+            int lastSpace = result.lastIndexOf(" ", pos2 - 1);
+            int secondLastSpace = likeColumnStart(result, pos2);
+            String column = result.substring(secondLastSpace, lastSpace);
+
+            String shadow = (likeMode_ == LIKE_MODE_SHADOW_COLUMN ? getShadowColumn(column) : null);
+            if (shadow != null)
+            {
+                result.replace(secondLastSpace, lastSpace, shadow);
+                pos = pos2 + (shadow.length() - column.length()) + "{LIKE}".length();
+            }
+            else
+            {
+                if (log.isDebugEnabled() && !upperCaseIndexedColumns_.containsKey(unqualified(column)))
+                {
+                    log.debug("Non-sargable {LIKE} - no upper case index registered for column " + column);
+                }
+                result.insert(secondLastSpace, prefix);
+                lastSpace += prefix.length();
+                result.insert(lastSpace, suffix);
+                pos = pos2 + prefix.length() + suffix.length() + "{LIKE}".length();
+            }
+            pos2 = result.indexOf("{LIKE}", pos);
+        }
+    }
+
+    private static String unqualified(String column)
+    {
+        return column.substring(column.lastIndexOf('.') + 1).toLowerCase();
+    }
+
+    /**
+     * @return the shadow column (with the same table qualifier as the passed in column) or null
+     */
+    private String getShadowColumn(String column)
+    {
+        String shadow = shadowColumns_.get(unqualified(column));
+        if (shadow == null)
+        {
+            return null;
+        }
+        int dot = column.lastIndexOf('.');
+        return dot == -1 ? shadow : column.substring(0, dot + 1) + shadow;
+    }
+
+    /**
+     * @param likeMode one of {@link #LIKE_MODE_WRAP_COLUMN} or {@link #LIKE_MODE_SHADOW_COLUMN}. Only
+     *            changes the output on databases where {@link #requiresLikeQueryTextToBeUpperCased()} is
+     *            true.
+     */
+    public void setLikeMode(int likeMode)
+    {
+        if (likeMode != LIKE_MODE_WRAP_COLUMN && likeMode != LIKE_MODE_SHADOW_COLUMN)
+        {
+            throw new IllegalArgumentException("Unknown like mode " + likeMode);
+        }
+        likeMode_ = likeMode;
+    }
+
+    public int getLikeMode()
+    {
+        return likeMode_;
+    }
+
+    /**
+     * Register a shadow column that holds the upper cased contents of column. Used when the like mode is
+     * {@link #LIKE_MODE_SHADOW_COLUMN}. Column names are matched case insensitively, and without their
+     * table qualifier - so "b.name {LIKE} ?" will become "b.name_uc LIKE ?" if name_uc is the shadow of name.
+     */
+    public void addShadowUpperCaseColumn(String column, String shadowColumn)
+    {
+        shadowColumns_.put(unqualified(column), shadowColumn);
+    }
+
+    /**
+     * Tell the modifier that a function based index (as generated by
+     * {@link #getUpperCaseIndexDDL(String, String, String)}) exists for the column, so it is no longer
+     * reported as non-sargable.
+     */
+    public void registerUpperCaseIndex(String column)
+    {
+        upperCaseIndexedColumns_.put(unqualified(column), column);
+    }
+
+    /**
+     * @return the DDL for a function based index that matches the expression that modifySQL wraps around
+     *         column on this database, or null if this database doesn't need one.
+     */
+    public String getUpperCaseIndexDDL(String indexName, String table, String column)
+    {
+        String col = column.substring(column.lastIndexOf('.') + 1);
+        if (databaseType_.startsWith("DB2"))
+        {
+            return "CREATE INDEX " + indexName + " ON " + table + " (UCASE(varchar(" + col + ")))";
+        }
+        else if (databaseType_.startsWith("Oracle"))
+        {
+            return "CREATE INDEX " + indexName + " ON " + table + " (UPPER(" + col + "))";
+        }
+        return null;
+    }
+
+    /**
+     * Tooling method - reports the columns in the (untranslated) sql that modifySQL will wrap in a function
+     * without a registered shadow column or function based index - meaning that the resulting statement can't
+     * use an index for that {LIKE}.
+     * 
+     * @return the non-sargable column expressions, empty if none.
+     */
+    public String[] findNonSargableLikeColumns(String sql)
+    {
+        if (!requiresLikeQueryTextToBeUpperCased())
+        {
+            return new String[0];
+        }
+        StringBuffer temp = new StringBuffer(sql);
+        collapseSpaces(temp);
+        ArrayList<String> found = new ArrayList<String>();
+        int pos = temp.indexOf("{LIKE}");
+        while (pos != -1)
+        {
+            int lastSpace = temp.lastIndexOf(" ", pos - 1);
+            String column = temp.substring(likeColumnStart(temp, pos), lastSpace);
+            column = column.replace('^', ' ').trim();
+            boolean shadowed = likeMode_ == LIKE_MODE_SHADOW_COLUMN && getShadowColumn(column) != null;
+            if (!shadowed && !upperCaseIndexedColumns_.containsKey(unqualified(column)))
+            {
+                found.add(column);
+            }
+            pos = temp.indexOf("{LIKE}", pos + "{LIKE}".length());
+        }
+        return found.toArray(new String[found.size()]);
+    }
     
+    /**
+     * The largest number of placeholders an {IN_LIST:n} token is expanded to in one power of two step - past
+     * this, lists grow in multiples of this size.
+     */
+    public static final int MAX_IN_LIST_BUCKET = 1024;
+
+    /**
+     * The {IN_LIST:n} token expands to an IN list with room for n values, rounded up to the next power of
+     * two (or multiple of {@link #MAX_IN_LIST_BUCKET}), so that the number of distinct statements - and
+     * therefore statement cache entries and query plans - stays small. The unused slots should be bound
+     * with the last value of the list (see WrappedPreparedStatement.setInList). On PostgreSQL the token
+     * becomes "= ANY(?)" ("&lt;&gt; ALL(?)" after NOT) and the whole list is bound as one array parameter.
+     * Databases that limit the size of an IN list get smaller buckets - see {@link #getMaxInListSize()}.
+     * 
+     * @return the number of placeholders that an {IN_LIST:n} token is expanded to for a list of size values.
+     */
+    public static int getInListBucketSize(int size)
+    {
+        if (size <= 1)
+        {
+            return 1;
+        }
+        if (size > MAX_IN_LIST_BUCKET)
+        {
+            return ((size + MAX_IN_LIST_BUCKET - 1) / MAX_IN_LIST_BUCKET) * MAX_IN_LIST_BUCKET;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    /**
+     * @return the most values an IN list can hold on this database - Integer.MAX_VALUE if there is no limit
+     *         (short of the number of parameters a statement can have).
+     */
+    public int getMaxInListSize()
+    {
+        if (databaseType_.startsWith("Oracle"))
+        {
+            // ORA-01795
+            return 1000;
+        }
+        if (databaseType_.equals("Microsoft SQL Server"))
+        {
+            // 2100 parameters per statement - leave some for the rest of it
+            return 2000;
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    private String getInListExpression(int size, boolean not)
+    {
+        if (databaseType_.equals("PostgreSQL"))
+        {
+            return not ? "<> ALL(?)" : "= ANY(?)";
+        }
+        int max = getMaxInListSize();
+        if (size > max)
+        {
+            throw new IllegalArgumentException("The IN list token {IN_LIST:" + size + "} is too big - "
+                    + databaseType_ + " allows at most " + max + " values in an IN list");
+        }
+        StringBuffer result = new StringBuffer("IN ");
+        appendPlaceholderRow(result, Math.min(getInListBucketSize(size), max));
+        return result.toString();
+    }
+
+    /**
+     * Build a database specific multi row insert with placeholders for rows * columns.length parameters,
+     * bound row by row in column order.
+     * 
+     * @param table the table name (may use the ^ quote token)
+     * @param columns the column names (may use the ^ quote token)
+     * @param rows the number of rows the statement inserts
+     * @return the translated sql
+     * @throws Exception if the database doesn't support multi row inserts (ACCESS)
+     */
+    public String buildMultiRowInsert(String table, String[] columns, int rows) throws Exception
+    {
+        checkBulkArguments(columns, rows);
+        StringBuffer result = new StringBuffer();
+        if (databaseType_.startsWith("Oracle"))
+        {
+            // Oracle doesn't take multiple VALUES lists
+            result.append("INSERT ALL");
+            for (int i = 0; i < rows; i++)
+            {
+                result.append(" INTO ").append(table).append(" ");
+                appendColumnList(result, columns, null);
+                result.append(" VALUES ");
+                appendPlaceholderRow(result, columns.length);
+            }
+            result.append(" SELECT * FROM DUAL");
+        }
+        else if (databaseType_.equals("ACCESS"))
+        {
+            throw new Exception("Multi row inserts are not supported on " + databaseType_);
+        }
+        else
+        {
+            result.append("INSERT INTO ").append(table).append(" ");
+            appendColumnList(result, columns, null);
+            result.append(" VALUES ");
+            appendPlaceholderRows(result, columns.length, rows);
+        }
+        return modifySQL(result.toString());
+    }
+
+    /**
+     * Build a database specific insert or update (upsert) for rows rows, with placeholders for rows *
+     * columns.length parameters, bound row by row in column order. Rows whose key columns match an
+     * existing row update the existing row's non key columns, other rows are inserted.
+     * 
+     * @param table the table name (may use the ^ quote token)
+     * @param columns all of the columns being written - must include the key columns
+     * @param keyColumns the columns that identify a row. On MySQL, the matching is done against the primary
+     *            key / unique indexes of the table, regardless of what is passed here. On PostgreSQL there
+     *            must be a unique index over exactly these columns.
+     * @param rows the number of rows the statement writes
+     * @return the translated sql
+     * @throws Exception if the database doesn't support upserts (ACCESS)
+     */
+    public String buildUpsert(String table, String[] columns, String[] keyColumns, int rows) throws Exception
+    {
+        checkBulkArguments(columns, rows);
+        if (keyColumns == null || keyColumns.length == 0)
+        {
+            throw new Exception("At least one key column is required for an upsert");
+        }
+        ArrayList<String> updateColumns = new ArrayList<String>();
+        for (int i = 0; i < columns.length; i++)
+        {
+            boolean isKey = false;
+            for (int j = 0; j < keyColumns.length; j++)
+            {
+                if (columns[i].equalsIgnoreCase(keyColumns[j]))
+                {
+                    isKey = true;
+                    break;
+                }
+            }
+            if (!isKey)
+            {
+                updateColumns.add(columns[i]);
+            }
+        }
+
+        StringBuffer result = new StringBuffer();
+        if (databaseType_.equals("MySQL"))
+        {
+            result.append("INSERT INTO ").append(table).append(" ");
+            appendColumnList(result, columns, null);
+            result.append(" VALUES ");
+            appendPlaceholderRows(result, columns.length, rows);
+            result.append(" ON DUPLICATE KEY UPDATE ");
+            if (updateColumns.size() == 0)
+            {
+                // nothing to update - a no-op assignment keeps the existing row
+                result.append(keyColumns[0]).append(" = ").append(keyColumns[0]);
+            }
+            for (int i = 0; i < updateColumns.size(); i++)
+            {
+                result.append(i > 0 ? ", " : "");
+                result.append(updateColumns.get(i)).append(" = VALUES(").append(updateColumns.get(i)).append(")");
+            }
+        }
+        else if (databaseType_.equals("PostgreSQL"))
+        {
+            result.append("INSERT INTO ").append(table).append(" ");
+            appendColumnList(result, columns, null);
+            result.append(" VALUES ");
+            appendPlaceholderRows(result, columns.length, rows);
+            result.append(" ON CONFLICT ");
+            appendColumnList(result, keyColumns, null);
+            if (updateColumns.size() == 0)
+            {
+                result.append(" DO NOTHING");
+            }
+            else
+            {
+                result.append(" DO UPDATE SET ");
+                for (int i = 0; i < updateColumns.size(); i++)
+                {
+                    result.append(i > 0 ? ", " : "");
+                    result.append(updateColumns.get(i)).append(" = EXCLUDED.").append(updateColumns.get(i));
+                }
+            }
+        }
+        else if (databaseType_.startsWith("DB2") || databaseType_.startsWith("Oracle")
+                || databaseType_.equals("Microsoft SQL Server") || databaseType_.equals("HSQL Database Engine"))
+        {
+            result.append("MERGE INTO ").append(table).append(" t USING (");
+            if (databaseType_.startsWith("Oracle"))
+            {
+                // Oracle has no VALUES table constructor
+                for (int i = 0; i < rows; i++)
+                {
+                    result.append(i > 0 ? " UNION ALL " : "").append("SELECT ");
+                    for (int j = 0; j < columns.length; j++)
+                    {
+                        result.append(j > 0 ? ", " : "").append("? ").append(columns[j]);
+                    }
+                    result.append(" FROM DUAL");
+                }
+                result.append(") s ON (");
+            }
+            else
+            {
+                result.append("VALUES ");
+                appendPlaceholderRows(result, columns.length, rows);
+                result.append(") AS s ");
+                appendColumnList(result, columns, null);
+                result.append(" ON (");
+            }
+            for (int i = 0; i < keyColumns.length; i++)
+            {
+                result.append(i > 0 ? " AND " : "");
+                result.append("t.").append(keyColumns[i]).append(" = s.").append(keyColumns[i]);
+            }
+            result.append(")");
+            if (updateColumns.size() > 0)
+            {
+                result.append(" WHEN MATCHED THEN UPDATE SET ");
+                for (int i = 0; i < updateColumns.size(); i++)
+                {
+                    result.append(i > 0 ? ", " : "");
+                    result.append("t.").append(updateColumns.get(i)).append(" = s.").append(updateColumns.get(i));
+                }
+            }
+            result.append(" WHEN NOT MATCHED THEN INSERT ");
+            appendColumnList(result, columns, null);
+            result.append(" VALUES ");
+            appendColumnList(result, columns, "s.");
+            if (databaseType_.equals("Microsoft SQL Server"))
+            {
+                // SQL Server requires MERGE to be terminated
+                result.append(";");
+            }
+        }
+        else
+        {
+            throw new Exception("Upserts are not supported on " + databaseType_);
+        }
+        return modifySQL(result.toString());
+    }
+
+    /**
+     * @return the maximum number of rows that should be passed to {@link #buildMultiRowInsert(String, String[], int)}
+     *         or {@link #buildUpsert(String, String[], String[], int)} for a table with columnCount columns -
+     *         bounded by the parameter limits of the database. Larger data sets should be written in chunks
+     *         of this size.
+     */
+    public int getMaxRowsPerStatement(int columnCount)
+    {
+        int maxParameters = 32767;
+        int maxRows = Integer.MAX_VALUE;
+        if (databaseType_.equals("Microsoft SQL Server"))
+        {
+            maxParameters = 2100 - 1;
+            maxRows = 1000;
+        }
+        else if (databaseType_.equals("ACCESS"))
+        {
+            maxRows = 1;
+        }
+        return Math.max(1, Math.min(maxRows, maxParameters / Math.max(1, columnCount)));
+    }
+
+    private static void checkBulkArguments(String[] columns, int rows) throws Exception
+    {
+        if (columns == null || columns.length == 0)
+        {
+            throw new Exception("At least one column is required");
+        }
+        if (rows < 1)
+        {
+            throw new Exception("At least one row is required");
+        }
+    }
+
+    private static void appendColumnList(StringBuffer result, String[] columns, String prefix)
+    {
+        result.append("(");
+        for (int i = 0; i < columns.length; i++)
+        {
+            result.append(i > 0 ? ", " : "");
+            if (prefix != null)
+            {
+                result.append(prefix);
+            }
+            result.append(columns[i]);
+        }
+        result.append(")");
+    }
+
+    private static void appendPlaceholderRow(StringBuffer result, int columnCount)
+    {
+        result.append("(");
+        for (int i = 0; i < columnCount; i++)
+        {
+            result.append(i > 0 ? ", ?" : "?");
+        }
+        result.append(")");
+    }
+
+    private static void appendPlaceholderRows(StringBuffer result, int columnCount, int rows)
+    {
+        for (int i = 0; i < rows; i++)
+        {
+            result.append(i > 0 ? ", " : "");
+            appendPlaceholderRow(result, columnCount);
+        }
+    }
+
     public boolean requiresLikeQueryTextToBeUpperCased()
     {
         if (databaseType_.startsWith("DB2") || databaseType_.startsWith("Oracle"))
@@ -415,6 +901,31 @@ public class GenericSQLModifier
         System.out.println(foo.modifySQL("Select  * from a where b.c {LIKE} ?"));
         System.out.println(foo.modifySQL("Select * from a where foobar.me {LIKE} ? AND barnone {LIKE} ?"));
         System.out.println(foo.modifySQL("Select * from a where a = ? AND (barnone {LIKE} OR foo {LIKE} ?)"));
+        System.out.println(foo.getUpperCaseIndexDDL("a_foobar_me_uc", "a", "foobar.me"));
+
+        foo.setLikeMode(LIKE_MODE_SHADOW_COLUMN);
+        foo.addShadowUpperCaseColumn("barnone", "barnone_uc");
+        System.out.println(foo.modifySQL("Select * from a where a.id {IN_LIST:5}"));
+        System.out.println(new GenericSQLModifier("PostgreSQL").modifySQL("Select * from a where a.id {IN_LIST:5}"));
+
+        String[] columns = new String[]{"^id^", "^name^", "^value^"};
+        String[] key = new String[]{"^id^"};
+        String[] types = new String[]{"MySQL", "PostgreSQL", "DB2/NT", "Oracle", "Microsoft SQL Server",
+                "HSQL Database Engine"};
+        for (int i = 0; i < types.length; i++)
+        {
+            GenericSQLModifier bar = new GenericSQLModifier(types[i]);
+            System.out.println(bar.buildMultiRowInsert("^a^", columns, 2));
+            System.out.println(bar.buildUpsert("^a^", columns, key, 2));
+        }
+
+        String sql = "Select * from a where foobar.me {LIKE} ? AND b.barnone {LIKE} ?";
+        System.out.println(foo.modifySQL(sql));
+        String[] nonSargable = foo.findNonSargableLikeColumns(sql);
+        for (int i = 0; i < nonSargable.length; i++)
+        {
+            System.out.println("non-sargable: " + nonSargable[i]);
+        }
 
     }
 
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2007 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package genericSQL;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Translates large quasi-sql scripts into database specific scripts.
+ *
+ * The input is read through a memory mapped reader and split into statements with the
+ * {@link SQLScriptSplitter}. Statements are translated in chunks on a pool of threads, and written to the
+ * output in their original order. Only a bounded number of chunks are in flight at any time, so the memory
+ * use doesn't depend on the size of the script.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust </A>
+ */
+public class GenericSQLScriptTranslator
+{
+    private GenericSQLModifier  modifier_;
+    private int                 threads_;
+    private int                 chunkChars_ = 256 * 1024;
+    private String              lineSeparator_ = System.getProperty("line.separator");
+
+    private static Logger       log = Logger.getLogger("convert.sqlMod");
+
+    /**
+     * @param modifier the modifier to translate with. modifySQL is thread safe.
+     * @param threads the number of translation threads
+     */
+    public GenericSQLScriptTranslator(GenericSQLModifier modifier, int threads)
+    {
+        modifier_ = modifier;
+        threads_ = Math.max(1, threads);
+    }
+
+    public GenericSQLScriptTranslator(GenericSQLModifier modifier)
+    {
+        this(modifier, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param chunkChars the (approximate) number of characters of sql that are handed to a translation thread
+     *            at a time.
+     */
+    public void setChunkChars(int chunkChars)
+    {
+        chunkChars_ = Math.max(1, chunkChars);
+    }
+
+    /**
+     * Translate a script file into another file.
+     */
+    public Statistics translate(File input, File output, String charset) throws IOException
+    {
+        Reader reader = new BufferedReader(new MappedFileReader(input, Charset.forName(charset)), 64 * 1024);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), charset), 64 * 1024);
+        try
+        {
+            return translate(reader, writer);
+        }
+        finally
+        {
+            try
+            {
+                reader.close();
+            }
+            finally
+            {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Translate the script read from input, writing the result to output. Neither stream is closed.
+     */
+    public Statistics translate(Reader input, Writer output) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        Statistics stats = new Statistics();
+        SQLScriptSplitter splitter = new SQLScriptSplitter(input);
+        ExecutorService executor = Executors.newFixedThreadPool(threads_);
+        // keep enough work queued to keep all of the threads busy - but no more.
+        int maxInFlight = threads_ * 2;
+        LinkedList<Future<String[]>> inFlight = new LinkedList<Future<String[]>>();
+        String currentDelimiter = ";";
+        try
+        {
+            while (true)
+            {
+                Chunk chunk = readChunk(splitter);
+                if (chunk == null)
+                {
+                    break;
+                }
+                stats.statements_ += chunk.statements.length;
+                inFlight.addLast(executor.submit(chunk));
+                while (inFlight.size() >= maxInFlight)
+                {
+                    currentDelimiter = write(inFlight.removeFirst(), output, stats, currentDelimiter);
+                }
+            }
+            while (inFlight.size() > 0)
+            {
+                currentDelimiter = write(inFlight.removeFirst(), output, stats, currentDelimiter);
+            }
+            output.flush();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        stats.charsIn_ = splitter.getCharsRead();
+        stats.millis_ = System.currentTimeMillis() - start;
+        log.info("Translated " + stats);
+        return stats;
+    }
+
+    private Chunk readChunk(SQLScriptSplitter splitter) throws IOException
+    {
+        LinkedList<String> statements = new LinkedList<String>();
+        LinkedList<String> delimiters = new LinkedList<String>();
+        int chars = 0;
+        String sql;
+        while (chars < chunkChars_ && (sql = splitter.nextStatement()) != null)
+        {
+            statements.add(sql);
+            delimiters.add(splitter.getStatementDelimiter());
+            chars += sql.length();
+        }
+        if (statements.size() == 0)
+        {
+            return null;
+        }
+        return new Chunk(statements.toArray(new String[statements.size()]),
+                         delimiters.toArray(new String[delimiters.size()]));
+    }
+
+    /**
+     * Write out a chunk of translated statements (alternating statement and delimiter entries).
+     */
+    private String write(Future<String[]> future, Writer output, Statistics stats, String currentDelimiter)
+            throws IOException
+    {
+        String[] translated;
+        try
+        {
+            translated = future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while translating");
+        }
+        catch (ExecutionException e)
+        {
+            IOException temp = new IOException("Translation failed: " + e.getCause());
+            temp.initCause(e.getCause());
+            throw temp;
+        }
+        for (int i = 0; i < translated.length; i += 2)
+        {
+            String delimiter = translated[i + 1];
+            if (!delimiter.equals(currentDelimiter))
+            {
+                output.write("DELIMITER " + delimiter + lineSeparator_);
+                currentDelimiter = delimiter;
+            }
+            output.write(translated[i]);
+            output.write(delimiter);
+            output.write(lineSeparator_);
+            stats.charsOut_ += translated[i].length() + delimiter.length() + lineSeparator_.length();
+        }
+        return currentDelimiter;
+    }
+
+    private class Chunk implements Callable<String[]>
+    {
+        String[] statements;
+        String[] delimiters;
+
+        Chunk(String[] statements, String[] delimiters)
+        {
+            this.statements = statements;
+            this.delimiters = delimiters;
+        }
+
+        @Override
+        public String[] call()
+        {
+            String[] result = new String[statements.length * 2];
+            for (int i = 0; i < statements.length; i++)
+            {
+                result[i * 2] = modifier_.modifySQL(statements[i], false);
+                result[(i * 2) + 1] = delimiters[i];
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Statistics from a translation run.
+     */
+    public static class Statistics
+    {
+        private long statements_;
+        private long charsIn_;
+        private long charsOut_;
+        private long millis_;
+
+        public long getStatements()
+        {
+            return statements_;
+        }
+
+        public long getCharsIn()
+        {
+            return charsIn_;
+        }
+
+        public long getCharsOut()
+        {
+            return charsOut_;
+        }
+
+        public long getMillis()
+        {
+            return millis_;
+        }
+
+        /**
+         * @return the input throughput in characters per second
+         */
+        public double getCharsPerSecond()
+        {
+            return charsIn_ / (Math.max(1, millis_) / 1000.0);
+        }
+
+        /**
+         * @return the number of statements translated per second
+         */
+        public double getStatementsPerSecond()
+        {
+            return statements_ / (Math.max(1, millis_) / 1000.0);
+        }
+
+        @Override
+        public String toString()
+        {
+            return statements_ + " statements (" + charsIn_ + " chars in, " + charsOut_ + " chars out) in "
+                    + millis_ + " ms - " + Math.round(getStatementsPerSecond()) + " statements/s, "
+                    + Math.round(getCharsPerSecond() / 1024) + " KB/s";
+        }
+    }
+
+    /**
+     * A reader that decodes a file by mapping it into memory a window at a time.
+     */
+    private static class MappedFileReader extends Reader
+    {
+        private static final long WINDOW_SIZE = 16 * 1024 * 1024;
+
+        private FileInputStream   input_;
+        private FileChannel       channel_;
+        private CharsetDecoder    decoder_;
+        private long              position_ = 0;
+        private long              size_;
+        private ByteBuffer        window_;
+        private CharBuffer        decoded_ = CharBuffer.allocate(8192);
+        private boolean           finished_ = false;
+
+        MappedFileReader(File file, Charset charset) throws IOException
+        {
+            input_ = new FileInputStream(file);
+            channel_ = input_.getChannel();
+            size_ = channel_.size();
+            decoder_ = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoded_.flip();
+        }
+
+        private boolean fill() throws IOException
+        {
+            decoded_.compact();
+            while (decoded_.position() == 0 && !finished_)
+            {
+                if (window_ == null || !window_.hasRemaining())
+                {
+                    if (window_ != null)
+                    {
+                        position_ += window_.position();
+                    }
+                    long length = Math.min(WINDOW_SIZE, size_ - position_);
+                    window_ = channel_.map(FileChannel.MapMode.READ_ONLY, position_, length);
+                }
+                boolean endOfInput = position_ + window_.limit() >= size_;
+                CoderResult result = decoder_.decode(window_, decoded_, endOfInput);
+                if (result.isError())
+                {
+                    result.throwException();
+                }
+                if (result.isUnderflow() && window_.hasRemaining() && !endOfInput)
+                {
+                    // a character is split across the end of the window - remap starting at that character.
+                    position_ += window_.position();
+                    window_ = channel_.map(FileChannel.MapMode.READ_ONLY, position_,
+                                           Math.min(WINDOW_SIZE, size_ - position_));
+                }
+                if (endOfInput && !window_.hasRemaining())
+                {
+                    decoder_.flush(decoded_);
+                    finished_ = true;
+                }
+            }
+            decoded_.flip();
+            return decoded_.hasRemaining();
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!decoded_.hasRemaining() && !fill())
+            {
+                return -1;
+            }
+            int count = Math.min(len, decoded_.remaining());
+            decoded_.get(cbuf, off, count);
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel_.close();
+            input_.close();
+        }
+    }
+
+    /**
+     * Usage: GenericSQLScriptTranslator databaseType inputFile outputFile [charset] [threads]
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 3)
+        {
+            System.out.println("Usage: GenericSQLScriptTranslator databaseType inputFile outputFile [charset] [threads]");
+            return;
+        }
+        GenericSQLModifier modifier = new GenericSQLModifier(args[0]);
+        GenericSQLScriptTranslator translator = (args.length > 4
+                ? new GenericSQLScriptTranslator(modifier, Integer.parseInt(args[4]))
+                : new GenericSQLScriptTranslator(modifier));
+        Statistics stats = translator.translate(new File(args[1]), new File(args[2]), args.length > 3 ? args[3] : "UTF-8");
+        System.out.println(stats);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2007 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package genericSQL;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a sql script into individual statements, reading from the underlying Reader as it goes - so
+ * the script never has to be held in memory.
+ *
+ * Delimiters inside of string literals ('it''s'), quoted identifiers ("..." and `...`), line comments (--)
+ * and block comments are ignored. The delimiter defaults to ";" and can be changed by the script with a
+ * MySQL client style "DELIMITER $$" line. Comments are left in the statement text, but statements that
+ * consist only of comments and whitespace are dropped.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust </A>
+ */
+public class SQLScriptSplitter
+{
+    private Reader       reader_;
+    private String       delimiter_;
+    private String       statementDelimiter_;
+    private int          pushedBack_ = -1;
+    private boolean      eof_        = false;
+    private long         charsRead_  = 0;
+    private boolean      backslashEscapes_ = false;
+
+    public SQLScriptSplitter(Reader reader)
+    {
+        this(reader, ";");
+    }
+
+    public SQLScriptSplitter(Reader reader, String delimiter)
+    {
+        reader_ = reader;
+        delimiter_ = delimiter;
+    }
+
+    private int read() throws IOException
+    {
+        if (pushedBack_ != -1)
+        {
+            int temp = pushedBack_;
+            pushedBack_ = -1;
+            return temp;
+        }
+        int c = reader_.read();
+        if (c == -1)
+        {
+            eof_ = true;
+        }
+        else
+        {
+            charsRead_++;
+        }
+        return c;
+    }
+
+    /**
+     * @return the next statement (without its delimiter), or null at the end of the script.
+     */
+    public String nextStatement() throws IOException
+    {
+        StringBuilder result = new StringBuilder();
+        while (!eof_ || pushedBack_ != -1)
+        {
+            result.setLength(0);
+            statementDelimiter_ = delimiter_;
+            boolean hasContent = false;
+            boolean atLineStart = true;
+            int c;
+            while ((c = read()) != -1)
+            {
+                char ch = (char) c;
+                if (ch == '\'' || ch == '"' || ch == '`')
+                {
+                    hasContent = true;
+                    result.append(ch);
+                    readQuoted(result, ch);
+                }
+                else if (ch == '-' && peek() == '-')
+                {
+                    result.append(ch).append((char) read());
+                    while ((c = read()) != -1)
+                    {
+                        result.append((char) c);
+                        if (c == '\n')
+                        {
+                            break;
+                        }
+                    }
+                    atLineStart = true;
+                    continue;
+                }
+                else if (ch == '/' && peek() == '*')
+                {
+                    result.append(ch).append((char) read());
+                    int last = 0;
+                    while ((c = read()) != -1)
+                    {
+                        result.append((char) c);
+                        if (last == '*' && c == '/')
+                        {
+                            break;
+                        }
+                        last = c;
+                    }
+                }
+                else if (!hasContent && atLineStart && (ch == 'D' || ch == 'd') && readDelimiterDirective(ch))
+                {
+                    // the directive line has been consumed, and the delimiter changed.
+                    statementDelimiter_ = delimiter_;
+                    continue;
+                }
+                else if (ch == delimiter_.charAt(0) && matchesRestOfDelimiter(result))
+                {
+                    break;
+                }
+                else
+                {
+                    result.append(ch);
+                    if (!Character.isWhitespace(ch))
+                    {
+                        hasContent = true;
+                    }
+                }
+                atLineStart = (ch == '\n') || (atLineStart && Character.isWhitespace(ch));
+            }
+            if (hasContent)
+            {
+                return result.toString().trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param backslashEscapes true if a backslash escapes the following character in a string literal (MySQL
+     *            style), false for standard sql string literals - the default.
+     */
+    public void setBackslashEscapes(boolean backslashEscapes)
+    {
+        backslashEscapes_ = backslashEscapes;
+    }
+
+    /**
+     * @return the delimiter that terminated the statement last returned by nextStatement.
+     */
+    public String getStatementDelimiter()
+    {
+        return statementDelimiter_;
+    }
+
+    /**
+     * @return the number of characters read from the underlying reader so far.
+     */
+    public long getCharsRead()
+    {
+        return charsRead_;
+    }
+
+    private int peek() throws IOException
+    {
+        if (pushedBack_ == -1)
+        {
+            pushedBack_ = reader_.read();
+            if (pushedBack_ == -1)
+            {
+                eof_ = true;
+            }
+            else
+            {
+                charsRead_++;
+            }
+        }
+        return pushedBack_;
+    }
+
+    private void readQuoted(StringBuilder result, char quote) throws IOException
+    {
+        int c;
+        while ((c = read()) != -1)
+        {
+            result.append((char) c);
+            if (c == quote)
+            {
+                // a doubled quote is an escaped quote
+                if (peek() == quote)
+                {
+                    result.append((char) read());
+                }
+                else
+                {
+                    return;
+                }
+            }
+            else if (c == '\\' && quote == '\'' && backslashEscapes_ && peek() != -1)
+            {
+                // MySQL style backslash escapes - a backslash can't end a literal either way
+                result.append((char) read());
+            }
+        }
+    }
+
+    /**
+     * The first char of the delimiter has already been read - check the remainder. Multi character
+     * delimiters that don't match are appended to the result as regular text.
+     */
+    private boolean matchesRestOfDelimiter(StringBuilder result) throws IOException
+    {
+        if (delimiter_.length() == 1)
+        {
+            return true;
+        }
+        StringBuilder temp = new StringBuilder();
+        temp.append(delimiter_.charAt(0));
+        for (int i = 1; i < delimiter_.length(); i++)
+        {
+            int c = peek();
+            if (c != delimiter_.charAt(i))
+            {
+                result.append(temp);
+                return false;
+            }
+            temp.append((char) read());
+        }
+        return true;
+    }
+
+    /**
+     * Check for (and consume) a "DELIMITER xx" line, when positioned at the start of a line.
+     */
+    private boolean readDelimiterDirective(char first) throws IOException
+    {
+        String keyword = "DELIMITER";
+        StringBuilder temp = new StringBuilder();
+        temp.append(first);
+        for (int i = 1; i < keyword.length(); i++)
+        {
+            int c = peek();
+            if (c == -1 || Character.toUpperCase((char) c) != keyword.charAt(i))
+            {
+                // not a directive - put back what we consumed by replaying it on the next reads
+                replay(temp.substring(1));
+                return false;
+            }
+            temp.append((char) read());
+        }
+        int c = peek();
+        if (c != ' ' && c != '\t')
+        {
+            replay(temp.substring(1));
+            return false;
+        }
+        StringBuilder newDelimiter = new StringBuilder();
+        while ((c = read()) != -1 && c != '\n')
+        {
+            newDelimiter.append((char) c);
+        }
+        String trimmed = newDelimiter.toString().trim();
+        if (trimmed.length() > 0)
+        {
+            delimiter_ = trimmed;
+        }
+        return true;
+    }
+
+    private void replay(String text)
+    {
+        if (text.length() > 0)
+        {
+            final Reader original = reader_;
+            final String pending = (pushedBack_ == -1 ? text : text + (char) pushedBack_);
+            pushedBack_ = -1;
+            eof_ = false;
+            // the characters were already counted once
+            charsRead_ -= pending.length();
+            reader_ = new Reader()
+            {
+                int pos = 0;
+
+                @Override
+                public int read(char[] cbuf, int off, int len) throws IOException
+                {
+                    if (pos < pending.length())
+                    {
+                        int count = Math.min(len, pending.length() - pos);
+                        pending.getChars(pos, pos + count, cbuf, off);
+                        pos += count;
+                        if (pos == pending.length())
+                        {
+                            reader_ = original;
+                        }
+                        return count;
+                    }
+                    return original.read(cbuf, off, len);
+                }
+
+                @Override
+                public void close() throws IOException
+                {
+                    original.close();
+                }
+            };
+        }
+    }
+}
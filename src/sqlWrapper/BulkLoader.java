@@ -0,0 +1,1074 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Loads rows using the fastest mechanism the database offers - COPY FROM STDIN (binary format where
+ * all of the column types allow it) on PostgreSQL, LOAD DATA LOCAL INFILE on MySQL, and JDBC batches of
+ * inserts everywhere else.
+ *
+ * Rows are encoded straight from the {@link BulkRowSource} into a reusable direct buffer which the
+ * driver reads from as a stream - so nothing is staged on disk, and no objects are created per row for
+ * the numeric and string types.
+ *
+ * The PostgreSQL and MySQL drivers are called through reflection, so neither is needed at compile time. If
+ * the driver doesn't offer the native path, the batch path is used.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+class BulkLoader
+{
+    private static final long PG_EPOCH_MILLIS  = 946684800000L;
+    private static final long MILLIS_PER_DAY   = 86400000L;
+    private static final int  BUFFER_SIZE      = 64 * 1024;
+
+    private int               batchSize_       = 1000;
+
+    private Log               logger           = LogFactory.getLog("sqlWrapper.BulkLoader");
+
+    void setBatchSize(int batchSize)
+    {
+        batchSize_ = Math.max(1, batchSize);
+    }
+
+    long load(Connection connection, String databaseProductName, String table, String[] columns, int[] sqlTypes,
+            BulkRowSource source) throws SQLException
+    {
+        if (columns == null || sqlTypes == null || columns.length != sqlTypes.length || columns.length == 0)
+        {
+            throw new SQLException("A sql type is required for each column");
+        }
+        long start = System.currentTimeMillis();
+        long rows = -1;
+        if ("PostgreSQL".equals(databaseProductName))
+        {
+            rows = loadPostgres(connection, table, columns, sqlTypes, source);
+        }
+        else if ("MySQL".equals(databaseProductName))
+        {
+            rows = loadMySQL(connection, table, columns, sqlTypes, source);
+        }
+        if (rows == -1)
+        {
+            rows = loadBatch(connection, table, columns, sqlTypes, source);
+        }
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Bulk loaded " + rows + " rows into " + table + " in " + (System.currentTimeMillis() - start)
+                    + " ms");
+        }
+        return rows;
+    }
+
+    /**
+     * @return the number of rows, or -1 if the native COPY api isn't available
+     */
+    private long loadPostgres(Connection connection, String table, String[] columns, int[] sqlTypes,
+            BulkRowSource source) throws SQLException
+    {
+        Object copyManager;
+        Method copyIn;
+        try
+        {
+            Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+            Object pg = connection.unwrap(pgConnection);
+            copyManager = pgConnection.getMethod("getCopyAPI").invoke(pg);
+            copyIn = Class.forName("org.postgresql.copy.CopyManager").getMethod("copyIn", String.class,
+                                                                                 InputStream.class);
+        }
+        catch (Exception e)
+        {
+            logger.debug("PostgreSQL COPY api not available, using batches: " + e);
+            return -1;
+        }
+
+        boolean binary = true;
+        for (int i = 0; i < sqlTypes.length; i++)
+        {
+            binary = binary && PgBinaryEncoder.supports(sqlTypes[i]);
+        }
+        RowEncoder encoder = binary ? new PgBinaryEncoder(sqlTypes) : new TextEncoder(sqlTypes, true);
+        String sql = "COPY " + table + " " + columnList(columns) + " FROM STDIN" + (binary ? " WITH BINARY" : "");
+        logger.debug("Bulk loading with " + sql);
+        RowInputStream stream = new RowInputStream(source, encoder);
+        try
+        {
+            return ((Long) copyIn.invoke(copyManager, sql, stream)).longValue();
+        }
+        catch (InvocationTargetException e)
+        {
+            throw stream.translate(e.getCause());
+        }
+        catch (IllegalAccessException e)
+        {
+            throw new SQLException("Unexpected Error " + e.toString());
+        }
+    }
+
+    /**
+     * @return the number of rows, or -1 if the driver doesn't support streaming local infile data.
+     */
+    private long loadMySQL(Connection connection, String table, String[] columns, int[] sqlTypes,
+            BulkRowSource source) throws SQLException
+    {
+        Statement statement = connection.createStatement();
+        try
+        {
+            Method setStream = null;
+            String[] statementClasses = new String[]{"com.mysql.cj.jdbc.JdbcStatement", "com.mysql.jdbc.Statement"};
+            Object mysqlStatement = null;
+            for (int i = 0; i < statementClasses.length && setStream == null; i++)
+            {
+                try
+                {
+                    Class<?> temp = Class.forName(statementClasses[i]);
+                    mysqlStatement = statement.unwrap(temp);
+                    setStream = temp.getMethod("setLocalInfileInputStream", InputStream.class);
+                }
+                catch (Exception e)
+                {
+                    // try the next one
+                }
+            }
+            if (setStream == null)
+            {
+                logger.debug("MySQL local infile streaming not available, using batches");
+                return -1;
+            }
+
+            RowInputStream stream = new RowInputStream(source, new TextEncoder(sqlTypes, false));
+            try
+            {
+                setStream.invoke(mysqlStatement, stream);
+            }
+            catch (Exception e)
+            {
+                logger.debug("MySQL local infile streaming not available, using batches: " + e);
+                return -1;
+            }
+            String sql = "LOAD DATA LOCAL INFILE 'bulkLoad' INTO TABLE " + table
+                    + " CHARACTER SET utf8 FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' "
+                    + columnList(columns);
+            logger.debug("Bulk loading with " + sql);
+            try
+            {
+                return statement.executeUpdate(sql);
+            }
+            catch (SQLException e)
+            {
+                throw stream.translate(e);
+            }
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    private long loadBatch(Connection connection, String table, String[] columns, int[] sqlTypes,
+            BulkRowSource source) throws SQLException
+    {
+        StringBuilder sql = new StringBuilder("INSERT INTO " + table + " " + columnList(columns) + " VALUES (");
+        for (int i = 0; i < columns.length; i++)
+        {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        sql.append(")");
+        logger.debug("Bulk loading with batches of " + sql);
+
+        boolean autoCommit = connection.getAutoCommit();
+        PreparedStatement ps = connection.prepareStatement(sql.toString());
+        try
+        {
+            if (autoCommit)
+            {
+                // one commit per batch, rather than one per row
+                connection.setAutoCommit(false);
+            }
+            BatchWriter writer = new BatchWriter(ps, sqlTypes);
+            long rows = 0;
+            int pending = 0;
+            while (source.nextRow(writer))
+            {
+                writer.endRow();
+                rows++;
+                if (++pending == batchSize_)
+                {
+                    ps.executeBatch();
+                    if (autoCommit)
+                    {
+                        connection.commit();
+                    }
+                    pending = 0;
+                }
+            }
+            if (pending > 0)
+            {
+                ps.executeBatch();
+            }
+            if (autoCommit)
+            {
+                connection.commit();
+            }
+            return rows;
+        }
+        catch (SQLException e)
+        {
+            if (autoCommit)
+            {
+                try
+                {
+                    connection.rollback();
+                }
+                catch (SQLException e1)
+                {
+                    // throw the original
+                }
+            }
+            throw e;
+        }
+        finally
+        {
+            ps.close();
+            if (autoCommit)
+            {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static String columnList(String[] columns)
+    {
+        StringBuilder result = new StringBuilder("(");
+        for (int i = 0; i < columns.length; i++)
+        {
+            result.append(i > 0 ? ", " : "").append(columns[i]);
+        }
+        return result.append(")").toString();
+    }
+
+    private static String typeError(String javaType, int sqlType)
+    {
+        return "Can't write a " + javaType + " to a column of java.sql.Types " + sqlType;
+    }
+
+    /**
+     * Feeds the encoded rows to the driver - refilling the buffer from the row source as the driver reads.
+     */
+    private static class RowInputStream extends InputStream
+    {
+        private BulkRowSource source_;
+        private RowEncoder    encoder_;
+        private boolean       exhausted_ = false;
+        private SQLException  sourceFailure_;
+
+        RowInputStream(BulkRowSource source, RowEncoder encoder)
+        {
+            source_ = source;
+            encoder_ = encoder;
+            // anything the encoder wrote up front (the binary header) is read first.
+            encoder_.buffer_.flip();
+        }
+
+        private boolean fill() throws IOException
+        {
+            ByteBuffer buffer = encoder_.buffer_;
+            buffer.clear();
+            try
+            {
+                while (!exhausted_ && buffer.position() < BUFFER_SIZE / 2)
+                {
+                    int mark = buffer.position();
+                    encoder_.beginRow();
+                    if (source_.nextRow(encoder_))
+                    {
+                        encoder_.endRow();
+                    }
+                    else
+                    {
+                        encoder_.buffer_.position(mark);
+                        encoder_.finish();
+                        exhausted_ = true;
+                    }
+                    buffer = encoder_.buffer_;
+                }
+            }
+            catch (SQLException e)
+            {
+                sourceFailure_ = e;
+                IOException temp = new IOException("Failed to read the bulk load rows: " + e.getMessage());
+                temp.initCause(e);
+                throw temp;
+            }
+            buffer.flip();
+            return buffer.hasRemaining();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (!encoder_.buffer_.hasRemaining() && !fill())
+            {
+                return -1;
+            }
+            return encoder_.buffer_.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!encoder_.buffer_.hasRemaining() && !fill())
+            {
+                return -1;
+            }
+            int count = Math.min(len, encoder_.buffer_.remaining());
+            encoder_.buffer_.get(b, off, count);
+            return count;
+        }
+
+        /**
+         * @return the failure from the row source if there was one, otherwise the failure from the driver.
+         */
+        SQLException translate(Throwable driverFailure)
+        {
+            if (sourceFailure_ != null)
+            {
+                return sourceFailure_;
+            }
+            if (driverFailure instanceof SQLException)
+            {
+                return (SQLException) driverFailure;
+            }
+            SQLException temp = new SQLException("Bulk load failed: " + driverFailure);
+            temp.initCause(driverFailure);
+            return temp;
+        }
+    }
+
+    /**
+     * Base class for the encoders that write rows into a direct buffer.
+     */
+    private abstract static class RowEncoder implements BulkRowWriter
+    {
+        ByteBuffer    buffer_ = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        int[]         types_;
+        int           column_;
+        Calendar      calendar_ = new GregorianCalendar();
+        TimeZone      timeZone_ = TimeZone.getDefault();
+
+        RowEncoder(int[] types)
+        {
+            types_ = types;
+        }
+
+        void beginRow()
+        {
+            column_ = 0;
+        }
+
+        void endRow() throws SQLException
+        {
+            if (column_ != types_.length)
+            {
+                throw new SQLException("Row has " + column_ + " values, " + types_.length + " expected");
+            }
+        }
+
+        void finish()
+        {
+            // nothing by default
+        }
+
+        /**
+         * @return the type of the column being written - and move on to the next column.
+         */
+        int nextColumn() throws SQLException
+        {
+            int type = peekType();
+            column_++;
+            return type;
+        }
+
+        int peekType() throws SQLException
+        {
+            if (column_ >= types_.length)
+            {
+                throw new SQLException("Row has more than the " + types_.length + " expected values");
+            }
+            return types_[column_];
+        }
+
+        void ensure(int bytes)
+        {
+            if (buffer_.remaining() < bytes)
+            {
+                ByteBuffer temp = ByteBuffer.allocateDirect(Math.max(buffer_.capacity() * 2, buffer_.position()
+                        + bytes));
+                buffer_.flip();
+                temp.put(buffer_);
+                buffer_ = temp;
+            }
+        }
+
+        /**
+         * Write the UTF-8 encoding of value, passing each character through escape.
+         */
+        void putUTF8(String value, boolean escape)
+        {
+            int length = value.length();
+            ensure(length * 4);
+            for (int i = 0; i < length; i++)
+            {
+                char c = value.charAt(i);
+                if (c < 0x80)
+                {
+                    if (escape)
+                    {
+                        putEscaped((byte) c);
+                    }
+                    else
+                    {
+                        buffer_.put((byte) c);
+                    }
+                }
+                else if (c < 0x800)
+                {
+                    buffer_.put((byte) (0xc0 | (c >> 6)));
+                    buffer_.put((byte) (0x80 | (c & 0x3f)));
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1)))
+                {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    buffer_.put((byte) (0xf0 | (cp >> 18)));
+                    buffer_.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                    buffer_.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                    buffer_.put((byte) (0x80 | (cp & 0x3f)));
+                }
+                else
+                {
+                    buffer_.put((byte) (0xe0 | (c >> 12)));
+                    buffer_.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                    buffer_.put((byte) (0x80 | (c & 0x3f)));
+                }
+            }
+        }
+
+        void putEscaped(byte b)
+        {
+            buffer_.put(b);
+        }
+
+        /**
+         * PostgreSQL text can't hold NUL characters - fail the load rather than have the server reject it part
+         * way through, or change the value.
+         */
+        static void checkPostgresText(String value) throws SQLException
+        {
+            if (value.indexOf('\0') >= 0)
+            {
+                throw new SQLException("A value contains a NUL character, which PostgreSQL text can't hold");
+            }
+        }
+
+        /**
+         * @return epochMillis shifted to the local wall clock time, as milliseconds.
+         */
+        long toLocal(long epochMillis)
+        {
+            return epochMillis + timeZone_.getOffset(epochMillis);
+        }
+    }
+
+    /**
+     * The PostgreSQL binary COPY format.
+     */
+    private static class PgBinaryEncoder extends RowEncoder
+    {
+        private static final byte[] HEADER = new byte[]{'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r',
+                '\n', 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+        PgBinaryEncoder(int[] types)
+        {
+            super(types);
+            buffer_.put(HEADER);
+        }
+
+        static boolean supports(int sqlType)
+        {
+            switch (sqlType)
+            {
+                case Types.SMALLINT :
+                case Types.INTEGER :
+                case Types.BIGINT :
+                case Types.REAL :
+                case Types.FLOAT :
+                case Types.DOUBLE :
+                case Types.BOOLEAN :
+                case Types.BIT :
+                case Types.CHAR :
+                case Types.VARCHAR :
+                case Types.LONGVARCHAR :
+                case Types.NCHAR :
+                case Types.NVARCHAR :
+                case Types.LONGNVARCHAR :
+                case Types.BINARY :
+                case Types.VARBINARY :
+                case Types.LONGVARBINARY :
+                case Types.DATE :
+                case Types.TIMESTAMP :
+                case TIMESTAMP_WITH_TIMEZONE :
+                    return true;
+                default :
+                    return false;
+            }
+        }
+
+        @Override
+        void beginRow()
+        {
+            super.beginRow();
+            ensure(2);
+            buffer_.putShort((short) types_.length);
+        }
+
+        @Override
+        void finish()
+        {
+            ensure(2);
+            buffer_.putShort((short) -1);
+        }
+
+        @Override
+        public void writeNull() throws SQLException
+        {
+            nextColumn();
+            ensure(4);
+            buffer_.putInt(-1);
+        }
+
+        private void putNumber(long value, double floating, boolean isFloating, String javaType) throws SQLException
+        {
+            int type = nextColumn();
+            ensure(12);
+            switch (type)
+            {
+                case Types.SMALLINT :
+                    buffer_.putInt(2).putShort((short) (isFloating ? (long) floating : value));
+                    break;
+                case Types.INTEGER :
+                    buffer_.putInt(4).putInt((int) (isFloating ? (long) floating : value));
+                    break;
+                case Types.BIGINT :
+                    buffer_.putInt(8).putLong(isFloating ? (long) floating : value);
+                    break;
+                case Types.REAL :
+                    buffer_.putInt(4).putFloat((float) (isFloating ? floating : value));
+                    break;
+                case Types.FLOAT :
+                case Types.DOUBLE :
+                    buffer_.putInt(8).putDouble(isFloating ? floating : value);
+                    break;
+                case Types.BOOLEAN :
+                case Types.BIT :
+                    buffer_.putInt(1).put((byte) ((isFloating ? floating != 0 : value != 0) ? 1 : 0));
+                    break;
+                default :
+                    throw new SQLException(typeError(javaType, type));
+            }
+        }
+
+        @Override
+        public void writeInt(int value) throws SQLException
+        {
+            putNumber(value, 0, false, "int");
+        }
+
+        @Override
+        public void writeLong(long value) throws SQLException
+        {
+            putNumber(value, 0, false, "long");
+        }
+
+        @Override
+        public void writeDouble(double value) throws SQLException
+        {
+            putNumber(0, value, true, "double");
+        }
+
+        @Override
+        public void writeBigDecimal(BigDecimal value) throws SQLException
+        {
+            if (value == null)
+            {
+                writeNull();
+                return;
+            }
+            int type = peekType();
+            if (type == Types.REAL || type == Types.FLOAT || type == Types.DOUBLE)
+            {
+                putNumber(0, value.doubleValue(), true, "BigDecimal");
+            }
+            else
+            {
+                putNumber(value.longValue(), 0, false, "BigDecimal");
+            }
+        }
+
+        @Override
+        public void writeBoolean(boolean value) throws SQLException
+        {
+            putNumber(value ? 1 : 0, 0, false, "boolean");
+        }
+
+        @Override
+        public void writeString(String value) throws SQLException
+        {
+            if (value == null)
+            {
+                writeNull();
+                return;
+            }
+            int type = nextColumn();
+            if (type != Types.CHAR && type != Types.VARCHAR && type != Types.LONGVARCHAR && type != Types.NCHAR
+                    && type != Types.NVARCHAR && type != Types.LONGNVARCHAR)
+            {
+                throw new SQLException(typeError("String", type));
+            }
+            checkPostgresText(value);
+            ensure(4);
+            int lengthPos = buffer_.position();
+            buffer_.putInt(0);
+            putUTF8(value, false);
+            buffer_.putInt(lengthPos, buffer_.position() - lengthPos - 4);
+        }
+
+        @Override
+        public void writeBytes(byte[] value) throws SQLException
+        {
+            if (value == null)
+            {
+                writeNull();
+                return;
+            }
+            int type = nextColumn();
+            if (type != Types.BINARY && type != Types.VARBINARY && type != Types.LONGVARBINARY)
+            {
+                throw new SQLException(typeError("byte[]", type));
+            }
+            ensure(4 + value.length);
+            buffer_.putInt(value.length).put(value);
+        }
+
+        @Override
+        public void writeTimestamp(long epochMillis) throws SQLException
+        {
+            int type = nextColumn();
+            long local = toLocal(epochMillis) - PG_EPOCH_MILLIS;
+            ensure(12);
+            if (type == Types.TIMESTAMP)
+            {
+                // microseconds since 2000-01-01 (integer datetimes)
+                buffer_.putInt(8).putLong(local * 1000);
+            }
+            else if (type == TIMESTAMP_WITH_TIMEZONE)
+            {
+                // timestamptz is sent as the instant - microseconds since 2000-01-01 UTC
+                buffer_.putInt(8).putLong((epochMillis - PG_EPOCH_MILLIS) * 1000);
+            }
+            else if (type == Types.DATE)
+            {
+                buffer_.putInt(4).putInt((int) floorDiv(local, MILLIS_PER_DAY));
+            }
+            else
+            {
+                throw new SQLException(typeError("timestamp", type));
+            }
+        }
+
+        @Override
+        public void writeDate(long epochMillis) throws SQLException
+        {
+            int type = peekType();
+            if (type != Types.DATE)
+            {
+                throw new SQLException(typeError("date", type));
+            }
+            writeTimestamp(epochMillis);
+        }
+
+        private static long floorDiv(long a, long b)
+        {
+            long result = a / b;
+            if ((a % b != 0) && ((a < 0) != (b < 0)))
+            {
+                result--;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Tab separated text, with backslash escapes and \N for null - understood by both PostgreSQL (text COPY)
+     * and MySQL (LOAD DATA with the options used above).
+     */
+    private static class TextEncoder extends RowEncoder
+    {
+        private static final byte[] HEX = "0123456789abcdef".getBytes();
+        private boolean             postgres_;
+        private byte[]              digits_ = new byte[20];
+        private Calendar            utc_    = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+
+        TextEncoder(int[] types, boolean postgres)
+        {
+            super(types);
+            postgres_ = postgres;
+        }
+
+        @Override
+        void endRow() throws SQLException
+        {
+            super.endRow();
+            ensure(1);
+            buffer_.put((byte) '\n');
+        }
+
+        @Override
+        int nextColumn() throws SQLException
+        {
+            int type = super.nextColumn();
+            if (column_ > 1)
+            {
+                ensure(1);
+                buffer_.put((byte) '\t');
+            }
+            return type;
+        }
+
+        @Override
+        void putEscaped(byte b)
+        {
+            switch (b)
+            {
+                case '\\' :
+                    buffer_.put((byte) '\\').put((byte) '\\');
+                    break;
+                case '\t' :
+                    buffer_.put((byte) '\\').put((byte) 't');
+                    break;
+                case '\n' :
+                    buffer_.put((byte) '\\').put((byte) 'n');
+                    break;
+                case '\r' :
+                    buffer_.put((byte) '\\').put((byte) 'r');
+                    break;
+                case 0 :
+                    // MySQL only - checkPostgresText keeps NULs out of PostgreSQL text
+                    buffer_.put((byte) '\\').put((byte) '0');
+                    break;
+                default :
+                    buffer_.put(b);
+            }
+        }
+
+        private void putLong(long value)
+        {
+            ensure(20);
+            if (value == Long.MIN_VALUE)
+            {
+                putUTF8(Long.toString(value), false);
+                return;
+            }
+            if (value < 0)
+            {
+                buffer_.put((byte) '-');
+                value = -value;
+            }
+            int count = 0;
+            do
+            {
+                digits_[count++] = (byte) ('0' + (value % 10));
+                value /= 10;
+            }
+            while (value > 0);
+            while (count > 0)
+            {
+                buffer_.put(digits_[--count]);
+            }
+        }
+
+        private void putPadded(int value, int width)
+        {
+            for (int divisor = (width == 4 ? 1000 : (width == 3 ? 100 : 10)); divisor > 0; divisor /= 10)
+            {
+                buffer_.put((byte) ('0' + ((value / divisor) % 10)));
+            }
+        }
+
+        @Override
+        public void writeNull() throws SQLException
+        {
+            nextColumn();
+            ensure(2);
+            buffer_.put((byte) '\\').put((byte) 'N');
+        }
+
+        @Override
+        public void writeString(String value) throws SQLException
+        {
+            if (value == null)
+            {
+                writeNull();
+                return;
+            }
+            nextColumn();
+            if (postgres_)
+            {
+                checkPostgresText(value);
+            }
+            // escaped chars take two bytes
+            ensure(value.length() * 2);
+            putUTF8(value, true);
+        }
+
+        @Override
+        public void writeInt(int value) throws SQLException
+        {
+            writeLong(value);
+        }
+
+        @Override
+        public void writeLong(long value) throws SQLException
+        {
+            nextColumn();
+            putLong(value);
+        }
+
+        @Override
+        public void writeDouble(double value) throws SQLException
+        {
+            nextColumn();
+            putUTF8(Double.toString(value), false);
+        }
+
+        @Override
+        public void writeBoolean(boolean value) throws SQLException
+        {
+            nextColumn();
+            ensure(1);
+            buffer_.put((byte) (postgres_ ? (value ? 't' : 'f') : (value ? '1' : '0')));
+        }
+
+        @Override
+        public void writeBytes(byte[] value) throws SQLException
+        {
+            if (value == null)
+            {
+                writeNull();
+                return;
+            }
+            nextColumn();
+            if (postgres_)
+            {
+                // bytea hex format - the backslash itself has to be escaped in the COPY text.
+                ensure(3 + value.length * 2);
+                buffer_.put((byte) '\\').put((byte) '\\').put((byte) 'x');
+                for (int i = 0; i < value.length; i++)
+                {
+                    buffer_.put(HEX[(value[i] >> 4) & 0xf]).put(HEX[value[i] & 0xf]);
+                }
+            }
+            else
+            {
+                ensure(value.length * 2);
+                for (int i = 0; i < value.length; i++)
+                {
+                    putEscaped(value[i]);
+                }
+            }
+        }
+
+        @Override
+        public void writeBigDecimal(BigDecimal value) throws SQLException
+        {
+            if (value == null)
+            {
+                writeNull();
+                return;
+            }
+            nextColumn();
+            putUTF8(value.toPlainString(), false);
+        }
+
+        @Override
+        public void writeTimestamp(long epochMillis) throws SQLException
+        {
+            // a timestamptz gets the UTC time, and says so - otherwise the local time, as for TIMESTAMP
+            boolean utc = nextColumn() == TIMESTAMP_WITH_TIMEZONE && postgres_;
+            Calendar calendar = utc ? utc_ : calendar_;
+            ensure(26);
+            calendar.setTimeInMillis(epochMillis);
+            putDate(calendar);
+            buffer_.put((byte) ' ');
+            putPadded(calendar.get(Calendar.HOUR_OF_DAY), 2);
+            buffer_.put((byte) ':');
+            putPadded(calendar.get(Calendar.MINUTE), 2);
+            buffer_.put((byte) ':');
+            putPadded(calendar.get(Calendar.SECOND), 2);
+            buffer_.put((byte) '.');
+            putPadded(calendar.get(Calendar.MILLISECOND), 3);
+            if (utc)
+            {
+                buffer_.put((byte) '+').put((byte) '0').put((byte) '0');
+            }
+        }
+
+        @Override
+        public void writeDate(long epochMillis) throws SQLException
+        {
+            nextColumn();
+            ensure(10);
+            calendar_.setTimeInMillis(epochMillis);
+            putDate(calendar_);
+        }
+
+        private void putDate(Calendar calendar)
+        {
+            putPadded(calendar.get(Calendar.YEAR), 4);
+            buffer_.put((byte) '-');
+            putPadded(calendar.get(Calendar.MONTH) + 1, 2);
+            buffer_.put((byte) '-');
+            putPadded(calendar.get(Calendar.DAY_OF_MONTH), 2);
+        }
+    }
+
+    /**
+     * Binds the values to an insert statement for the batch path.
+     */
+    private static class BatchWriter implements BulkRowWriter
+    {
+        private PreparedStatement statement_;
+        private int[]             types_;
+        private int               column_ = 0;
+
+        BatchWriter(PreparedStatement statement, int[] types)
+        {
+            statement_ = statement;
+            types_ = types;
+        }
+
+        void endRow() throws SQLException
+        {
+            if (column_ != types_.length)
+            {
+                throw new SQLException("Row has " + column_ + " values, " + types_.length + " expected");
+            }
+            statement_.addBatch();
+            column_ = 0;
+        }
+
+        private int next() throws SQLException
+        {
+            if (column_ >= types_.length)
+            {
+                throw new SQLException("Row has more than the " + types_.length + " expected values");
+            }
+            return ++column_;
+        }
+
+        @Override
+        public void writeNull() throws SQLException
+        {
+            int index = next();
+            statement_.setNull(index, types_[index - 1]);
+        }
+
+        @Override
+        public void writeString(String value) throws SQLException
+        {
+            statement_.setString(next(), value);
+        }
+
+        @Override
+        public void writeInt(int value) throws SQLException
+        {
+            statement_.setInt(next(), value);
+        }
+
+        @Override
+        public void writeLong(long value) throws SQLException
+        {
+            statement_.setLong(next(), value);
+        }
+
+        @Override
+        public void writeDouble(double value) throws SQLException
+        {
+            statement_.setDouble(next(), value);
+        }
+
+        @Override
+        public void writeBoolean(boolean value) throws SQLException
+        {
+            statement_.setBoolean(next(), value);
+        }
+
+        @Override
+        public void writeBytes(byte[] value) throws SQLException
+        {
+            statement_.setBytes(next(), value);
+        }
+
+        @Override
+        public void writeBigDecimal(BigDecimal value) throws SQLException
+        {
+            statement_.setBigDecimal(next(), value);
+        }
+
+        @Override
+        public void writeTimestamp(long epochMillis) throws SQLException
+        {
+            statement_.setTimestamp(next(), new Timestamp(epochMillis));
+        }
+
+        @Override
+        public void writeDate(long epochMillis) throws SQLException
+        {
+            statement_.setDate(next(), new Date(epochMillis));
+        }
+    }
+}
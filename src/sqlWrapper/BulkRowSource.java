@@ -0,0 +1,32 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+
+/**
+ * Supplies the rows for {@link WrappedConnection#bulkLoad(String, String[], int[], BulkRowSource)}.
+ * 
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public interface BulkRowSource
+{
+    /**
+     * Write the next row - one write call per column, in column order.
+     * 
+     * @return false if there are no more rows (in which case nothing should be written)
+     */
+    public boolean nextRow(BulkRowWriter writer) throws SQLException;
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+
+/**
+ * Receives the column values of a row during a bulk load. The values are encoded straight into the
+ * load's buffer, so no objects need to be created per row. Values are converted to the sql type that was
+ * declared for the column.
+ * 
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public interface BulkRowWriter
+{
+    /**
+     * The sql type for a PostgreSQL timestamptz column - java.sql.Types.TIMESTAMP_WITH_TIMEZONE, which came
+     * after Java 6.
+     */
+    public static final int TIMESTAMP_WITH_TIMEZONE = 2014;
+
+    public void writeNull() throws SQLException;
+
+    public void writeString(String value) throws SQLException;
+
+    public void writeInt(int value) throws SQLException;
+
+    public void writeLong(long value) throws SQLException;
+
+    public void writeDouble(double value) throws SQLException;
+
+    public void writeBoolean(boolean value) throws SQLException;
+
+    public void writeBytes(byte[] value) throws SQLException;
+
+    public void writeBigDecimal(BigDecimal value) throws SQLException;
+
+    /**
+     * @param epochMillis a point in time, written as the local date and time (as setTimestamp would) - or as
+     *            the instant itself, for a TIMESTAMP_WITH_TIMEZONE column
+     */
+    public void writeTimestamp(long epochMillis) throws SQLException;
+
+    /**
+     * @param epochMillis a point in time, written as the local date (as setDate would)
+     */
+    public void writeDate(long epochMillis) throws SQLException;
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.Connection;
+
+/**
+ * A standard MBean with the live state of one {@link WrappedConnection} - registered with the platform MBean
+ * server by {@link WrappedConnection#registerMBean()}, under sqlWrapper:type=WrappedConnection, and
+ * unregistered when the connection is closed.
+ *
+ * Nothing here touches the underlying JDBC connection from the JMX thread - the reconnect and flush
+ * operations only ask for the work to be done, and the thread using the connection does it.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class ConnectionMonitor implements ConnectionMonitorMBean
+{
+    private static final String DRIVER_DEFAULT = "driver default";
+
+    private WrappedConnection   connection_;
+
+    ConnectionMonitor(WrappedConnection connection)
+    {
+        connection_ = connection;
+    }
+
+    @Override
+    public String getServer()
+    {
+        return connection_.getServer();
+    }
+
+    @Override
+    public String getUserName()
+    {
+        return connection_.getUserName();
+    }
+
+    @Override
+    public boolean isConnected()
+    {
+        return connection_.isConnected();
+    }
+
+    @Override
+    public long getReconnectCount()
+    {
+        return connection_.getReconnectCount();
+    }
+
+    @Override
+    public boolean isReconnectPending()
+    {
+        return connection_.isReconnectRequested();
+    }
+
+    @Override
+    public int getOpenStatementCount()
+    {
+        return connection_.getOpenStatements().length;
+    }
+
+    @Override
+    public int getInFlightStatementCount()
+    {
+        WrappedPreparedStatement[] statements = connection_.getOpenStatements();
+        int count = 0;
+        for (int i = 0; i < statements.length; i++)
+        {
+            if (statements[i].getExecutingSince() != 0)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long getExecutionCount()
+    {
+        return connection_.getExecutionCount();
+    }
+
+    @Override
+    public long getFailedExecutionCount()
+    {
+        return connection_.getFailedExecutionCount();
+    }
+
+    @Override
+    public String getAutoCommit()
+    {
+        Boolean autoCommit = connection_.getAutoCommitSetting();
+        return autoCommit == null ? DRIVER_DEFAULT : autoCommit.toString();
+    }
+
+    @Override
+    public String getTransactionIsolation()
+    {
+        Integer level = connection_.getTransactionIsolationSetting();
+        if (level == null)
+        {
+            return DRIVER_DEFAULT;
+        }
+        switch (level.intValue())
+        {
+            case Connection.TRANSACTION_NONE :
+                return "NONE";
+            case Connection.TRANSACTION_READ_UNCOMMITTED :
+                return "READ_UNCOMMITTED";
+            case Connection.TRANSACTION_READ_COMMITTED :
+                return "READ_COMMITTED";
+            case Connection.TRANSACTION_REPEATABLE_READ :
+                return "REPEATABLE_READ";
+            case Connection.TRANSACTION_SERIALIZABLE :
+                return "SERIALIZABLE";
+            default :
+                return level.toString();
+        }
+    }
+
+    @Override
+    public String getReadOnly()
+    {
+        Boolean readOnly = connection_.getReadOnlySetting();
+        return readOnly == null ? DRIVER_DEFAULT : readOnly.toString();
+    }
+
+    @Override
+    public long getSlowStatementThreshold()
+    {
+        return connection_.getSlowStatementThreshold();
+    }
+
+    @Override
+    public void setSlowStatementThreshold(long millis)
+    {
+        connection_.setSlowStatementThreshold(millis);
+    }
+
+    @Override
+    public long getConnectTimeout()
+    {
+        return connection_.getConnectTimeout();
+    }
+
+    @Override
+    public void setConnectTimeout(long millis)
+    {
+        connection_.setConnectTimeout(millis);
+    }
+
+    @Override
+    public void reconnect()
+    {
+        connection_.requestReconnect();
+    }
+
+    @Override
+    public void flushCaches()
+    {
+        connection_.flushCaches();
+    }
+
+    @Override
+    public String dumpInFlightStatements()
+    {
+        WrappedPreparedStatement[] statements = connection_.getOpenStatements();
+        long now = System.currentTimeMillis();
+        StringBuilder temp = new StringBuilder();
+        int count = 0;
+        for (int i = 0; i < statements.length; i++)
+        {
+            String description = statements[i].describeExecution(now);
+            if (description != null)
+            {
+                temp.append('\n').append(description);
+                count++;
+            }
+        }
+        return count + " statement(s) in flight on " + connection_.getServer() + temp.toString();
+    }
+
+    @Override
+    public String dumpFlightRecorder()
+    {
+        FlightRecorder recorder = connection_.getFlightRecorder();
+        return recorder == null ? "The flight recorder is off" : recorder.dump();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+/**
+ * The JMX management interface of a {@link WrappedConnection} - see {@link ConnectionMonitor}.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public interface ConnectionMonitorMBean
+{
+    String getServer();
+
+    String getUserName();
+
+    /**
+     * @return false if the connection is closed, the last reconnect failed, or it is a lazy connection that
+     *         hasn't connected yet.
+     */
+    boolean isConnected();
+
+    long getReconnectCount();
+
+    /**
+     * @return true if a reconnect has been asked for, and hasn't happened yet.
+     */
+    boolean isReconnectPending();
+
+    /**
+     * @return the number of statements prepared on the connection, since this was registered, and not yet
+     *         closed.
+     */
+    int getOpenStatementCount();
+
+    /**
+     * @return the number of statements executing right now.
+     */
+    int getInFlightStatementCount();
+
+    long getExecutionCount();
+
+    long getFailedExecutionCount();
+
+    /**
+     * @return the auto commit mode set on the connection, which is restored after a reconnect - or "driver
+     *         default" if it hasn't been set.
+     */
+    String getAutoCommit();
+
+    /**
+     * @return the transaction isolation level set on the connection, or "driver default".
+     */
+    String getTransactionIsolation();
+
+    String getReadOnly();
+
+    long getSlowStatementThreshold();
+
+    void setSlowStatementThreshold(long millis);
+
+    long getConnectTimeout();
+
+    void setConnectTimeout(long millis);
+
+    /**
+     * Reconnect - the thread using the connection does it before its next auto commit statement, or after the
+     * transaction it is in ends, so nothing in progress is lost.
+     */
+    void reconnect();
+
+    /**
+     * Forget the cached database details, and prepare every statement again before its next execution.
+     */
+    void flushCaches();
+
+    /**
+     * @return the statements executing right now - how long they have been running, the thread running them,
+     *         and the sql with the parameter values.
+     */
+    String dumpInFlightStatements();
+
+    /**
+     * @return the recent executions kept by the connection's {@link FlightRecorder}.
+     */
+    String dumpFlightRecorder();
+}
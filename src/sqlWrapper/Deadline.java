@@ -0,0 +1,147 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A time budget for the database calls made by the current thread. While a deadline is in effect, every
+ * statement executed through a WrappedPreparedStatement - including its retries, reconnect attempts and the
+ * backoff between them - has to fit into what is left of it. An attempt still running when the time is up is
+ * cancelled by the {@link StatementWatchdog}, and once the time is used up calls fail straight away with an
+ * SQLTimeoutException.
+ *
+ * <pre>
+ * Deadline deadline = Deadline.begin(200);
+ * try
+ * {
+ *     ... execute statements ...
+ * }
+ * finally
+ * {
+ *     deadline.end();
+ * }
+ * </pre>
+ *
+ * Deadlines nest - an inner deadline can only make the budget tighter, and ending it puts the outer one
+ * back.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public final class Deadline
+{
+    /**
+     * The SQLState of the exception thrown when the deadline has passed (timeout expired).
+     */
+    public static final String             DEADLINE_EXCEEDED = "HYT00";
+
+    private static final ThreadLocal<Deadline> current_      = new ThreadLocal<Deadline>();
+
+    private final long                     expiresAt_;
+    private final Deadline                 outer_;
+
+    private Deadline(long expiresAt, Deadline outer)
+    {
+        expiresAt_ = expiresAt;
+        outer_ = outer;
+    }
+
+    /**
+     * Start a deadline for the current thread.
+     *
+     * @param timeoutMillis the budget, from now
+     */
+    public static Deadline begin(long timeoutMillis)
+    {
+        Deadline outer = current_.get();
+        long expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeoutMillis));
+        if (outer != null && outer.expiresAt_ - expiresAt < 0)
+        {
+            expiresAt = outer.expiresAt_;
+        }
+        Deadline deadline = new Deadline(expiresAt, outer);
+        current_.set(deadline);
+        return deadline;
+    }
+
+    /**
+     * @return the deadline in effect for the current thread, or null if there isn't one.
+     */
+    public static Deadline current()
+    {
+        return current_.get();
+    }
+
+    /**
+     * Remove this deadline from the current thread (restoring any outer deadline).
+     */
+    public void end()
+    {
+        if (current_.get() == this)
+        {
+            if (outer_ == null)
+            {
+                current_.remove();
+            }
+            else
+            {
+                current_.set(outer_);
+            }
+        }
+    }
+
+    public long remainingNanos()
+    {
+        return Math.max(0, expiresAt_ - System.nanoTime());
+    }
+
+    public long remainingMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(remainingNanos());
+    }
+
+    public boolean isExpired()
+    {
+        return expiresAt_ - System.nanoTime() <= 0;
+    }
+
+    /**
+     * @throws SQLTimeoutException if the deadline has passed.
+     */
+    public void check(String action) throws SQLTimeoutException
+    {
+        if (isExpired())
+        {
+            throw new SQLTimeoutException("Deadline exceeded before " + action, DEADLINE_EXCEEDED);
+        }
+    }
+
+    /**
+     * @return the remaining time for the current thread's deadline in millis, or defaultMillis if there isn't
+     *         a deadline (or defaultMillis is smaller).
+     */
+    static long remainingMillis(long defaultMillis)
+    {
+        Deadline deadline = current_.get();
+        return deadline == null ? defaultMillis : Math.min(defaultMillis, deadline.remainingMillis());
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Deadline - " + remainingMillis() + "ms remaining";
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+
+/**
+ * Hooks for Java Flight Recorder events - statement prepare and execute, statement rebuilds, reconnect
+ * attempts, and waits for space in the bounded queues.
+ *
+ * The events themselves are in srcJfr, as they need the jdk.jfr api of Java 11 - they are built into the
+ * jar by the jfr ant target. When they aren't there (or the JVM has no flight recorder, or the system
+ * property sqlWrapper.jfr is false), every hook is a null check. When they are, each hook checks whether its
+ * event is enabled in the running recording before doing anything; the thresholds (how long an execution
+ * has to take to be recorded, and so on) are set in the recording settings.
+ *
+ * <pre>
+ * Object event = DiagnosticEvents.begin(DiagnosticEvents.EXECUTE);
+ * ... execute ...
+ * DiagnosticEvents.executed(event, ...);
+ * </pre>
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+final class DiagnosticEvents
+{
+    static final int          PREPARE   = 0;
+    static final int          EXECUTE   = 1;
+    static final int          REBUILD   = 2;
+    static final int          RECONNECT = 3;
+    static final int          WAIT      = 4;
+
+    private static final Sink sink_     = load();
+
+    private DiagnosticEvents()
+    {
+    }
+
+    /**
+     * What the flight recorder events implement.
+     */
+    interface Sink
+    {
+        /**
+         * @return the event, begun - or null if events of the type aren't being recorded.
+         */
+        Object begin(int type);
+
+        void prepared(Object event, String sql);
+
+        void executed(Object event, SQLFingerprint fingerprint, String operation, long rows, SQLException error);
+
+        void rebuilt(Object event, String sql, SQLException error);
+
+        void reconnectAttempted(Object event, String server, int attempt, SQLException error);
+
+        void waited(Object event, String resource);
+    }
+
+    /**
+     * @return true if the flight recorder events are available.
+     */
+    static boolean isAvailable()
+    {
+        return sink_ != null;
+    }
+
+    /**
+     * @return the event to pass to the matching end hook, or null if nothing is being recorded.
+     */
+    static Object begin(int type)
+    {
+        return sink_ == null ? null : sink_.begin(type);
+    }
+
+    static void prepared(Object event, String sql)
+    {
+        if (event != null)
+        {
+            sink_.prepared(event, sql);
+        }
+    }
+
+    /**
+     * @param error the error the execution ended with, or null
+     */
+    static void executed(Object event, SQLFingerprint fingerprint, String operation, long rows, SQLException error)
+    {
+        if (event != null)
+        {
+            sink_.executed(event, fingerprint, operation, rows, error);
+        }
+    }
+
+    static void rebuilt(Object event, String sql, SQLException error)
+    {
+        if (event != null)
+        {
+            sink_.rebuilt(event, sql, error);
+        }
+    }
+
+    static void reconnectAttempted(Object event, String server, int attempt, SQLException error)
+    {
+        if (event != null)
+        {
+            sink_.reconnectAttempted(event, server, attempt, error);
+        }
+    }
+
+    static void waited(Object event, String resource)
+    {
+        if (event != null)
+        {
+            sink_.waited(event, resource);
+        }
+    }
+
+    private static Sink load()
+    {
+        if ("false".equalsIgnoreCase(System.getProperty("sqlWrapper.jfr")))
+        {
+            return null;
+        }
+        try
+        {
+            return (Sink) Class.forName("sqlWrapper.JfrDiagnosticEvents").newInstance();
+        }
+        catch (Throwable e)
+        {
+            // not built with the jfr target, or no flight recorder in this JVM
+            return null;
+        }
+    }
+}
@@ -0,0 +1,677 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A JDBC driver that stands in front of another one and injects faults - for testing (and timing) the
+ * reconnect and retry handling of WrappedConnection without having to take a real database down. See
+ * {@link FaultInjectionBenchmark}.
+ *
+ * The url is <code>jdbc:fault:</code> followed by the url of the real database (whose driver must already
+ * be loaded) - or <code>jdbc:fault:stub</code> for no database at all, where every update changes no rows
+ * and every query returns no rows.
+ *
+ * Faults are scheduled as windows of time, from now:
+ * <ul>
+ * <li>latency - every connect and execute takes longer</li>
+ * <li>outage - the connections open when it starts are lost (calls on them fail with SQLState 08006), and
+ * new connections are refused (08001) until it ends, as in a failover</li>
+ * <li>hang - connects and executes block, as on a socket to a server that has gone away without closing it,
+ * until the window ends - and then fail (08S01), losing the connection. A query timeout or a cancel ends
+ * the wait for an execute early.</li>
+ * <li>errors - a fraction of the executes fail with a given SQLState (and vendor code) - a deadlock storm,
+ * say</li>
+ * </ul>
+ * The faults are global - they apply to every connection made through the driver.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class FaultInjectingDriver implements Driver
+{
+    public static final String      PREFIX         = "jdbc:fault:";
+    public static final String      STUB           = "stub";
+
+    private static final int        LATENCY        = 0;
+    private static final int        OUTAGE         = 1;
+    private static final int        HANG           = 2;
+    private static final int        ERRORS         = 3;
+    private static final String[]   KINDS          = {"latency", "outage", "hang", "errors"};
+
+    private static List<Fault>      faults_        = new CopyOnWriteArrayList<Fault>();
+    private static Random           random_        = new Random();
+
+    private static AtomicLong       connects_      = new AtomicLong();
+    private static AtomicLong       refused_       = new AtomicLong();
+    private static AtomicLong       executions_    = new AtomicLong();
+    private static AtomicLong       lost_          = new AtomicLong();
+    private static AtomicLong       hung_          = new AtomicLong();
+    private static AtomicLong       injected_      = new AtomicLong();
+
+    private static Log              logger         = LogFactory.getLog("sqlWrapper.FaultInjectingDriver");
+
+    static
+    {
+        try
+        {
+            DriverManager.registerDriver(new FaultInjectingDriver());
+        }
+        catch (SQLException e)
+        {
+            logger.error("Couldn't register the fault injecting driver", e);
+        }
+    }
+
+    /**
+     * Make every connect and execute slower.
+     *
+     * @param afterMillis when to start, from now
+     * @param forMillis how long for - 0 or less for until {@link #reset()}
+     * @param jitterMillis up to this much more, at random
+     */
+    public static void scheduleLatency(long afterMillis, long forMillis, long millis, long jitterMillis)
+    {
+        schedule(new Fault(LATENCY, afterMillis, forMillis, millis, jitterMillis, null, 0, 0));
+    }
+
+    /**
+     * Lose every open connection, and refuse new ones for a while.
+     */
+    public static void scheduleOutage(long afterMillis, long forMillis)
+    {
+        schedule(new Fault(OUTAGE, afterMillis, forMillis, 0, 0, null, 0, 0));
+    }
+
+    /**
+     * Block connects and executes for a while, then fail them.
+     */
+    public static void scheduleHang(long afterMillis, long forMillis)
+    {
+        schedule(new Fault(HANG, afterMillis, forMillis, 0, 0, null, 0, 0));
+    }
+
+    /**
+     * Fail some of the executes. An SQLState of class 08 loses the connection as well.
+     *
+     * @param rate the fraction of the executes to fail, from 0 to 1
+     */
+    public static void scheduleErrors(long afterMillis, long forMillis, String sqlState, int vendorCode, double rate)
+    {
+        schedule(new Fault(ERRORS, afterMillis, forMillis, 0, 0, sqlState, vendorCode, rate));
+    }
+
+    private static void schedule(Fault fault)
+    {
+        faults_.add(fault);
+        logger.info("Scheduled " + fault);
+    }
+
+    /**
+     * Remove every fault - the connections already lost stay lost.
+     */
+    public static void reset()
+    {
+        faults_.clear();
+    }
+
+    public static long getConnectCount()
+    {
+        return connects_.get();
+    }
+
+    public static long getRefusedConnectCount()
+    {
+        return refused_.get();
+    }
+
+    public static long getExecutionCount()
+    {
+        return executions_.get();
+    }
+
+    /**
+     * @return the number of connections lost to outages, hangs and connection errors.
+     */
+    public static long getLostConnectionCount()
+    {
+        return lost_.get();
+    }
+
+    public static long getHungCount()
+    {
+        return hung_.get();
+    }
+
+    /**
+     * @return the number of executes failed by an errors fault.
+     */
+    public static long getInjectedErrorCount()
+    {
+        return injected_.get();
+    }
+
+    public static String describe()
+    {
+        return "FaultInjectingDriver - connects=" + getConnectCount() + " refused=" + getRefusedConnectCount()
+                + " executions=" + getExecutionCount() + " lost=" + getLostConnectionCount() + " hung="
+                + getHungCount() + " injected=" + getInjectedErrorCount() + " faults=" + faults_;
+    }
+
+    public boolean acceptsURL(String url) throws SQLException
+    {
+        return url != null && url.startsWith(PREFIX);
+    }
+
+    public Connection connect(String url, Properties info) throws SQLException
+    {
+        if (!acceptsURL(url))
+        {
+            return null;
+        }
+        long now = System.nanoTime();
+        delay(now);
+        Fault hang = active(HANG, now);
+        if (hang != null)
+        {
+            hung_.incrementAndGet();
+            sleepUntil(hang.endNanos_);
+            refused_.incrementAndGet();
+            throw new SQLException("Connect timed out (injected hang)", "08001");
+        }
+        if (active(OUTAGE, System.nanoTime()) != null)
+        {
+            refused_.incrementAndGet();
+            throw new SQLException("Connection refused (injected outage)", "08001");
+        }
+        String real = url.substring(PREFIX.length());
+        Connection connection = STUB.equals(real) ? null : DriverManager.getConnection(real, info);
+        connects_.incrementAndGet();
+        ConnectionHandler handler = new ConnectionHandler(connection);
+        handler.proxy_ = (Connection) Proxy.newProxyInstance(FaultInjectingDriver.class.getClassLoader(),
+                                                             new Class<?>[] {Connection.class}, handler);
+        return handler.proxy_;
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException
+    {
+        return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion()
+    {
+        return 1;
+    }
+
+    public int getMinorVersion()
+    {
+        return 0;
+    }
+
+    public boolean jdbcCompliant()
+    {
+        return false;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException("Not supported");
+    }
+
+    /**
+     * @return the first fault of the kind that is active at now, or null.
+     */
+    private static Fault active(int kind, long now)
+    {
+        for (int i = 0; i < faults_.size(); i++)
+        {
+            Fault fault = faults_.get(i);
+            if (fault.kind_ == kind && fault.isActive(now))
+            {
+                return fault;
+            }
+        }
+        return null;
+    }
+
+    private static void delay(long now) throws SQLException
+    {
+        Fault latency = active(LATENCY, now);
+        if (latency != null)
+        {
+            long millis = latency.millis_;
+            if (latency.jitterMillis_ > 0)
+            {
+                synchronized (random_)
+                {
+                    millis += (long) (random_.nextDouble() * latency.jitterMillis_);
+                }
+            }
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted", "08S01");
+            }
+        }
+    }
+
+    private static void sleepUntil(long endNanos) throws SQLException
+    {
+        long left;
+        while ((left = endNanos - System.nanoTime()) > 0)
+        {
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep(Math.min(left, TimeUnit.MILLISECONDS.toNanos(10)));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted", "08S01");
+            }
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable
+    {
+        try
+        {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return what the stub returns for a call - nothing, no rows.
+     */
+    private static Object stub(Class<?> type)
+    {
+        if (type == boolean.class)
+        {
+            return Boolean.FALSE;
+        }
+        if (type == int.class)
+        {
+            return new Integer(0);
+        }
+        if (type == long.class)
+        {
+            return new Long(0);
+        }
+        if (type == int[].class)
+        {
+            return new int[0];
+        }
+        if (type == ResultSet.class)
+        {
+            return Proxy.newProxyInstance(FaultInjectingDriver.class.getClassLoader(),
+                                          new Class<?>[] {ResultSet.class}, new InvocationHandler()
+                                          {
+                                              public Object invoke(Object proxy, Method method, Object[] args)
+                                              {
+                                                  return stub(method.getReturnType());
+                                              }
+                                          });
+        }
+        return null;
+    }
+
+    /**
+     * One connection - the real one (or null for the stub), and whether it has been lost.
+     */
+    private static class ConnectionHandler implements InvocationHandler
+    {
+        private final Connection connection_;
+        private final long       openedAt_   = System.nanoTime();
+        private Connection       proxy_;
+        private volatile boolean closed_     = false;
+        private volatile boolean lost_       = false;
+        private boolean          autoCommit_ = true;
+
+        ConnectionHandler(Connection connection)
+        {
+            connection_ = connection;
+        }
+
+        /**
+         * @return true if the connection has been lost - to an outage that started after it was opened.
+         */
+        boolean isLost(long now)
+        {
+            if (!lost_)
+            {
+                for (int i = 0; i < faults_.size(); i++)
+                {
+                    Fault fault = faults_.get(i);
+                    if (fault.kind_ == OUTAGE && fault.startNanos_ - openedAt_ > 0 && now - fault.startNanos_ >= 0)
+                    {
+                        lose();
+                        break;
+                    }
+                }
+            }
+            return lost_;
+        }
+
+        void lose()
+        {
+            if (!lost_)
+            {
+                lost_ = true;
+                FaultInjectingDriver.lost_.incrementAndGet();
+            }
+        }
+
+        void checkUsable() throws SQLException
+        {
+            if (closed_)
+            {
+                throw new SQLException("The connection is closed", "08003");
+            }
+            if (isLost(System.nanoTime()))
+            {
+                throw new SQLException("The connection was lost (injected)", "08006");
+            }
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if (name.equals("close"))
+            {
+                closed_ = true;
+                return connection_ == null ? null : invoke(connection_, method, args);
+            }
+            if (name.equals("isClosed"))
+            {
+                return Boolean.valueOf(closed_ || isLost(System.nanoTime()));
+            }
+            if (name.equals("isValid"))
+            {
+                return Boolean.valueOf(!closed_ && !isLost(System.nanoTime())
+                        && (connection_ == null || connection_.isValid(((Integer) args[0]).intValue())));
+            }
+            if (name.equals("equals"))
+            {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if (name.equals("hashCode"))
+            {
+                return new Integer(System.identityHashCode(proxy));
+            }
+            if (name.equals("toString"))
+            {
+                return "FaultInjectingDriver connection to " + (connection_ == null ? STUB : connection_.toString());
+            }
+            checkUsable();
+            if (name.equals("commit") || name.equals("rollback"))
+            {
+                // a round trip to the server
+                execute();
+            }
+
+            Object result;
+            if (connection_ != null)
+            {
+                result = invoke(connection_, method, args);
+            }
+            else if (name.equals("getAutoCommit"))
+            {
+                result = Boolean.valueOf(autoCommit_);
+            }
+            else if (name.equals("setAutoCommit"))
+            {
+                autoCommit_ = ((Boolean) args[0]).booleanValue();
+                result = null;
+            }
+            else if (name.equals("getMetaData"))
+            {
+                result = Proxy.newProxyInstance(FaultInjectingDriver.class.getClassLoader(),
+                                                new Class<?>[] {DatabaseMetaData.class}, new InvocationHandler()
+                                                {
+                                                    public Object invoke(Object p, Method m, Object[] a)
+                                                    {
+                                                        if (m.getName().equals("getConnection"))
+                                                        {
+                                                            return proxy_;
+                                                        }
+                                                        return m.getReturnType() == String.class ? "Stub" : stub(m
+                                                                .getReturnType());
+                                                    }
+                                                });
+            }
+            else
+            {
+                result = stub(method.getReturnType());
+            }
+
+            if (name.equals("createStatement") || name.equals("prepareStatement") || name.equals("prepareCall"))
+            {
+                Class<?> type = method.getReturnType();
+                StatementHandler handler = new StatementHandler(this, (Statement) result);
+                return Proxy.newProxyInstance(FaultInjectingDriver.class.getClassLoader(), new Class<?>[] {type},
+                                              handler);
+            }
+            return result;
+        }
+
+        /**
+         * Apply the faults to a call that goes to the server.
+         *
+         * @param statement the statement being executed, or null
+         */
+        void execute(StatementHandler statement) throws SQLException
+        {
+            executions_.incrementAndGet();
+            long now = System.nanoTime();
+            delay(now);
+            Fault hang = active(HANG, now);
+            if (hang != null)
+            {
+                hung_.incrementAndGet();
+                if (statement == null)
+                {
+                    sleepUntil(hang.endNanos_);
+                }
+                else
+                {
+                    statement.waitFor(hang.endNanos_);
+                }
+                lose();
+                throw new SQLException("Connection reset - the socket hung (injected)", "08S01");
+            }
+            checkUsable();
+            Fault errors = active(ERRORS, System.nanoTime());
+            if (errors != null && errors.fires())
+            {
+                injected_.incrementAndGet();
+                if (errors.sqlState_ != null && errors.sqlState_.startsWith("08"))
+                {
+                    lose();
+                }
+                throw new SQLException("Injected error", errors.sqlState_, errors.vendorCode_);
+            }
+        }
+
+        void execute() throws SQLException
+        {
+            execute(null);
+        }
+    }
+
+    /**
+     * One statement - the real one (or null for the stub), and what is needed to end a hang early.
+     */
+    private static class StatementHandler implements InvocationHandler
+    {
+        private final ConnectionHandler connection_;
+        private final Statement         statement_;
+        private volatile int            queryTimeout_ = 0;
+        private volatile boolean        cancelled_    = false;
+
+        StatementHandler(ConnectionHandler connection, Statement statement)
+        {
+            connection_ = connection;
+            statement_ = statement;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if (name.equals("setQueryTimeout"))
+            {
+                queryTimeout_ = ((Integer) args[0]).intValue();
+            }
+            else if (name.equals("cancel"))
+            {
+                cancelled_ = true;
+            }
+            else if (name.equals("getConnection"))
+            {
+                return connection_.proxy_;
+            }
+            else if (name.equals("equals"))
+            {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            else if (name.equals("hashCode"))
+            {
+                return new Integer(System.identityHashCode(proxy));
+            }
+            else if (name.equals("toString"))
+            {
+                return "FaultInjectingDriver statement " + (statement_ == null ? STUB : statement_.toString());
+            }
+            else if (name.startsWith("execute"))
+            {
+                cancelled_ = false;
+                connection_.checkUsable();
+                connection_.execute(this);
+            }
+            else if (!name.equals("close") && !name.equals("isClosed"))
+            {
+                connection_.checkUsable();
+            }
+            return statement_ == null ? stub(method.getReturnType()) : FaultInjectingDriver.invoke(statement_,
+                                                                                                  method, args);
+        }
+
+        /**
+         * Block for a hang - until it ends, the statement is cancelled or its query timeout passes.
+         */
+        void waitFor(long endNanos) throws SQLException
+        {
+            long started = System.nanoTime();
+            int timeout = queryTimeout_;
+            if (timeout > 0 && started + TimeUnit.SECONDS.toNanos(timeout) - endNanos < 0)
+            {
+                endNanos = started + TimeUnit.SECONDS.toNanos(timeout);
+            }
+            while (endNanos - System.nanoTime() > 0)
+            {
+                if (cancelled_)
+                {
+                    throw new SQLException("The statement was cancelled", "57014");
+                }
+                sleepUntil(Math.min(endNanos, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10)));
+            }
+            if (timeout > 0 && System.nanoTime() - started >= TimeUnit.SECONDS.toNanos(timeout))
+            {
+                throw new SQLTimeoutException("The query timed out", "57014");
+            }
+        }
+    }
+
+    /**
+     * One scheduled fault.
+     */
+    private static class Fault
+    {
+        private final int    kind_;
+        private final long   startNanos_;
+        private final long   endNanos_;
+        private final long   millis_;
+        private final long   jitterMillis_;
+        private final String sqlState_;
+        private final int    vendorCode_;
+        private final double rate_;
+
+        Fault(int kind, long afterMillis, long forMillis, long millis, long jitterMillis, String sqlState,
+                int vendorCode, double rate)
+        {
+            kind_ = kind;
+            startNanos_ = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, afterMillis));
+            // until reset is a year - far enough, without the arithmetic overflowing
+            endNanos_ = startNanos_ + TimeUnit.MILLISECONDS.toNanos(forMillis > 0 ? forMillis : 365L * 24 * 3600000);
+            millis_ = millis;
+            jitterMillis_ = jitterMillis;
+            sqlState_ = sqlState;
+            vendorCode_ = vendorCode;
+            rate_ = rate;
+        }
+
+        boolean isActive(long now)
+        {
+            return now - startNanos_ >= 0 && now - endNanos_ < 0;
+        }
+
+        boolean fires()
+        {
+            synchronized (random_)
+            {
+                return random_.nextDouble() < rate_;
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            long now = System.nanoTime();
+            return KINDS[kind_] + (kind_ == LATENCY ? " " + millis_ + "ms+" + jitterMillis_ + "ms" : "")
+                    + (kind_ == ERRORS ? " " + sqlState_ + " at " + rate_ : "") + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(startNanos_ - now) + "ms for "
+                    + TimeUnit.NANOSECONDS.toMillis(endNanos_ - startNanos_) + "ms";
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times how WrappedConnection gets through simulated failures, using the {@link FaultInjectingDriver}. Each
+ * scenario runs a number of threads, each with a connection of its own, executing a statement over and over;
+ * after a steady period a fault is injected, and the run carries on for a while after it ends. For each
+ * scenario it reports:
+ * <ul>
+ * <li>the requests that succeeded and failed - before, during (any that overlap it) and after the fault</li>
+ * <li>the recovery time - from the end of the fault to the first success of each thread (the mean and the
+ * slowest thread)</li>
+ * <li>the longest request, and the latency before and after the fault</li>
+ * <li>what the threads were doing during the fault - the share of samples in each thread state, as a thread
+ * stuck on a lock shows as BLOCKED, a thread backing off as TIMED_WAITING</li>
+ * <li>the reconnects made, and the connections refused</li>
+ * </ul>
+ *
+ * <pre>
+ * java sqlWrapper.FaultInjectionBenchmark [threads [sql [driver url user password]]]
+ * </pre>
+ *
+ * With no database given it runs against the stub - so it times the wrapper itself, not a database.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class FaultInjectionBenchmark
+{
+    private static final long STEADY_MILLIS   = 1000;
+    private static final long AFTER_MILLIS    = 1500;
+    private static final long SAMPLE_MILLIS   = 5;
+
+    private final int         threads_;
+    private final String      sql_;
+    private final String      driver_;
+    private final String      server_;
+    private final String      userName_;
+    private final String      password_;
+
+    /**
+     * @param server the url of the real database - the fault prefix is added
+     */
+    public FaultInjectionBenchmark(int threads, String sql, String driver, String server, String userName,
+            String password)
+    {
+        threads_ = threads;
+        sql_ = sql;
+        driver_ = driver;
+        server_ = server;
+        userName_ = userName;
+        password_ = password;
+    }
+
+    /**
+     * Run every scenario.
+     *
+     * @return the report.
+     */
+    public String run() throws Exception
+    {
+        StringBuilder temp = new StringBuilder();
+        temp.append(run("failover - connections lost, 500ms outage", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                FaultInjectingDriver.scheduleOutage(STEADY_MILLIS, 500);
+            }
+        }, 500));
+        temp.append(run("hung socket - 1000ms hang", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                FaultInjectingDriver.scheduleHang(STEADY_MILLIS, 1000);
+            }
+        }, 1000));
+        temp.append(run("deadlock storm - 20% of executes fail with 40001 for 1000ms", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                FaultInjectingDriver.scheduleErrors(STEADY_MILLIS, 1000, "40001", 0, 0.2);
+            }
+        }, 1000));
+        temp.append(run("connection resets - 5% of executes fail with 08S01 for 1000ms", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                FaultInjectingDriver.scheduleErrors(STEADY_MILLIS, 1000, "08S01", 0, 0.05);
+            }
+        }, 1000));
+        temp.append(run("latency spike - 20ms (+20ms jitter) for 1000ms", new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                FaultInjectingDriver.scheduleLatency(STEADY_MILLIS, 1000, 20, 20);
+            }
+        }, 1000));
+        return temp.toString();
+    }
+
+    /**
+     * Run one scenario.
+     *
+     * @param fault schedules the fault, STEADY_MILLIS from now
+     * @param faultMillis how long the fault lasts
+     */
+    public String run(String name, Runnable fault, long faultMillis) throws Exception
+    {
+        FaultInjectingDriver.reset();
+        long connectsBefore = FaultInjectingDriver.getConnectCount();
+        long refusedBefore = FaultInjectingDriver.getRefusedConnectCount();
+
+        LatencyHistogram before = new LatencyHistogram();
+        LatencyHistogram after = new LatencyHistogram();
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < threads_; i++)
+        {
+            workers.add(new Worker(new WrappedConnection(userName_, password_, driver_, FaultInjectingDriver.PREFIX
+                    + server_), before, after));
+        }
+        // the fault times itself from when it is scheduled - take the earliest start and the latest end
+        long faultStart = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STEADY_MILLIS);
+        fault.run();
+        long faultEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STEADY_MILLIS + faultMillis);
+        long stop = faultEnd + TimeUnit.MILLISECONDS.toNanos(AFTER_MILLIS);
+        for (int i = 0; i < workers.size(); i++)
+        {
+            workers.get(i).start(faultStart, faultEnd, stop);
+        }
+
+        // sample the states of the threads during the fault
+        long[] states = new long[Thread.State.values().length];
+        long samples = 0;
+        while (System.nanoTime() - stop < 0)
+        {
+            long now = System.nanoTime();
+            if (now - faultStart >= 0 && now - faultEnd < 0)
+            {
+                for (int i = 0; i < workers.size(); i++)
+                {
+                    states[workers.get(i).thread_.getState().ordinal()]++;
+                    samples++;
+                }
+            }
+            Thread.sleep(SAMPLE_MILLIS);
+        }
+
+        long reconnects = 0;
+        for (int i = 0; i < workers.size(); i++)
+        {
+            Worker worker = workers.get(i);
+            // a thread still hung is reported as not recovered, rather than waited for
+            worker.thread_.join(5000);
+            reconnects += worker.connection_.getReconnectCount();
+            try
+            {
+                worker.connection_.close();
+            }
+            catch (SQLException e)
+            {
+                // nothing useful to do
+            }
+        }
+        FaultInjectingDriver.reset();
+        long connects = FaultInjectingDriver.getConnectCount() - connectsBefore - threads_;
+        long refused = FaultInjectingDriver.getRefusedConnectCount() - refusedBefore;
+        return report(name, workers, before, after, states, samples, reconnects, connects, refused);
+    }
+
+    private String report(String name, List<Worker> workers, LatencyHistogram before, LatencyHistogram after,
+            long[] states, long samples, long reconnects, long connects, long refused)
+    {
+        long[] succeeded = new long[3];
+        long[] failed = new long[3];
+        long recovered = 0;
+        long totalRecovery = 0;
+        long slowestRecovery = 0;
+        long longest = 0;
+        for (int i = 0; i < workers.size(); i++)
+        {
+            Worker worker = workers.get(i);
+            for (int j = 0; j < 3; j++)
+            {
+                succeeded[j] += worker.succeeded_[j];
+                failed[j] += worker.failed_[j];
+            }
+            if (worker.recoveryNanos_ >= 0)
+            {
+                recovered++;
+                totalRecovery += worker.recoveryNanos_;
+                slowestRecovery = Math.max(slowestRecovery, worker.recoveryNanos_);
+            }
+            longest = Math.max(longest, worker.longestNanos_);
+        }
+
+        StringBuilder temp = new StringBuilder();
+        temp.append("\n").append(name).append(" - ").append(workers.size()).append(" threads");
+        temp.append("\n  succeeded (before/during/after): ").append(succeeded[0]).append(" / ").append(succeeded[1])
+                .append(" / ").append(succeeded[2]);
+        temp.append("\n  failed (before/during/after):    ").append(failed[0]).append(" / ").append(failed[1])
+                .append(" / ").append(failed[2]);
+        temp.append("\n  recovery after the fault:        ");
+        if (recovered == 0)
+        {
+            temp.append("none of the threads recovered");
+        }
+        else
+        {
+            temp.append("mean ").append(millis(totalRecovery / recovered)).append("ms, slowest ").append(
+                    millis(slowestRecovery)).append("ms");
+            if (recovered < workers.size())
+            {
+                temp.append(", ").append(workers.size() - recovered).append(" thread(s) didn't recover");
+            }
+        }
+        temp.append("\n  longest request:                 ").append(millis(longest)).append("ms");
+        temp.append("\n  latency before:                  ").append(before);
+        temp.append("\n  latency after:                   ").append(after);
+        temp.append("\n  thread states during the fault:  ");
+        for (int i = 0; i < states.length; i++)
+        {
+            if (states[i] > 0)
+            {
+                temp.append(Thread.State.values()[i]).append(' ').append(states[i] * 100 / samples).append("% ");
+            }
+        }
+        temp.append("\n  reconnects: ").append(reconnects).append(", connects: ").append(connects).append(
+                ", refused connects: ").append(refused);
+        return temp.toString();
+    }
+
+    private static long millis(long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * One thread and its connection, executing the statement until the end of the run.
+     */
+    private class Worker implements Runnable
+    {
+        private final WrappedConnection connection_;
+        private Thread                  thread_;
+        private long                    faultStart_;
+        private long                    faultEnd_;
+        private long                    stop_;
+
+        // by phase - before, during and after the fault
+        private long[]                  succeeded_     = new long[3];
+        private long[]                  failed_        = new long[3];
+        private long                    recoveryNanos_ = -1;
+        private long                    longestNanos_  = 0;
+        private final LatencyHistogram  before_;
+        private final LatencyHistogram  after_;
+
+        Worker(WrappedConnection connection, LatencyHistogram before, LatencyHistogram after)
+        {
+            connection_ = connection;
+            before_ = before;
+            after_ = after;
+        }
+
+        void start(long faultStart, long faultEnd, long stop)
+        {
+            faultStart_ = faultStart;
+            faultEnd_ = faultEnd;
+            stop_ = stop;
+            thread_ = new Thread(this, "FaultInjectionBenchmark");
+            thread_.setDaemon(true);
+            thread_.start();
+        }
+
+        public void run()
+        {
+            WrappedPreparedStatement statement = null;
+            while (System.nanoTime() - stop_ < 0)
+            {
+                long started = System.nanoTime();
+                boolean ok;
+                try
+                {
+                    if (statement == null)
+                    {
+                        statement = (WrappedPreparedStatement) connection_.prepareStatement(sql_);
+                    }
+                    statement.execute();
+                    ok = true;
+                }
+                catch (SQLException e)
+                {
+                    ok = false;
+                }
+                long ended = System.nanoTime();
+                long nanos = ended - started;
+                // a request that overlaps the fault at all counts as during it
+                int phase = ended - faultStart_ < 0 ? 0 : (started - faultEnd_ < 0 ? 1 : 2);
+                longestNanos_ = Math.max(longestNanos_, nanos);
+                if (ok)
+                {
+                    succeeded_[phase]++;
+                    if (phase == 0)
+                    {
+                        before_.record(nanos);
+                    }
+                    else if (phase == 2)
+                    {
+                        after_.record(nanos);
+                    }
+                    if (recoveryNanos_ < 0 && ended - faultEnd_ >= 0)
+                    {
+                        recoveryNanos_ = ended - faultEnd_;
+                    }
+                }
+                else
+                {
+                    failed_[phase]++;
+                }
+            }
+            if (statement != null)
+            {
+                try
+                {
+                    statement.close();
+                }
+                catch (SQLException e)
+                {
+                    // nothing useful to do
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        String sql = args.length > 1 ? args[1] : "SELECT 1";
+        FaultInjectionBenchmark benchmark;
+        if (args.length > 5)
+        {
+            // the real driver has to be loaded before the fault driver can hand the url on to it
+            Class.forName(args[2]);
+            benchmark = new FaultInjectionBenchmark(threads, sql, FaultInjectingDriver.class.getName(), args[3],
+                                                    args[4], args[5]);
+        }
+        else
+        {
+            benchmark = new FaultInjectionBenchmark(threads, sql, FaultInjectingDriver.class.getName(),
+                                                    FaultInjectingDriver.STUB, "", "");
+        }
+        System.out.println(benchmark.run());
+        System.out.println(FaultInjectingDriver.describe());
+    }
+}
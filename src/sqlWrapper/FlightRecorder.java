@@ -0,0 +1,605 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Remembers the last few statement executions of a connection - which sql, the parameter values, when, how
+ * long it took and how it ended - so that when something goes wrong in production there is a record of what
+ * led up to it, without having to run with debug logging. Every WrappedConnection has one (see
+ * {@link WrappedConnection#setFlightRecorder(int, int)}). The record can be had with {@link #dump()}, logged
+ * automatically when a statement fails ({@link #setDumpOnError(boolean)}), or logged for every connection
+ * when the JVM exits ({@link #setDumpOnExit(boolean)}).
+ *
+ * The executions go into a fixed ring of slots, allocated up front. Writers claim a slot with a single
+ * atomic increment and never wait for each other, or for a reader - a dump skips any slot that is being
+ * written while it reads it. The sql is stored as an id, and the parameters in a compact binary form cut
+ * off at the configured size (strings are cut to their first 24 characters, and characters outside Latin-1
+ * are stored as '?').
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class FlightRecorder
+{
+    static final int                                  OK                  = 0;
+    static final int                                  FAILED              = 1;
+    static final int                                  CANCELLED           = 2;
+
+    // the longs of a slot
+    private static final int                          SEQUENCE            = 0;
+    private static final int                          SQL                 = 1;
+    private static final int                          THREAD              = 2;
+    private static final int                          FINISHED            = 3;
+    private static final int                          DURATION            = 4;
+    private static final int                          RESULT              = 5;
+    private static final int                          OUTCOME             = 6;
+    private static final int                          PARAMETERS          = 7;
+
+    // parameter tags, besides the WrapperConstants types
+    private static final int                          UNSET               = 0xFD;
+    private static final int                          NULL_VALUE          = 0xFE;
+    private static final int                          TRUNCATED           = 0xFF;
+    private static final int                          STRING_CHARS        = 24;
+
+    private static final long                         ERROR_DUMP_INTERVAL = 10000;
+
+    private static volatile boolean                   dumpOnError_        = false;
+    private static Thread                             exitHook_;
+    private static Map<FlightRecorder, Boolean>       recorders_          = Collections.synchronizedMap(
+                                                                            new WeakHashMap<FlightRecorder, Boolean>());
+    private static ThreadLocal<byte[]>                scratch_            = new ThreadLocal<byte[]>();
+
+    private final String                              name_;
+    private final int                                 mask_;
+    private final int                                 stride_;
+    private final int                                 parameterBytes_;
+    private final AtomicLongArray                     slots_;
+    private final AtomicLong                          next_               = new AtomicLong();
+    private final AtomicLong                          lastErrorDump_      = new AtomicLong();
+
+    private static Log                                logger              = LogFactory.getLog("sqlWrapper.FlightRecorder");
+
+    /**
+     * @param name what to call the recorder in a dump (the connection url)
+     * @param entries how many executions to keep (rounded up to a power of two)
+     * @param parameterBytes the space for the parameters of each execution (rounded up to a multiple of 8)
+     */
+    FlightRecorder(String name, int entries, int parameterBytes)
+    {
+        name_ = name;
+        int size = Integer.highestOneBit(Math.max(2, entries));
+        if (size < entries)
+        {
+            size <<= 1;
+        }
+        mask_ = size - 1;
+        int parameterLongs = (Math.max(0, parameterBytes) + 7) / 8;
+        parameterBytes_ = parameterLongs * 8;
+        stride_ = PARAMETERS + parameterLongs;
+        slots_ = new AtomicLongArray(size * stride_);
+        recorders_.put(this, Boolean.TRUE);
+    }
+
+    /**
+     * @param dumpOnError log the recorder of a connection (at warn) when a statement on it fails - at most
+     *            once every 10 seconds per connection. Off by default.
+     */
+    public static void setDumpOnError(boolean dumpOnError)
+    {
+        dumpOnError_ = dumpOnError;
+    }
+
+    /**
+     * @param dumpOnExit log the recorders of all open connections (at warn) when the JVM exits.
+     */
+    public static synchronized void setDumpOnExit(boolean dumpOnExit)
+    {
+        if (dumpOnExit && exitHook_ == null)
+        {
+            exitHook_ = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    logger.warn(dumpAll());
+                }
+            }, "FlightRecorder dump");
+            Runtime.getRuntime().addShutdownHook(exitHook_);
+        }
+        else if (!dumpOnExit && exitHook_ != null)
+        {
+            try
+            {
+                Runtime.getRuntime().removeShutdownHook(exitHook_);
+            }
+            catch (IllegalStateException e)
+            {
+                // already exiting
+            }
+            exitHook_ = null;
+        }
+    }
+
+    /**
+     * @return the dumps of the recorders of all connections that haven't been garbage collected.
+     */
+    public static String dumpAll()
+    {
+        List<FlightRecorder> recorders;
+        synchronized (recorders_)
+        {
+            recorders = new ArrayList<FlightRecorder>(recorders_.keySet());
+        }
+        StringBuilder temp = new StringBuilder("Flight recorders of " + recorders.size() + " connection(s)");
+        for (int i = 0; i < recorders.size(); i++)
+        {
+            temp.append("\n").append(recorders.get(i).dump());
+        }
+        return temp.toString();
+    }
+
+    /**
+     * Record an execution attempt.
+     *
+     * @param variables the parameter values, or null if the statement didn't have any
+     * @param startNanos System.nanoTime() when the attempt started
+     * @param result the update count (-1 if there wasn't one), or the vendor error code of a failure
+     * @param outcome OK, FAILED or CANCELLED
+     * @param sqlState the SQLState of a failure
+     */
+    void record(int sqlId, Hashtable<Integer, QueryParameter> variables, long startNanos, long result, int outcome,
+            String sqlState)
+    {
+        long duration = System.nanoTime() - startNanos;
+        int length = 0;
+        byte[] scratch = null;
+        if (variables != null && parameterBytes_ > 0 && !variables.isEmpty())
+        {
+            scratch = scratch_.get();
+            if (scratch == null || scratch.length < parameterBytes_)
+            {
+                scratch = new byte[parameterBytes_];
+                scratch_.set(scratch);
+            }
+            length = encode(variables, scratch, parameterBytes_);
+        }
+
+        long sequence = next_.getAndIncrement();
+        int base = (int) (sequence & mask_) * stride_;
+        // mark the slot as being written, fill it in, then publish it - the lazy sets keep that order
+        slots_.lazySet(base + SEQUENCE, -(sequence + 1));
+        slots_.lazySet(base + SQL, ((long) sqlId << 32) | length);
+        slots_.lazySet(base + THREAD, Thread.currentThread().getId());
+        slots_.lazySet(base + FINISHED, System.currentTimeMillis());
+        slots_.lazySet(base + DURATION, duration);
+        slots_.lazySet(base + RESULT, result);
+        slots_.lazySet(base + OUTCOME, ((long) outcome << 56) | packState(sqlState));
+        for (int i = 0; i < length; i += 8)
+        {
+            slots_.lazySet(base + PARAMETERS + i / 8, packBytes(scratch, i, length));
+        }
+        slots_.lazySet(base + SEQUENCE, sequence + 1);
+    }
+
+    /**
+     * A statement failed for good (after any retries) - dump the recorder if dump on error is on.
+     */
+    void statementFailed(SQLException e)
+    {
+        if (!dumpOnError_)
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastErrorDump_.get();
+        if (now - last >= ERROR_DUMP_INTERVAL && lastErrorDump_.compareAndSet(last, now))
+        {
+            logger.warn("Statement failed with " + e.toString() + "\n" + dump());
+        }
+    }
+
+    /**
+     * @return the number of executions recorded since the connection was opened.
+     */
+    public long getRecordedCount()
+    {
+        return next_.get();
+    }
+
+    /**
+     * @return the number of executions kept.
+     */
+    public int getCapacity()
+    {
+        return mask_ + 1;
+    }
+
+    /**
+     * @return the executions kept, oldest first, one per line.
+     */
+    public String dump()
+    {
+        long end = next_.get();
+        long start = Math.max(0, end - (mask_ + 1));
+        StringBuilder temp = new StringBuilder("Flight recorder for " + name_ + " - the last " + (end - start)
+                + " of " + end + " executions, oldest first:");
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        long[] slot = new long[stride_];
+        for (long sequence = start; sequence < end; sequence++)
+        {
+            int base = (int) (sequence & mask_) * stride_;
+            long published = slots_.get(base + SEQUENCE);
+            for (int i = 1; i < stride_; i++)
+            {
+                slot[i] = slots_.get(base + i);
+            }
+            if (published != sequence + 1 || slots_.get(base + SEQUENCE) != published)
+            {
+                temp.append("\n  (being written)");
+                continue;
+            }
+            temp.append("\n  ");
+            appendEntry(temp, slot, format);
+        }
+        return temp.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FlightRecorder " + name_ + " - recorded=" + getRecordedCount() + " capacity=" + getCapacity();
+    }
+
+    private void appendEntry(StringBuilder temp, long[] slot, SimpleDateFormat format)
+    {
+        temp.append(format.format(new Date(slot[FINISHED])));
+        temp.append(" thread ").append(slot[THREAD]);
+        temp.append(" ").append((slot[DURATION] / 1000) / 1000.0).append("ms ");
+        int outcome = (int) (slot[OUTCOME] >>> 56);
+        if (outcome == OK)
+        {
+            temp.append("OK");
+            if (slot[RESULT] >= 0)
+            {
+                temp.append(" ").append(slot[RESULT]).append(" row(s)");
+            }
+        }
+        else
+        {
+            temp.append(outcome == CANCELLED ? "CANCELLED" : "FAILED");
+            String state = unpackState(slot[OUTCOME]);
+            if (state.length() > 0)
+            {
+                temp.append(" ").append(state);
+            }
+            temp.append(" (error code ").append(slot[RESULT]).append(")");
+        }
+
+        int sqlId = (int) (slot[SQL] >>> 32);
+        String sql = SQLCatalog.sqlOf(sqlId);
+        temp.append(" - ").append(sql == null ? "(sql not known)" : sql);
+
+        int length = (int) slot[SQL];
+        if (length > 0)
+        {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++)
+            {
+                data[i] = (byte) (slot[PARAMETERS + i / 8] >>> (56 - 8 * (i % 8)));
+            }
+            temp.append(" - ");
+            decode(temp, data);
+        }
+    }
+
+    // -- encoding --
+
+    /**
+     * @return the number of bytes written to out.
+     */
+    private static int encode(Hashtable<Integer, QueryParameter> variables, byte[] out, int limit)
+    {
+        // always leave room for the truncated tag
+        limit--;
+        int position = 0;
+        QueryParameter[] parameters = QueryParameter.toArray(variables);
+        int i = 1;
+        for (; i < parameters.length; i++)
+        {
+            if (parameters[i] == null)
+            {
+                if (position + 1 > limit)
+                {
+                    break;
+                }
+                out[position++] = (byte) UNSET;
+                continue;
+            }
+            int next = encode(parameters[i], out, position, limit);
+            if (next < 0)
+            {
+                break;
+            }
+            position = next;
+        }
+        if (i < parameters.length)
+        {
+            out[position++] = (byte) TRUNCATED;
+        }
+        return position;
+    }
+
+    /**
+     * @return the new position, or -1 if the parameter doesn't fit.
+     */
+    private static int encode(QueryParameter parameter, byte[] out, int position, int limit)
+    {
+        Object value = parameter.value;
+        if (value == null)
+        {
+            if (position + 1 > limit)
+            {
+                return -1;
+            }
+            out[position] = (byte) NULL_VALUE;
+            return position + 1;
+        }
+        switch (parameter.type)
+        {
+            case WrapperConstants.STRING :
+                return encodeString(WrapperConstants.STRING, (String) value, out, position, limit);
+            case WrapperConstants.BIGDECIMAL :
+                return encodeString(WrapperConstants.BIGDECIMAL, value.toString(), out, position, limit);
+            case WrapperConstants.BOOLEAN :
+                return encodeNumber(parameter.type, ((Boolean) value).booleanValue() ? 1 : 0, 1, out, position,
+                                    limit);
+            case WrapperConstants.BYTE :
+                return encodeNumber(parameter.type, ((Byte) value).byteValue(), 1, out, position, limit);
+            case WrapperConstants.SHORT :
+                return encodeNumber(parameter.type, ((Short) value).shortValue(), 2, out, position, limit);
+            case WrapperConstants.INT :
+            case WrapperConstants.NULL :
+                return encodeNumber(parameter.type, ((Integer) value).intValue(), 4, out, position, limit);
+            case WrapperConstants.FLOAT :
+                return encodeNumber(parameter.type, Float.floatToRawIntBits(((Float) value).floatValue()), 4, out,
+                                    position, limit);
+            case WrapperConstants.LONG :
+                return encodeNumber(parameter.type, ((Long) value).longValue(), 8, out, position, limit);
+            case WrapperConstants.DOUBLE :
+                return encodeNumber(parameter.type, Double.doubleToRawLongBits(((Double) value).doubleValue()), 8,
+                                    out, position, limit);
+            case WrapperConstants.TIME :
+            case WrapperConstants.DATE :
+            case WrapperConstants.TIMESTAMP :
+                return encodeNumber(parameter.type, ((Date) value).getTime(), 8, out, position, limit);
+            case WrapperConstants.BYTES :
+                return encodeNumber(parameter.type, ((Byte[]) value).length, 4, out, position, limit);
+            default :
+                // just the type - objects, arrays, lobs and such
+                return encodeNumber(parameter.type, 0, 0, out, position, limit);
+        }
+    }
+
+    private static int encodeNumber(int tag, long value, int bytes, byte[] out, int position, int limit)
+    {
+        if (position + 1 + bytes > limit)
+        {
+            return -1;
+        }
+        out[position++] = (byte) tag;
+        for (int i = bytes - 1; i >= 0; i--)
+        {
+            out[position++] = (byte) (value >>> (8 * i));
+        }
+        return position;
+    }
+
+    private static int encodeString(int tag, String value, byte[] out, int position, int limit)
+    {
+        if (position + 3 > limit)
+        {
+            return -1;
+        }
+        int chars = Math.min(Math.min(value.length(), STRING_CHARS), limit - position - 3);
+        out[position++] = (byte) tag;
+        out[position++] = (byte) Math.min(255, value.length());
+        out[position++] = (byte) chars;
+        for (int i = 0; i < chars; i++)
+        {
+            char c = value.charAt(i);
+            out[position++] = (byte) (c < 256 ? c : '?');
+        }
+        return position;
+    }
+
+    private static void decode(StringBuilder temp, byte[] data)
+    {
+        int position = 0;
+        int index = 1;
+        while (position < data.length)
+        {
+            int tag = data[position++] & 0xFF;
+            if (tag == TRUNCATED)
+            {
+                temp.append("...");
+                return;
+            }
+            temp.append("(").append(index++).append(") ");
+            switch (tag)
+            {
+                case UNSET :
+                    temp.append("<not set>");
+                    break;
+                case NULL_VALUE :
+                    temp.append("null");
+                    break;
+                case WrapperConstants.STRING :
+                case WrapperConstants.BIGDECIMAL : {
+                    int length = data[position++] & 0xFF;
+                    int chars = data[position++] & 0xFF;
+                    if (tag == WrapperConstants.STRING)
+                    {
+                        temp.append("'");
+                    }
+                    for (int i = 0; i < chars; i++)
+                    {
+                        temp.append((char) (data[position++] & 0xFF));
+                    }
+                    if (chars < length)
+                    {
+                        temp.append("...");
+                    }
+                    if (tag == WrapperConstants.STRING)
+                    {
+                        temp.append("'");
+                    }
+                    break;
+                }
+                case WrapperConstants.BOOLEAN :
+                    temp.append(data[position++] != 0);
+                    break;
+                case WrapperConstants.BYTE :
+                    temp.append(data[position++]);
+                    break;
+                case WrapperConstants.SHORT :
+                    temp.append((short) readNumber(data, position, 2));
+                    position += 2;
+                    break;
+                case WrapperConstants.INT :
+                    temp.append((int) readNumber(data, position, 4));
+                    position += 4;
+                    break;
+                case WrapperConstants.NULL :
+                    temp.append("null (sql type ").append((int) readNumber(data, position, 4)).append(")");
+                    position += 4;
+                    break;
+                case WrapperConstants.FLOAT :
+                    temp.append(Float.intBitsToFloat((int) readNumber(data, position, 4)));
+                    position += 4;
+                    break;
+                case WrapperConstants.LONG :
+                    temp.append(readNumber(data, position, 8));
+                    position += 8;
+                    break;
+                case WrapperConstants.DOUBLE :
+                    temp.append(Double.longBitsToDouble(readNumber(data, position, 8)));
+                    position += 8;
+                    break;
+                case WrapperConstants.TIME :
+                case WrapperConstants.DATE :
+                case WrapperConstants.TIMESTAMP :
+                    temp.append(new Timestamp(readNumber(data, position, 8)));
+                    position += 8;
+                    break;
+                case WrapperConstants.BYTES :
+                    temp.append("<").append((int) readNumber(data, position, 4)).append(" bytes>");
+                    position += 4;
+                    break;
+                default :
+                    temp.append("<").append(typeName(tag)).append(">");
+            }
+            if (position < data.length && (data[position] & 0xFF) != TRUNCATED)
+            {
+                temp.append(", ");
+            }
+        }
+    }
+
+    private static String typeName(int type)
+    {
+        switch (type)
+        {
+            case WrapperConstants.OBJECT :
+                return "object";
+            case WrapperConstants.ARRAY :
+            case WrapperConstants.IN_LIST :
+                return "array";
+            case WrapperConstants.URL :
+                return "url";
+            case WrapperConstants.BLOB :
+                return "blob";
+            case WrapperConstants.CLOB :
+                return "clob";
+            case WrapperConstants.REF :
+                return "ref";
+            default :
+                return "type " + type;
+        }
+    }
+
+    private static long readNumber(byte[] data, int position, int bytes)
+    {
+        long value = data[position] < 0 ? -1 : 0;
+        for (int i = 0; i < bytes; i++)
+        {
+            value = (value << 8) | (data[position + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long packBytes(byte[] data, int position, int length)
+    {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+        {
+            value = (value << 8) | (position + i < length ? data[position + i] & 0xFF : 0);
+        }
+        return value;
+    }
+
+    /**
+     * Up to 7 characters of the SQLState (they are 5) in the low 56 bits.
+     */
+    private static long packState(String sqlState)
+    {
+        long value = 0;
+        if (sqlState != null)
+        {
+            for (int i = 0; i < Math.min(7, sqlState.length()); i++)
+            {
+                value = (value << 8) | (sqlState.charAt(i) & 0x7F);
+            }
+        }
+        return value;
+    }
+
+    private static String unpackState(long outcome)
+    {
+        StringBuilder temp = new StringBuilder();
+        for (int shift = 48; shift >= 0; shift -= 8)
+        {
+            int c = (int) (outcome >>> shift) & 0x7F;
+            if (c != 0)
+            {
+                temp.append((char) c);
+            }
+        }
+        return temp.toString();
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Amortizes commit cost across threads. Rather than each thread running a short transaction on its own
+ * connection and paying for its own commit (and the server side log flush), threads hand their
+ * transaction to the coordinator. A committer thread per connection collects the transactions that arrive
+ * within maxWaitMicros (up to maxGroupSize of them), runs them one after another in a single database
+ * transaction, and commits once for the whole group.
+ *
+ * Each transaction runs inside its own savepoint, so a transaction that fails is rolled back on its own
+ * and only its caller sees the failure. On databases without savepoints, a failure rolls back the group,
+ * and the other transactions of the group are rerun one per commit. If the commit itself fails, every
+ * transaction of the group fails with it - the commit may still have happened, so nothing is rerun.
+ *
+ * Transactions must not commit, roll back or change the auto commit mode of the connection they are given.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class GroupCommitCoordinator
+{
+    /**
+     * A unit of work that is run (and committed) as part of a group.
+     */
+    public interface Transaction
+    {
+        public void run(Connection connection) throws SQLException;
+    }
+
+    private LinkedBlockingQueue<Request> queue_       = new LinkedBlockingQueue<Request>();
+    private int                          maxGroupSize_;
+    private long                         maxWaitNanos_;
+    private Thread[]                     committers_;
+    private WrappedConnection[]          connections_;
+    private volatile boolean             closed_      = false;
+    // held while enqueueing and while closing, so nothing can be queued after the committers have stopped
+    private final Object                 closeLock_   = new Object();
+
+    private LatencyHistogram             commitLatency_ = new LatencyHistogram();
+    private AtomicLong                   groups_        = new AtomicLong();
+    private AtomicLong                   transactions_  = new AtomicLong();
+    private AtomicLong                   maxGroup_      = new AtomicLong();
+
+    private Log                          logger       = LogFactory.getLog("sqlWrapper.GroupCommitCoordinator");
+
+    /**
+     * @param connections the connections to commit on - one committer thread is started per connection. The
+     *            coordinator switches them to manual commit.
+     * @param maxGroupSize the most transactions that are committed together
+     * @param maxWaitMicros how long a committer waits for more transactions after the first one of a group
+     *            arrives
+     */
+    public GroupCommitCoordinator(WrappedConnection[] connections, int maxGroupSize, long maxWaitMicros)
+            throws SQLException
+    {
+        if (connections == null || connections.length == 0)
+        {
+            throw new SQLException("At least one connection is required");
+        }
+        connections_ = connections;
+        maxGroupSize_ = Math.max(1, maxGroupSize);
+        maxWaitNanos_ = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxWaitMicros));
+        committers_ = new Thread[connections.length];
+        for (int i = 0; i < connections.length; i++)
+        {
+            final WrappedConnection connection = connections[i];
+            final boolean savepoints = connection.getMetaData().supportsSavepoints();
+            connection.setAutoCommit(false);
+            committers_[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    commitLoop(connection, savepoints);
+                }
+            }, "GroupCommitCoordinator committer " + i);
+            committers_[i].setDaemon(true);
+            committers_[i].start();
+        }
+    }
+
+    /**
+     * Run the transaction as part of the next group, and wait for the group to commit.
+     *
+     * @throws SQLException if the transaction failed, or its group failed to commit
+     */
+    public void execute(Transaction transaction) throws SQLException
+    {
+        Request request = new Request(transaction);
+        synchronized (closeLock_)
+        {
+            if (closed_)
+            {
+                throw new SQLException("The group commit coordinator has been closed");
+            }
+            queue_.add(request);
+        }
+        try
+        {
+            request.done.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the group commit - the outcome is unknown");
+        }
+        commitLatency_.record(System.nanoTime() - request.queued);
+        if (request.failure != null)
+        {
+            throw request.failure;
+        }
+    }
+
+    private void commitLoop(WrappedConnection connection, boolean savepoints)
+    {
+        List<Request> group = new ArrayList<Request>(maxGroupSize_);
+        while (!closed_ || queue_.size() > 0)
+        {
+            try
+            {
+                Request first = queue_.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                {
+                    continue;
+                }
+                group.add(first);
+                long deadline = first.queued + maxWaitNanos_;
+                while (group.size() < maxGroupSize_)
+                {
+                    long remaining = deadline - System.nanoTime();
+                    Request next = (remaining > 0 ? queue_.poll(remaining, TimeUnit.NANOSECONDS) : queue_.poll());
+                    if (next == null)
+                    {
+                        break;
+                    }
+                    group.add(next);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // keep going until closed - and finish the group we have.
+            }
+            if (group.size() > 0)
+            {
+                try
+                {
+                    commitGroup(connection, group, savepoints);
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Unexpected error in the group commit", e);
+                    // whatever the group did must not be committed with the next one
+                    rollbackQuietly(connection);
+                    SQLException temp = new SQLException("Unexpected Error " + e.toString());
+                    temp.initCause(e);
+                    for (int i = 0; i < group.size(); i++)
+                    {
+                        if (!group.get(i).isDone())
+                        {
+                            group.get(i).finish(temp);
+                        }
+                    }
+                }
+                group.clear();
+            }
+        }
+    }
+
+    private void commitGroup(WrappedConnection connection, List<Request> group, boolean savepoints)
+    {
+        long reconnects = connection.getReconnectCount();
+        List<Request> succeeded = new ArrayList<Request>(group.size());
+        SQLException groupFailure = null;
+        for (int i = 0; i < group.size() && groupFailure == null; i++)
+        {
+            Request request = group.get(i);
+            Savepoint savepoint = null;
+            try
+            {
+                if (savepoints)
+                {
+                    savepoint = connection.setSavepoint();
+                }
+                run(request, connection);
+                succeeded.add(request);
+                releaseQuietly(connection, savepoint);
+            }
+            catch (SQLException e)
+            {
+                request.finish(e);
+                if (savepoint != null)
+                {
+                    try
+                    {
+                        connection.rollback(savepoint);
+                        releaseQuietly(connection, savepoint);
+                    }
+                    catch (SQLException e1)
+                    {
+                        groupFailure = e1;
+                    }
+                }
+                else
+                {
+                    groupFailure = e;
+                }
+            }
+        }
+
+        if (groupFailure == null && connection.getReconnectCount() != reconnects)
+        {
+            groupFailure = new SQLException("The connection was reestablished during the group - the earlier "
+                    + "transactions of the group were lost");
+        }
+
+        if (groupFailure == null)
+        {
+            try
+            {
+                connection.commit();
+                recordGroup(succeeded.size());
+                for (int i = 0; i < succeeded.size(); i++)
+                {
+                    succeeded.get(i).finish(null);
+                }
+                return;
+            }
+            catch (SQLException e)
+            {
+                // it may have been applied all the same - rerunning the group could apply it twice
+                rollbackQuietly(connection);
+                for (int i = 0; i < group.size(); i++)
+                {
+                    if (!group.get(i).isDone())
+                    {
+                        group.get(i).finish(e);
+                    }
+                }
+                return;
+            }
+        }
+
+        // the group is lost - roll back, and rerun what hadn't failed on its own, one per commit.
+        rollbackQuietly(connection);
+        for (int i = 0; i < group.size(); i++)
+        {
+            Request request = group.get(i);
+            if (request.isDone())
+            {
+                continue;
+            }
+            if (group.size() == 1)
+            {
+                request.finish(groupFailure);
+                continue;
+            }
+            try
+            {
+                run(request, connection);
+                connection.commit();
+                recordGroup(1);
+                request.finish(null);
+            }
+            catch (SQLException e)
+            {
+                rollbackQuietly(connection);
+                request.finish(e);
+            }
+        }
+    }
+
+    /**
+     * Run the request's transaction. An unchecked exception from it fails the transaction as an SQLException
+     * would, so that it is rolled back too.
+     */
+    private void run(Request request, Connection connection) throws SQLException
+    {
+        try
+        {
+            request.transaction.run(connection);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Unexpected error in a group commit transaction", e);
+            SQLException temp = new SQLException("Unexpected Error " + e.toString());
+            temp.initCause(e);
+            throw temp;
+        }
+    }
+
+    private void recordGroup(int size)
+    {
+        groups_.incrementAndGet();
+        transactions_.addAndGet(size);
+        long max = maxGroup_.get();
+        while (size > max && !maxGroup_.compareAndSet(max, size))
+        {
+            max = maxGroup_.get();
+        }
+    }
+
+    private static void rollbackQuietly(Connection connection)
+    {
+        try
+        {
+            connection.rollback();
+        }
+        catch (SQLException e)
+        {
+            // the next group will reconnect if it needs to
+        }
+    }
+
+    private static void releaseQuietly(Connection connection, Savepoint savepoint)
+    {
+        if (savepoint == null)
+        {
+            return;
+        }
+        try
+        {
+            connection.releaseSavepoint(savepoint);
+        }
+        catch (SQLException e)
+        {
+            // not every driver supports releasing them - they are released with the commit anyway
+        }
+    }
+
+    /**
+     * @return the latency from execute being called to the transaction's group being committed
+     */
+    public LatencyHistogram getCommitLatency()
+    {
+        return commitLatency_;
+    }
+
+    /**
+     * @return the number of commits issued
+     */
+    public long getCommitCount()
+    {
+        return groups_.get();
+    }
+
+    /**
+     * @return the average number of transactions per commit
+     */
+    public double getAverageGroupSize()
+    {
+        long groups = groups_.get();
+        return groups == 0 ? 0 : ((double) transactions_.get()) / groups;
+    }
+
+    public long getMaxGroupSize()
+    {
+        return maxGroup_.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "GroupCommitCoordinator - commits=" + getCommitCount() + " transactions=" + transactions_.get()
+                + " avgGroup=" + Math.round(getAverageGroupSize() * 100) / 100.0 + " maxGroup=" + getMaxGroupSize()
+                + " latency: " + commitLatency_;
+    }
+
+    /**
+     * Commit the queued transactions and stop the committer threads. The connections are left open.
+     */
+    public void close()
+    {
+        synchronized (closeLock_)
+        {
+            closed_ = true;
+        }
+        for (int i = 0; i < committers_.length; i++)
+        {
+            try
+            {
+                committers_[i].join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        logger.info(toString());
+    }
+
+    /**
+     * @return the connections the coordinator commits on
+     */
+    public WrappedConnection[] getConnections()
+    {
+        return connections_;
+    }
+
+    private static class Request
+    {
+        Transaction    transaction;
+        long           queued = System.nanoTime();
+        CountDownLatch done   = new CountDownLatch(1);
+        SQLException   failure;
+
+        Request(Transaction transaction)
+        {
+            this.transaction = transaction;
+        }
+
+        void finish(SQLException failure)
+        {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        boolean isDone()
+        {
+            return done.getCount() == 0;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, thread safe histogram of latencies. Buckets are powers of two microseconds, so recording
+ * is a couple of atomic increments, and percentiles are accurate to within a factor of two.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class LatencyHistogram
+{
+    private static final int BUCKETS = 40;
+
+    private AtomicLongArray  counts_ = new AtomicLongArray(BUCKETS);
+    private AtomicLong       count_  = new AtomicLong();
+    private AtomicLong       total_  = new AtomicLong();
+    private AtomicLong       max_    = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts_.incrementAndGet(bucket);
+        count_.incrementAndGet();
+        total_.addAndGet(nanos);
+        long max = max_.get();
+        while (nanos > max && !max_.compareAndSet(max, nanos))
+        {
+            max = max_.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return count_.get();
+    }
+
+    public long getTotalNanos()
+    {
+        return total_.get();
+    }
+
+    public long getMaxNanos()
+    {
+        return max_.get();
+    }
+
+    public long getMeanNanos()
+    {
+        long count = count_.get();
+        return count == 0 ? 0 : total_.get() / count;
+    }
+
+    /**
+     * @param percentile 0 - 100
+     * @return the upper bound of the bucket holding the percentile, in nanoseconds
+     */
+    public long getPercentileNanos(double percentile)
+    {
+        long count = count_.get();
+        if (count == 0)
+        {
+            return 0;
+        }
+        long target = (long) Math.ceil(count * (percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts_.get(i);
+            if (seen >= target)
+            {
+                return (i == 0 ? 1L : (1L << i)) * 1000;
+            }
+        }
+        return max_.get();
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts_.set(i, 0);
+        }
+        count_.set(0);
+        total_.set(0);
+        max_.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount() + " mean=" + micros(getMeanNanos()) + " p50=" + micros(getPercentileNanos(50))
+                + " p90=" + micros(getPercentileNanos(90)) + " p99=" + micros(getPercentileNanos(99)) + " max="
+                + micros(getMaxNanos());
+    }
+
+    private static String micros(long nanos)
+    {
+        return (nanos / 1000) + "us";
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds the statements and result sets that are never closed - see
+ * {@link WrappedConnection#enableLeakDetection(long, int)}. Every statement prepared on the connection (and the
+ * last result set of each) is registered with a weak reference, along with when, and on which thread, it
+ * was opened - and for a sample of them, the stack it was opened from.
+ * <ul>
+ * <li>A statement that is garbage collected without having been closed is a leak - its cursor would stay
+ * open in the database for as long as the connection does. It is logged, and the JDBC statement under it is
+ * closed.</li>
+ * <li>A statement or result set that has been open longer than the threshold is logged as a suspected leak
+ * (once) - it may just be a statement that is kept for reuse.</li>
+ * <li>After a reconnect, the result sets of the old connection are closed, and when the connection is closed,
+ * everything still open is.</li>
+ * </ul>
+ * The checks are made as statements are opened (at most once a second), and by {@link #check()}.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class LeakDetector
+{
+    private final String                 server_;
+    private final ReferenceQueue<Object> queue_     = new ReferenceQueue<Object>();
+    private final Set<Tracked>           tracked_   = new HashSet<Tracked>();
+    private volatile long                thresholdMillis_;
+    private volatile int                 sampleRate_;
+    private final AtomicLong             opened_    = new AtomicLong();
+    private final AtomicLong             leaked_    = new AtomicLong();
+    private final AtomicLong             suspected_ = new AtomicLong();
+    private final AtomicLong             closed_    = new AtomicLong();
+    private final AtomicLong             lastCheck_ = new AtomicLong();
+
+    private static Log                   logger     = LogFactory.getLog("sqlWrapper.LeakDetector");
+
+    /**
+     * @param thresholdMillis how long a statement or result set can be open before it is reported
+     * @param sampleRate capture the stack for one in this many statements - 1 for all of them, 0 for none
+     */
+    LeakDetector(String server, long thresholdMillis, int sampleRate)
+    {
+        server_ = server;
+        setThreshold(thresholdMillis);
+        setSampleRate(sampleRate);
+    }
+
+    public void setThreshold(long thresholdMillis)
+    {
+        thresholdMillis_ = Math.max(0, thresholdMillis);
+    }
+
+    public long getThreshold()
+    {
+        return thresholdMillis_;
+    }
+
+    /**
+     * @param sampleRate capture the stack for one in this many statements - 1 for all of them, 0 for none.
+     *            Capturing the stack costs a few microseconds per statement.
+     */
+    public void setSampleRate(int sampleRate)
+    {
+        sampleRate_ = Math.max(0, sampleRate);
+    }
+
+    public int getSampleRate()
+    {
+        return sampleRate_;
+    }
+
+    /**
+     * Start tracking a statement.
+     *
+     * @param jdbcStatement the statement under it, to close if it leaks
+     */
+    Tracked statementOpened(WrappedPreparedStatement statement, Statement jdbcStatement, String sql)
+    {
+        check();
+        return register(new Tracked(this, statement, jdbcStatement, sql, false, capture()));
+    }
+
+    /**
+     * Start tracking a result set.
+     *
+     * @param statement the tracking of the statement the result set came from - its stack is reused
+     */
+    Tracked resultSetOpened(ResultSet resultSet, Tracked statement, String sql)
+    {
+        return register(new Tracked(this, resultSet, null, sql, true, statement == null ? null : statement.site_));
+    }
+
+    private Throwable capture()
+    {
+        int rate = sampleRate_;
+        if (rate == 0 || opened_.incrementAndGet() % rate != 0)
+        {
+            return null;
+        }
+        return new Throwable("Opened by thread \"" + Thread.currentThread().getName() + "\"");
+    }
+
+    private Tracked register(Tracked tracked)
+    {
+        synchronized (tracked_)
+        {
+            tracked_.add(tracked);
+        }
+        return tracked;
+    }
+
+    void forget(Tracked tracked)
+    {
+        synchronized (tracked_)
+        {
+            tracked_.remove(tracked);
+        }
+        tracked.clear();
+    }
+
+    /**
+     * Deal with the statements that have been garbage collected, and report the ones open past the threshold.
+     * Called as statements are opened - but it does nothing if it has already been done in the last second.
+     */
+    public void check()
+    {
+        long now = System.currentTimeMillis();
+        long last = lastCheck_.get();
+        if (now - last < 1000 || !lastCheck_.compareAndSet(last, now))
+        {
+            return;
+        }
+        collectGarbage();
+        List<Tracked> suspects = new ArrayList<Tracked>();
+        synchronized (tracked_)
+        {
+            for (Iterator<Tracked> it = tracked_.iterator(); it.hasNext();)
+            {
+                Tracked tracked = it.next();
+                if (tracked.resultSet_ && isClosed((ResultSet) tracked.get()))
+                {
+                    it.remove();
+                }
+                else if (!tracked.reported_ && now - tracked.openedAt_ > thresholdMillis_)
+                {
+                    tracked.reported_ = true;
+                    suspects.add(tracked);
+                }
+            }
+        }
+        for (int i = 0; i < suspects.size(); i++)
+        {
+            Tracked tracked = suspects.get(i);
+            suspected_.incrementAndGet();
+            logger.warn("Possible leak - " + tracked.describe(now) + " is still open", tracked.site_);
+        }
+    }
+
+    private void collectGarbage()
+    {
+        Reference<? extends Object> reference;
+        while ((reference = queue_.poll()) != null)
+        {
+            Tracked tracked = (Tracked) reference;
+            synchronized (tracked_)
+            {
+                if (!tracked_.remove(tracked))
+                {
+                    // closed, just before it went
+                    continue;
+                }
+            }
+            if (!tracked.resultSet_)
+            {
+                leaked_.incrementAndGet();
+                logger.warn("Leak - " + tracked.describe(System.currentTimeMillis())
+                        + " was garbage collected without being closed - closing it", tracked.site_);
+                close(tracked.statement_);
+            }
+        }
+    }
+
+    /**
+     * The connection has been reestablished - close the result sets of the old one.
+     */
+    void connectionReplaced()
+    {
+        collectGarbage();
+        closeAll(true);
+    }
+
+    /**
+     * The connection is being closed - close whatever is still open.
+     */
+    void connectionClosed()
+    {
+        collectGarbage();
+        int count = closeAll(false);
+        if (count > 0)
+        {
+            logger.info(count + " statement(s) and result set(s) were still open when the connection to " + server_
+                    + " was closed");
+        }
+    }
+
+    private int closeAll(boolean resultSetsOnly)
+    {
+        List<Tracked> open = new ArrayList<Tracked>();
+        synchronized (tracked_)
+        {
+            for (Iterator<Tracked> it = tracked_.iterator(); it.hasNext();)
+            {
+                Tracked tracked = it.next();
+                if (tracked.resultSet_ || !resultSetsOnly)
+                {
+                    it.remove();
+                    open.add(tracked);
+                }
+            }
+        }
+        int count = 0;
+        for (int i = 0; i < open.size(); i++)
+        {
+            Tracked tracked = open.get(i);
+            Object resource = tracked.resultSet_ ? tracked.get() : tracked.statement_;
+            tracked.clear();
+            if (resource != null && !(tracked.resultSet_ && isClosed((ResultSet) resource)))
+            {
+                close(resource);
+                closed_.incrementAndGet();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isClosed(ResultSet resultSet)
+    {
+        if (resultSet == null)
+        {
+            return true;
+        }
+        try
+        {
+            return resultSet.isClosed();
+        }
+        catch (Throwable e)
+        {
+            // a driver older than JDBC 4 - assume it is open
+            return false;
+        }
+    }
+
+    private static void close(Object resource)
+    {
+        try
+        {
+            if (resource instanceof ResultSet)
+            {
+                ((ResultSet) resource).close();
+            }
+            else if (resource instanceof Statement)
+            {
+                ((Statement) resource).close();
+            }
+        }
+        catch (Throwable e)
+        {
+            // it's going anyway
+        }
+    }
+
+    /**
+     * @return the number of statements that were garbage collected without being closed.
+     */
+    public long getLeakedCount()
+    {
+        return leaked_.get();
+    }
+
+    /**
+     * @return the number of statements and result sets reported for being open past the threshold.
+     */
+    public long getSuspectedCount()
+    {
+        return suspected_.get();
+    }
+
+    /**
+     * @return the number of statements and result sets closed on reconnect or on close of the connection.
+     */
+    public long getClosedCount()
+    {
+        return closed_.get();
+    }
+
+    public int getTrackedCount()
+    {
+        synchronized (tracked_)
+        {
+            return tracked_.size();
+        }
+    }
+
+    /**
+     * @return everything open longer than the threshold, oldest first, with the stacks that were captured.
+     */
+    public String report()
+    {
+        collectGarbage();
+        long now = System.currentTimeMillis();
+        List<Tracked> open = new ArrayList<Tracked>();
+        synchronized (tracked_)
+        {
+            for (Iterator<Tracked> it = tracked_.iterator(); it.hasNext();)
+            {
+                Tracked tracked = it.next();
+                if (now - tracked.openedAt_ > thresholdMillis_)
+                {
+                    open.add(tracked);
+                }
+            }
+        }
+        Collections.sort(open, new Comparator<Tracked>()
+        {
+            @Override
+            public int compare(Tracked o1, Tracked o2)
+            {
+                return o1.openedAt_ < o2.openedAt_ ? -1 : (o1.openedAt_ == o2.openedAt_ ? 0 : 1);
+            }
+        });
+        StringBuilder temp = new StringBuilder(toString());
+        for (int i = 0; i < open.size(); i++)
+        {
+            Tracked tracked = open.get(i);
+            temp.append("\n  ").append(tracked.describe(now));
+            StackTraceElement[] stack = tracked.site_ == null ? new StackTraceElement[0] : tracked.site_
+                    .getStackTrace();
+            for (int j = 0; j < stack.length; j++)
+            {
+                temp.append("\n      at ").append(stack[j]);
+            }
+        }
+        return temp.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LeakDetector for " + server_ + " - tracked=" + getTrackedCount() + " leaked=" + getLeakedCount()
+                + " suspected=" + getSuspectedCount() + " closed=" + getClosedCount();
+    }
+
+    /**
+     * One statement or result set. Identity equality, as WeakReference has.
+     */
+    static final class Tracked extends WeakReference<Object>
+    {
+        private final LeakDetector detector_;
+        private volatile Statement statement_;
+        private final String       sql_;
+        private final boolean      resultSet_;
+        private final Throwable    site_;
+        private final long         openedAt_ = System.currentTimeMillis();
+        private final String       thread_   = Thread.currentThread().getName();
+        private volatile boolean   reported_ = false;
+
+        Tracked(LeakDetector detector, Object resource, Statement statement, String sql, boolean resultSet,
+                Throwable site)
+        {
+            super(resource, detector.queue_);
+            detector_ = detector;
+            statement_ = statement;
+            sql_ = sql;
+            resultSet_ = resultSet;
+            site_ = site;
+        }
+
+        /**
+         * The statement has been prepared again - track the new JDBC statement.
+         */
+        void setStatement(Statement statement)
+        {
+            statement_ = statement;
+        }
+
+        /**
+         * It has been closed.
+         */
+        void closed()
+        {
+            detector_.forget(this);
+        }
+
+        String describe(long now)
+        {
+            return (resultSet_ ? "result set of " : "statement ") + "\"" + sql_ + "\" opened " + (now - openedAt_)
+                    + "ms ago by thread \"" + thread_ + "\"" + (site_ == null ? " (stack not sampled)" : "");
+        }
+    }
+}
@@ -0,0 +1,1080 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A snapshot of the database meta data of a connection - the tables, their columns, primary keys and
+ * indexes, and the product information - so that code looking them up over and over doesn't run a
+ * catalog query each time. See {@link WrappedConnection#enableMetaDataCache(String, long)}.
+ *
+ * The list of tables is read on first use; the details of a table the first time it is asked for. What has
+ * been read is immutable, and is kept until the snapshot is dropped - when DDL (CREATE, ALTER, DROP,
+ * RENAME, TRUNCATE, COMMENT) is executed through the connection, when it gets older than the refresh
+ * interval, or on {@link #invalidate()}. DDL run by anyone else isn't seen until then. Names are matched
+ * ignoring case.
+ *
+ * The snapshot belongs to the WrappedConnection, not the physical connection under it, so it survives
+ * reconnects. Once it is enabled, {@link WrappedConnection#getMetaData()} answers from the cache as well:
+ * getTables, getColumns, getPrimaryKeys and getIndexInfo get a copy of the rows read the first time they were
+ * called with the same arguments, kept with the snapshot; and the calls that describe what the database and
+ * driver can do (the product name and version, the supportsXXX and getMaxXXX calls...) are read once. The
+ * rest - isReadOnly, getUserName and the like, which follow the state of the connection - are passed
+ * through. Everything cached, the capabilities included, is dropped along with the snapshot.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class MetaDataCache
+{
+    private static final Pattern     DDL        = Pattern.compile(
+                                                        "\\s*(CREATE|ALTER|DROP|RENAME|TRUNCATE|COMMENT)\\b",
+                                                        Pattern.CASE_INSENSITIVE);
+    private static final Object      NULL       = new Object();
+
+    // the catalog queries that are answered from the snapshot
+    private static final Set<String> CATALOG    = new HashSet<String>(Arrays.asList(new String[] {"getTables",
+            "getColumns", "getPrimaryKeys", "getIndexInfo"}));
+    // what the database and driver can do - the calls starting with these can't change while it runs
+    private static final String[]    CAPABILITY = {"supports", "getMax", "all", "nullsAre", "nullPlus", "stores",
+            "uses", "own", "others", "updatesAre", "deletesAre", "insertsAre", "getDatabase", "getDriver", "getJDBC",
+            "getIdentifierQuote", "getSQLKeywords", "getNumericFunctions", "getStringFunctions",
+            "getSystemFunctions", "getTimeDateFunctions", "getSearchStringEscape", "getExtraNameCharacters",
+            "getSchemaTerm", "getProcedureTerm", "getCatalogTerm", "getCatalogSeparator", "isCatalogAtStart",
+            "getDefaultTransactionIsolation", "getSQLStateType", "dataDefinition", "doesMaxRowSize",
+            "locatorsUpdateCopy", "autoCommitFailureClosesAllResultSets", "generatedKeyAlwaysReturned"};
+
+    private final WrappedConnection  connection_;
+    private final String             schema_;
+    private volatile long            refreshMillis_;
+    private volatile Snapshot        snapshot_;
+    private Map<String, Object>      constants_ = new ConcurrentHashMap<String, Object>();
+    private final DatabaseMetaData   metaData_;
+
+    private final AtomicLong         hits_      = new AtomicLong();
+    private final AtomicLong         loads_     = new AtomicLong();
+    private final AtomicLong         drops_     = new AtomicLong();
+
+    private static Log               logger     = LogFactory.getLog("sqlWrapper.MetaDataCache");
+
+    /**
+     * @param schema the schema to read the tables of, or null for all of them
+     * @param refreshMillis how old the snapshot can get before it is read again - 0 for only after DDL
+     */
+    MetaDataCache(WrappedConnection connection, String schema, long refreshMillis)
+    {
+        connection_ = connection;
+        schema_ = schema;
+        refreshMillis_ = refreshMillis;
+        metaData_ = (DatabaseMetaData) Proxy.newProxyInstance(MetaDataCache.class.getClassLoader(),
+                                                              new Class<?>[] {DatabaseMetaData.class},
+                                                              new MetaDataHandler());
+    }
+
+    public void setRefreshInterval(long refreshMillis)
+    {
+        refreshMillis_ = refreshMillis;
+    }
+
+    public long getRefreshInterval()
+    {
+        return refreshMillis_;
+    }
+
+    /**
+     * Drop the snapshot, and the capabilities - the next lookup reads the meta data again.
+     */
+    public void invalidate()
+    {
+        snapshot_ = null;
+        constants_.clear();
+        drops_.incrementAndGet();
+    }
+
+    /**
+     * A statement has been executed through the connection - drop the snapshot if it was DDL.
+     */
+    void executed(String sql)
+    {
+        if (snapshot_ != null && sql != null && DDL.matcher(sql).lookingAt())
+        {
+            logger.debug("DDL executed - dropping the meta data snapshot");
+            invalidate();
+        }
+    }
+
+    /**
+     * @return the meta data of the connection, with the catalog queries and capabilities answered from the
+     *         cache.
+     */
+    DatabaseMetaData getMetaData()
+    {
+        return metaData_;
+    }
+
+    public ProductInfo getProductInfo() throws SQLException
+    {
+        return snapshot().productInfo_;
+    }
+
+    /**
+     * @return the names of the tables and views, as the database has them.
+     */
+    public String[] getTableNames() throws SQLException
+    {
+        List<TableName> tables = snapshot().list_;
+        String[] temp = new String[tables.size()];
+        for (int i = 0; i < temp.length; i++)
+        {
+            temp[i] = tables.get(i).name_;
+        }
+        return temp;
+    }
+
+    /**
+     * @return the table (or view), or null if there isn't one of that name.
+     */
+    public Table getTable(String name) throws SQLException
+    {
+        return getTable(null, name);
+    }
+
+    /**
+     * @param schema the schema of the table, or null for any
+     * @return the table (or view), or null if there isn't one of that name.
+     */
+    public Table getTable(String schema, String name) throws SQLException
+    {
+        Snapshot snapshot = snapshot();
+        String key = schema == null ? name.toUpperCase() : schema.toUpperCase() + "." + name.toUpperCase();
+        Table table = snapshot.details_.get(key);
+        if (table != null)
+        {
+            hits_.incrementAndGet();
+            return table;
+        }
+        synchronized (this)
+        {
+            TableName tableName = snapshot.tables_.get(key);
+            if (tableName == null)
+            {
+                // created since the snapshot was taken, perhaps - look for it on its own
+                tableName = findTable(schema, name);
+                if (tableName == null)
+                {
+                    return null;
+                }
+            }
+            table = snapshot.details_.get(key);
+            if (table == null)
+            {
+                table = readTable(tableName);
+                snapshot.details_.put(key, table);
+            }
+            return table;
+        }
+    }
+
+    private Snapshot snapshot() throws SQLException
+    {
+        Snapshot snapshot = snapshot_;
+        long refresh = refreshMillis_;
+        if (snapshot != null && (refresh <= 0 || System.currentTimeMillis() - snapshot.readAt_ < refresh))
+        {
+            return snapshot;
+        }
+        synchronized (this)
+        {
+            snapshot = snapshot_;
+            if (snapshot == null || (refresh > 0 && System.currentTimeMillis() - snapshot.readAt_ >= refresh))
+            {
+                snapshot = readSnapshot();
+                snapshot_ = snapshot;
+            }
+            return snapshot;
+        }
+    }
+
+    private Snapshot readSnapshot() throws SQLException
+    {
+        long start = System.currentTimeMillis();
+        loads_.incrementAndGet();
+        DatabaseMetaData metaData = connection_.getPhysicalConnection().getMetaData();
+        Snapshot snapshot = new Snapshot();
+        snapshot.productInfo_ = new ProductInfo(metaData);
+        ResultSet results = metaData.getTables(null, schema_, "%", new String[] {"TABLE", "VIEW"});
+        try
+        {
+            while (results.next())
+            {
+                TableName table = new TableName(results.getString("TABLE_CAT"), results.getString("TABLE_SCHEM"),
+                                                results.getString("TABLE_NAME"), results.getString("TABLE_TYPE"));
+                snapshot.add(table);
+            }
+        }
+        finally
+        {
+            results.close();
+        }
+        logger.debug("Read the list of " + snapshot.list_.size() + " tables in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return snapshot;
+    }
+
+    private TableName findTable(String schema, String name) throws SQLException
+    {
+        loads_.incrementAndGet();
+        DatabaseMetaData metaData = connection_.getPhysicalConnection().getMetaData();
+        // stored in upper case by some databases, lower case by others
+        String[] names = new String[] {name, name.toUpperCase(), name.toLowerCase()};
+        for (int i = 0; i < names.length; i++)
+        {
+            ResultSet results = metaData.getTables(null, schema == null ? schema_ : schema, names[i], new String[] {
+                    "TABLE", "VIEW"});
+            try
+            {
+                if (results.next())
+                {
+                    return new TableName(results.getString("TABLE_CAT"), results.getString("TABLE_SCHEM"), results
+                            .getString("TABLE_NAME"), results.getString("TABLE_TYPE"));
+                }
+            }
+            finally
+            {
+                results.close();
+            }
+        }
+        return null;
+    }
+
+    private Table readTable(TableName name) throws SQLException
+    {
+        loads_.incrementAndGet();
+        DatabaseMetaData metaData = connection_.getPhysicalConnection().getMetaData();
+        List<Column> columns = new ArrayList<Column>();
+        ResultSet results = metaData.getColumns(name.catalog_, name.schema_, name.name_, "%");
+        try
+        {
+            while (results.next())
+            {
+                columns.add(new Column(results));
+            }
+        }
+        finally
+        {
+            results.close();
+        }
+
+        // by KEY_SEQ - the result set is ordered by column name
+        Map<Integer, String> primaryKey = new TreeMap<Integer, String>();
+        results = metaData.getPrimaryKeys(name.catalog_, name.schema_, name.name_);
+        try
+        {
+            while (results.next())
+            {
+                primaryKey.put(new Integer(results.getInt("KEY_SEQ")), results.getString("COLUMN_NAME"));
+            }
+        }
+        finally
+        {
+            results.close();
+        }
+
+        Map<String, Index> indexes = new TreeMap<String, Index>();
+        results = metaData.getIndexInfo(name.catalog_, name.schema_, name.name_, false, true);
+        try
+        {
+            while (results.next())
+            {
+                String indexName = results.getString("INDEX_NAME");
+                String column = results.getString("COLUMN_NAME");
+                if (indexName == null || column == null)
+                {
+                    // table statistics, or an index on an expression
+                    continue;
+                }
+                Index index = indexes.get(indexName);
+                if (index == null)
+                {
+                    index = new Index(indexName, !results.getBoolean("NON_UNIQUE"));
+                    indexes.put(indexName, index);
+                }
+                index.columns_.put(new Integer(results.getInt("ORDINAL_POSITION")), column);
+            }
+        }
+        finally
+        {
+            results.close();
+        }
+
+        return new Table(name, columns.toArray(new Column[columns.size()]), primaryKey.values().toArray(
+                new String[primaryKey.size()]), indexes.values().toArray(new Index[indexes.size()]));
+    }
+
+    public long getHitCount()
+    {
+        return hits_.get();
+    }
+
+    /**
+     * @return the number of catalog reads - of the table list, or of a table.
+     */
+    public long getLoadCount()
+    {
+        return loads_.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        Snapshot snapshot = snapshot_;
+        return "MetaDataCache - tables=" + (snapshot == null ? "not read" : snapshot.list_.size() + " (details of "
+                + snapshot.details_.size() + ")") + " hits=" + getHitCount() + " loads=" + getLoadCount() + " drops="
+                + drops_.get();
+    }
+
+    /**
+     * What was read at one time.
+     */
+    private static class Snapshot
+    {
+        private final long                   readAt_  = System.currentTimeMillis();
+        private ProductInfo                  productInfo_;
+        private final List<TableName>        list_    = new ArrayList<TableName>();
+        // by upper case name, and schema.name
+        private final Map<String, TableName> tables_  = new HashMap<String, TableName>();
+        private final Map<String, Table>     details_ = new ConcurrentHashMap<String, Table>();
+        // the catalog queries made through the meta data proxy, by method and arguments
+        private final Map<String, Rows>      results_ = new ConcurrentHashMap<String, Rows>();
+
+        void add(TableName table)
+        {
+            list_.add(table);
+            String name = table.name_.toUpperCase();
+            if (!tables_.containsKey(name))
+            {
+                tables_.put(name, table);
+            }
+            if (table.schema_ != null)
+            {
+                tables_.put(table.schema_.toUpperCase() + "." + name, table);
+            }
+        }
+    }
+
+    private static class TableName
+    {
+        private final String catalog_;
+        private final String schema_;
+        private final String name_;
+        private final String type_;
+
+        TableName(String catalog, String schema, String name, String type)
+        {
+            catalog_ = catalog;
+            schema_ = schema;
+            name_ = name;
+            type_ = type;
+        }
+    }
+
+    /**
+     * The product and driver names and versions.
+     */
+    public static final class ProductInfo
+    {
+        private final String productName_;
+        private final String productVersion_;
+        private final int    majorVersion_;
+        private final int    minorVersion_;
+        private final String driverName_;
+        private final String driverVersion_;
+        private final String identifierQuote_;
+
+        ProductInfo(DatabaseMetaData metaData) throws SQLException
+        {
+            productName_ = metaData.getDatabaseProductName();
+            productVersion_ = metaData.getDatabaseProductVersion();
+            int major = 0;
+            int minor = 0;
+            try
+            {
+                major = metaData.getDatabaseMajorVersion();
+                minor = metaData.getDatabaseMinorVersion();
+            }
+            catch (Throwable e)
+            {
+                // an old driver
+            }
+            majorVersion_ = major;
+            minorVersion_ = minor;
+            driverName_ = metaData.getDriverName();
+            driverVersion_ = metaData.getDriverVersion();
+            identifierQuote_ = metaData.getIdentifierQuoteString();
+        }
+
+        public String getProductName()
+        {
+            return productName_;
+        }
+
+        public String getProductVersion()
+        {
+            return productVersion_;
+        }
+
+        public int getMajorVersion()
+        {
+            return majorVersion_;
+        }
+
+        public int getMinorVersion()
+        {
+            return minorVersion_;
+        }
+
+        public String getDriverName()
+        {
+            return driverName_;
+        }
+
+        public String getDriverVersion()
+        {
+            return driverVersion_;
+        }
+
+        public String getIdentifierQuote()
+        {
+            return identifierQuote_;
+        }
+
+        @Override
+        public String toString()
+        {
+            return productName_ + " " + productVersion_ + " (" + driverName_ + " " + driverVersion_ + ")";
+        }
+    }
+
+    /**
+     * A table or view - its columns, in order, its primary key and its indexes.
+     */
+    public static final class Table
+    {
+        private final TableName           name_;
+        private final Column[]            columns_;
+        private final Map<String, Column> byName_ = new HashMap<String, Column>();
+        private final String[]            primaryKey_;
+        private final Index[]             indexes_;
+
+        Table(TableName name, Column[] columns, String[] primaryKey, Index[] indexes)
+        {
+            name_ = name;
+            columns_ = columns;
+            primaryKey_ = primaryKey;
+            indexes_ = indexes;
+            for (int i = 0; i < columns.length; i++)
+            {
+                byName_.put(columns[i].name_.toUpperCase(), columns[i]);
+            }
+        }
+
+        public String getCatalog()
+        {
+            return name_.catalog_;
+        }
+
+        public String getSchema()
+        {
+            return name_.schema_;
+        }
+
+        public String getName()
+        {
+            return name_.name_;
+        }
+
+        /**
+         * @return TABLE or VIEW.
+         */
+        public String getType()
+        {
+            return name_.type_;
+        }
+
+        public Column[] getColumns()
+        {
+            return columns_.clone();
+        }
+
+        /**
+         * @return the column, or null if there isn't one of that name.
+         */
+        public Column getColumn(String name)
+        {
+            return byName_.get(name.toUpperCase());
+        }
+
+        /**
+         * @return the columns of the primary key, in key order - empty if there isn't one.
+         */
+        public String[] getPrimaryKey()
+        {
+            return primaryKey_.clone();
+        }
+
+        public Index[] getIndexes()
+        {
+            return indexes_.clone();
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder temp = new StringBuilder(name_.name_).append(" (");
+            for (int i = 0; i < columns_.length; i++)
+            {
+                temp.append(i == 0 ? "" : ", ").append(columns_[i]);
+            }
+            return temp.append(")").toString();
+        }
+    }
+
+    public static final class Column
+    {
+        private final String  name_;
+        private final int     sqlType_;
+        private final String  typeName_;
+        private final int     size_;
+        private final int     decimalDigits_;
+        private final boolean nullable_;
+        private final boolean autoIncrement_;
+        private final String  defaultValue_;
+
+        Column(ResultSet results) throws SQLException
+        {
+            name_ = results.getString("COLUMN_NAME");
+            sqlType_ = results.getInt("DATA_TYPE");
+            typeName_ = results.getString("TYPE_NAME");
+            size_ = results.getInt("COLUMN_SIZE");
+            decimalDigits_ = results.getInt("DECIMAL_DIGITS");
+            nullable_ = results.getInt("NULLABLE") != DatabaseMetaData.columnNoNulls;
+            defaultValue_ = results.getString("COLUMN_DEF");
+            boolean autoIncrement = false;
+            try
+            {
+                autoIncrement = "YES".equals(results.getString("IS_AUTOINCREMENT"));
+            }
+            catch (SQLException e)
+            {
+                // a driver older than JDBC 4
+            }
+            autoIncrement_ = autoIncrement;
+        }
+
+        public String getName()
+        {
+            return name_;
+        }
+
+        /**
+         * @return the java.sql.Types type.
+         */
+        public int getSqlType()
+        {
+            return sqlType_;
+        }
+
+        public String getTypeName()
+        {
+            return typeName_;
+        }
+
+        public int getSize()
+        {
+            return size_;
+        }
+
+        public int getDecimalDigits()
+        {
+            return decimalDigits_;
+        }
+
+        public boolean isNullable()
+        {
+            return nullable_;
+        }
+
+        public boolean isAutoIncrement()
+        {
+            return autoIncrement_;
+        }
+
+        public String getDefaultValue()
+        {
+            return defaultValue_;
+        }
+
+        @Override
+        public String toString()
+        {
+            return name_ + " " + typeName_ + (nullable_ ? "" : " NOT NULL");
+        }
+    }
+
+    public static final class Index
+    {
+        private final String               name_;
+        private final boolean              unique_;
+        // by ORDINAL_POSITION while it is read
+        private final Map<Integer, String> columns_ = new TreeMap<Integer, String>();
+
+        Index(String name, boolean unique)
+        {
+            name_ = name;
+            unique_ = unique;
+        }
+
+        public String getName()
+        {
+            return name_;
+        }
+
+        public boolean isUnique()
+        {
+            return unique_;
+        }
+
+        public String[] getColumns()
+        {
+            return columns_.values().toArray(new String[columns_.size()]);
+        }
+
+        @Override
+        public String toString()
+        {
+            return (unique_ ? "unique " : "") + name_ + " " + columns_.values();
+        }
+    }
+
+    /**
+     * Answers the catalog queries and the capability calls from the cache, and passes the rest to the current
+     * physical connection.
+     */
+    private class MetaDataHandler implements InvocationHandler
+    {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if (name.equals("getConnection"))
+            {
+                return connection_;
+            }
+            if (name.equals("equals"))
+            {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if (name.equals("hashCode"))
+            {
+                return new Integer(System.identityHashCode(proxy));
+            }
+            if (name.equals("toString"))
+            {
+                return MetaDataCache.this.toString();
+            }
+            if (CATALOG.contains(name))
+            {
+                Snapshot snapshot = snapshot();
+                String key = key(name, args);
+                Rows rows = snapshot.results_.get(key);
+                if (rows == null)
+                {
+                    loads_.incrementAndGet();
+                    ResultSet results = (ResultSet) call(method, args);
+                    try
+                    {
+                        rows = new Rows(results);
+                    }
+                    finally
+                    {
+                        results.close();
+                    }
+                    snapshot.results_.put(key, rows);
+                }
+                else
+                {
+                    hits_.incrementAndGet();
+                }
+                return rows.open();
+            }
+
+            String key = isCapability(name, args) ? key(name, args) : null;
+            if (key != null)
+            {
+                Object value = constants_.get(key);
+                if (value != null)
+                {
+                    hits_.incrementAndGet();
+                    return value == NULL ? null : value;
+                }
+            }
+            Object value = call(method, args);
+            if (key != null)
+            {
+                constants_.put(key, value == null ? NULL : value);
+            }
+            return value;
+        }
+
+        private Object call(Method method, Object[] args) throws Throwable
+        {
+            try
+            {
+                return method.invoke(connection_.getPhysicalConnection().getMetaData(), args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * @return true for a call that describes what the database can do - with no arguments, or ints (the
+         *         result set type, say).
+         */
+        private boolean isCapability(String name, Object[] args)
+        {
+            for (int i = 0; args != null && i < args.length; i++)
+            {
+                if (!(args[i] instanceof Integer))
+                {
+                    return false;
+                }
+            }
+            for (int i = 0; i < CAPABILITY.length; i++)
+            {
+                if (name.startsWith(CAPABILITY[i]))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private String key(String name, Object[] args)
+        {
+            StringBuilder temp = new StringBuilder(name);
+            for (int i = 0; args != null && i < args.length; i++)
+            {
+                temp.append('\0');
+                if (args[i] instanceof Object[])
+                {
+                    temp.append(Arrays.asList((Object[]) args[i]));
+                }
+                else if (args[i] != null)
+                {
+                    temp.append('=').append(args[i]);
+                }
+            }
+            return temp.toString();
+        }
+    }
+
+    /**
+     * The rows of a catalog query, copied into memory. Each call gets a forward only ResultSet of its own over
+     * them.
+     */
+    private static final class Rows
+    {
+        private final String[]       labels_;
+        private final int[]          types_;
+        private final String[]       typeNames_;
+        private final List<Object[]> rows_ = new ArrayList<Object[]>();
+
+        Rows(ResultSet results) throws SQLException
+        {
+            ResultSetMetaData metaData = results.getMetaData();
+            int count = metaData.getColumnCount();
+            labels_ = new String[count];
+            types_ = new int[count];
+            typeNames_ = new String[count];
+            for (int i = 0; i < count; i++)
+            {
+                labels_[i] = metaData.getColumnLabel(i + 1);
+                types_[i] = metaData.getColumnType(i + 1);
+                typeNames_[i] = metaData.getColumnTypeName(i + 1);
+            }
+            while (results.next())
+            {
+                Object[] row = new Object[count];
+                for (int i = 0; i < count; i++)
+                {
+                    row[i] = results.getObject(i + 1);
+                }
+                rows_.add(row);
+            }
+        }
+
+        ResultSet open()
+        {
+            return (ResultSet) Proxy.newProxyInstance(MetaDataCache.class.getClassLoader(),
+                                                      new Class<?>[] {ResultSet.class}, new RowsHandler(this));
+        }
+
+        int findColumn(String label) throws SQLException
+        {
+            for (int i = 0; i < labels_.length; i++)
+            {
+                if (labels_[i].equalsIgnoreCase(label))
+                {
+                    return i + 1;
+                }
+            }
+            throw new SQLException("No column " + label + " in the result set");
+        }
+    }
+
+    /**
+     * A ResultSet over cached Rows - the getters, next, close, getMetaData and little else.
+     */
+    private static class RowsHandler implements InvocationHandler
+    {
+        private final Rows rows_;
+        private int        row_     = -1;
+        private boolean    closed_  = false;
+        private boolean    wasNull_ = false;
+
+        RowsHandler(Rows rows)
+        {
+            rows_ = rows;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if (name.equals("close"))
+            {
+                closed_ = true;
+                return null;
+            }
+            if (name.equals("isClosed"))
+            {
+                return Boolean.valueOf(closed_);
+            }
+            if (name.equals("equals"))
+            {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if (name.equals("hashCode"))
+            {
+                return new Integer(System.identityHashCode(proxy));
+            }
+            if (name.equals("toString"))
+            {
+                return "cached meta data result set - " + rows_.rows_.size() + " rows";
+            }
+            if (closed_)
+            {
+                throw new SQLException("The result set is closed");
+            }
+            int size = rows_.rows_.size();
+            if (name.equals("next"))
+            {
+                row_ = Math.min(row_ + 1, size);
+                return Boolean.valueOf(row_ < size);
+            }
+            if (name.equals("wasNull"))
+            {
+                return Boolean.valueOf(wasNull_);
+            }
+            if (name.equals("findColumn"))
+            {
+                return new Integer(rows_.findColumn((String) args[0]));
+            }
+            if (name.equals("getMetaData"))
+            {
+                return Proxy.newProxyInstance(MetaDataCache.class.getClassLoader(),
+                                              new Class<?>[] {ResultSetMetaData.class}, new InvocationHandler()
+                                              {
+                                                  public Object invoke(Object p, Method m, Object[] a)
+                                                          throws SQLException
+                                                  {
+                                                      return describe(m.getName(), a);
+                                                  }
+                                              });
+            }
+            if (name.equals("getRow"))
+            {
+                return new Integer(row_ >= 0 && row_ < size ? row_ + 1 : 0);
+            }
+            if (name.equals("isBeforeFirst"))
+            {
+                return Boolean.valueOf(row_ < 0 && size > 0);
+            }
+            if (name.equals("isAfterLast"))
+            {
+                return Boolean.valueOf(row_ >= size && size > 0);
+            }
+            if (name.equals("getType"))
+            {
+                return new Integer(ResultSet.TYPE_FORWARD_ONLY);
+            }
+            if (name.equals("getConcurrency"))
+            {
+                return new Integer(ResultSet.CONCUR_READ_ONLY);
+            }
+            if (name.equals("getWarnings") || name.equals("getStatement"))
+            {
+                return null;
+            }
+            if (name.equals("clearWarnings") || name.equals("setFetchSize") || name.equals("setFetchDirection"))
+            {
+                return null;
+            }
+            if (name.startsWith("get") && args != null && args.length == 1)
+            {
+                if (row_ < 0 || row_ >= size)
+                {
+                    throw new SQLException("The result set has no current row");
+                }
+                int column = args[0] instanceof Integer ? ((Integer) args[0]).intValue() : rows_
+                        .findColumn((String) args[0]);
+                if (column < 1 || column > rows_.labels_.length)
+                {
+                    throw new SQLException("No column " + column + " in the result set");
+                }
+                Object value = rows_.rows_.get(row_)[column - 1];
+                wasNull_ = value == null;
+                return convert(value, method.getReturnType());
+            }
+            throw new SQLFeatureNotSupportedException(name + " isn't supported on a cached meta data result set");
+        }
+
+        private Object describe(String name, Object[] args) throws SQLException
+        {
+            if (name.equals("getColumnCount"))
+            {
+                return new Integer(rows_.labels_.length);
+            }
+            int column = args != null && args.length == 1 && args[0] instanceof Integer ? ((Integer) args[0])
+                    .intValue() : 0;
+            if (column >= 1 && column <= rows_.labels_.length)
+            {
+                if (name.equals("getColumnLabel") || name.equals("getColumnName"))
+                {
+                    return rows_.labels_[column - 1];
+                }
+                if (name.equals("getColumnType"))
+                {
+                    return new Integer(rows_.types_[column - 1]);
+                }
+                if (name.equals("getColumnTypeName"))
+                {
+                    return rows_.typeNames_[column - 1];
+                }
+            }
+            throw new SQLFeatureNotSupportedException(name + " isn't supported on a cached meta data result set");
+        }
+
+        private static Object convert(Object value, Class<?> type) throws SQLException
+        {
+            if (type == Object.class || (value != null && type.isInstance(value)))
+            {
+                return value;
+            }
+            if (value == null)
+            {
+                if (type == boolean.class)
+                {
+                    return Boolean.FALSE;
+                }
+                return type.isPrimitive() ? convert(new Integer(0), type) : null;
+            }
+            if (type == String.class)
+            {
+                return value.toString();
+            }
+            if (type == boolean.class)
+            {
+                if (value instanceof Boolean)
+                {
+                    return value;
+                }
+                String temp = value.toString().trim();
+                return Boolean.valueOf(temp.equalsIgnoreCase("true") || temp.equalsIgnoreCase("YES")
+                        || temp.equals("1"));
+            }
+            BigDecimal number;
+            try
+            {
+                number = new BigDecimal(value.toString().trim());
+            }
+            catch (NumberFormatException e)
+            {
+                throw new SQLException("Can't convert " + value + " to " + type.getName());
+            }
+            if (type == int.class)
+            {
+                return new Integer(number.intValue());
+            }
+            if (type == short.class)
+            {
+                return new Short(number.shortValue());
+            }
+            if (type == long.class)
+            {
+                return new Long(number.longValue());
+            }
+            if (type == byte.class)
+            {
+                return new Byte(number.byteValue());
+            }
+            if (type == double.class)
+            {
+                return new Double(number.doubleValue());
+            }
+            if (type == float.class)
+            {
+                return new Float(number.floatValue());
+            }
+            if (type == BigDecimal.class)
+            {
+                return number;
+            }
+            throw new SQLException("Can't convert " + value.getClass().getName() + " to " + type.getName());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+/**
+ * The binary form of statement parameter values - used by the {@link UpdateSpool} and the
+ * {@link WorkloadCapture}. Arrays, blobs, clobs and refs can't be written, as they belong to the connection
+ * that made them, and objects only if they are Serializable.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+final class ParameterCodec
+{
+    private ParameterCodec()
+    {
+    }
+
+    /**
+     * @throws SQLException if the value can't be written.
+     */
+    static void write(DataOutputStream out, QueryParameter parameter) throws IOException, SQLException
+    {
+        out.writeByte(parameter.type);
+        out.writeInt(parameter.targetType);
+        out.writeBoolean(parameter.typeName != null);
+        if (parameter.typeName != null)
+        {
+            writeString(out, parameter.typeName);
+        }
+        writeValue(out, parameter);
+    }
+
+    static QueryParameter read(DataInputStream in) throws IOException, ClassNotFoundException
+    {
+        int type = in.readByte();
+        QueryParameter parameter = new QueryParameter(type, null, in.readInt());
+        if (in.readBoolean())
+        {
+            parameter.typeName = readString(in);
+        }
+        if (in.readBoolean())
+        {
+            parameter.value = readValue(in, type);
+        }
+        return parameter;
+    }
+
+    private static void writeValue(DataOutputStream out, QueryParameter parameter) throws IOException,
+            SQLException
+    {
+        Object value = parameter.value;
+        out.writeBoolean(value != null);
+        if (value == null)
+        {
+            return;
+        }
+        switch (parameter.type)
+        {
+            case WrapperConstants.STRING :
+                writeString(out, (String) value);
+                break;
+            case WrapperConstants.BOOLEAN :
+                out.writeBoolean(((Boolean) value).booleanValue());
+                break;
+            case WrapperConstants.NULL :
+            case WrapperConstants.INT :
+                out.writeInt(((Integer) value).intValue());
+                break;
+            case WrapperConstants.TIME :
+            case WrapperConstants.DATE :
+                out.writeLong(((java.util.Date) value).getTime());
+                break;
+            case WrapperConstants.TIMESTAMP :
+                out.writeLong(((Timestamp) value).getTime());
+                out.writeInt(((Timestamp) value).getNanos());
+                break;
+            case WrapperConstants.BYTE :
+                out.writeByte(((Byte) value).byteValue());
+                break;
+            case WrapperConstants.DOUBLE :
+                out.writeDouble(((Double) value).doubleValue());
+                break;
+            case WrapperConstants.FLOAT :
+                out.writeFloat(((Float) value).floatValue());
+                break;
+            case WrapperConstants.LONG :
+                out.writeLong(((Long) value).longValue());
+                break;
+            case WrapperConstants.SHORT :
+                out.writeShort(((Short) value).shortValue());
+                break;
+            case WrapperConstants.BYTES : {
+                Byte[] temp = (Byte[]) value;
+                out.writeInt(temp.length);
+                for (int i = 0; i < temp.length; i++)
+                {
+                    out.writeByte(temp[i].byteValue());
+                }
+                break;
+            }
+            case WrapperConstants.BIGDECIMAL :
+            case WrapperConstants.URL :
+                writeString(out, value.toString());
+                break;
+            case WrapperConstants.OBJECT :
+            case WrapperConstants.IN_LIST : {
+                if (!(value instanceof Serializable))
+                {
+                    throw new SQLException("A " + value.getClass().getName() + " parameter can't be saved");
+                }
+                ByteArrayOutputStream temp = new ByteArrayOutputStream();
+                ObjectOutputStream objectOut = new ObjectOutputStream(temp);
+                objectOut.writeObject(value);
+                objectOut.close();
+                out.writeInt(temp.size());
+                temp.writeTo(out);
+                break;
+            }
+            default :
+                // arrays, blobs, clobs and refs belong to the connection that made them
+                throw new SQLException("Parameters of type " + parameter.type + " can't be saved");
+        }
+    }
+
+    private static Object readValue(DataInputStream in, int type) throws IOException, ClassNotFoundException
+    {
+        switch (type)
+        {
+            case WrapperConstants.STRING :
+                return readString(in);
+            case WrapperConstants.BOOLEAN :
+                return new Boolean(in.readBoolean());
+            case WrapperConstants.NULL :
+            case WrapperConstants.INT :
+                return new Integer(in.readInt());
+            case WrapperConstants.TIME :
+                return new Time(in.readLong());
+            case WrapperConstants.DATE :
+                return new Date(in.readLong());
+            case WrapperConstants.TIMESTAMP : {
+                Timestamp temp = new Timestamp(in.readLong());
+                temp.setNanos(in.readInt());
+                return temp;
+            }
+            case WrapperConstants.BYTE :
+                return new Byte(in.readByte());
+            case WrapperConstants.DOUBLE :
+                return new Double(in.readDouble());
+            case WrapperConstants.FLOAT :
+                return new Float(in.readFloat());
+            case WrapperConstants.LONG :
+                return new Long(in.readLong());
+            case WrapperConstants.SHORT :
+                return new Short(in.readShort());
+            case WrapperConstants.BYTES : {
+                Byte[] temp = new Byte[in.readInt()];
+                for (int i = 0; i < temp.length; i++)
+                {
+                    temp[i] = new Byte(in.readByte());
+                }
+                return temp;
+            }
+            case WrapperConstants.BIGDECIMAL :
+                return new BigDecimal(readString(in));
+            case WrapperConstants.URL :
+                return new URL(readString(in));
+            case WrapperConstants.OBJECT :
+            case WrapperConstants.IN_LIST : {
+                byte[] temp = new byte[in.readInt()];
+                in.readFully(temp);
+                ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(temp));
+                return objectIn.readObject();
+            }
+            default :
+                throw new IOException("Unknown parameter type " + type);
+        }
+    }
+
+    // writeUTF is limited to 64K, which is too small for sql or long strings.
+    static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] temp = value.getBytes("UTF-8");
+        out.writeInt(temp.length);
+        out.write(temp);
+    }
+
+    static String readString(DataInputStream in) throws IOException
+    {
+        byte[] temp = new byte[in.readInt()];
+        in.readFully(temp);
+        return new String(temp, "UTF-8");
+    }
+}
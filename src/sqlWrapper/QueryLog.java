@@ -0,0 +1,270 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes the debug log of statements (sqlWrapper.WrappedPreparedStatement) and of statement creation
+ * (sqlWrapper.WrappedConnection) from a background thread, so that statement logging can be left on
+ * without slowing down the threads that run the statements. The calling thread only queues the id of the
+ * sql and the parameter values that are set - building the message, and writing it, happens on the log
+ * thread. The messages are the same as before, with the name of the calling thread added.
+ *
+ * The queue is bounded. When it is full, events are dropped (and the number dropped is logged later), or
+ * with the BLOCK policy the caller waits for room.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class QueryLog
+{
+    /**
+     * Drop events when the queue is full (the default).
+     */
+    public static final int      DROP             = 0;
+    /**
+     * Wait for room in the queue.
+     */
+    public static final int      BLOCK            = 1;
+
+    private static final int     EXECUTING        = 0;
+    private static final int     PREPARED         = 1;
+
+    private static QueryLog      shared_;
+
+    private BlockingQueue<Event> queue_;
+    private volatile int         overflowPolicy_;
+    private AtomicLong           queued_          = new AtomicLong();
+    private AtomicLong           logged_          = new AtomicLong();
+    private AtomicLong           dropped_         = new AtomicLong();
+    private long                 reportedDropped_ = 0;
+    private long                 lastReport_      = 0;
+    private Thread               thread_;
+
+    private Log                  statementLogger  = LogFactory.getLog("sqlWrapper.WrappedPreparedStatement");
+    private Log                  connectionLogger = LogFactory.getLog("sqlWrapper.WrappedConnection");
+    private Log                  logger           = LogFactory.getLog("sqlWrapper.QueryLog");
+
+    /**
+     * @return the log used by all WrappedConnections.
+     */
+    public static synchronized QueryLog getShared()
+    {
+        if (shared_ == null)
+        {
+            shared_ = new QueryLog(8192, DROP);
+        }
+        return shared_;
+    }
+
+    /**
+     * @param capacity the most events waiting to be written
+     * @param overflowPolicy DROP or BLOCK
+     */
+    public QueryLog(int capacity, int overflowPolicy)
+    {
+        queue_ = new ArrayBlockingQueue<Event>(Math.max(1, capacity));
+        overflowPolicy_ = overflowPolicy;
+        thread_ = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                write();
+            }
+        }, "QueryLog");
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    /**
+     * @param overflowPolicy DROP or BLOCK
+     */
+    public void setOverflowPolicy(int overflowPolicy)
+    {
+        overflowPolicy_ = overflowPolicy;
+    }
+
+    /**
+     * A statement is about to be executed.
+     *
+     * @param parameters the values set on the statement, by parameter index
+     */
+    void statementExecuting(String sql, QueryParameter[] parameters)
+    {
+        offer(new Event(EXECUTING, sql, parameters));
+    }
+
+    /**
+     * A statement has been prepared.
+     */
+    void statementPrepared(String sql)
+    {
+        offer(new Event(PREPARED, sql, null));
+    }
+
+    /**
+     * Wait for the events queued so far to be written.
+     *
+     * @return false if they weren't all written in time.
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        long target = queued_.get();
+        while (logged_.get() < target)
+        {
+            if (System.currentTimeMillis() >= end)
+            {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of events written.
+     */
+    public long getLoggedCount()
+    {
+        return logged_.get();
+    }
+
+    public long getDroppedCount()
+    {
+        return dropped_.get();
+    }
+
+    public int getQueuedCount()
+    {
+        return queue_.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "QueryLog - logged=" + getLoggedCount() + " dropped=" + getDroppedCount() + " queued="
+                + getQueuedCount();
+    }
+
+    private void offer(Event event)
+    {
+        if (queue_.offer(event))
+        {
+            queued_.incrementAndGet();
+            return;
+        }
+        if (overflowPolicy_ == BLOCK)
+        {
+            try
+            {
+                Object wait = DiagnosticEvents.begin(DiagnosticEvents.WAIT);
+                queue_.put(event);
+                DiagnosticEvents.waited(wait, "query log");
+                queued_.incrementAndGet();
+                return;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        dropped_.incrementAndGet();
+    }
+
+    private void write()
+    {
+        while (true)
+        {
+            try
+            {
+                Event event = queue_.poll(1, TimeUnit.SECONDS);
+                reportDropped();
+                if (event == null)
+                {
+                    continue;
+                }
+                try
+                {
+                    if (event.kind == EXECUTING)
+                    {
+                        statementLogger.debug("Executing query (thread \"" + event.thread.getName() + "\"): "
+                                + WrappedPreparedStatement.describe(event.getSQL(), event.parameters));
+                    }
+                    else
+                    {
+                        connectionLogger.debug("Creating reconnectable prepared statement (thread \""
+                                + event.thread.getName() + "\"): \"" + event.getSQL() + "\"");
+                    }
+                }
+                finally
+                {
+                    logged_.incrementAndGet();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Unexpected error writing the query log", e);
+            }
+        }
+    }
+
+    private void reportDropped()
+    {
+        long dropped = dropped_.get();
+        long now = System.currentTimeMillis();
+        // at most one warning every 10 seconds, however hard the log is being hit
+        if (dropped != reportedDropped_ && now - lastReport_ >= 10000)
+        {
+            lastReport_ = now;
+            logger.warn((dropped - reportedDropped_) + " query log events dropped - the log queue was full");
+            reportedDropped_ = dropped;
+        }
+    }
+
+    /**
+     * What the calling thread hands over - references only, nothing is rendered.
+     */
+    private static class Event
+    {
+        final int              kind;
+        final String           sql;
+        final QueryParameter[] parameters;
+        final Thread           thread;
+
+        Event(int kind, String sql, QueryParameter[] parameters)
+        {
+            this.kind = kind;
+            this.sql = sql;
+            this.parameters = parameters;
+            this.thread = Thread.currentThread();
+        }
+
+        String getSQL()
+        {
+            return sql;
+        }
+    }
+}
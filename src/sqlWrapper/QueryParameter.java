@@ -0,0 +1,201 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *   
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A value that was set on a WrappedPreparedStatement - kept so that it can be set again on a rebuilt
+ * statement.
+ * 
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+class QueryParameter
+{
+    int    type;
+    Object value;
+    int targetType;
+    String typeName;
+
+    public QueryParameter(int type, Object value)
+    {
+        this.type = type;
+        this.value = value;
+        this.targetType = Integer.MIN_VALUE;
+    }
+    
+    public QueryParameter(int type, Object value, int targetSqlType)
+    {
+        this.type = type;
+        this.value = value;
+        this.targetType = targetSqlType;
+    }
+
+    /**
+     * @return the values by parameter index, however many there are - element 0 is unused, and the indexes
+     *         that weren't set are null.
+     */
+    static QueryParameter[] toArray(Hashtable<Integer, QueryParameter> variables)
+    {
+        synchronized (variables)
+        {
+            int highest = 0;
+            for (Iterator<Integer> it = variables.keySet().iterator(); it.hasNext();)
+            {
+                highest = Math.max(highest, it.next().intValue());
+            }
+            QueryParameter[] parameters = new QueryParameter[highest + 1];
+            for (Iterator<Map.Entry<Integer, QueryParameter>> it = variables.entrySet().iterator(); it.hasNext();)
+            {
+                Map.Entry<Integer, QueryParameter> entry = it.next();
+                if (entry.getKey().intValue() > 0)
+                {
+                    parameters[entry.getKey().intValue()] = entry.getValue();
+                }
+            }
+            return parameters;
+        }
+    }
+
+    /**
+     * Set this value on statement.
+     * 
+     * @param connection the connection the statement belongs to (needed for values that have to be created
+     *            by the connection)
+     */
+    void bind(PreparedStatement statement, int parameterIndex, Connection connection) throws SQLException
+    {
+        switch (type)
+        {
+            case WrapperConstants.STRING : {
+                statement.setString(parameterIndex, (String) value);
+                break;
+            }
+            case WrapperConstants.BOOLEAN : {
+                statement.setBoolean(parameterIndex, ((Boolean) value).booleanValue());
+                break;
+            }
+            case WrapperConstants.NULL : {
+                statement.setNull(parameterIndex, ((Integer) value).intValue());
+                break;
+            }
+            case WrapperConstants.TIME : {
+                statement.setTime(parameterIndex, ((Time) value));
+                break;
+            }
+
+            case WrapperConstants.TIMESTAMP : {
+                statement.setTimestamp(parameterIndex, ((Timestamp) value));
+                break;
+            }
+            case WrapperConstants.BYTE : {
+                statement.setByte(parameterIndex, ((Byte) value).byteValue());
+                break;
+            }
+            case WrapperConstants.DOUBLE : {
+                statement.setDouble(parameterIndex, ((Double) value).doubleValue());
+                break;
+            }
+            case WrapperConstants.FLOAT : {
+                statement.setFloat(parameterIndex, ((Float) value).floatValue());
+                break;
+            }
+            case WrapperConstants.INT : {
+                statement.setInt(parameterIndex, ((Integer) value).intValue());
+                break;
+            }
+            case WrapperConstants.LONG : {
+                statement.setLong(parameterIndex, ((Long) value).longValue());
+                break;
+            }
+            case WrapperConstants.SHORT : {
+                statement.setShort(parameterIndex, ((Short) value).shortValue());
+                break;
+            }
+            case WrapperConstants.BYTES : {
+                Byte[] temp = ((Byte[]) value);
+                byte[] temp1 = new byte[temp.length];
+                for (int i = 0; i < temp1.length; i++)
+                {
+                    temp1[i] = temp[i].byteValue();
+                }
+                statement.setBytes(parameterIndex, temp1);
+                break;
+            }
+            case WrapperConstants.OBJECT : {
+                if (targetType != Integer.MIN_VALUE)
+                {
+                    statement.setObject(parameterIndex, value, targetType);
+                }
+                else
+                {
+                    statement.setObject(parameterIndex, value);
+                }
+                break;
+            }
+            case WrapperConstants.BIGDECIMAL : {
+                statement.setBigDecimal(parameterIndex, (BigDecimal) value);
+                break;
+            }
+            case WrapperConstants.URL : {
+                statement.setURL(parameterIndex, (URL) value);
+                break;
+            }
+            case WrapperConstants.ARRAY : {
+                statement.setArray(parameterIndex, (Array) value);
+                break;
+            }
+            case WrapperConstants.BLOB : {
+                statement.setBlob(parameterIndex, (Blob) value);
+                break;
+            }
+            case WrapperConstants.CLOB : {
+                statement.setClob(parameterIndex, (Clob) value);
+                break;
+            }
+            case WrapperConstants.DATE : {
+                statement.setDate(parameterIndex, (Date) value);
+                break;
+            }
+            case WrapperConstants.REF : {
+                statement.setRef(parameterIndex, (Ref) value);
+                break;
+            }
+            case WrapperConstants.IN_LIST : {
+                // arrays belong to a connection, so this needs to be recreated when the statement is rebuilt
+                statement.setArray(parameterIndex, connection.createArrayOf(typeName, (Object[]) value));
+                break;
+            }
+            default : {
+                throw new SQLException("Unknown object type passed through WrappedPreparedStatment");
+
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+
+/**
+ * Decides what a WrappedPreparedStatement does when executing a statement fails. See
+ * {@link WrappedConnection#setRetryPolicy(RetryPolicy)} and {@link SQLStateRetryPolicy}, the default.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public interface RetryPolicy
+{
+    /**
+     * Give up, and throw the error.
+     */
+    public static final int FAIL      = 0;
+    /**
+     * Run the statement again on the same connection.
+     */
+    public static final int RETRY     = 1;
+    /**
+     * Rebuild the statement (reconnecting if need be), then run it again.
+     */
+    public static final int RECONNECT = 2;
+
+    /**
+     * @param e the error from the latest attempt
+     * @param attempt the number of attempts made so far (1 after the first failure)
+     * @param readOnly true if the statement was a query
+     * @param inTransaction true if the connection is not in auto commit mode
+     * @return FAIL, RETRY or RECONNECT
+     */
+    public int decide(SQLException e, int attempt, boolean readOnly, boolean inTransaction);
+
+    /**
+     * @return how long to wait before the next attempt.
+     */
+    public long getBackoffMillis(SQLException e, int attempt);
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives each distinct sql string a small int id, so that things that record a lot of executions can store
+ * the id rather than the sql. Ids are never reused, so only the sql of prepared statements, and the
+ * fingerprints of ad-hoc sql, is registered - the application's code bounds how many of those there are,
+ * where ad-hoc sql built with the values in it can produce any number of distinct strings. Once the catalog
+ * is full anyway, new sql gets id 0 - unknown.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+final class SQLCatalog
+{
+    static final int                                 UNKNOWN     = 0;
+    private static final int                         MAX_ENTRIES = 10000;
+
+    private static ConcurrentHashMap<String, Integer> ids_       = new ConcurrentHashMap<String, Integer>();
+    private static ConcurrentHashMap<Integer, String> sqls_      = new ConcurrentHashMap<Integer, String>();
+
+    private SQLCatalog()
+    {
+    }
+
+    /**
+     * @return the id of sql, or UNKNOWN if the catalog is full.
+     */
+    static int idOf(String sql)
+    {
+        if (sql == null)
+        {
+            return UNKNOWN;
+        }
+        Integer id = ids_.get(sql);
+        return id == null ? register(sql) : id.intValue();
+    }
+
+    /**
+     * @return the sql with the id, or null if the id is UNKNOWN.
+     */
+    static String sqlOf(int id)
+    {
+        return sqls_.get(new Integer(id));
+    }
+
+    private static synchronized int register(String sql)
+    {
+        Integer id = ids_.get(sql);
+        if (id == null)
+        {
+            if (sqls_.size() >= MAX_ENTRIES)
+            {
+                return UNKNOWN;
+            }
+            id = new Integer(sqls_.size() + 1);
+            sqls_.put(id, sql);
+            ids_.put(sql, id);
+        }
+        return id.intValue();
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Adds a comment with tags to the sql sent to the database, in the sqlcommenter format - for example
+ * <code>SELECT * FROM T /*application='billing',traceparent='00-4bf9...-00f0...-01'*&#47;</code> - so that the
+ * statements in the database's slow query log (and its active session views) can be traced back to the
+ * request that ran them. See {@link WrappedConnection#setSQLCommenter(SQLCommenter)}.
+ *
+ * The tags are the ones set on the commenter (the same for every statement - the application name, say),
+ * plus, for ad-hoc sql (passed to execute), the ones set for the current thread (the trace id of the request
+ * it is working on, say). Prepared statements only get the commenter's tags: their comment is added when
+ * they are prepared, and they are reused by other requests (and cached, by StripedConnection for one), so a
+ * thread's tags would be reported for requests that weren't its own. Keep to tags that don't change from
+ * request to request if the driver or the database caches statements by their text, as every different
+ * comment makes a different statement.
+ *
+ * Sql that already has a comment in it is left as it is.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class SQLCommenter
+{
+    private static final ThreadLocal<Map<String, String>> threadTags_ = new ThreadLocal<Map<String, String>>();
+
+    private volatile Map<String, String>                  tags_       = new TreeMap<String, String>();
+
+    /**
+     * Set a tag for every statement.
+     *
+     * @param value null removes the tag
+     * @return this
+     */
+    public synchronized SQLCommenter setTag(String key, String value)
+    {
+        // copy on write - comment() reads the map without locking
+        Map<String, String> temp = new TreeMap<String, String>(tags_);
+        if (value == null)
+        {
+            temp.remove(key);
+        }
+        else
+        {
+            temp.put(key, value);
+        }
+        tags_ = temp;
+        return this;
+    }
+
+    /**
+     * Set a tag for the ad-hoc sql executed by the current thread, until it is cleared.
+     *
+     * @param value null removes the tag
+     */
+    public static void setThreadTag(String key, String value)
+    {
+        Map<String, String> tags = threadTags_.get();
+        if (value == null)
+        {
+            if (tags != null)
+            {
+                tags.remove(key);
+            }
+            return;
+        }
+        if (tags == null)
+        {
+            tags = new TreeMap<String, String>();
+            threadTags_.set(tags);
+        }
+        tags.put(key, value);
+    }
+
+    /**
+     * Set the W3C trace context of the current thread - the traceparent tag.
+     *
+     * @param traceId the 32 hex digit trace id
+     * @param spanId the 16 hex digit id of the current span
+     */
+    public static void setTraceparent(String traceId, String spanId, boolean sampled)
+    {
+        setThreadTag("traceparent", "00-" + traceId + "-" + spanId + (sampled ? "-01" : "-00"));
+    }
+
+    /**
+     * Remove all the tags of the current thread - at the end of each request.
+     */
+    public static void clearThreadTags()
+    {
+        threadTags_.remove();
+    }
+
+    /**
+     * @return the comment for the current thread, or null if there are no tags.
+     */
+    public String comment()
+    {
+        return comment(true);
+    }
+
+    /**
+     * @param threadTags false to leave out the tags of the current thread
+     * @return the comment, or null if there are no tags.
+     */
+    public String comment(boolean threadTags)
+    {
+        Map<String, String> tags = tags_;
+        Map<String, String> thread = threadTags ? threadTags_.get() : null;
+        if (thread != null && !thread.isEmpty())
+        {
+            if (tags.isEmpty())
+            {
+                tags = thread;
+            }
+            else
+            {
+                // the thread's tags win
+                tags = new TreeMap<String, String>(tags);
+                tags.putAll(thread);
+            }
+        }
+        if (tags.isEmpty())
+        {
+            return null;
+        }
+        StringBuilder temp = new StringBuilder("/*");
+        for (Iterator<Map.Entry<String, String>> it = tags.entrySet().iterator(); it.hasNext();)
+        {
+            Map.Entry<String, String> tag = it.next();
+            temp.append(encode(tag.getKey())).append("='").append(encode(tag.getValue())).append('\'');
+            if (it.hasNext())
+            {
+                temp.append(',');
+            }
+        }
+        return temp.append("*/").toString();
+    }
+
+    /**
+     * @return sql with the comment for the current thread added - before any closing semicolon.
+     */
+    public String apply(String sql)
+    {
+        return apply(sql, true);
+    }
+
+    /**
+     * @param threadTags false to leave out the tags of the current thread - for sql that is prepared
+     * @return sql with the comment added - before any closing semicolon.
+     */
+    public String apply(String sql, boolean threadTags)
+    {
+        if (sql == null || hasComment(sql))
+        {
+            return sql;
+        }
+        String comment = comment(threadTags);
+        if (comment == null)
+        {
+            return sql;
+        }
+        int end = sql.length();
+        while (end > 0 && Character.isWhitespace(sql.charAt(end - 1)))
+        {
+            end--;
+        }
+        if (end > 0 && sql.charAt(end - 1) == ';')
+        {
+            return sql.substring(0, end - 1) + " " + comment + ";";
+        }
+        return sql.substring(0, end) + " " + comment;
+    }
+
+    /**
+     * @return true if sql has a comment in it - a -- or /* inside a string literal or a quoted identifier isn't one.
+     */
+    private static boolean hasComment(String sql)
+    {
+        for (int i = 0; i < sql.length(); i++)
+        {
+            char c = sql.charAt(i);
+            if ((c == '-' && sql.startsWith("--", i)) || (c == '/' && sql.startsWith("/*", i)))
+            {
+                return true;
+            }
+            int end = WrappedPreparedStatement.skipQuotedOrComment(sql, i);
+            if (end != i)
+            {
+                i = end - 1;
+            }
+        }
+        return false;
+    }
+
+    private static String encode(String value)
+    {
+        try
+        {
+            // URLEncoder does forms - sqlcommenter wants %20 for a space
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            // can't happen - every JVM has UTF-8
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SQLCommenter - tags=" + tags_;
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+/**
+ * The shape of a sql statement, with the parts that change from one execution to the next taken out - so
+ * that statistics can be kept per kind of statement, even for applications that put their values into the
+ * sql rather than binding them. Two statements get the same fingerprint when they differ only in
+ * <ul>
+ * <li>literal values - strings, numbers, true and false become ?</li>
+ * <li>whitespace, comments and the case of keywords and names</li>
+ * <li>identifier quoting - `name`, "name", [name] and the ^name^ of GenericSQLModifier</li>
+ * <li>the length of IN lists, and of multi row VALUES lists - IN (?, ?, ?) becomes IN (...), as does the
+ * = ANY(?) that an {IN_LIST:n} token becomes on PostgreSQL</li>
+ * <li>the other things GenericSQLModifier does to {LIKE} on different databases - ILIKE becomes LIKE, and
+ * the UCASE(varchar(column)) and UPPER(column) wrappers are dropped</li>
+ * </ul>
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public final class SQLFingerprint
+{
+    private static final String IN_LIST = "(...)";
+
+    private final long          id_;
+    private final String        text_;
+
+    private SQLFingerprint(String text)
+    {
+        text_ = text;
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++)
+        {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        id_ = hash;
+    }
+
+    public static SQLFingerprint of(String sql)
+    {
+        return new SQLFingerprint(normalize(sql));
+    }
+
+    /**
+     * @return a 64 bit hash of the normalized text - stable from one run to the next.
+     */
+    public long getId()
+    {
+        return id_;
+    }
+
+    /**
+     * @return the normalized sql.
+     */
+    public String getText()
+    {
+        return text_;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        return obj instanceof SQLFingerprint && ((SQLFingerprint) obj).text_.equals(text_);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (int) (id_ ^ (id_ >>> 32));
+    }
+
+    @Override
+    public String toString()
+    {
+        return Long.toHexString(id_) + " " + text_;
+    }
+
+    /**
+     * @return sql in its normalized form (see the class comment).
+     */
+    public static String normalize(String sql)
+    {
+        if (sql == null)
+        {
+            return "";
+        }
+        return new Normalizer(sql).run();
+    }
+
+    /**
+     * One pass over the sql, writing the normalized form as it goes. Lists are collapsed when their close paren
+     * is reached, by cutting the output back to where they started.
+     */
+    private static class Normalizer
+    {
+        // what was written last
+        private static final int NONE    = 0;
+        private static final int WORD    = 1;
+        private static final int VALUE   = 2;
+        private static final int OPEN    = 3;
+        private static final int CLOSE   = 4;
+        private static final int COMMA   = 5;
+        private static final int DOT     = 6;
+        private static final int OTHER   = 7;
+
+        // kinds of paren
+        private static final int PLAIN   = 0;
+        private static final int DROPPED = 1;
+        private static final int IN      = 2;
+        private static final int ANY     = 3;
+        private static final int ROW     = 4;
+
+        private final String     sql_;
+        private final int        length_;
+        private StringBuilder    out_;
+        private int              last_          = NONE;
+        private int              lastWordStart_ = -1;
+        private boolean          lastWasUCase_  = false;
+
+        // per open paren
+        private int              depth_         = 0;
+        private int[]            kind_          = new int[16];
+        private int[]            start_         = new int[16];
+        private boolean[]        onlyValues_    = new boolean[16];
+
+        // the last closed paren, and the comma after it - for spotting repeated VALUES rows
+        private int              closedDepth_   = -1;
+        private int              closedStart_;
+        private int              closedEnd_;
+        private int              commaAt_       = -1;
+
+        Normalizer(String sql)
+        {
+            sql_ = sql;
+            length_ = sql.length();
+            out_ = new StringBuilder(length_);
+        }
+
+        String run()
+        {
+            int i = 0;
+            while (i < length_)
+            {
+                char c = sql_.charAt(i);
+                char next = i + 1 < length_ ? sql_.charAt(i + 1) : 0;
+                if (Character.isWhitespace(c))
+                {
+                    i++;
+                }
+                else if (c == '-' && next == '-')
+                {
+                    int end = sql_.indexOf('\n', i);
+                    i = end == -1 ? length_ : end;
+                }
+                else if (c == '/' && next == '*')
+                {
+                    int end = sql_.indexOf("*/", i + 2);
+                    i = end == -1 ? length_ : end + 2;
+                }
+                else if (c == '\'')
+                {
+                    i = skipString(i);
+                    value();
+                }
+                else if (c == '"' || c == '`' || c == '[' || c == '^')
+                {
+                    int end = sql_.indexOf(c == '[' ? ']' : c, i + 1);
+                    end = end == -1 ? length_ : end;
+                    word(i + 1, end);
+                    i = end + 1;
+                }
+                else if (Character.isDigit(c) || (c == '.' && Character.isDigit(next))
+                        || ((c == '-' || c == '+') && (Character.isDigit(next) || next == '.') && isSign()))
+                {
+                    i = skipNumber(i + 1);
+                    value();
+                }
+                else if (c == '?' || ((c == ':' || c == '$') && Character.isLetterOrDigit(next)))
+                {
+                    // ? and the named or numbered parameters some drivers take
+                    i++;
+                    while (c != '?' && i < length_ && isWordChar(sql_.charAt(i)))
+                    {
+                        i++;
+                    }
+                    value();
+                }
+                else if (Character.isLetter(c) || c == '_' || c == '$' || c == '#')
+                {
+                    i = keyword(i);
+                }
+                else if (c == '(')
+                {
+                    open(false);
+                    i++;
+                }
+                else if (c == ')')
+                {
+                    close();
+                    i++;
+                }
+                else if ("<=>!|:".indexOf(c) != -1)
+                {
+                    int start = i;
+                    while (i < length_ && "<=>!|:".indexOf(sql_.charAt(i)) != -1)
+                    {
+                        i++;
+                    }
+                    token(OTHER);
+                    out_.append(sql_, start, i);
+                }
+                else
+                {
+                    token(c == ',' ? COMMA : (c == '.' ? DOT : OTHER));
+                    out_.append(c);
+                    i++;
+                }
+            }
+            return out_.toString();
+        }
+
+        private int keyword(int i)
+        {
+            int start = i;
+            while (i < length_ && isWordChar(sql_.charAt(i)))
+            {
+                i++;
+            }
+            int length = i - start;
+            if (length == 1 && i < length_ && sql_.charAt(i) == '\'' && "NnEeXxBb".indexOf(sql_.charAt(start)) != -1)
+            {
+                // N'...', E'...', X'...', B'...'
+                value();
+                return skipString(i);
+            }
+            boolean wasUCase = lastWasUCase_;
+            int after = i;
+            while (after < length_ && Character.isWhitespace(sql_.charAt(after)))
+            {
+                after++;
+            }
+            if (after < length_ && sql_.charAt(after) == '('
+                    && (is(start, length, "UCASE") || is(start, length, "UPPER") || (wasUCase && is(start, length, "VARCHAR"))))
+            {
+                // one of the wrappers GenericSQLModifier puts around a {LIKE} column - drop it, and its parens
+                open(true);
+                lastWasUCase_ = is(start, length, "UCASE");
+                return after + 1;
+            }
+            if (is(start, length, "TRUE") || is(start, length, "FALSE"))
+            {
+                value();
+            }
+            else if (is(start, length, "ILIKE"))
+            {
+                word(start + 1, i);
+            }
+            else
+            {
+                word(start, i);
+            }
+            return i;
+        }
+
+        private boolean is(int start, int length, String word)
+        {
+            return length == word.length() && sql_.regionMatches(true, start, word, 0, length);
+        }
+
+        /**
+         * Write the separator that goes before a token of the given kind.
+         */
+        private void token(int kind)
+        {
+            if (depth_ > 0 && kind != VALUE && kind != COMMA && kind != CLOSE)
+            {
+                onlyValues_[depth_ - 1] = false;
+            }
+            if (kind == COMMA)
+            {
+                commaAt_ = last_ == CLOSE && closedDepth_ == depth_ ? out_.length() : -1;
+            }
+            if (last_ != NONE && last_ != OPEN && last_ != DOT && kind != COMMA && kind != CLOSE && kind != DOT)
+            {
+                out_.append(' ');
+            }
+            if (kind != WORD)
+            {
+                lastWordStart_ = -1;
+            }
+            last_ = kind;
+            lastWasUCase_ = false;
+        }
+
+        private void value()
+        {
+            token(VALUE);
+            out_.append('?');
+        }
+
+        private void word(int start, int end)
+        {
+            token(WORD);
+            lastWordStart_ = out_.length();
+            for (int i = start; i < end; i++)
+            {
+                out_.append(Character.toUpperCase(sql_.charAt(i)));
+            }
+        }
+
+        private void open(boolean dropped)
+        {
+            int kind = PLAIN;
+            int start = -1;
+            if (dropped)
+            {
+                kind = DROPPED;
+            }
+            else if (endsWithWord("IN"))
+            {
+                kind = IN;
+                start = separatorBefore(lastWordStart_);
+            }
+            else if (endsWithWord("ANY") && lastWordStart_ >= 2 && out_.charAt(lastWordStart_ - 2) == '='
+                    && (lastWordStart_ == 2 || out_.charAt(lastWordStart_ - 3) == ' '))
+            {
+                kind = ANY;
+                start = separatorBefore(lastWordStart_ - 2);
+            }
+            else if (last_ == COMMA && commaAt_ != -1)
+            {
+                kind = ROW;
+                start = commaAt_;
+            }
+            if (!dropped)
+            {
+                token(OPEN);
+                out_.append('(');
+            }
+            if (depth_ == kind_.length)
+            {
+                int[] kinds = new int[depth_ * 2];
+                int[] starts = new int[depth_ * 2];
+                boolean[] onlyValues = new boolean[depth_ * 2];
+                System.arraycopy(kind_, 0, kinds, 0, depth_);
+                System.arraycopy(start_, 0, starts, 0, depth_);
+                System.arraycopy(onlyValues_, 0, onlyValues, 0, depth_);
+                kind_ = kinds;
+                start_ = starts;
+                onlyValues_ = onlyValues;
+            }
+            kind_[depth_] = kind;
+            start_[depth_] = kind == PLAIN || kind == DROPPED ? out_.length() - (dropped ? 0 : 1) : start;
+            onlyValues_[depth_] = true;
+            depth_++;
+        }
+
+        private void close()
+        {
+            if (depth_ == 0)
+            {
+                token(CLOSE);
+                out_.append(')');
+                return;
+            }
+            depth_--;
+            int kind = kind_[depth_];
+            boolean onlyValues = onlyValues_[depth_] && last_ == VALUE;
+            if (kind == DROPPED)
+            {
+                return;
+            }
+            token(CLOSE);
+            out_.append(')');
+            if ((kind == IN || kind == ANY) && onlyValues)
+            {
+                out_.setLength(start_[depth_]);
+                if (out_.length() > 0 && out_.charAt(out_.length() - 1) != '(')
+                {
+                    out_.append(' ');
+                }
+                out_.append("IN ").append(IN_LIST);
+            }
+            else if (kind == ROW && closedDepth_ == depth_)
+            {
+                // a row that repeats the one before it - (?, ?), (?, ?)
+                int rowStart = start_[depth_] + 2;
+                int rowLength = out_.length() - rowStart;
+                if (rowLength == closedEnd_ - closedStart_ && out_.indexOf(out_.substring(rowStart), closedStart_) == closedStart_)
+                {
+                    out_.setLength(start_[depth_]);
+                    last_ = CLOSE;
+                    return;
+                }
+            }
+            closedDepth_ = depth_;
+            closedStart_ = kind == ROW ? start_[depth_] + 2 : start_[depth_];
+            closedEnd_ = out_.length();
+        }
+
+        private boolean endsWithWord(String word)
+        {
+            return last_ == WORD && out_.length() - lastWordStart_ == word.length()
+                    && out_.indexOf(word, lastWordStart_) == lastWordStart_;
+        }
+
+        /**
+         * @return the position of the space before position, if there is one.
+         */
+        private int separatorBefore(int position)
+        {
+            return position > 0 && out_.charAt(position - 1) == ' ' ? position - 1 : position;
+        }
+
+        /**
+         * @return true if a sign here belongs to a number, rather than being a minus or plus.
+         */
+        private boolean isSign()
+        {
+            return last_ != VALUE && last_ != CLOSE && last_ != WORD;
+        }
+
+        private int skipString(int i)
+        {
+            i++;
+            while (i < length_)
+            {
+                if (sql_.charAt(i) == '\'')
+                {
+                    if (i + 1 < length_ && sql_.charAt(i + 1) == '\'')
+                    {
+                        i += 2;
+                        continue;
+                    }
+                    return i + 1;
+                }
+                i++;
+            }
+            return i;
+        }
+
+        private int skipNumber(int i)
+        {
+            while (i < length_)
+            {
+                char c = sql_.charAt(i);
+                if (Character.isLetterOrDigit(c) || c == '.'
+                        || ((c == '-' || c == '+') && (sql_.charAt(i - 1) == 'e' || sql_.charAt(i - 1) == 'E')))
+                {
+                    i++;
+                }
+                else
+                {
+                    break;
+                }
+            }
+            return i;
+        }
+
+        private static boolean isWordChar(char c)
+        {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#';
+        }
+    }
+}
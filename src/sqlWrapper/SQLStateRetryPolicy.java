@@ -0,0 +1,205 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLNonTransientException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.SQLTransientException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The default retry policy. Errors are classified by exception type, SQLState class and vendor code:
+ * <ul>
+ * <li>connection errors (SQLState class 08, the connection exception types) - reconnect and retry</li>
+ * <li>transient errors (deadlocks, serialization failures, lock timeouts - SQLState class 40, and the vendor
+ * codes for them) - retry on the same connection, with exponential backoff and jitter. Not retried inside a
+ * transaction, as the database has usually rolled the transaction back.</li>
+ * <li>errors in the statement or the data (constraint violations, syntax errors, bad data, statement
+ * timeouts) - fail straight away, there is no point retrying</li>
+ * <li>anything else - reconnect and retry once, as this class always used to</li>
+ * </ul>
+ * Queries are retried more readily than updates, as running an update twice (when the first attempt did
+ * in fact complete) does more harm than running a query twice.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class SQLStateRetryPolicy implements RetryPolicy
+{
+    public static final int ERROR_UNKNOWN    = 0;
+    public static final int ERROR_CONNECTION = 1;
+    public static final int ERROR_TRANSIENT  = 2;
+    public static final int ERROR_FATAL      = 3;
+
+    // SQLState classes that mean the statement or its data is wrong
+    private static final String[] FATAL_CLASSES = {"0A", "21", "22", "23", "24", "25", "26", "27", "28", "2D", "2F",
+            "34", "3D", "3F", "42", "44"};
+
+    private int          readConnectionAttempts_  = 3;
+    private int          readTransientAttempts_   = 4;
+    private int          writeConnectionAttempts_ = 2;
+    private int          writeTransientAttempts_  = 4;
+    private long         initialBackoffMillis_    = 20;
+    private long         maxBackoffMillis_        = 2000;
+
+    private Set<String>  transientStates_         = new HashSet<String>();
+    private Set<Integer> transientVendorCodes_    = new HashSet<Integer>();
+    private Random       random_                  = new Random();
+
+    public SQLStateRetryPolicy()
+    {
+        transientStates_.add("40001"); // serialization failure
+        transientStates_.add("40P01"); // postgres deadlock
+        transientStates_.add("55P03"); // postgres lock not available
+        transientVendorCodes_.add(new Integer(1205)); // mysql lock wait timeout, sql server deadlock
+        transientVendorCodes_.add(new Integer(1213)); // mysql deadlock
+        transientVendorCodes_.add(new Integer(60)); // oracle deadlock
+        transientVendorCodes_.add(new Integer(8177)); // oracle can't serialize
+        transientVendorCodes_.add(new Integer(-911)); // db2 deadlock or timeout
+        transientVendorCodes_.add(new Integer(-913)); // db2 deadlock or timeout
+    }
+
+    /**
+     * @param connectionAttempts the most attempts at a query when the connection fails (1 for no retry)
+     * @param transientAttempts the most attempts at a query that hits a transient error
+     */
+    public synchronized void setReadAttempts(int connectionAttempts, int transientAttempts)
+    {
+        readConnectionAttempts_ = Math.max(1, connectionAttempts);
+        readTransientAttempts_ = Math.max(1, transientAttempts);
+    }
+
+    /**
+     * @param connectionAttempts the most attempts at an update when the connection fails (1 for no retry)
+     * @param transientAttempts the most attempts at an update that hits a transient error
+     */
+    public synchronized void setWriteAttempts(int connectionAttempts, int transientAttempts)
+    {
+        writeConnectionAttempts_ = Math.max(1, connectionAttempts);
+        writeTransientAttempts_ = Math.max(1, transientAttempts);
+    }
+
+    /**
+     * The wait before retry n is random, up to the smaller of initialMillis * 2^(n - 1) and maxMillis.
+     */
+    public synchronized void setBackoff(long initialMillis, long maxMillis)
+    {
+        initialBackoffMillis_ = Math.max(0, initialMillis);
+        maxBackoffMillis_ = Math.max(initialBackoffMillis_, maxMillis);
+    }
+
+    /**
+     * Treat an SQLState as transient (it is checked before anything else).
+     */
+    public synchronized void addTransientSQLState(String sqlState)
+    {
+        transientStates_.add(sqlState);
+    }
+
+    /**
+     * Treat a vendor error code as transient (it is checked before anything else).
+     */
+    public synchronized void addTransientVendorCode(int errorCode)
+    {
+        transientVendorCodes_.add(new Integer(errorCode));
+    }
+
+    /**
+     * @return one of the ERROR_ constants
+     */
+    public synchronized int classify(SQLException e)
+    {
+        String state = e.getSQLState();
+        if (transientVendorCodes_.contains(new Integer(e.getErrorCode()))
+                || (state != null && transientStates_.contains(state)))
+        {
+            return ERROR_TRANSIENT;
+        }
+        if (e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException
+                || e instanceof SQLRecoverableException || (state != null && state.startsWith("08")))
+        {
+            return ERROR_CONNECTION;
+        }
+        if (e instanceof SQLTransactionRollbackException || (state != null && state.startsWith("40")))
+        {
+            return ERROR_TRANSIENT;
+        }
+        if (e instanceof SQLTimeoutException)
+        {
+            // it would just take as long again
+            return ERROR_FATAL;
+        }
+        if (e instanceof SQLTransientException)
+        {
+            return ERROR_TRANSIENT;
+        }
+        if (e instanceof SQLNonTransientException)
+        {
+            return ERROR_FATAL;
+        }
+        if (state != null && state.length() >= 2)
+        {
+            String stateClass = state.substring(0, 2);
+            for (int i = 0; i < FATAL_CLASSES.length; i++)
+            {
+                if (FATAL_CLASSES[i].equals(stateClass))
+                {
+                    return ERROR_FATAL;
+                }
+            }
+        }
+        return ERROR_UNKNOWN;
+    }
+
+    @Override
+    public synchronized int decide(SQLException e, int attempt, boolean readOnly, boolean inTransaction)
+    {
+        switch (classify(e))
+        {
+            case ERROR_CONNECTION :
+                return attempt < (readOnly ? readConnectionAttempts_ : writeConnectionAttempts_) ? RECONNECT : FAIL;
+            case ERROR_TRANSIENT :
+                if (inTransaction)
+                {
+                    return FAIL;
+                }
+                return attempt < (readOnly ? readTransientAttempts_ : writeTransientAttempts_) ? RETRY : FAIL;
+            case ERROR_FATAL :
+                return FAIL;
+            default :
+                return attempt < 2 ? RECONNECT : FAIL;
+        }
+    }
+
+    @Override
+    public synchronized long getBackoffMillis(SQLException e, int attempt)
+    {
+        int errorClass = classify(e);
+        if (attempt <= 1 && errorClass != ERROR_TRANSIENT)
+        {
+            // the first reconnect goes straight away - the connection was most likely just stale
+            return 0;
+        }
+        long ceiling = initialBackoffMillis_ << Math.min(20, attempt - 1);
+        ceiling = Math.min(maxBackoffMillis_, ceiling);
+        return ceiling <= 0 ? 0 : (long) (random_.nextDouble() * ceiling);
+    }
+}
@@ -0,0 +1,618 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import genericSQL.GenericSQLModifier;
+import genericSQL.SQLScriptSplitter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Applies a quasi-sql schema script (translated by the GenericSQLModifier) using several connections at
+ * once.
+ *
+ * Each translated statement becomes a step. Steps are ordered by the tables they touch - a step that
+ * writes a table (CREATE / ALTER / DROP TABLE, CREATE / DROP INDEX, DML) waits for every earlier step that
+ * touches that table, and a step that otherwise mentions a table the script writes (in a query, a subquery,
+ * a foreign key...) waits for the earlier writers of it. A step that writes a table also waits for the steps
+ * on the tables known to have foreign keys to it, and dropping a foreign key waits for the table it refers
+ * to. Statements that can't be parsed (including dropping a constraint that the script didn't create) wait
+ * for everything before them, and everything after waits for them. Steps that don't depend on each other
+ * run concurrently, one per connection.
+ *
+ * Applied steps are recorded (by a checksum of their sql) in the SQLUTIL_MIGRATION table, so a failed or
+ * interrupted run can simply be run again - it will skip the steps that were applied, wherever they are now
+ * in the script, and fail if any of them were changed or removed since.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class SchemaMigrationRunner
+{
+    public static final String                     TRACKING_TABLE = "SQLUTIL_MIGRATION";
+
+    private WrappedConnection[]                    connections_;
+    private GenericSQLModifier                     modifier_;
+
+    private static final Pattern                   CREATE_TABLE   = Pattern
+                                                                          .compile("^CREATE\\s+(?:GLOBAL\\s+TEMPORARY\\s+|TEMPORARY\\s+)?TABLE\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?([\\w.]+)");
+    private static final Pattern                   ALTER_TABLE    = Pattern.compile("^ALTER\\s+TABLE\\s+([\\w.]+)");
+    private static final Pattern                   DROP_TABLE     = Pattern
+                                                                          .compile("^DROP\\s+TABLE\\s+(?:IF\\s+EXISTS\\s+)?([\\w.]+)");
+    private static final Pattern                   CREATE_INDEX   = Pattern
+                                                                          .compile("^CREATE\\s+(?:UNIQUE\\s+)?INDEX\\s+[\\w.]+\\s+ON\\s+([\\w.]+)");
+    private static final Pattern                   DROP_INDEX     = Pattern
+                                                                          .compile("^DROP\\s+INDEX\\s+[\\w.]+\\s+ON\\s+([\\w.]+)");
+    private static final Pattern                   DML            = Pattern
+                                                                          .compile("^(?:INSERT\\s+INTO|UPDATE|DELETE\\s+FROM)\\s+([\\w.]+)");
+    private static final Pattern                   RENAME         = Pattern.compile("\\bRENAME\\s+TO\\s+([\\w.]+)");
+    private static final Pattern                   REFERENCES     = Pattern.compile("\\bREFERENCES\\s+([\\w.]+)");
+    private static final Pattern                   FOREIGN_KEY    = Pattern
+                                                                          .compile("\\bCONSTRAINT\\s+([\\w.]+)\\s+FOREIGN\\s+KEY\\s*\\([^)]*\\)\\s*REFERENCES\\s+([\\w.]+)");
+    private static final Pattern                   DROP_KEY       = Pattern
+                                                                          .compile("\\bDROP\\s+(?:FOREIGN\\s+KEY|CONSTRAINT)\\s+([\\w.]+)");
+    private static final Pattern                   NAME           = Pattern.compile("[\\w.]+");
+
+    private Log                                    logger         = LogFactory.getLog("sqlWrapper.SchemaMigrationRunner");
+
+    /**
+     * @param connections the connections to run the migration over - the number of connections is the
+     *            number of steps that may run at once. The first connection is also used for the version
+     *            tracking.
+     */
+    public SchemaMigrationRunner(WrappedConnection[] connections) throws SQLException
+    {
+        if (connections == null || connections.length == 0)
+        {
+            throw new SQLException("At least one connection is required");
+        }
+        connections_ = connections;
+        try
+        {
+            modifier_ = new GenericSQLModifier(connections[0]);
+        }
+        catch (SQLException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new SQLException(e.getMessage());
+        }
+    }
+
+    /**
+     * Split, translate and apply a quasi-sql script.
+     *
+     * @param version identifies the script - steps are tracked per version
+     * @return the number of steps that were executed (steps applied by an earlier run are skipped)
+     */
+    public int migrate(String version, Reader quasiSqlScript) throws SQLException, IOException
+    {
+        SQLScriptSplitter splitter = new SQLScriptSplitter(quasiSqlScript);
+        List<String> statements = new ArrayList<String>();
+        String sql;
+        while ((sql = splitter.nextStatement()) != null)
+        {
+            statements.add(sql);
+        }
+        return migrate(version, statements.toArray(new String[statements.size()]));
+    }
+
+    /**
+     * Translate and apply the quasi-sql statements.
+     *
+     * @see #migrate(String, Reader)
+     */
+    public int migrate(String version, String[] quasiSqlStatements) throws SQLException
+    {
+        Step[] steps = new Step[quasiSqlStatements.length];
+        Map<String, Integer> occurrences = new HashMap<String, Integer>();
+        for (int i = 0; i < steps.length; i++)
+        {
+            String sql = modifier_.modifySQL(quasiSqlStatements[i], false);
+            // identical statements (two equal inserts, say) are told apart by their count
+            String checksum = checksum(sql);
+            Integer count = occurrences.get(checksum);
+            occurrences.put(checksum, new Integer(count == null ? 1 : count.intValue() + 1));
+            steps[i] = new Step(i, sql, count == null ? checksum : checksum + "-" + count);
+        }
+        buildDependencies(steps);
+
+        Map<String, Integer> applied = readAppliedSteps(version);
+        int remaining = steps.length;
+        for (int i = 0; i < steps.length; i++)
+        {
+            if (applied.remove(steps[i].checksum) != null)
+            {
+                steps[i].done = true;
+                remaining--;
+            }
+        }
+        if (applied.size() > 0)
+        {
+            throw new SQLException(applied.size() + " applied step(s) of migration " + version + " (step numbers "
+                    + applied.values() + " when applied) are no longer in the script - it has been changed since it "
+                    + "was applied");
+        }
+        if (remaining == 0)
+        {
+            logger.info("Migration " + version + " is already fully applied");
+            return 0;
+        }
+        logger.info("Applying " + remaining + " of " + steps.length + " steps of migration " + version + " over "
+                + connections_.length + " connections");
+        return run(version, steps, remaining);
+    }
+
+    private int run(final String version, Step[] steps, int remaining) throws SQLException
+    {
+        final LinkedBlockingQueue<WrappedConnection> pool = new LinkedBlockingQueue<WrappedConnection>();
+        for (int i = 0; i < connections_.length; i++)
+        {
+            pool.add(connections_[i]);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(connections_.length);
+        CompletionService<Step> completion = new ExecutorCompletionService<Step>(executor);
+        int running = 0;
+        int executed = 0;
+        SQLException failure = null;
+        try
+        {
+            for (int i = 0; i < steps.length; i++)
+            {
+                if (!steps[i].done && steps[i].isReady())
+                {
+                    steps[i].submitted = true;
+                    completion.submit(new StepTask(version, steps[i], pool));
+                    running++;
+                }
+            }
+            while (running > 0)
+            {
+                Step finished;
+                try
+                {
+                    finished = completion.take().get();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for migration steps");
+                }
+                catch (ExecutionException e)
+                {
+                    running--;
+                    if (failure == null)
+                    {
+                        failure = (e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                                : new SQLException("Unexpected Error " + e.getCause()));
+                    }
+                    continue;
+                }
+                running--;
+                executed++;
+                finished.done = true;
+                if (failure != null)
+                {
+                    // let the running steps finish, but don't start anything new
+                    continue;
+                }
+                for (int i = 0; i < finished.dependents.size(); i++)
+                {
+                    Step dependent = finished.dependents.get(i);
+                    if (!dependent.done && !dependent.submitted && dependent.isReady())
+                    {
+                        dependent.submitted = true;
+                        completion.submit(new StepTask(version, dependent, pool));
+                        running++;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        if (failure != null)
+        {
+            logger.error("Migration " + version + " failed after " + executed + " steps - rerun to resume", failure);
+            throw failure;
+        }
+        logger.info("Migration " + version + " applied " + executed + " steps");
+        return executed;
+    }
+
+    private class StepTask implements Callable<Step>
+    {
+        private String                                version;
+        private Step                                  step;
+        private LinkedBlockingQueue<WrappedConnection> pool;
+
+        StepTask(String version, Step step, LinkedBlockingQueue<WrappedConnection> pool)
+        {
+            this.version = version;
+            this.step = step;
+            this.pool = pool;
+        }
+
+        @Override
+        public Step call() throws Exception
+        {
+            WrappedConnection connection = pool.take();
+            try
+            {
+                logger.debug("Executing migration step " + step.index + ": " + step.sql);
+                PreparedStatement ps = connection.prepareStatement(step.sql);
+                try
+                {
+                    ps.execute();
+                }
+                finally
+                {
+                    ps.close();
+                }
+                recordStep(connection, version, step);
+                if (!connection.getAutoCommit())
+                {
+                    connection.commit();
+                }
+                return step;
+            }
+            finally
+            {
+                pool.add(connection);
+            }
+        }
+    }
+
+    private void buildDependencies(Step[] steps)
+    {
+        // first, the tables that the script writes - the only names that can order its steps
+        String[] normalized = new String[steps.length];
+        String[] targets = new String[steps.length];
+        Set<String> tables = new HashSet<String>();
+        Pattern[] writePatterns = new Pattern[]{CREATE_TABLE, ALTER_TABLE, DROP_TABLE, CREATE_INDEX, DROP_INDEX, DML};
+        for (int i = 0; i < steps.length; i++)
+        {
+            normalized[i] = steps[i].sql.replace("\"", "").replace("`", "").trim().toUpperCase();
+            for (int j = 0; j < writePatterns.length; j++)
+            {
+                Matcher m = writePatterns[j].matcher(normalized[i]);
+                if (m.find())
+                {
+                    targets[i] = m.group(1);
+                    tables.add(targets[i]);
+                    break;
+                }
+            }
+            Matcher m = RENAME.matcher(normalized[i]);
+            if (targets[i] != null && m.find())
+            {
+                tables.add(m.group(1));
+            }
+        }
+
+        Map<String, Step> lastWriter = new HashMap<String, Step>();
+        Map<String, List<Step>> readersSinceWrite = new HashMap<String, List<Step>>();
+        Map<String, Set<String>> referencedBy = new HashMap<String, Set<String>>();
+        Map<String, String> foreignKeys = new HashMap<String, String>();
+        List<Step> sinceBarrier = new ArrayList<Step>();
+        Step barrier = null;
+
+        for (int i = 0; i < steps.length; i++)
+        {
+            Step step = steps[i];
+            String sql = normalized[i];
+            Set<String> writes = new HashSet<String>();
+            Set<String> reads = new HashSet<String>();
+            boolean parsed = targets[i] != null;
+            if (parsed)
+            {
+                writes.add(targets[i]);
+                Matcher m = RENAME.matcher(sql);
+                if (m.find())
+                {
+                    writes.add(m.group(1));
+                }
+                m = DROP_KEY.matcher(sql);
+                while (m.find())
+                {
+                    String parent = foreignKeys.get(m.group(1));
+                    if (parent == null)
+                    {
+                        // can't tell what it depends on
+                        parsed = false;
+                        break;
+                    }
+                    reads.add(parent);
+                }
+            }
+
+            if (!parsed)
+            {
+                // unknown statement - it runs on its own.
+                for (int j = 0; j < sinceBarrier.size(); j++)
+                {
+                    step.dependsOn(sinceBarrier.get(j));
+                }
+                if (sinceBarrier.size() == 0 && barrier != null)
+                {
+                    step.dependsOn(barrier);
+                }
+                barrier = step;
+                sinceBarrier.clear();
+                lastWriter.clear();
+                readersSinceWrite.clear();
+                continue;
+            }
+
+            // every mention of a table the script writes - FROM, JOIN, INTO, subqueries, REFERENCES...
+            Matcher m = NAME.matcher(sql);
+            while (m.find())
+            {
+                String name = m.group();
+                if (tables.contains(name))
+                {
+                    reads.add(name);
+                }
+                // a qualified column - TABLE.COLUMN
+                int dot = name.indexOf('.');
+                if (dot > 0 && tables.contains(name.substring(0, dot)))
+                {
+                    reads.add(name.substring(0, dot));
+                }
+            }
+            // the tables with foreign keys to the tables written - they have to be dropped or altered first
+            for (String table : writes)
+            {
+                Set<String> children = referencedBy.get(table);
+                if (children != null)
+                {
+                    reads.addAll(children);
+                }
+            }
+            reads.removeAll(writes);
+
+            m = REFERENCES.matcher(sql);
+            while (m.find())
+            {
+                Set<String> children = referencedBy.get(m.group(1));
+                if (children == null)
+                {
+                    children = new HashSet<String>();
+                    referencedBy.put(m.group(1), children);
+                }
+                children.add(targets[i]);
+            }
+            m = FOREIGN_KEY.matcher(sql);
+            while (m.find())
+            {
+                foreignKeys.put(m.group(1), m.group(2));
+            }
+
+            if (barrier != null)
+            {
+                step.dependsOn(barrier);
+            }
+            for (String table : reads)
+            {
+                Step writer = lastWriter.get(table);
+                if (writer != null)
+                {
+                    step.dependsOn(writer);
+                }
+                List<Step> readers = readersSinceWrite.get(table);
+                if (readers == null)
+                {
+                    readers = new ArrayList<Step>();
+                    readersSinceWrite.put(table, readers);
+                }
+                readers.add(step);
+            }
+            for (String table : writes)
+            {
+                Step writer = lastWriter.get(table);
+                if (writer != null)
+                {
+                    step.dependsOn(writer);
+                }
+                List<Step> readers = readersSinceWrite.remove(table);
+                if (readers != null)
+                {
+                    for (int j = 0; j < readers.size(); j++)
+                    {
+                        step.dependsOn(readers.get(j));
+                    }
+                }
+                lastWriter.put(table, step);
+            }
+            sinceBarrier.add(step);
+        }
+    }
+
+    /**
+     * @return the checksums of the applied steps, and their step numbers when they were applied.
+     */
+    private Map<String, Integer> readAppliedSteps(String version) throws SQLException
+    {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        WrappedConnection connection = connections_[0];
+        if (!trackingTableExists(connection))
+        {
+            logger.info("Creating the migration tracking table " + TRACKING_TABLE);
+            PreparedStatement ps = connection.prepareStatement(modifier_.modifySQL("CREATE TABLE " + TRACKING_TABLE
+                    + " (MIGRATION_VERSION {limitedText}(100) NOT NULL, CHECKSUM {limitedText}(50) NOT NULL, "
+                    + "STEP_NUMBER int NOT NULL, APPLIED_AT {dateTime}, "
+                    + "PRIMARY KEY (MIGRATION_VERSION, CHECKSUM)) {TYPE}"));
+            try
+            {
+                ps.execute();
+            }
+            finally
+            {
+                ps.close();
+            }
+            if (!connection.getAutoCommit())
+            {
+                connection.commit();
+            }
+            return result;
+        }
+
+        PreparedStatement ps = connection.prepareStatement("SELECT STEP_NUMBER, CHECKSUM FROM " + TRACKING_TABLE
+                + " WHERE MIGRATION_VERSION = ?");
+        try
+        {
+            ps.setString(1, version);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next())
+            {
+                result.put(rs.getString(2), new Integer(rs.getInt(1)));
+            }
+            rs.close();
+        }
+        finally
+        {
+            ps.close();
+        }
+        return result;
+    }
+
+    private boolean trackingTableExists(WrappedConnection connection) throws SQLException
+    {
+        DatabaseMetaData metaData = connection.getMetaData();
+        String[] names = new String[]{TRACKING_TABLE, TRACKING_TABLE.toLowerCase()};
+        for (int i = 0; i < names.length; i++)
+        {
+            ResultSet rs = metaData.getTables(null, null, names[i], null);
+            try
+            {
+                if (rs.next())
+                {
+                    return true;
+                }
+            }
+            finally
+            {
+                rs.close();
+            }
+        }
+        return false;
+    }
+
+    private void recordStep(WrappedConnection connection, String version, Step step) throws SQLException
+    {
+        PreparedStatement ps = connection.prepareStatement("INSERT INTO " + TRACKING_TABLE
+                + " (MIGRATION_VERSION, STEP_NUMBER, CHECKSUM, APPLIED_AT) VALUES (?, ?, ?, ?)");
+        try
+        {
+            ps.setString(1, version);
+            ps.setInt(2, step.index);
+            ps.setString(3, step.checksum);
+            ps.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+            ps.executeUpdate();
+        }
+        finally
+        {
+            ps.close();
+        }
+    }
+
+    private static String checksum(String sql)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(sql.getBytes("UTF-8"));
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < digest.length; i++)
+            {
+                result.append(Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1));
+            }
+            return result.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Step
+    {
+        int             index;
+        String          sql;
+        String          checksum;
+        boolean         done;
+        boolean         submitted;
+        List<Step>      dependencies = new ArrayList<Step>();
+        List<Step>      dependents   = new ArrayList<Step>();
+
+        Step(int index, String sql, String checksum)
+        {
+            this.index = index;
+            this.sql = sql;
+            this.checksum = checksum;
+        }
+
+        void dependsOn(Step other)
+        {
+            if (other != this && !dependencies.contains(other))
+            {
+                dependencies.add(other);
+                other.dependents.add(this);
+            }
+        }
+
+        boolean isReady()
+        {
+            for (int i = 0; i < dependencies.size(); i++)
+            {
+                if (!dependencies.get(i).done)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+
+/**
+ * Called around the work a {@link WrappedConnection} does - for tracing, or for attributing database time to
+ * the requests that caused it. See {@link WrappedConnection#addStatementListener(StatementListener)}.
+ *
+ * The calls that start something (preparing, executing, reconnecting) return a context object - a span, say
+ * - which is passed back to the calls about the same piece of work. All the calls for one execution are made
+ * on the thread that executes the statement, so a context held in a thread local (the current span of a
+ * tracer) is still current in all of them.
+ *
+ * The calls must be quick, and shouldn't throw - anything they do throw is logged and ignored. Extend
+ * {@link StatementListenerAdapter} to only implement some of them.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public interface StatementListener
+{
+    /**
+     * A statement is about to be prepared.
+     *
+     * @return the context for {@link #prepared}, or null
+     */
+    Object preparing(WrappedConnection connection, String sql);
+
+    /**
+     * @param error why the prepare failed, or null if it worked
+     */
+    void prepared(Object context, WrappedConnection connection, String sql, SQLException error);
+
+    /**
+     * A parameter value has been set - or set again, on a statement that had to be prepared again.
+     */
+    void parameterBound(WrappedPreparedStatement statement, int parameterIndex, Object value);
+
+    /**
+     * A statement is about to be executed.
+     *
+     * @param sql the sql being executed
+     * @param operation "query", "update" or "execute"
+     * @return the context for {@link #retrying} and {@link #executed}, or null
+     */
+    Object executing(WrappedPreparedStatement statement, String sql, String operation);
+
+    /**
+     * An attempt at the execution failed, and it will be tried again (after reconnecting, if the connection
+     * was lost).
+     *
+     * @param attempt the number of attempts so far
+     */
+    void retrying(Object context, WrappedPreparedStatement statement, int attempt, SQLException error);
+
+    /**
+     * @param rows the update count, or 0
+     * @param error the error the execution ended with, or null if it worked
+     */
+    void executed(Object context, WrappedPreparedStatement statement, long rows, SQLException error);
+
+    /**
+     * The connection is about to try to reconnect.
+     *
+     * @param attempt 1 for the first attempt
+     * @return the context for {@link #reconnected}, or null
+     */
+    Object reconnecting(WrappedConnection connection, int attempt);
+
+    /**
+     * @param error why the attempt failed, or null if it worked
+     */
+    void reconnected(Object context, WrappedConnection connection, SQLException error);
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+
+/**
+ * A {@link StatementListener} that does nothing - extend it and override the calls you need.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public abstract class StatementListenerAdapter implements StatementListener
+{
+    @Override
+    public Object preparing(WrappedConnection connection, String sql)
+    {
+        return null;
+    }
+
+    @Override
+    public void prepared(Object context, WrappedConnection connection, String sql, SQLException error)
+    {
+    }
+
+    @Override
+    public void parameterBound(WrappedPreparedStatement statement, int parameterIndex, Object value)
+    {
+    }
+
+    @Override
+    public Object executing(WrappedPreparedStatement statement, String sql, String operation)
+    {
+        return null;
+    }
+
+    @Override
+    public void retrying(Object context, WrappedPreparedStatement statement, int attempt, SQLException error)
+    {
+    }
+
+    @Override
+    public void executed(Object context, WrappedPreparedStatement statement, long rows, SQLException error)
+    {
+    }
+
+    @Override
+    public Object reconnecting(WrappedConnection connection, int attempt)
+    {
+        return null;
+    }
+
+    @Override
+    public void reconnected(Object context, WrappedConnection connection, SQLException error)
+    {
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The {@link StatementListener}s of a connection, and the calls to them. Immutable - adding or removing a
+ * listener makes a new one, so the connection can hand it out without locking, and hold null when there
+ * are no listeners (which is all the statements check for).
+ *
+ * The calls that start something return an array with the context from each listener.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+final class StatementListeners
+{
+    private static Log                logger = LogFactory.getLog("sqlWrapper.StatementListeners");
+
+    private final StatementListener[] listeners_;
+
+    private StatementListeners(StatementListener[] listeners)
+    {
+        listeners_ = listeners;
+    }
+
+    /**
+     * @param current the listeners so far, or null
+     * @return the listeners with listener added.
+     */
+    static StatementListeners add(StatementListeners current, StatementListener listener)
+    {
+        int count = current == null ? 0 : current.listeners_.length;
+        StatementListener[] temp = new StatementListener[count + 1];
+        if (current != null)
+        {
+            System.arraycopy(current.listeners_, 0, temp, 0, count);
+        }
+        temp[count] = listener;
+        return new StatementListeners(temp);
+    }
+
+    /**
+     * @return the listeners without listener, or null if there are none left.
+     */
+    static StatementListeners remove(StatementListeners current, StatementListener listener)
+    {
+        if (current == null)
+        {
+            return null;
+        }
+        for (int i = 0; i < current.listeners_.length; i++)
+        {
+            if (current.listeners_[i] == listener)
+            {
+                if (current.listeners_.length == 1)
+                {
+                    return null;
+                }
+                StatementListener[] temp = new StatementListener[current.listeners_.length - 1];
+                System.arraycopy(current.listeners_, 0, temp, 0, i);
+                System.arraycopy(current.listeners_, i + 1, temp, i, temp.length - i);
+                return new StatementListeners(temp);
+            }
+        }
+        return current;
+    }
+
+    Object[] preparing(WrappedConnection connection, String sql)
+    {
+        Object[] contexts = new Object[listeners_.length];
+        for (int i = 0; i < listeners_.length; i++)
+        {
+            try
+            {
+                contexts[i] = listeners_[i].preparing(connection, sql);
+            }
+            catch (RuntimeException e)
+            {
+                failed(listeners_[i], e);
+            }
+        }
+        return contexts;
+    }
+
+    void prepared(Object[] contexts, WrappedConnection connection, String sql, SQLException error)
+    {
+        for (int i = 0; i < listeners_.length; i++)
+        {
+            try
+            {
+                listeners_[i].prepared(contexts[i], connection, sql, error);
+            }
+            catch (RuntimeException e)
+            {
+                failed(listeners_[i], e);
+            }
+        }
+    }
+
+    void parameterBound(WrappedPreparedStatement statement, int parameterIndex, Object value)
+    {
+        for (int i = 0; i < listeners_.length; i++)
+        {
+            try
+            {
+                listeners_[i].parameterBound(statement, parameterIndex, value);
+            }
+            catch (RuntimeException e)
+            {
+                failed(listeners_[i], e);
+            }
+        }
+    }
+
+    Object[] executing(WrappedPreparedStatement statement, String sql, String operation)
+    {
+        Object[] contexts = new Object[listeners_.length];
+        for (int i = 0; i < listeners_.length; i++)
+        {
+            try
+            {
+                contexts[i] = listeners_[i].executing(statement, sql, operation);
+            }
+            catch (RuntimeException e)
+            {
+                failed(listeners_[i], e);
+            }
+        }
+        return contexts;
+    }
+
+    void retrying(Object[] contexts, WrappedPreparedStatement statement, int attempt, SQLException error)
+    {
+        for (int i = 0; i < listeners_.length; i++)
+        {
+            try
+            {
+                listeners_[i].retrying(contexts[i], statement, attempt, error);
+            }
+            catch (RuntimeException e)
+            {
+                failed(listeners_[i], e);
+            }
+        }
+    }
+
+    void executed(Object[] contexts, WrappedPreparedStatement statement, long rows, SQLException error)
+    {
+        for (int i = 0; i < listeners_.length; i++)
+        {
+            try
+            {
+                listeners_[i].executed(contexts[i], statement, rows, error);
+            }
+            catch (RuntimeException e)
+            {
+                failed(listeners_[i], e);
+            }
+        }
+    }
+
+    Object[] reconnecting(WrappedConnection connection, int attempt)
+    {
+        Object[] contexts = new Object[listeners_.length];
+        for (int i = 0; i < listeners_.length; i++)
+        {
+            try
+            {
+                contexts[i] = listeners_[i].reconnecting(connection, attempt);
+            }
+            catch (RuntimeException e)
+            {
+                failed(listeners_[i], e);
+            }
+        }
+        return contexts;
+    }
+
+    void reconnected(Object[] contexts, WrappedConnection connection, SQLException error)
+    {
+        for (int i = 0; i < listeners_.length; i++)
+        {
+            try
+            {
+                listeners_[i].reconnected(contexts[i], connection, error);
+            }
+            catch (RuntimeException e)
+            {
+                failed(listeners_[i], e);
+            }
+        }
+    }
+
+    private static void failed(StatementListener listener, RuntimeException e)
+    {
+        logger.warn("Statement listener " + listener.getClass().getName() + " failed - ignored", e);
+    }
+}
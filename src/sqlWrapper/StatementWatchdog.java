@@ -0,0 +1,362 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Watches statements while they execute, and cancels the ones that run past their limit - the slow
+ * statement threshold of their connection ({@link WrappedConnection#setSlowStatementThreshold(long)}) or
+ * the thread's {@link Deadline}, whichever comes first. The sql (with its parameters) and the stack of the
+ * thread that is waiting on it are logged.
+ *
+ * A single thread drives a hashed timer wheel, so starting and finishing a watch is a queue offer and a
+ * compare and set, however many statements are in flight. Finished watches are just marked, and dropped
+ * when the wheel next passes them. The wheel thread sleeps while nothing is being watched. Cancels are
+ * issued from a separate thread, as cancel can block on the network; an execution that finishes before its
+ * cancel is sent isn't cancelled, and one that finishes while it is being sent waits for it, so a cancel
+ * never lands on the statement's next execution.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class StatementWatchdog
+{
+    private static final int         RUNNING    = 0;
+    private static final int         DONE       = 1;
+    private static final int         CANCELLING = 2;
+    private static final int         CANCELLED  = 3;
+
+    private static StatementWatchdog shared_;
+
+    private final long               tickNanos_;
+    private final int                mask_;
+    private final Watch[]            wheel_;
+    private ConcurrentLinkedQueue<Watch> incoming_ = new ConcurrentLinkedQueue<Watch>();
+    private AtomicInteger            inFlight_ = new AtomicInteger();
+    private AtomicLong               watched_  = new AtomicLong();
+    private AtomicLong               cancelled_ = new AtomicLong();
+    private long                     startNanos_;
+    private long                     tick_     = 0;
+    private Thread                   thread_;
+    private ExecutorService          canceller_;
+
+    private Log                      logger    = LogFactory.getLog("sqlWrapper.StatementWatchdog");
+
+    /**
+     * @return the watchdog used by all WrappedConnections.
+     */
+    public static synchronized StatementWatchdog getShared()
+    {
+        if (shared_ == null)
+        {
+            shared_ = new StatementWatchdog(10, 512);
+        }
+        return shared_;
+    }
+
+    /**
+     * @param tickMillis the resolution of the wheel - statements are cancelled up to one tick late
+     * @param wheelSize the number of slots (rounded up to a power of two) - limits beyond tickMillis *
+     *            wheelSize take more than one turn of the wheel, which costs a little more
+     */
+    public StatementWatchdog(long tickMillis, int wheelSize)
+    {
+        tickNanos_ = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(16, wheelSize));
+        if (size < wheelSize)
+        {
+            size <<= 1;
+        }
+        mask_ = size - 1;
+        wheel_ = new Watch[size];
+        canceller_ = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "StatementWatchdog cancel");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        thread_ = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                turn();
+            }
+        }, "StatementWatchdog");
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    /**
+     * Start watching a statement execution on the current thread.
+     *
+     * @param limitNanos how long it may run
+     * @return the watch, which must be finished when the execution ends
+     */
+    Watch watch(WrappedPreparedStatement statement, long limitNanos)
+    {
+        Watch watch = new Watch(statement, Thread.currentThread(), limitNanos);
+        watched_.incrementAndGet();
+        incoming_.offer(watch);
+        if (inFlight_.getAndIncrement() == 0)
+        {
+            LockSupport.unpark(thread_);
+        }
+        return watch;
+    }
+
+    /**
+     * @return the number of executions currently being watched (including finished ones the wheel hasn't
+     *         reached yet).
+     */
+    public int getInFlightCount()
+    {
+        return inFlight_.get();
+    }
+
+    public long getWatchedCount()
+    {
+        return watched_.get();
+    }
+
+    public long getCancelledCount()
+    {
+        return cancelled_.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "StatementWatchdog - watched=" + getWatchedCount() + " cancelled=" + getCancelledCount()
+                + " inFlight=" + getInFlightCount();
+    }
+
+    private void turn()
+    {
+        startNanos_ = System.nanoTime();
+        while (true)
+        {
+            if (inFlight_.get() == 0)
+            {
+                // nothing to do until watch is called - the wheel is empty, so it can be realigned afterwards
+                LockSupport.park(this);
+                tick_ = (System.nanoTime() - startNanos_) / tickNanos_;
+                continue;
+            }
+
+            long wakeAt = startNanos_ + (tick_ + 1) * tickNanos_;
+            long sleep = wakeAt - System.nanoTime();
+            while (sleep > 0)
+            {
+                LockSupport.parkNanos(this, sleep);
+                sleep = wakeAt - System.nanoTime();
+            }
+
+            try
+            {
+                schedule();
+                expire();
+            }
+            catch (RuntimeException e)
+            {
+                logger.error("Unexpected error in the statement watchdog", e);
+            }
+            tick_++;
+        }
+    }
+
+    /**
+     * Move new watches into the wheel.
+     */
+    private void schedule()
+    {
+        Watch watch;
+        while ((watch = incoming_.poll()) != null)
+        {
+            if (watch.state.get() != RUNNING)
+            {
+                inFlight_.decrementAndGet();
+                continue;
+            }
+            long target = (watch.deadlineNanos - startNanos_ + tickNanos_ - 1) / tickNanos_;
+            target = Math.max(target, tick_);
+            watch.rounds = (target - tick_) / wheel_.length;
+            int slot = (int) (target & mask_);
+            watch.next = wheel_[slot];
+            wheel_[slot] = watch;
+        }
+    }
+
+    /**
+     * Walk the current slot - dropping finished watches, and cancelling the ones that are due.
+     */
+    private void expire()
+    {
+        int slot = (int) (tick_ & mask_);
+        Watch previous = null;
+        Watch watch = wheel_[slot];
+        while (watch != null)
+        {
+            Watch next = watch.next;
+            boolean remove;
+            if (watch.state.get() != RUNNING)
+            {
+                remove = true;
+            }
+            else if (watch.rounds <= 0)
+            {
+                remove = true;
+                fire(watch);
+            }
+            else
+            {
+                remove = false;
+                watch.rounds--;
+            }
+
+            if (remove)
+            {
+                inFlight_.decrementAndGet();
+                watch.next = null;
+                if (previous == null)
+                {
+                    wheel_[slot] = next;
+                }
+                else
+                {
+                    previous.next = next;
+                }
+            }
+            else
+            {
+                previous = watch;
+            }
+            watch = next;
+        }
+    }
+
+    private void fire(final Watch watch)
+    {
+        if (!watch.state.compareAndSet(RUNNING, CANCELLING))
+        {
+            return;
+        }
+        // capture the stack now, while the thread is still waiting on the statement
+        final StackTraceElement[] stack = watch.thread.getStackTrace();
+        canceller_.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (watch)
+                {
+                    // it may have finished while this was queued
+                    if (watch.state.compareAndSet(CANCELLING, CANCELLED))
+                    {
+                        cancelled_.incrementAndGet();
+                        cancel(watch, stack);
+                    }
+                }
+            }
+        });
+    }
+
+    private void cancel(Watch watch, StackTraceElement[] stack)
+    {
+        if (logger.isWarnEnabled())
+        {
+            StringBuilder temp = new StringBuilder("Cancelling statement after "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - watch.startNanos) + "ms: "
+                    + watch.statement.toString() + "\n  executing on thread \"" + watch.thread.getName()
+                    + "\"");
+            for (int i = 0; i < stack.length; i++)
+            {
+                temp.append("\n    at ").append(stack[i]);
+            }
+            logger.warn(temp.toString());
+        }
+        try
+        {
+            watch.statement.cancel();
+        }
+        catch (SQLException e)
+        {
+            logger.warn("Cancel failed", e);
+        }
+        catch (RuntimeException e)
+        {
+            logger.warn("Cancel failed", e);
+        }
+    }
+
+    /**
+     * One watched execution.
+     */
+    static class Watch
+    {
+        final WrappedPreparedStatement statement;
+        final Thread                   thread;
+        final long                     startNanos;
+        final long                     deadlineNanos;
+        final AtomicInteger            state = new AtomicInteger(RUNNING);
+        // owned by the wheel thread
+        long                           rounds;
+        Watch                          next;
+
+        Watch(WrappedPreparedStatement statement, Thread thread, long limitNanos)
+        {
+            this.statement = statement;
+            this.thread = thread;
+            startNanos = System.nanoTime();
+            deadlineNanos = startNanos + limitNanos;
+        }
+
+        /**
+         * Call when the execution ends, however it ends. If a cancel is being sent, waits for it.
+         *
+         * @return false if the watchdog cancelled the execution.
+         */
+        boolean finish()
+        {
+            if (state.compareAndSet(RUNNING, DONE))
+            {
+                return true;
+            }
+            synchronized (this)
+            {
+                return state.compareAndSet(CANCELLING, DONE) || state.get() == DONE;
+            }
+        }
+
+        long getElapsedMillis()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Spreads the threads that share a database over a number of WrappedConnections - stripes - instead of
+ * having them all queue on one. Each thread is given a stripe the first time it asks (round robin), and
+ * keeps it, so its statements stay on the same connection and in the same caches; or the stripe can be
+ * picked by a key (a customer id, say) so that the work for one key always goes the same way.
+ *
+ * A stripe is used by one thread at a time:
+ *
+ * <pre>
+ * StripedConnection.Stripe stripe = striped.acquire();
+ * try
+ * {
+ *     PreparedStatement ps = stripe.prepareStatement(&quot;SELECT NAME FROM CUSTOMER WHERE ID = ?&quot;);
+ *     ...
+ * }
+ * finally
+ * {
+ *     stripe.release();
+ * }
+ * </pre>
+ *
+ * Hold it for the whole of a transaction. Each stripe keeps its own cache of prepared statements, so a
+ * statement is prepared once per stripe, and - as only the holder of the stripe uses them - the locks inside
+ * the statements and the driver are never contended. The time threads spend waiting for each stripe is
+ * measured, to show whether there are enough of them.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class StripedConnection
+{
+    private static final int          MAX_CACHED_STATEMENTS = 64;
+
+    private final Stripe[]            stripes_;
+    private final AtomicInteger       next_                 = new AtomicInteger();
+    private final ThreadLocal<Stripe> assigned_             = new ThreadLocal<Stripe>();
+
+    private static Log                logger                = LogFactory.getLog("sqlWrapper.StripedConnection");
+
+    /**
+     * Make the stripes - lazy connections, so a stripe that is never used never connects. See
+     * {@link #prewarm(int)}.
+     */
+    public StripedConnection(String userName, String password, String driver, String server, int stripes)
+            throws ClassNotFoundException, SQLException
+    {
+        WrappedConnection[] connections = new WrappedConnection[Math.max(1, stripes)];
+        for (int i = 0; i < connections.length; i++)
+        {
+            connections[i] = new WrappedConnection(userName, password, driver, server, false, true);
+        }
+        stripes_ = makeStripes(connections);
+    }
+
+    /**
+     * Stripe over connections that have already been made.
+     */
+    public StripedConnection(WrappedConnection[] connections)
+    {
+        stripes_ = makeStripes(connections);
+    }
+
+    private static Stripe[] makeStripes(WrappedConnection[] connections)
+    {
+        Stripe[] temp = new Stripe[connections.length];
+        for (int i = 0; i < temp.length; i++)
+        {
+            temp[i] = new Stripe(i, connections[i]);
+        }
+        return temp;
+    }
+
+    /**
+     * Connect the stripes that haven't connected yet.
+     *
+     * @param parallelism the most to connect at once
+     * @return the number that failed
+     */
+    public int prewarm(int parallelism) throws InterruptedException
+    {
+        WrappedConnection[] connections = new WrappedConnection[stripes_.length];
+        for (int i = 0; i < connections.length; i++)
+        {
+            connections[i] = stripes_[i].connection_;
+        }
+        return WrappedConnection.prewarm(Arrays.asList(connections), parallelism);
+    }
+
+    /**
+     * Take the current thread's stripe, waiting for it if another thread has it.
+     */
+    public Stripe acquire()
+    {
+        Stripe stripe = assigned_.get();
+        if (stripe == null)
+        {
+            stripe = stripes_[(next_.getAndIncrement() & Integer.MAX_VALUE) % stripes_.length];
+            assigned_.set(stripe);
+        }
+        stripe.lock();
+        return stripe;
+    }
+
+    /**
+     * Take the stripe for a key, waiting for it if another thread has it.
+     */
+    public Stripe acquire(Object key)
+    {
+        int hash = key.hashCode();
+        // spread the bits, as HashMap does, so keys that differ only in their high bits don't collide
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        Stripe stripe = stripes_[(hash & Integer.MAX_VALUE) % stripes_.length];
+        stripe.lock();
+        return stripe;
+    }
+
+    public int getStripeCount()
+    {
+        return stripes_.length;
+    }
+
+    public Stripe[] getStripes()
+    {
+        return stripes_.clone();
+    }
+
+    /**
+     * Close the cached statements and the connections. A stripe that is in use is closed once its holder
+     * releases it - so close waits for the transactions in progress to finish.
+     */
+    public void close() throws SQLException
+    {
+        SQLException first = null;
+        for (int i = 0; i < stripes_.length; i++)
+        {
+            try
+            {
+                stripes_[i].close();
+            }
+            catch (SQLException e)
+            {
+                logger.warn("Couldn't close stripe " + i, e);
+                first = first == null ? e : first;
+            }
+        }
+        if (first != null)
+        {
+            throw first;
+        }
+    }
+
+    /**
+     * @return a line for each stripe - how much it was used, how much it was waited for, and its statement
+     *         cache.
+     */
+    public String report()
+    {
+        StringBuilder temp = new StringBuilder("StripedConnection - ").append(stripes_.length).append(" stripes");
+        for (int i = 0; i < stripes_.length; i++)
+        {
+            temp.append("\n  ").append(stripes_[i]);
+        }
+        return temp.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "StripedConnection - " + stripes_.length + " stripes";
+    }
+
+    /**
+     * One connection, and its statements.
+     */
+    public static final class Stripe
+    {
+        private final int                                   index_;
+        private final WrappedConnection                     connection_;
+        private final ReentrantLock                         lock_       = new ReentrantLock();
+        private final Map<String, WrappedPreparedStatement> statements_;
+        private long                                        lockedAt_;
+
+        private final AtomicLong                            acquired_   = new AtomicLong();
+        private final AtomicLong                            contended_  = new AtomicLong();
+        private final AtomicLong                            waitNanos_  = new AtomicLong();
+        private final AtomicLong                            maxWait_    = new AtomicLong();
+        private final AtomicLong                            heldNanos_  = new AtomicLong();
+        // only changed by the holder
+        private volatile long                               hits_       = 0;
+        private volatile long                               misses_     = 0;
+
+        Stripe(int index, WrappedConnection connection)
+        {
+            index_ = index;
+            connection_ = connection;
+            statements_ = new LinkedHashMap<String, WrappedPreparedStatement>(16, 0.75f, true)
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, WrappedPreparedStatement> eldest)
+                {
+                    if (size() > MAX_CACHED_STATEMENTS)
+                    {
+                        closeQuietly(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        void lock()
+        {
+            acquired_.incrementAndGet();
+            if (!lock_.tryLock())
+            {
+                contended_.incrementAndGet();
+                long start = System.nanoTime();
+                lock_.lock();
+                long waited = System.nanoTime() - start;
+                waitNanos_.addAndGet(waited);
+                long max = maxWait_.get();
+                while (waited > max && !maxWait_.compareAndSet(max, waited))
+                {
+                    max = maxWait_.get();
+                }
+            }
+            if (lock_.getHoldCount() == 1)
+            {
+                lockedAt_ = System.nanoTime();
+            }
+        }
+
+        /**
+         * Give the stripe back - once for each acquire.
+         */
+        public void release()
+        {
+            if (lock_.getHoldCount() == 1)
+            {
+                heldNanos_.addAndGet(System.nanoTime() - lockedAt_);
+            }
+            lock_.unlock();
+        }
+
+        /**
+         * @return the connection - only to be used while the stripe is held.
+         */
+        public WrappedConnection getConnection()
+        {
+            return connection_;
+        }
+
+        /**
+         * @return the stripe's prepared statement for sql - prepared the first time, then reused. Don't close
+         *         it, and only use it while the stripe is held.
+         */
+        public WrappedPreparedStatement prepareStatement(String sql) throws SQLException
+        {
+            if (!lock_.isHeldByCurrentThread())
+            {
+                throw new SQLException("Stripe " + index_ + " isn't held by this thread");
+            }
+            WrappedPreparedStatement statement = statements_.get(sql);
+            if (statement == null || statement.isClosed())
+            {
+                misses_++;
+                statement = (WrappedPreparedStatement) connection_.prepareStatement(sql);
+                statements_.put(sql, statement);
+            }
+            else
+            {
+                hits_++;
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        void close() throws SQLException
+        {
+            lock_.lock();
+            try
+            {
+                for (Iterator<WrappedPreparedStatement> it = statements_.values().iterator(); it.hasNext();)
+                {
+                    closeQuietly(it.next());
+                }
+                statements_.clear();
+                connection_.close();
+            }
+            finally
+            {
+                lock_.unlock();
+            }
+        }
+
+        private static void closeQuietly(WrappedPreparedStatement statement)
+        {
+            try
+            {
+                statement.close();
+            }
+            catch (SQLException e)
+            {
+                // nothing useful to do
+            }
+        }
+
+        public int getIndex()
+        {
+            return index_;
+        }
+
+        public long getAcquireCount()
+        {
+            return acquired_.get();
+        }
+
+        /**
+         * @return the number of acquires that had to wait for another thread.
+         */
+        public long getContendedCount()
+        {
+            return contended_.get();
+        }
+
+        public long getTotalWaitNanos()
+        {
+            return waitNanos_.get();
+        }
+
+        public long getMaxWaitNanos()
+        {
+            return maxWait_.get();
+        }
+
+        /**
+         * @return how long the stripe has been held, in all.
+         */
+        public long getTotalHeldNanos()
+        {
+            return heldNanos_.get();
+        }
+
+        /**
+         * @return the number of threads waiting for the stripe now.
+         */
+        public int getQueueLength()
+        {
+            return lock_.getQueueLength();
+        }
+
+        public long getStatementCacheHits()
+        {
+            return hits_;
+        }
+
+        public long getStatementCacheMisses()
+        {
+            return misses_;
+        }
+
+        @Override
+        public String toString()
+        {
+            long acquired = getAcquireCount();
+            return "stripe " + index_ + " - acquired=" + acquired + " contended=" + getContendedCount()
+                    + (acquired == 0 ? "" : " (" + getContendedCount() * 100 / acquired + "%)") + " waited="
+                    + TimeUnit.NANOSECONDS.toMillis(getTotalWaitNanos()) + "ms maxWait="
+                    + TimeUnit.NANOSECONDS.toMillis(getMaxWaitNanos()) + "ms held="
+                    + TimeUnit.NANOSECONDS.toMillis(getTotalHeldNanos()) + "ms waiting=" + getQueueLength()
+                    + " statements=" + getStatementCacheMisses() + " cacheHits=" + getStatementCacheHits()
+                    + (connection_.isConnectPending() ? " (not connected)" : "");
+        }
+    }
+}
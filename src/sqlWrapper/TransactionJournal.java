@@ -0,0 +1,375 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps track of the statements executed in the current transaction of a WrappedConnection, so that if the
+ * connection is lost part way through a transaction, the transaction can be replayed on the new connection
+ * rather than silently losing its earlier statements. See
+ * {@link WrappedConnection#enableTransactionReplay(int, long)}.
+ *
+ * When replay isn't enabled (the default), or the transaction can't be replayed, a reconnect in the middle of
+ * a transaction that has made changes fails with SQLState 08007 (connection failure during transaction).
+ * The connection is usable again afterwards - in a new, empty transaction.
+ *
+ * A transaction can't be replayed if it outgrew the journal limits, used savepoints, or (unless the policy
+ * says otherwise) ran a statement that matches the non idempotent pattern - sequences, random values,
+ * procedure calls - which would give different results the second time around. Queries are replayed so
+ * that any locks they took are taken again, but their results are thrown away - replay assumes that what
+ * they read hasn't changed.
+ *
+ * A failed commit is never replayed - the commit may have happened.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class TransactionJournal
+{
+    /**
+     * The SQLState used when a transaction is lost to a reconnect.
+     */
+    public static final String TRANSACTION_LOST               = "08007";
+
+    /**
+     * Don't replay transactions that ran a non idempotent statement (the default).
+     */
+    public static final int    NON_IDEMPOTENT_FAIL            = 0;
+    /**
+     * Replay them anyway.
+     */
+    public static final int    NON_IDEMPOTENT_REPLAY          = 1;
+
+    public static final String DEFAULT_NON_IDEMPOTENT_PATTERN = "\\b(NEXTVAL|NEXT\\s+VALUE\\s+FOR|RANDOM|RAND|"
+                                                                      + "NEWID|UUID|SYS_GUID|CALL|EXEC|EXECUTE)\\b";
+
+    private int                maxStatements_                 = 0;
+    private long               maxBytes_                      = 0;
+    private int                nonIdempotentPolicy_           = NON_IDEMPOTENT_FAIL;
+    private Pattern            nonIdempotentPattern_          = Pattern.compile(DEFAULT_NON_IDEMPOTENT_PATTERN,
+                                                                                Pattern.CASE_INSENSITIVE);
+
+    // the current transaction
+    private List<Entry>        entries_                       = new ArrayList<Entry>();
+    private long               bytes_                         = 0;
+    private boolean            active_                        = false;
+    private boolean            dirty_                         = false;
+    private String             unreplayableReason_            = null;
+
+    // metrics
+    private long               transactions_                  = 0;
+    private long               replays_                       = 0;
+    private long               replayedStatements_            = 0;
+    private long               failedReplays_                 = 0;
+    private long               lostTransactions_              = 0;
+    private long               overflows_                     = 0;
+    private long               peakBytes_                     = 0;
+
+    private Log                logger                         = LogFactory.getLog("sqlWrapper.TransactionJournal");
+
+    /**
+     * @param maxStatements the most statements to keep per transaction - 0 turns replay off
+     * @param maxBytes the most memory (roughly) to use per transaction
+     */
+    public synchronized void setLimits(int maxStatements, long maxBytes)
+    {
+        maxStatements_ = Math.max(0, maxStatements);
+        maxBytes_ = Math.max(0, maxBytes);
+    }
+
+    /**
+     * @param policy NON_IDEMPOTENT_FAIL or NON_IDEMPOTENT_REPLAY
+     */
+    public synchronized void setNonIdempotentPolicy(int policy)
+    {
+        nonIdempotentPolicy_ = policy;
+    }
+
+    /**
+     * @param regex statements matching this (case insensitive) are treated as non idempotent.
+     */
+    public synchronized void setNonIdempotentPattern(String regex)
+    {
+        nonIdempotentPattern_ = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * Note a statement that was executed successfully outside of auto commit mode.
+     *
+     * @param variables the parameter values - copied if the statement is kept.
+     * @param query true if the statement only reads
+     */
+    synchronized void record(String sql, Hashtable<Integer, QueryParameter> variables, boolean query)
+    {
+        if (!active_)
+        {
+            active_ = true;
+            transactions_++;
+        }
+        dirty_ |= !query;
+        if (unreplayableReason_ != null)
+        {
+            return;
+        }
+        if (maxStatements_ == 0)
+        {
+            unreplayableReason_ = "transaction replay is not enabled";
+            return;
+        }
+        if (nonIdempotentPolicy_ == NON_IDEMPOTENT_FAIL && nonIdempotentPattern_.matcher(sql).find())
+        {
+            unreplayableReason_ = "the transaction ran a non idempotent statement: " + sql;
+            return;
+        }
+
+        long size = estimateSize(sql, variables);
+        if (entries_.size() >= maxStatements_ || bytes_ + size > maxBytes_)
+        {
+            overflows_++;
+            unreplayableReason_ = "the transaction outgrew the journal (" + entries_.size() + " statements, "
+                    + bytes_ + " bytes)";
+            entries_.clear();
+            bytes_ = 0;
+            return;
+        }
+        Entry entry = new Entry();
+        entry.sql = sql;
+        entry.variables = variables == null ? null : new Hashtable<Integer, QueryParameter>(variables);
+        entry.query = query;
+        entries_.add(entry);
+        bytes_ += size;
+        peakBytes_ = Math.max(peakBytes_, bytes_);
+    }
+
+    /**
+     * Savepoints can't be recreated for the caller, so a transaction that uses them can't be replayed.
+     */
+    synchronized void savepointUsed()
+    {
+        if (unreplayableReason_ == null)
+        {
+            unreplayableReason_ = "the transaction used savepoints";
+            entries_.clear();
+            bytes_ = 0;
+        }
+    }
+
+    /**
+     * Rows that are bulk loaded go straight to the physical connection, and aren't journaled - a transaction
+     * that loads any can't be replayed.
+     */
+    synchronized void bulkLoaded(String table)
+    {
+        if (!active_)
+        {
+            active_ = true;
+            transactions_++;
+        }
+        dirty_ = true;
+        if (unreplayableReason_ == null)
+        {
+            unreplayableReason_ = "the transaction bulk loaded rows into " + table;
+            entries_.clear();
+            bytes_ = 0;
+        }
+    }
+
+    /**
+     * The transaction ended (commit, rollback, or a switch to auto commit).
+     */
+    synchronized void clear()
+    {
+        entries_.clear();
+        bytes_ = 0;
+        active_ = false;
+        dirty_ = false;
+        unreplayableReason_ = null;
+    }
+
+    /**
+     * Called once a connection that was in a transaction has been reestablished. Replays the transaction
+     * if possible.
+     *
+     * @throws SQLException with SQLState 08007 if the transaction has been lost.
+     */
+    synchronized void replay(Connection connection) throws SQLException
+    {
+        if (!dirty_)
+        {
+            // nothing to lose - at most some reads, which the statement being retried can live without
+            clear();
+            return;
+        }
+        if (unreplayableReason_ != null)
+        {
+            String reason = unreplayableReason_;
+            lostTransactions_++;
+            clear();
+            throw new SQLException("The connection was lost during a transaction, and the transaction can't "
+                    + "be replayed because " + reason + ". The transaction has been rolled back.", TRANSACTION_LOST);
+        }
+
+        logger.info("Replaying a transaction of " + entries_.size() + " statements after a reconnect");
+        for (int i = 0; i < entries_.size(); i++)
+        {
+            Entry entry = entries_.get(i);
+            try
+            {
+                PreparedStatement statement = connection.prepareStatement(entry.sql);
+                try
+                {
+                    if (entry.variables != null)
+                    {
+                        Enumeration<Integer> keys = entry.variables.keys();
+                        while (keys.hasMoreElements())
+                        {
+                            Integer index = keys.nextElement();
+                            entry.variables.get(index).bind(statement, index.intValue(), connection);
+                        }
+                    }
+                    if (entry.query)
+                    {
+                        ResultSet results = statement.executeQuery();
+                        results.close();
+                    }
+                    else
+                    {
+                        statement.execute();
+                    }
+                }
+                finally
+                {
+                    statement.close();
+                }
+            }
+            catch (SQLException e)
+            {
+                failedReplays_++;
+                lostTransactions_++;
+                clear();
+                try
+                {
+                    connection.rollback();
+                }
+                catch (SQLException e1)
+                {
+                    // the caller will find out soon enough
+                }
+                SQLException temp = new SQLException("The connection was lost during a transaction, and replaying "
+                        + "statement " + (i + 1) + " of the transaction failed: " + e.getMessage()
+                        + ". The transaction has been rolled back.", TRANSACTION_LOST);
+                temp.setNextException(e);
+                throw temp;
+            }
+        }
+        replays_++;
+        replayedStatements_ += entries_.size();
+    }
+
+    private static long estimateSize(String sql, Hashtable<Integer, QueryParameter> variables)
+    {
+        long size = 64 + 2 * sql.length();
+        if (variables != null)
+        {
+            Enumeration<QueryParameter> values = variables.elements();
+            while (values.hasMoreElements())
+            {
+                Object value = values.nextElement().value;
+                size += 48;
+                if (value instanceof String)
+                {
+                    size += 2 * ((String) value).length();
+                }
+                else if (value instanceof Object[])
+                {
+                    size += 16 * ((Object[]) value).length;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of transactions (that executed at least one statement) seen.
+     */
+    public synchronized long getTransactionCount()
+    {
+        return transactions_;
+    }
+
+    /**
+     * @return the number of transactions that were replayed successfully after a reconnect.
+     */
+    public synchronized long getReplayCount()
+    {
+        return replays_;
+    }
+
+    public synchronized long getReplayedStatementCount()
+    {
+        return replayedStatements_;
+    }
+
+    public synchronized long getFailedReplayCount()
+    {
+        return failedReplays_;
+    }
+
+    /**
+     * @return the number of transactions lost to a reconnect - including failed replays.
+     */
+    public synchronized long getLostTransactionCount()
+    {
+        return lostTransactions_;
+    }
+
+    /**
+     * @return the number of transactions that outgrew the journal limits.
+     */
+    public synchronized long getOverflowCount()
+    {
+        return overflows_;
+    }
+
+    public synchronized long getPeakBytes()
+    {
+        return peakBytes_;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "TransactionJournal - transactions=" + transactions_ + " replays=" + replays_ + " replayedStatements="
+                + replayedStatements_ + " failedReplays=" + failedReplays_ + " lost=" + lostTransactions_
+                + " overflows=" + overflows_ + " peakBytes=" + peakBytes_;
+    }
+
+    private static class Entry
+    {
+        String                             sql;
+        Hashtable<Integer, QueryParameter> variables;
+        boolean                            query;
+    }
+}
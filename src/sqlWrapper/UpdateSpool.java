@@ -0,0 +1,802 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A durable, on disk queue of updates that couldn't be executed because the database was down. See
+ * {@link WrappedConnection#enableUpdateSpool(File, int, long)}.
+ *
+ * The spool is a directory of fixed size segment files, each memory mapped. A record is the sql and the
+ * parameter values of one update, prefixed by its length and a CRC32. The length is written last, so a
+ * record that was torn by a crash reads as the end of the segment. Once a record has been replayed its length
+ * is negated in place, and a segment is deleted once every record in it has been replayed - so after a
+ * restart replay carries on where it left off. An update that was executed just before a crash, but not yet
+ * marked, is replayed again - replay is at least once.
+ *
+ * A replay thread executes the spooled updates in order, in auto commit mode, on its own connection to the
+ * database. While the database is down it tries to connect every few seconds (and immediately when the
+ * owning connection manages to reconnect). Replay can be rate limited, so that a large backlog doesn't flood
+ * a database that has only just come back.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class UpdateSpool
+{
+    /**
+     * Force every record to disk as it is appended - nothing is lost if the machine crashes.
+     */
+    public static final int   FSYNC_ALWAYS         = 0;
+    /**
+     * Force to disk once per fsync interval, if anything was appended - a machine crash can lose the last
+     * interval.
+     */
+    public static final int   FSYNC_INTERVAL       = 1;
+    /**
+     * Leave it to the operating system - survives the process dying, but not the machine.
+     */
+    public static final int   FSYNC_NEVER          = 2;
+
+    private static final int  MAGIC                = 0x53505131;
+    private static final int  HEADER_BYTES         = 4;
+    private static final int  MAX_REPLAY_ATTEMPTS  = 5;
+    private static final long CONNECT_RETRY_MILLIS = 5000;
+    private static final long FIRST_BACKOFF_MILLIS = 100;
+
+    private File              directory_;
+    private int               segmentBytes_;
+    private long              maxBytes_;
+    private int               fsyncPolicy_         = FSYNC_INTERVAL;
+    private long              fsyncIntervalNanos_  = TimeUnit.MILLISECONDS.toNanos(1000);
+    private long              lastForce_           = System.nanoTime();
+    private volatile long     replayIntervalNanos_ = 0;
+
+    private List<Segment>     segments_            = new ArrayList<Segment>();
+    private long              nextSegmentNumber_   = 1;
+    private long              totalBytes_          = 0;
+    // where the next unreplayed record is
+    private int               readSegment_         = 0;
+    private int               readPosition_        = HEADER_BYTES;
+    private volatile long     pending_             = 0;
+
+    private WrappedConnection owner_;
+    private Thread            replayer_;
+    private Thread            forcer_;
+    private volatile boolean  closed_              = false;
+    private boolean           ownerReconnected_    = false;
+    private long              replayed_            = 0;
+    private long              skipped_             = 0;
+
+    private Log               logger               = LogFactory.getLog("sqlWrapper.UpdateSpool");
+
+    /**
+     * @param owner the connection whose failed updates are spooled - replay uses a new connection with the
+     *            same credentials.
+     */
+    UpdateSpool(WrappedConnection owner, File directory, int segmentBytes, long maxBytes) throws SQLException
+    {
+        owner_ = owner;
+        directory_ = directory;
+        segmentBytes_ = Math.max(64 * 1024, segmentBytes);
+        maxBytes_ = maxBytes;
+        if (!directory_.isDirectory() && !directory_.mkdirs())
+        {
+            throw new SQLException("Couldn't create the spool directory " + directory_.getAbsolutePath());
+        }
+        try
+        {
+            recover();
+        }
+        catch (IOException e)
+        {
+            throw new SQLException("Couldn't open the spool in " + directory_.getAbsolutePath() + " - "
+                    + e.toString());
+        }
+
+        replayer_ = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                replayLoop();
+            }
+        }, "UpdateSpool replay");
+        replayer_.setDaemon(true);
+        replayer_.start();
+
+        forcer_ = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                forceLoop();
+            }
+        }, "UpdateSpool fsync");
+        forcer_.setDaemon(true);
+        forcer_.start();
+    }
+
+    /**
+     * @param policy one of FSYNC_ALWAYS, FSYNC_INTERVAL (the default) or FSYNC_NEVER
+     */
+    public synchronized void setFsyncPolicy(int policy, long intervalMillis)
+    {
+        fsyncPolicy_ = policy;
+        fsyncIntervalNanos_ = TimeUnit.MILLISECONDS.toNanos(Math.max(0, intervalMillis));
+    }
+
+    /**
+     * @param updatesPerSecond the most updates to replay per second - 0 for no limit.
+     */
+    public void setMaxReplayRate(int updatesPerSecond)
+    {
+        replayIntervalNanos_ = updatesPerSecond <= 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / updatesPerSecond;
+    }
+
+    /**
+     * @return the number of updates waiting to be replayed.
+     */
+    public long getPendingCount()
+    {
+        return pending_;
+    }
+
+    /**
+     * @return the bytes of disk currently used by the spool.
+     */
+    public synchronized long getSpoolBytes()
+    {
+        return totalBytes_;
+    }
+
+    public synchronized long getReplayedCount()
+    {
+        return replayed_;
+    }
+
+    /**
+     * @return the number of updates that were given up on, because they kept failing on a working connection.
+     */
+    public synchronized long getSkippedCount()
+    {
+        return skipped_;
+    }
+
+    /**
+     * Add an update to the end of the spool.
+     *
+     * @throws SQLException if the spool is full, or a parameter value can't be written to disk.
+     */
+    synchronized void append(String sql, Hashtable<Integer, QueryParameter> variables) throws SQLException
+    {
+        if (closed_)
+        {
+            throw new SQLException("The update spool has been closed");
+        }
+        byte[] record = encode(sql, variables);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        // length, crc, data - and room for the zero length that ends the segment
+        int needed = 8 + record.length + 4;
+        Segment segment = segments_.isEmpty() ? null : segments_.get(segments_.size() - 1);
+        if (segment == null || segment.writePosition + needed > segment.buffer.capacity())
+        {
+            segment = newSegment(Math.max(segmentBytes_, HEADER_BYTES + needed));
+        }
+        int position = segment.writePosition;
+        ByteBuffer buffer = segment.buffer;
+        buffer.putInt(position + 4, (int) crc.getValue());
+        ByteBuffer temp = buffer.duplicate();
+        temp.position(position + 8);
+        temp.put(record);
+        // the length goes in last - until it is there, the record doesn't exist
+        buffer.putInt(position, record.length);
+        segment.writePosition = position + 8 + record.length;
+        segment.unforced = true;
+        pending_++;
+
+        if (fsyncPolicy_ == FSYNC_ALWAYS
+                || (fsyncPolicy_ == FSYNC_INTERVAL && System.nanoTime() - lastForce_ >= fsyncIntervalNanos_))
+        {
+            force();
+        }
+        // wakes the fsync thread as well, to force this within the interval
+        notifyAll();
+    }
+
+    /**
+     * Force the segments that have been appended to since they were last forced.
+     */
+    private void force()
+    {
+        for (int i = 0; i < segments_.size(); i++)
+        {
+            Segment segment = segments_.get(i);
+            if (segment.unforced)
+            {
+                segment.buffer.force();
+                segment.unforced = false;
+            }
+        }
+        lastForce_ = System.nanoTime();
+    }
+
+    /**
+     * Under FSYNC_INTERVAL, force what was appended once the interval is up - rather than leaving it until
+     * the next append, which may be a long time coming.
+     */
+    private synchronized void forceLoop()
+    {
+        try
+        {
+            while (!closed_)
+            {
+                boolean unforced = false;
+                for (int i = 0; i < segments_.size(); i++)
+                {
+                    unforced |= segments_.get(i).unforced;
+                }
+                if (fsyncPolicy_ != FSYNC_INTERVAL || !unforced)
+                {
+                    wait(1000);
+                    continue;
+                }
+                long wait = lastForce_ + fsyncIntervalNanos_ - System.nanoTime();
+                if (wait > 0)
+                {
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                }
+                else
+                {
+                    force();
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // closing
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Unexpected error forcing the update spool to disk - it is forced on close", e);
+        }
+    }
+
+    /**
+     * Wake the replay thread - called when the owning connection has reconnected.
+     */
+    synchronized void wakeUp()
+    {
+        ownerReconnected_ = true;
+        notifyAll();
+    }
+
+    /**
+     * Stop replaying, and force the spool to disk. Updates that haven't been replayed stay in the spool
+     * directory, and are replayed when a spool is next opened on it.
+     */
+    public void close()
+    {
+        synchronized (this)
+        {
+            closed_ = true;
+            notifyAll();
+        }
+        try
+        {
+            replayer_.join();
+            forcer_.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this)
+        {
+            for (int i = 0; i < segments_.size(); i++)
+            {
+                segments_.get(i).close(true);
+            }
+            segments_.clear();
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "UpdateSpool " + directory_.getAbsolutePath() + " - pending=" + pending_ + " replayed=" + replayed_
+                + " skipped=" + skipped_ + " segments=" + segments_.size() + " bytes=" + totalBytes_;
+    }
+
+    // -- replay --
+
+    private void replayLoop()
+    {
+        WrappedConnection connection = null;
+        WrappedPreparedStatement statement = null;
+        String statementSQL = null;
+        int attempts = 0;
+        int failures = 0;
+        long nextReplay = System.nanoTime();
+        try
+        {
+            while (true)
+            {
+                Record record = null;
+                try
+                {
+                    synchronized (this)
+                    {
+                        while (!closed_ && pending_ == 0)
+                        {
+                            wait(1000);
+                        }
+                        if (closed_)
+                        {
+                            return;
+                        }
+                        record = peek();
+                    }
+                    if (record == null)
+                    {
+                        continue;
+                    }
+
+                    if (connection == null)
+                    {
+                        try
+                        {
+                            connection = owner_.newSiblingConnection();
+                        }
+                        catch (SQLException e)
+                        {
+                            logger.debug("Database still unavailable, " + pending_ + " updates spooled");
+                            waitForDatabase();
+                            continue;
+                        }
+                    }
+
+                    long wait = nextReplay - System.nanoTime();
+                    if (wait > 0)
+                    {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    nextReplay = System.nanoTime() + replayIntervalNanos_;
+
+                    try
+                    {
+                        Hashtable<Integer, QueryParameter> variables = decode(record.data, record.sql);
+                        if (statement == null || !statementSQL.equals(record.sql))
+                        {
+                            closeQuietly(statement);
+                            statement = null;
+                            statement = (WrappedPreparedStatement) connection.prepareStatement(record.sql);
+                            statementSQL = record.sql;
+                        }
+                        statement.bindVariables(variables);
+                        statement.executeUpdate();
+                        owner_.sqlExecuted(record.sql);
+                        attempts = 0;
+                        consume(record, false);
+                    }
+                    catch (SQLException e)
+                    {
+                        attempts++;
+                        if (attempts >= MAX_REPLAY_ATTEMPTS)
+                        {
+                            // we have been able to connect each time, so it is the update that is bad
+                            logger.error("Giving up on spooled update after " + attempts + " attempts: \""
+                                    + record.sql + "\"", e);
+                            attempts = 0;
+                            consume(record, true);
+                        }
+                        else
+                        {
+                            logger.warn("Replay of spooled update failed (attempt " + attempts + ")", e);
+                            closeQuietly(statement);
+                            statement = null;
+                            closeQuietly(connection);
+                            connection = null;
+                            waitForDatabase();
+                        }
+                    }
+                    failures = 0;
+                }
+                catch (RuntimeException e)
+                {
+                    // updates are still being spooled behind this, so replay has to carry on - start afresh,
+                    // and skip the update if it is always the one that fails
+                    closeQuietly(statement);
+                    statement = null;
+                    closeQuietly(connection);
+                    connection = null;
+                    if (record != null && ++attempts >= MAX_REPLAY_ATTEMPTS)
+                    {
+                        logger.error("Giving up on spooled update after " + attempts + " attempts: \""
+                                + record.sql + "\"", e);
+                        attempts = 0;
+                        consume(record, true);
+                    }
+                    else
+                    {
+                        long backoff = Math.min(CONNECT_RETRY_MILLIS, FIRST_BACKOFF_MILLIS << Math.min(failures, 6));
+                        failures++;
+                        logger.error("Unexpected error in the update spool replay - trying again in " + backoff
+                                + "ms", e);
+                        backOff(backoff);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // closing
+        }
+        finally
+        {
+            closeQuietly(statement);
+            closeQuietly(connection);
+        }
+    }
+
+    private synchronized void backOff(long millis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + millis;
+        long remaining = millis;
+        while (!closed_ && remaining > 0)
+        {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Wait before trying to connect again - appends don't end the wait, only a reconnect of the owner does.
+     */
+    private synchronized void waitForDatabase() throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + CONNECT_RETRY_MILLIS;
+        ownerReconnected_ = false;
+        long remaining = CONNECT_RETRY_MILLIS;
+        while (!closed_ && !ownerReconnected_ && remaining > 0)
+        {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return the next record to replay, or null if the read position had to move to the next segment.
+     */
+    private Record peek()
+    {
+        Segment segment = segments_.get(readSegment_);
+        ByteBuffer buffer = segment.buffer;
+        int length = readPosition_ + 4 <= buffer.capacity() ? buffer.getInt(readPosition_) : 0;
+        if (length == 0)
+        {
+            // end of this segment - it is done with, unless it is the one being written to
+            if (readSegment_ < segments_.size() - 1)
+            {
+                segments_.remove(readSegment_).close(false);
+                readPosition_ = HEADER_BYTES;
+                totalBytes_ -= segment.size;
+            }
+            return null;
+        }
+        if (length < 0)
+        {
+            readPosition_ += 8 - length;
+            return null;
+        }
+        Record record = new Record();
+        record.position = readPosition_;
+        record.data = read(buffer, readPosition_ + 8, length);
+        record.sql = decodeSQL(record.data);
+        return record;
+    }
+
+    private synchronized void consume(Record record, boolean skipped)
+    {
+        Segment segment = segments_.get(readSegment_);
+        segment.buffer.putInt(record.position, -record.data.length);
+        readPosition_ = record.position + 8 + record.data.length;
+        pending_--;
+        if (skipped)
+        {
+            skipped_++;
+        }
+        else
+        {
+            replayed_++;
+        }
+    }
+
+    // -- segments --
+
+    private void recover() throws IOException
+    {
+        File[] files = directory_.listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(File file)
+            {
+                return file.isFile() && file.getName().startsWith("spool-") && file.getName().endsWith(".seg");
+            }
+        });
+        Arrays.sort(files);
+        for (int i = 0; i < files.length; i++)
+        {
+            String name = files[i].getName();
+            long number = Long.parseLong(name.substring("spool-".length(), name.length() - ".seg".length()));
+            nextSegmentNumber_ = Math.max(nextSegmentNumber_, number + 1);
+
+            Segment segment = new Segment(files[i], (int) files[i].length());
+            if (segment.buffer.capacity() < HEADER_BYTES || segment.buffer.getInt(0) != MAGIC)
+            {
+                logger.warn("Ignoring " + files[i].getAbsolutePath() + " - it isn't a spool segment");
+                segment.close(true);
+                continue;
+            }
+
+            // find the live records, and the end of the data
+            int position = HEADER_BYTES;
+            int live = 0;
+            ByteBuffer buffer = segment.buffer;
+            while (position + 8 <= buffer.capacity())
+            {
+                int length = buffer.getInt(position);
+                if (length == 0)
+                {
+                    break;
+                }
+                int size = Math.abs(length);
+                if (position + 8 + size > buffer.capacity())
+                {
+                    logger.warn("Truncated record in " + files[i].getAbsolutePath() + " - ignoring the rest");
+                    break;
+                }
+                if (length > 0)
+                {
+                    CRC32 crc = new CRC32();
+                    crc.update(read(buffer, position + 8, size));
+                    if ((int) crc.getValue() != buffer.getInt(position + 4))
+                    {
+                        logger.warn("Corrupt record in " + files[i].getAbsolutePath() + " - ignoring the rest");
+                        break;
+                    }
+                    live++;
+                }
+                position += 8 + size;
+            }
+            // anything after a torn record is unreachable - make it the end
+            if (position + 4 <= buffer.capacity())
+            {
+                buffer.putInt(position, 0);
+            }
+            segment.writePosition = position;
+
+            if (live == 0 && i < files.length - 1)
+            {
+                segment.close(false);
+                continue;
+            }
+            pending_ += live;
+            segments_.add(segment);
+            totalBytes_ += segment.size;
+        }
+        if (pending_ > 0)
+        {
+            logger.info("Recovered " + pending_ + " spooled updates from " + directory_.getAbsolutePath());
+        }
+    }
+
+    private Segment newSegment(int size) throws SQLException
+    {
+        if (totalBytes_ + size > maxBytes_)
+        {
+            throw new SQLException("The update spool is full (" + totalBytes_ + " bytes in "
+                    + directory_.getAbsolutePath() + ")");
+        }
+        File file = new File(directory_, "spool-" + String.format("%012d", new Long(nextSegmentNumber_++)) + ".seg");
+        try
+        {
+            Segment segment = new Segment(file, size);
+            segment.buffer.putInt(0, MAGIC);
+            segment.writePosition = HEADER_BYTES;
+            segments_.add(segment);
+            totalBytes_ += size;
+            return segment;
+        }
+        catch (IOException e)
+        {
+            throw new SQLException("Couldn't create the spool segment " + file.getAbsolutePath() + " - "
+                    + e.toString());
+        }
+    }
+
+    private static byte[] read(ByteBuffer buffer, int position, int length)
+    {
+        byte[] data = new byte[length];
+        ByteBuffer temp = buffer.duplicate();
+        temp.position(position);
+        temp.get(data);
+        return data;
+    }
+
+    private static class Segment
+    {
+        File             file;
+        int              size;
+        RandomAccessFile raf;
+        MappedByteBuffer buffer;
+        int              writePosition;
+        boolean          unforced;
+
+        Segment(File file, int size) throws IOException
+        {
+            this.file = file;
+            this.size = size;
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        void close(boolean keep)
+        {
+            if (keep)
+            {
+                buffer.force();
+            }
+            try
+            {
+                raf.close();
+            }
+            catch (IOException e)
+            {
+                // nothing useful to do
+            }
+            // on some platforms a mapped file can't be deleted until the mapping is collected - it will be
+            // cleaned up by the next recover instead.
+            if (!keep && !file.delete())
+            {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private static class Record
+    {
+        int    position;
+        byte[] data;
+        String sql;
+    }
+
+    // -- encoding --
+
+    private static byte[] encode(String sql, Hashtable<Integer, QueryParameter> variables) throws SQLException
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(sql.length() + 32 * variables.size());
+            DataOutputStream out = new DataOutputStream(bytes);
+            ParameterCodec.writeString(out, sql);
+            out.writeInt(variables.size());
+            Enumeration<Integer> keys = variables.keys();
+            while (keys.hasMoreElements())
+            {
+                Integer index = keys.nextElement();
+                out.writeInt(index.intValue());
+                ParameterCodec.write(out, variables.get(index));
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException e)
+        {
+            throw new SQLException("Unexpected Error " + e.toString());
+        }
+    }
+
+    private static String decodeSQL(byte[] data)
+    {
+        try
+        {
+            return ParameterCodec.readString(new DataInputStream(new ByteArrayInputStream(data)));
+        }
+        catch (IOException e)
+        {
+            // the crc has been checked - this means the spool was written by something else
+            throw new RuntimeException("Unreadable spool record", e);
+        }
+    }
+
+    private static Hashtable<Integer, QueryParameter> decode(byte[] data, String sql) throws SQLException
+    {
+        try
+        {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            ParameterCodec.readString(in);
+            int count = in.readInt();
+            Hashtable<Integer, QueryParameter> variables = new Hashtable<Integer, QueryParameter>();
+            for (int i = 0; i < count; i++)
+            {
+                int index = in.readInt();
+                variables.put(new Integer(index), ParameterCodec.read(in));
+            }
+            return variables;
+        }
+        catch (IOException e)
+        {
+            throw new SQLException("Unreadable spooled update for \"" + sql + "\" - " + e.toString());
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new SQLException("Unreadable spooled update for \"" + sql + "\" - " + e.toString());
+        }
+    }
+
+    private static void closeQuietly(WrappedPreparedStatement statement)
+    {
+        if (statement != null)
+        {
+            try
+            {
+                statement.close();
+            }
+            catch (SQLException e)
+            {
+                // nothing useful to do
+            }
+        }
+    }
+
+    private static void closeQuietly(WrappedConnection connection)
+    {
+        if (connection != null)
+        {
+            try
+            {
+                connection.close();
+            }
+            catch (SQLException e)
+            {
+                // nothing useful to do
+            }
+        }
+    }
+}
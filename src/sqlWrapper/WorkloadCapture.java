@@ -0,0 +1,368 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Records the statements executed through WrappedPreparedStatements - the sql, the parameter values, when
+ * each started, how long it took and on which thread - to a file that {@link WorkloadReplay} can run
+ * against another database. See {@link WrappedConnection#setWorkloadCapture(WorkloadCapture)} - one capture
+ * can be shared by any number of connections.
+ *
+ * Meant to be run against production for short windows: the executing thread only takes a copy of the
+ * references to the parameter values and queues it - the encoding, compression and writing happens on a
+ * background thread. If the writer falls behind, and its queue fills, executions are dropped (and counted)
+ * rather than slowing the application down. The capture stops itself after the duration, or once the
+ * size limit is reached.
+ *
+ * Executions with parameters that can't be written (arrays, blobs, clobs, objects that aren't Serializable)
+ * are left out, and counted - as are executions whose parameters don't match the placeholders of their sql
+ * (one left unset, say), which couldn't be replayed. Batches, asynchronous updates and the commits of
+ * transactions aren't recorded.
+ *
+ * The file is gzipped - a header (magic number and the wall clock time the capture started), then records:
+ * sql definitions, thread definitions and executions, which refer to the sql and the thread by number.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class WorkloadCapture
+{
+    static final int                   MAGIC      = 0x574c4331;
+    static final int                   END        = 0;
+    static final int                   SQL        = 1;
+    static final int                   THREAD     = 2;
+    static final int                   EXECUTION  = 3;
+
+    private final File                 file_;
+    private final long                 startNanos_;
+    private final long                 stopNanos_;
+    private final long                 maxBytes_;
+    private final BlockingQueue<Event> queue_;
+    private final DataOutputStream     out_;
+    private final Thread               writer_;
+    private volatile boolean           stopped_      = false;
+
+    private final AtomicLong           dropped_      = new AtomicLong();
+    private long                       recorded_     = 0;
+    private long                       skipped_      = 0;
+    private long                       bytes_        = 0;
+
+    // only used by the writer thread
+    private Map<String, Integer>       sqlIds_       = new HashMap<String, Integer>();
+    private Map<String, Integer>       placeholders_ = new HashMap<String, Integer>();
+    private Map<Thread, Integer>       threadIds_    = new HashMap<Thread, Integer>();
+    private ByteArrayOutputStream      buffer_       = new ByteArrayOutputStream(256);
+
+    private static Log                 logger        = LogFactory.getLog("sqlWrapper.WorkloadCapture");
+
+    /**
+     * Start capturing.
+     *
+     * @param file where to write the capture - it is replaced if it exists
+     * @param durationMillis how long to capture for
+     * @param maxBytes the most data to capture (before compression)
+     */
+    public WorkloadCapture(File file, long durationMillis, long maxBytes) throws IOException
+    {
+        file_ = file;
+        maxBytes_ = maxBytes;
+        queue_ = new ArrayBlockingQueue<Event>(16384);
+        out_ = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file),
+                65536), 65536));
+        out_.writeInt(MAGIC);
+        out_.writeLong(System.currentTimeMillis());
+        startNanos_ = System.nanoTime();
+        stopNanos_ = startNanos_ + TimeUnit.MILLISECONDS.toNanos(Math.max(0, durationMillis));
+        writer_ = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                write();
+            }
+        }, "WorkloadCapture");
+        writer_.setDaemon(true);
+        writer_.start();
+        logger.info("Capturing the workload to " + file + " for " + durationMillis + "ms");
+    }
+
+    /**
+     * An execution has finished.
+     *
+     * @param parameters the values set on the statement, by parameter index - or null if the sql was passed to
+     *            execute
+     * @param operation the WrappedPreparedStatement QUERY, UPDATE or EXECUTE constant
+     * @param startNanos when it started, by System.nanoTime()
+     */
+    void executed(String sql, QueryParameter[] parameters, int operation, long startNanos, long nanos, int rows,
+            boolean failed)
+    {
+        if (stopped_)
+        {
+            return;
+        }
+        if (startNanos - stopNanos_ > 0)
+        {
+            // the writer notices too, and finishes the file - don't wait for it here
+            stopped_ = true;
+            return;
+        }
+        if (!queue_.offer(new Event(sql, parameters, operation, startNanos, nanos, rows, failed)))
+        {
+            dropped_.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stop capturing, and wait for what has been captured to be written.
+     */
+    public void stop()
+    {
+        stopped_ = true;
+        if (Thread.currentThread() != writer_)
+        {
+            try
+            {
+                writer_.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isStopped()
+    {
+        return stopped_;
+    }
+
+    public File getFile()
+    {
+        return file_;
+    }
+
+    /**
+     * @return the number of executions written.
+     */
+    public synchronized long getRecordedCount()
+    {
+        return recorded_;
+    }
+
+    /**
+     * @return the number of executions dropped because the writer had fallen behind.
+     */
+    public long getDroppedCount()
+    {
+        return dropped_.get();
+    }
+
+    /**
+     * @return the number of executions left out because of parameters that can't be written, or because the
+     *         parameters set don't match the placeholders of the sql - they couldn't be replayed.
+     */
+    public synchronized long getSkippedCount()
+    {
+        return skipped_;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "WorkloadCapture " + file_ + " - recorded=" + getRecordedCount() + " dropped=" + getDroppedCount()
+                + " skipped=" + getSkippedCount() + (stopped_ ? " (stopped)" : "");
+    }
+
+    private void write()
+    {
+        try
+        {
+            while (true)
+            {
+                Event event = queue_.poll(100, TimeUnit.MILLISECONDS);
+                if (event != null)
+                {
+                    write(event);
+                }
+                else if (stopped_ || System.nanoTime() - stopNanos_ > 0)
+                {
+                    break;
+                }
+                if (bytes_ >= maxBytes_)
+                {
+                    logger.info("The workload capture has reached its size limit");
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // stopping
+        }
+        catch (IOException e)
+        {
+            logger.error("Couldn't write the workload capture " + file_ + " - it has stopped", e);
+        }
+        finally
+        {
+            stopped_ = true;
+            try
+            {
+                out_.writeByte(END);
+                out_.close();
+            }
+            catch (IOException e)
+            {
+                logger.error("Couldn't close the workload capture " + file_, e);
+            }
+            logger.info(toString());
+        }
+    }
+
+    private int getPlaceholderCount(String sql)
+    {
+        Integer count = placeholders_.get(sql);
+        if (count == null)
+        {
+            count = new Integer(WrappedPreparedStatement.getPlaceholderCount(sql));
+            placeholders_.put(sql, count);
+        }
+        return count.intValue();
+    }
+
+    private void write(Event event) throws IOException
+    {
+        // encode the execution on its own first, so one with a parameter that can't be written is left out whole
+        buffer_.reset();
+        DataOutputStream temp = new DataOutputStream(buffer_);
+        QueryParameter[] parameters = event.parameters;
+        int count = 0;
+        for (int i = 1; parameters != null && i < parameters.length; i++)
+        {
+            if (parameters[i] != null)
+            {
+                count++;
+            }
+        }
+        if (parameters != null && (count != parameters.length - 1 || count != getPlaceholderCount(event.sql)))
+        {
+            synchronized (this)
+            {
+                skipped_++;
+            }
+            return;
+        }
+        temp.writeInt(count);
+        try
+        {
+            for (int i = 1; parameters != null && i < parameters.length; i++)
+            {
+                if (parameters[i] != null)
+                {
+                    temp.writeInt(i);
+                    ParameterCodec.write(temp, parameters[i]);
+                }
+            }
+        }
+        catch (SQLException e)
+        {
+            synchronized (this)
+            {
+                skipped_++;
+            }
+            return;
+        }
+
+        Integer sqlId = sqlIds_.get(event.sql);
+        if (sqlId == null)
+        {
+            sqlId = new Integer(sqlIds_.size() + 1);
+            sqlIds_.put(event.sql, sqlId);
+            out_.writeByte(SQL);
+            out_.writeInt(sqlId.intValue());
+            ParameterCodec.writeString(out_, event.sql);
+            bytes_ += 9 + event.sql.length();
+        }
+        Integer threadId = threadIds_.get(event.thread);
+        if (threadId == null)
+        {
+            threadId = new Integer(threadIds_.size() + 1);
+            threadIds_.put(event.thread, threadId);
+            out_.writeByte(THREAD);
+            out_.writeInt(threadId.intValue());
+            ParameterCodec.writeString(out_, event.thread.getName());
+            bytes_ += 9 + event.thread.getName().length();
+        }
+        out_.writeByte(EXECUTION);
+        out_.writeInt(sqlId.intValue());
+        out_.writeInt(threadId.intValue());
+        out_.writeByte(event.operation);
+        out_.writeLong(TimeUnit.NANOSECONDS.toMicros(event.startNanos - startNanos_));
+        out_.writeLong(TimeUnit.NANOSECONDS.toMicros(event.nanos));
+        out_.writeInt(event.rows);
+        out_.writeBoolean(event.failed);
+        buffer_.writeTo(out_);
+        bytes_ += 31 + buffer_.size();
+        synchronized (this)
+        {
+            recorded_++;
+        }
+    }
+
+    /**
+     * What the executing thread hands over - references only.
+     */
+    private static class Event
+    {
+        final String           sql;
+        final QueryParameter[] parameters;
+        final int              operation;
+        final long             startNanos;
+        final long             nanos;
+        final int              rows;
+        final boolean          failed;
+        final Thread           thread;
+
+        Event(String sql, QueryParameter[] parameters, int operation, long startNanos, long nanos, int rows,
+                boolean failed)
+        {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.operation = operation;
+            this.startNanos = startNanos;
+            this.nanos = nanos;
+            this.rows = rows;
+            this.failed = failed;
+            this.thread = Thread.currentThread();
+        }
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs a {@link WorkloadCapture} against a database, and compares the throughput and latency with what was
+ * captured - for checking what a tuning change (an index, a database setting, a new server) does to the real
+ * workload.
+ *
+ * Each thread of the capture is replayed by a thread of its own, on a connection of its own, running its
+ * statements in their original order - so the concurrency is the same. At speed 1 each execution starts at
+ * the same offset from the start as it did when it was captured, at speed 2 at half the offset, and so on;
+ * at speed 0 every thread goes as fast as it can. The statements run in auto commit mode, as the transaction
+ * boundaries aren't captured - updates are really made, so point it at a copy of the database.
+ *
+ * <pre>
+ * java sqlWrapper.WorkloadReplay capture.wlc org.postgresql.Driver jdbc:postgresql://test/db user password 1
+ * </pre>
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class WorkloadReplay
+{
+    private long                          capturedAt_;
+    private Map<Integer, String>          sql_        = new HashMap<Integer, String>();
+    private Map<Integer, String>          threads_    = new HashMap<Integer, String>();
+    private Map<Integer, List<Execution>> executions_ = new HashMap<Integer, List<Execution>>();
+    private long                          count_      = 0;
+    private long                          lastOffsetMicros_;
+
+    private LatencyHistogram              captured_   = new LatencyHistogram();
+    private LatencyHistogram              replayed_   = new LatencyHistogram();
+    private Map<SQLFingerprint, long[]>   bySQL_      = new HashMap<SQLFingerprint, long[]>();
+    private long                          capturedErrors_;
+    private long                          replayedErrors_;
+
+    private static Log                    logger      = LogFactory.getLog("sqlWrapper.WorkloadReplay");
+
+    /**
+     * Read a capture.
+     */
+    public WorkloadReplay(File capture) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(
+                capture), 65536), 65536));
+        try
+        {
+            if (in.readInt() != WorkloadCapture.MAGIC)
+            {
+                throw new IOException(capture + " isn't a workload capture");
+            }
+            capturedAt_ = in.readLong();
+            while (true)
+            {
+                int kind;
+                try
+                {
+                    kind = in.readByte();
+                }
+                catch (EOFException e)
+                {
+                    // the capture wasn't stopped cleanly - use what there is
+                    break;
+                }
+                if (kind == WorkloadCapture.END)
+                {
+                    break;
+                }
+                else if (kind == WorkloadCapture.SQL)
+                {
+                    Integer id = new Integer(in.readInt());
+                    sql_.put(id, ParameterCodec.readString(in));
+                }
+                else if (kind == WorkloadCapture.THREAD)
+                {
+                    Integer id = new Integer(in.readInt());
+                    threads_.put(id, ParameterCodec.readString(in));
+                    executions_.put(id, new ArrayList<Execution>());
+                }
+                else if (kind == WorkloadCapture.EXECUTION)
+                {
+                    Execution execution = readExecution(in);
+                    executions_.get(execution.threadId).add(execution);
+                    lastOffsetMicros_ = Math.max(lastOffsetMicros_, execution.offsetMicros + execution.micros);
+                    count_++;
+                }
+                else
+                {
+                    throw new IOException("Unknown record type " + kind + " in " + capture);
+                }
+            }
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IOException("Unreadable parameter in " + capture + " - " + e.toString());
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private Execution readExecution(DataInputStream in) throws IOException, ClassNotFoundException
+    {
+        Execution execution = new Execution();
+        execution.sqlId = new Integer(in.readInt());
+        execution.threadId = new Integer(in.readInt());
+        execution.operation = in.readByte();
+        execution.offsetMicros = in.readLong();
+        execution.micros = in.readLong();
+        execution.rows = in.readInt();
+        execution.failed = in.readBoolean();
+        int count = in.readInt();
+        execution.parameters = new Hashtable<Integer, QueryParameter>(Math.max(1, count * 2));
+        for (int i = 0; i < count; i++)
+        {
+            Integer index = new Integer(in.readInt());
+            execution.parameters.put(index, ParameterCodec.read(in));
+        }
+        return execution;
+    }
+
+    /**
+     * @return the number of executions in the capture.
+     */
+    public long getExecutionCount()
+    {
+        return count_;
+    }
+
+    public int getThreadCount()
+    {
+        return executions_.size();
+    }
+
+    /**
+     * Replay the capture.
+     *
+     * @param speed 1 for the captured pace, 2 for twice as fast, and so on - 0 for as fast as possible
+     * @return the comparison with the capture - overall, and for the statements that took the most time
+     */
+    public String replay(final String driver, final String server, final String userName, final String password,
+            final double speed) throws InterruptedException
+    {
+        logger.info("Replaying " + count_ + " executions from " + executions_.size() + " threads against " + server
+                + (speed > 0 ? " at " + speed + "x" : " as fast as possible"));
+        final long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (Iterator<Map.Entry<Integer, List<Execution>>> it = executions_.entrySet().iterator(); it.hasNext();)
+        {
+            Map.Entry<Integer, List<Execution>> entry = it.next();
+            final List<Execution> executions = entry.getValue();
+            Thread worker = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    replay(executions, driver, server, userName, password, speed, start);
+                }
+            }, "Replay of " + threads_.get(entry.getKey()));
+            workers.add(worker);
+            worker.start();
+        }
+        for (int i = 0; i < workers.size(); i++)
+        {
+            workers.get(i).join();
+        }
+        long elapsedMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        return report(elapsedMicros, 10);
+    }
+
+    private void replay(List<Execution> executions, String driver, String server, String userName,
+            String password, double speed, long start)
+    {
+        WrappedConnection connection = null;
+        Map<Integer, WrappedPreparedStatement> statements = new HashMap<Integer, WrappedPreparedStatement>();
+        try
+        {
+            connection = new WrappedConnection(userName, password, driver, server);
+            for (int i = 0; i < executions.size(); i++)
+            {
+                Execution execution = executions.get(i);
+                if (speed > 0)
+                {
+                    long wait = start + (long) (execution.offsetMicros * 1000 / speed) - System.nanoTime();
+                    if (wait > 0)
+                    {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                String sql = sql_.get(execution.sqlId);
+                long started = System.nanoTime();
+                long nanos = -1;
+                boolean failed = false;
+                try
+                {
+                    WrappedPreparedStatement statement = statements.get(execution.sqlId);
+                    if (statement == null)
+                    {
+                        statement = (WrappedPreparedStatement) connection.prepareStatement(sql);
+                        statements.put(execution.sqlId, statement);
+                    }
+                    statement.bindVariables(execution.parameters);
+                    started = System.nanoTime();
+                    if (execution.operation == WrappedPreparedStatement.QUERY)
+                    {
+                        ResultSet results = statement.executeQuery();
+                        // the capture timed the execute only - so the reading of the rows is left out here too
+                        nanos = System.nanoTime() - started;
+                        while (results.next())
+                        {
+                            // read it all, as the application would have
+                        }
+                        results.close();
+                    }
+                    else if (execution.operation == WrappedPreparedStatement.UPDATE)
+                    {
+                        statement.executeUpdate();
+                    }
+                    else
+                    {
+                        statement.execute();
+                    }
+                }
+                catch (SQLException e)
+                {
+                    failed = true;
+                    if (!execution.failed)
+                    {
+                        logger.debug("Replay of \"" + sql + "\" failed: " + e.toString());
+                    }
+                }
+                if (nanos < 0)
+                {
+                    nanos = System.nanoTime() - started;
+                }
+                record(sql, execution, nanos, failed);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // stopping
+        }
+        catch (Exception e)
+        {
+            logger.error("Replay of a thread stopped", e);
+        }
+        finally
+        {
+            for (Iterator<WrappedPreparedStatement> it = statements.values().iterator(); it.hasNext();)
+            {
+                try
+                {
+                    it.next().close();
+                }
+                catch (SQLException e)
+                {
+                    // nothing useful to do
+                }
+            }
+            if (connection != null)
+            {
+                try
+                {
+                    connection.close();
+                }
+                catch (SQLException e)
+                {
+                    // nothing useful to do
+                }
+            }
+        }
+    }
+
+    private synchronized void record(String sql, Execution execution, long nanos, boolean failed)
+    {
+        long capturedNanos = TimeUnit.MICROSECONDS.toNanos(execution.micros);
+        captured_.record(capturedNanos);
+        replayed_.record(nanos);
+        capturedErrors_ += execution.failed ? 1 : 0;
+        replayedErrors_ += failed ? 1 : 0;
+        SQLFingerprint fingerprint = SQLFingerprint.of(sql);
+        long[] totals = bySQL_.get(fingerprint);
+        if (totals == null)
+        {
+            totals = new long[3];
+            bySQL_.put(fingerprint, totals);
+        }
+        totals[0]++;
+        totals[1] += capturedNanos;
+        totals[2] += nanos;
+    }
+
+    private synchronized String report(long elapsedMicros, int top)
+    {
+        StringBuilder temp = new StringBuilder();
+        temp.append("Replayed ").append(replayed_.getCount()).append(" of ").append(count_).append(
+                " executions from ").append(executions_.size()).append(" threads (captured ").append(
+                new Date(capturedAt_)).append(")");
+        temp.append("\n  duration:   captured ").append(lastOffsetMicros_ / 1000).append("ms, replayed ").append(
+                elapsedMicros / 1000).append("ms");
+        temp.append("\n  throughput: captured ").append(perSecond(count_, lastOffsetMicros_)).append("/s, replayed ")
+                .append(perSecond(replayed_.getCount(), elapsedMicros)).append("/s");
+        temp.append("\n  errors:     captured ").append(capturedErrors_).append(", replayed ").append(replayedErrors_);
+        temp.append("\n  captured latency: ").append(captured_);
+        temp.append("\n  replayed latency: ").append(replayed_);
+
+        List<Map.Entry<SQLFingerprint, long[]>> entries = new ArrayList<Map.Entry<SQLFingerprint, long[]>>(bySQL_
+                .entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<SQLFingerprint, long[]>>()
+        {
+            @Override
+            public int compare(Map.Entry<SQLFingerprint, long[]> o1, Map.Entry<SQLFingerprint, long[]> o2)
+            {
+                long a = o1.getValue()[1];
+                long b = o2.getValue()[1];
+                return a < b ? 1 : (a == b ? 0 : -1);
+            }
+        });
+        temp.append("\n  by captured time - calls, mean captured, mean replayed, change:");
+        for (int i = 0; i < Math.min(top, entries.size()); i++)
+        {
+            long[] totals = entries.get(i).getValue();
+            long capturedMean = totals[1] / totals[0];
+            long replayedMean = totals[2] / totals[0];
+            temp.append("\n    ").append(totals[0]).append(", ").append(capturedMean / 1000).append("us, ").append(
+                    replayedMean / 1000).append("us, ").append(
+                    capturedMean == 0 ? "-" : Math.round((replayedMean - capturedMean) * 100.0 / capturedMean) + "%")
+                    .append(" - ").append(entries.get(i).getKey().getText());
+        }
+        return temp.toString();
+    }
+
+    private static long perSecond(long count, long micros)
+    {
+        return micros == 0 ? 0 : count * 1000000 / micros;
+    }
+
+    /**
+     * @param args capture file, driver, server url, user name, password, and optionally the speed (default 1,
+     *            0 for as fast as possible)
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 5)
+        {
+            System.err.println("Usage: WorkloadReplay captureFile driver serverURL userName password [speed]");
+            System.exit(1);
+        }
+        WorkloadReplay replay = new WorkloadReplay(new File(args[0]));
+        double speed = args.length > 5 ? Double.parseDouble(args[5]) : 1;
+        System.out.println(replay.replay(args[1], args[2], args[3], args[4], speed));
+    }
+
+    /**
+     * One captured execution.
+     */
+    private static class Execution
+    {
+        Integer                            sqlId;
+        Integer                            threadId;
+        int                                operation;
+        long                               offsetMicros;
+        long                               micros;
+        int                                rows;
+        boolean                            failed;
+        Hashtable<Integer, QueryParameter> parameters;
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Calls, time, rows and errors per {@link SQLFingerprint}, for finding the statements that make up most of
+ * the workload. See {@link WrappedConnection#setWorkloadStatistics(WorkloadStatistics)} - one instance can be
+ * shared by any number of connections.
+ *
+ * The space is bounded - at most capacity fingerprints are tracked, using the space saving algorithm: when
+ * a new fingerprint turns up and the table is full, it takes the place (and the counts) of the fingerprint
+ * with the fewest calls. So every fingerprint that accounts for more than 1 / capacity of all calls is
+ * always in the table, and the counts are never too low - {@link Entry#getMaxOvercount()} says by how much
+ * the calls of an entry may be too high. Fingerprints that have been in the table from the start have exact
+ * counts. The entries are kept in buckets of equal calls, lowest first, so finding the one to replace - and
+ * keeping the order as the calls go up - takes constant time, however big the table.
+ *
+ * Rows are the update counts of updates - the rows read by queries aren't counted.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class WorkloadStatistics
+{
+    public static final int            BY_TIME    = 0;
+    public static final int            BY_CALLS   = 1;
+    public static final int            BY_ROWS    = 2;
+
+    private final int                  capacity_;
+    private Map<SQLFingerprint, Entry> entries_;
+    private Bucket                     lowest_;
+    private long                       calls_     = 0;
+    private long                       evictions_ = 0;
+
+    /**
+     * @param capacity the most fingerprints to track
+     */
+    public WorkloadStatistics(int capacity)
+    {
+        capacity_ = Math.max(1, capacity);
+        entries_ = new HashMap<SQLFingerprint, Entry>(capacity_ * 2);
+    }
+
+    /**
+     * Count an execution.
+     *
+     * @param nanos how long it took, including retries
+     * @param rows the update count, or 0
+     * @param failed true if it ended in an error
+     */
+    public synchronized void record(SQLFingerprint fingerprint, long nanos, long rows, boolean failed)
+    {
+        calls_++;
+        Entry entry = entries_.get(fingerprint);
+        if (entry == null)
+        {
+            entry = new Entry(fingerprint);
+            if (entries_.size() >= capacity_)
+            {
+                // take over the place and the counts of an entry with the fewest calls
+                Entry smallest = lowest_.first;
+                entries_.remove(smallest.fingerprint_);
+                evictions_++;
+                entry.calls_ = smallest.calls_;
+                entry.overcount_ = smallest.calls_;
+                entry.totalNanos_ = smallest.totalNanos_;
+                entry.rows_ = smallest.rows_;
+                entry.errors_ = smallest.errors_;
+                link(entry, smallest.bucket_);
+                unlink(smallest);
+            }
+            else
+            {
+                if (lowest_ == null || lowest_.calls != 0)
+                {
+                    insertBucket(null, 0);
+                }
+                link(entry, lowest_);
+            }
+            entries_.put(fingerprint, entry);
+        }
+        entry.calls_++;
+        // move it to the bucket for its new count - the next one up, or a new one in between
+        Bucket bucket = entry.bucket_;
+        Bucket target = bucket.next;
+        if (target == null || target.calls != entry.calls_)
+        {
+            target = insertBucket(bucket, entry.calls_);
+        }
+        unlink(entry);
+        link(entry, target);
+        entry.totalNanos_ += nanos;
+        entry.maxNanos_ = Math.max(entry.maxNanos_, nanos);
+        entry.rows_ += Math.max(0, rows);
+        if (failed)
+        {
+            entry.errors_++;
+        }
+    }
+
+    /**
+     * @param count how many to return
+     * @param order BY_TIME, BY_CALLS or BY_ROWS
+     * @return copies of the top entries, largest first.
+     */
+    public synchronized List<Entry> getTop(int count, final int order)
+    {
+        List<Entry> result = new ArrayList<Entry>(entries_.size());
+        for (Iterator<Entry> it = entries_.values().iterator(); it.hasNext();)
+        {
+            result.add(new Entry(it.next()));
+        }
+        Collections.sort(result, new Comparator<Entry>()
+        {
+            @Override
+            public int compare(Entry o1, Entry o2)
+            {
+                long a = order == BY_CALLS ? o1.calls_ : (order == BY_ROWS ? o1.rows_ : o1.totalNanos_);
+                long b = order == BY_CALLS ? o2.calls_ : (order == BY_ROWS ? o2.rows_ : o2.totalNanos_);
+                return a < b ? 1 : (a == b ? 0 : -1);
+            }
+        });
+        return result.subList(0, Math.min(Math.max(0, count), result.size()));
+    }
+
+    public List<Entry> getTopByTime(int count)
+    {
+        return getTop(count, BY_TIME);
+    }
+
+    public List<Entry> getTopByCalls(int count)
+    {
+        return getTop(count, BY_CALLS);
+    }
+
+    public List<Entry> getTopByRows(int count)
+    {
+        return getTop(count, BY_ROWS);
+    }
+
+    /**
+     * @return the number of executions recorded.
+     */
+    public synchronized long getCallCount()
+    {
+        return calls_;
+    }
+
+    /**
+     * @return the number of times a fingerprint was pushed out of the table by a new one.
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictions_;
+    }
+
+    public synchronized int getTrackedCount()
+    {
+        return entries_.size();
+    }
+
+    public synchronized void reset()
+    {
+        entries_.clear();
+        lowest_ = null;
+        calls_ = 0;
+        evictions_ = 0;
+    }
+
+    /**
+     * @param after the bucket to insert after - null to make it the lowest
+     */
+    private Bucket insertBucket(Bucket after, long calls)
+    {
+        Bucket bucket = new Bucket();
+        bucket.calls = calls;
+        bucket.previous = after;
+        bucket.next = after == null ? lowest_ : after.next;
+        if (bucket.next != null)
+        {
+            bucket.next.previous = bucket;
+        }
+        if (after == null)
+        {
+            lowest_ = bucket;
+        }
+        else
+        {
+            after.next = bucket;
+        }
+        return bucket;
+    }
+
+    private static void link(Entry entry, Bucket bucket)
+    {
+        entry.bucket_ = bucket;
+        entry.previous_ = null;
+        entry.next_ = bucket.first;
+        if (bucket.first != null)
+        {
+            bucket.first.previous_ = entry;
+        }
+        bucket.first = entry;
+    }
+
+    /**
+     * Take the entry out of its bucket - and the bucket out of the list, if that leaves it empty.
+     */
+    private void unlink(Entry entry)
+    {
+        Bucket bucket = entry.bucket_;
+        if (entry.previous_ == null)
+        {
+            bucket.first = entry.next_;
+        }
+        else
+        {
+            entry.previous_.next_ = entry.next_;
+        }
+        if (entry.next_ != null)
+        {
+            entry.next_.previous_ = entry.previous_;
+        }
+        entry.bucket_ = null;
+        entry.previous_ = null;
+        entry.next_ = null;
+        if (bucket.first == null)
+        {
+            if (bucket.previous == null)
+            {
+                lowest_ = bucket.next;
+            }
+            else
+            {
+                bucket.previous.next = bucket.next;
+            }
+            if (bucket.next != null)
+            {
+                bucket.next.previous = bucket.previous;
+            }
+        }
+    }
+
+    /**
+     * @return the top count fingerprints by total time, one per line.
+     */
+    public String report(int count)
+    {
+        List<Entry> top = getTopByTime(count);
+        StringBuilder temp = new StringBuilder(toString());
+        for (int i = 0; i < top.size(); i++)
+        {
+            temp.append("\n  ").append(top.get(i));
+        }
+        return temp.toString();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "WorkloadStatistics - calls=" + calls_ + " tracked=" + entries_.size() + " capacity=" + capacity_
+                + " evictions=" + evictions_;
+    }
+
+    /**
+     * The entries with the same number of calls.
+     */
+    private static class Bucket
+    {
+        long   calls;
+        Bucket previous;
+        Bucket next;
+        Entry  first;
+    }
+
+    /**
+     * The counts for one fingerprint.
+     */
+    public static class Entry
+    {
+        private final SQLFingerprint fingerprint_;
+        private long                 calls_;
+        private long                 overcount_;
+        private long                 totalNanos_;
+        private long                 maxNanos_;
+        private long                 rows_;
+        private long                 errors_;
+        // the bucket it is in, and its neighbours there - not set on copies
+        private Bucket               bucket_;
+        private Entry                previous_;
+        private Entry                next_;
+
+        Entry(SQLFingerprint fingerprint)
+        {
+            fingerprint_ = fingerprint;
+        }
+
+        Entry(Entry other)
+        {
+            fingerprint_ = other.fingerprint_;
+            calls_ = other.calls_;
+            overcount_ = other.overcount_;
+            totalNanos_ = other.totalNanos_;
+            maxNanos_ = other.maxNanos_;
+            rows_ = other.rows_;
+            errors_ = other.errors_;
+        }
+
+        public SQLFingerprint getFingerprint()
+        {
+            return fingerprint_;
+        }
+
+        public long getCalls()
+        {
+            return calls_;
+        }
+
+        /**
+         * @return how many of the calls (and the time, rows and errors that went with them) may have belonged
+         *         to fingerprints this one replaced - 0 if the counts are exact.
+         */
+        public long getMaxOvercount()
+        {
+            return overcount_;
+        }
+
+        public long getTotalNanos()
+        {
+            return totalNanos_;
+        }
+
+        /**
+         * @return the longest single execution, since this fingerprint entered the table.
+         */
+        public long getMaxNanos()
+        {
+            return maxNanos_;
+        }
+
+        public long getRows()
+        {
+            return rows_;
+        }
+
+        public long getErrors()
+        {
+            return errors_;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "calls=" + calls_ + (overcount_ > 0 ? " (at most " + overcount_ + " too many)" : "") + " total="
+                    + (totalNanos_ / 1000000) + "ms max=" + (maxNanos_ / 1000) / 1000.0 + "ms rows=" + rows_
+                    + " errors=" + errors_ + " - " + fingerprint_.getText();
+        }
+    }
+}
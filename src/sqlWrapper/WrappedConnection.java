@@ -14,6 +14,7 @@
  */
 package sqlWrapper;
 
+import java.io.File;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -29,9 +30,30 @@ import java.sql.SQLWarning;
 import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.sql.SQLTimeoutException;
 import java.sql.Struct;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -68,32 +90,29 @@ public class WrappedConnection implements Connection
     public WrappedConnection(String userName, String password, String driver, String server)
             throws ClassNotFoundException, SQLException
     {
-        logger.debug("Creating a new reconnectable SQL connection to " + server);
-        userName_ = userName;
-        password_ = password;
-        driver_ = driver;
-        server_ = server;
-        useUTF8_ = false;
-
-        if (userName_ == null)
-        {
-            userName_ = "";
-        }
-        if (password_ == null)
-        {
-            password_ = "";
-        }
-        connect();
+        this(userName, password, driver, server, false, false);
     }
 
     public WrappedConnection(String userName, String password, String driver, String server, boolean useUTF8)
             throws ClassNotFoundException, SQLException
     {
-        logger.debug("Creating a new reconnectable SQL connection to " + server);
+        this(userName, password, driver, server, useUTF8, false);
+    }
+
+    /**
+     * @param lazy true to put off making the physical connection until it is first needed - to prepare a
+     *            statement, say. The connection parameters set before then (auto commit, read only,
+     *            isolation...) are kept, and applied when it connects. See {@link #prewarm(Collection, int)}.
+     */
+    public WrappedConnection(String userName, String password, String driver, String server, boolean useUTF8,
+            boolean lazy) throws ClassNotFoundException, SQLException
+    {
+        logger.debug("Creating a new reconnectable SQL connection to " + server + (lazy ? " (lazily)" : ""));
         userName_ = userName;
         password_ = password;
         driver_ = driver;
         server_ = server;
+        flightRecorder_ = new FlightRecorder(server_, 128, 64);
         useUTF8_ = useUTF8;
 
         if (userName_ == null)
@@ -104,148 +123,384 @@ public class WrappedConnection implements Connection
         {
             password_ = "";
         }
-        connect();
+        if (lazy)
+        {
+            // the driver is loaded now all the same, so a mistake in its name shows straight away
+            loadDriver();
+            connectPending_ = true;
+        }
+        else
+        {
+            connect();
+        }
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql) throws SQLException
     {
-        logger.debug("Creating reconnectable prepared statement: \"" + sql + "\"");
-        return new WrappedPreparedStatement(this, sql);
+        return prepare(sql, null, null);
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency)
             throws SQLException
     {
-        logger.debug("Creating reconnectable prepared statement: \"" + sql + "\"");
-        return new WrappedPreparedStatement(this, sql, resultSetType, resultSetConcurrency);
+        return prepare(sql, new Integer(resultSetType), new Integer(resultSetConcurrency));
+    }
+
+    private WrappedPreparedStatement prepare(String sql, Integer resultSetType, Integer resultSetConcurrency)
+            throws SQLException
+    {
+        if (logger.isDebugEnabled())
+        {
+            QueryLog.getShared().statementPrepared(sql);
+        }
+        StatementListeners listeners = listeners_;
+        Object[] contexts = listeners == null ? null : listeners.preparing(this, sql);
+        Object event = DiagnosticEvents.begin(DiagnosticEvents.PREPARE);
+        WrappedPreparedStatement statement;
+        try
+        {
+            statement = resultSetType == null ? new WrappedPreparedStatement(this, sql)
+                    : new WrappedPreparedStatement(this, sql, resultSetType.intValue(), resultSetConcurrency
+                            .intValue());
+        }
+        catch (SQLException e)
+        {
+            if (listeners != null)
+            {
+                listeners.prepared(contexts, this, sql, e);
+            }
+            throw e;
+        }
+        DiagnosticEvents.prepared(event, sql);
+        if (listeners != null)
+        {
+            listeners.prepared(contexts, this, sql, null);
+        }
+        return statement;
     }
 
     @Override
     public int getHoldability() throws SQLException
     {
-        return connection_.getHoldability();
+        if (connectPending_ && holdability_ != null)
+        {
+            return holdability_.intValue();
+        }
+        return getPhysicalConnection().getHoldability();
     }
 
     @Override
     public int getTransactionIsolation() throws SQLException
     {
-        return connection_.getTransactionIsolation();
+        if (connectPending_ && transactionIsoloation_ != null)
+        {
+            return transactionIsoloation_.intValue();
+        }
+        return getPhysicalConnection().getTransactionIsolation();
     }
 
     @Override
     public void clearWarnings() throws SQLException
     {
-        connection_.clearWarnings();
+        getPhysicalConnection().clearWarnings();
     }
 
     @Override
     public void close() throws SQLException
     {
-        connection_.close();
+        unregisterMBean();
+        LeakDetector leakDetector = leakDetector_;
+        if (leakDetector != null)
+        {
+            leakDetector.connectionClosed();
+        }
+        WriteBehindQueue writeBehindQueue = writeBehindQueue_;
+        if (writeBehindQueue != null)
+        {
+            writeBehindQueue.close();
+            writeBehindQueue_ = null;
+        }
+        UpdateSpool updateSpool = updateSpool_;
+        if (updateSpool != null)
+        {
+            updateSpool.close();
+            updateSpool_ = null;
+        }
+        synchronized (connectLock_)
+        {
+            // a lazy connection that was never used is never made
+            connectPending_ = false;
+            closed_ = true;
+            connected_ = false;
+        }
+        // null if the last reconnect failed, or it was never made
+        if (connection_ != null)
+        {
+            connection_.close();
+        }
     }
 
     @Override
     public void commit() throws SQLException
     {
-        connection_.commit();
+        try
+        {
+            if (!connectPending_)
+            {
+                getPhysicalConnection().commit();
+            }
+        }
+        finally
+        {
+            // even if the commit failed - it may have happened, so it must never be replayed.
+            journal_.clear();
+        }
+        reconnectIfRequested(true);
     }
 
     @Override
     public void rollback() throws SQLException
     {
-        connection_.rollback();
+        journal_.clear();
+        if (!connectPending_)
+        {
+            getPhysicalConnection().rollback();
+        }
+        reconnectIfRequested(true);
     }
 
     @Override
     public boolean getAutoCommit() throws SQLException
     {
-        return connection_.getAutoCommit();
+        if (connectPending_ && autoCommit_ != null)
+        {
+            return autoCommit_.booleanValue();
+        }
+        return getPhysicalConnection().getAutoCommit();
     }
 
     @Override
     public boolean isClosed() throws SQLException
     {
-        return connection_.isClosed();
+        // null if the last reconnect failed - and a lazy connection not yet made isn't closed
+        return !connectPending_ && (connection_ == null || connection_.isClosed());
     }
 
     @Override
     public boolean isReadOnly() throws SQLException
     {
-        return connection_.isReadOnly();
+        if (connectPending_ && readOnly_ != null)
+        {
+            return readOnly_.booleanValue();
+        }
+        return getPhysicalConnection().isReadOnly();
     }
 
     @Override
     public String getCatalog() throws SQLException
     {
-        return connection_.getCatalog();
+        if (connectPending_ && catalog_ != null)
+        {
+            return catalog_;
+        }
+        return getPhysicalConnection().getCatalog();
     }
 
     @Override
     public DatabaseMetaData getMetaData() throws SQLException
     {
-        return connection_.getMetaData();
+        MetaDataCache metaDataCache = metaDataCache_;
+        if (metaDataCache != null)
+        {
+            return metaDataCache.getMetaData();
+        }
+        return getPhysicalConnection().getMetaData();
+    }
+
+    private volatile MetaDataCache metaDataCache_;
+    /**
+     * Keep a snapshot of the database meta data - see {@link MetaDataCache}. If it is already on, the refresh
+     * interval is changed.
+     * 
+     * @param schema the schema to read the tables of, or null for all of them
+     * @param refreshMillis how old the snapshot can get before it is read again - 0 for only after DDL run
+     *            through this connection
+     */
+    public synchronized MetaDataCache enableMetaDataCache(String schema, long refreshMillis)
+    {
+        if (metaDataCache_ == null)
+        {
+            metaDataCache_ = new MetaDataCache(this, schema, refreshMillis);
+        }
+        else
+        {
+            metaDataCache_.setRefreshInterval(refreshMillis);
+        }
+        return metaDataCache_;
+    }
+
+    /**
+     * @return the meta data cache, or null if it isn't enabled.
+     */
+    public MetaDataCache getMetaDataCache()
+    {
+        return metaDataCache_;
+    }
+
+    private volatile String databaseProductName_;
+    /**
+     * @return the product name reported by the database meta data - cached, since it can't change across
+     *         reconnects.
+     */
+    public String getDatabaseProductName() throws SQLException
+    {
+        String temp = databaseProductName_;
+        if (temp == null)
+        {
+            temp = getPhysicalConnection().getMetaData().getDatabaseProductName();
+            databaseProductName_ = temp;
+        }
+        return temp;
+    }
+
+    private BulkLoader bulkLoader_ = new BulkLoader();
+
+    /**
+     * Load a stream of rows into a table using the fastest mechanism available for the database - COPY
+     * FROM STDIN on PostgreSQL, LOAD DATA LOCAL INFILE on MySQL (the connection needs allowLoadLocalInfile)
+     * and batched inserts everywhere else (HSQL, DB2, Oracle, etc). The load is not retried on a connection
+     * failure, since the rows can't be read twice - and outside of auto commit mode, it makes the transaction
+     * one that can't be replayed after a reconnect.
+     * 
+     * @param table the table to load
+     * @param columns the columns being loaded, in the order the row source writes them
+     * @param sqlTypes the java.sql.Types of the columns
+     * @param rows the row source
+     * @return the number of rows loaded
+     */
+    public long bulkLoad(String table, String[] columns, int[] sqlTypes, BulkRowSource rows) throws SQLException
+    {
+        if (!isAutoCommitMode())
+        {
+            journal_.bulkLoaded(table);
+        }
+        return bulkLoader_.load(getPhysicalConnection(), getDatabaseProductName(), table, columns, sqlTypes, rows);
+    }
+
+    /**
+     * @param batchSize the number of rows per batch (and per commit, in auto commit mode) when a bulk load
+     *            falls back to batched inserts
+     */
+    public void setBulkLoadBatchSize(int batchSize)
+    {
+        bulkLoader_.setBatchSize(batchSize);
     }
 
     @Override
     public SQLWarning getWarnings() throws SQLException
     {
-        return connection_.getWarnings();
+        return getPhysicalConnection().getWarnings();
     }
 
     @Override
     public void rollback(Savepoint savepoint) throws SQLException
     {
-        connection_.rollback(savepoint);
+        getPhysicalConnection().rollback(savepoint);
     }
 
     private Integer holdability_;
     @Override
     public void setHoldability(int holdability) throws SQLException
     {
-        connection_.setHoldability(holdability);
-        holdability_ = new Integer(holdability);
+        synchronized (connectLock_)
+        {
+            if (!connectPending_)
+            {
+                getPhysicalConnection().setHoldability(holdability);
+            }
+            holdability_ = new Integer(holdability);
+        }
     }
 
     private Integer transactionIsoloation_;
     @Override
     public void setTransactionIsolation(int level) throws SQLException
     {
-        connection_.setTransactionIsolation(level);
-        transactionIsoloation_ = new Integer(level);
+        synchronized (connectLock_)
+        {
+            if (!connectPending_)
+            {
+                getPhysicalConnection().setTransactionIsolation(level);
+            }
+            transactionIsoloation_ = new Integer(level);
+        }
     }
 
     private Boolean autoCommit_;
     @Override
     public void setAutoCommit(boolean autoCommit) throws SQLException
     {
-        connection_.setAutoCommit(autoCommit);
-        autoCommit_ = new Boolean(autoCommit);
+        synchronized (connectLock_)
+        {
+            if (!connectPending_)
+            {
+                getPhysicalConnection().setAutoCommit(autoCommit);
+            }
+            autoCommit_ = new Boolean(autoCommit);
+        }
+        journal_.clear();
     }
 
     private Boolean readOnly_;
     @Override
     public void setReadOnly(boolean readOnly) throws SQLException
     {
-        connection_.setReadOnly(readOnly);
-        readOnly_ = new Boolean(readOnly);
+        synchronized (connectLock_)
+        {
+            if (!connectPending_)
+            {
+                getPhysicalConnection().setReadOnly(readOnly);
+            }
+            readOnly_ = new Boolean(readOnly);
+        }
     }
 
     private String catalog_;
     @Override
     public void setCatalog(String catalog) throws SQLException
     {
-        connection_.setCatalog(catalog);
-        catalog_ = catalog;
+        synchronized (connectLock_)
+        {
+            if (!connectPending_)
+            {
+                getPhysicalConnection().setCatalog(catalog);
+            }
+            catalog_ = catalog;
+        }
     }
 
     private Map<String, Class<?>> typeMap_;
     @Override
     public void setTypeMap(Map<String, Class<?>> map) throws SQLException
     {
-        connection_.setTypeMap(map);
-        typeMap_ = map;
+        synchronized (connectLock_)
+        {
+            if (!connectPending_)
+            {
+                getPhysicalConnection().setTypeMap(map);
+            }
+            typeMap_ = map;
+        }
+    }
+
+    /**
+     * @return true if the connection is (or, after a reconnect, will be) in auto commit mode.
+     */
+    boolean isAutoCommitMode()
+    {
+        return autoCommit_ == null || autoCommit_.booleanValue();
     }
 
     private void setAllParameters() throws SQLException
@@ -283,6 +538,13 @@ public class WrappedConnection implements Connection
     }
 
     private void connect() throws ClassNotFoundException, SQLException
+    {
+        loadDriver();
+        connection_ = openConnection();
+        connected_ = true;
+    }
+
+    private void loadDriver() throws ClassNotFoundException
     {
         try
         {
@@ -293,7 +555,202 @@ public class WrappedConnection implements Connection
             logger.error("The driver for your sql connection was not found.  I tried to load " + driver_);
             throw e;
         }
-        DriverManager.setLoginTimeout(5);
+    }
+
+    private final Object     connectLock_    = new Object();
+    private volatile boolean connectPending_ = false;
+    private volatile boolean closed_         = false;
+    // kept by the thread using the connection, so the monitor can report it without asking the driver
+    private volatile boolean connected_      = false;
+
+    /**
+     * @return the physical connection - made now, if this is a lazy connection that hasn't been used yet. Null
+     *         if the last reconnect failed - statements are still bound, and spooled or retried, while the
+     *         database is down.
+     * @throws SQLException if this has been closed
+     */
+    Connection getPhysicalConnection() throws SQLException
+    {
+        if (closed_)
+        {
+            throw new SQLException("The connection to " + server_ + " has been closed", "08003");
+        }
+        if (connectPending_)
+        {
+            connectNow();
+        }
+        return connection_;
+    }
+
+    /**
+     * Make the physical connection now, if this is a lazy connection that hasn't made it yet. If it fails,
+     * the connection stays lazy - the next use tries again.
+     */
+    public void connectNow() throws SQLException
+    {
+        synchronized (connectLock_)
+        {
+            if (!connectPending_)
+            {
+                return;
+            }
+            logger.debug("Making the deferred connection to " + server_);
+            Connection connection = openConnection();
+            connection_ = connection;
+            try
+            {
+                // the settings made while it was waiting
+                setAllParameters();
+            }
+            catch (SQLException e)
+            {
+                connection_ = null;
+                try
+                {
+                    connection.close();
+                }
+                catch (SQLException e1)
+                {
+                    // nothing useful to do
+                }
+                throw e;
+            }
+            connectPending_ = false;
+            connected_ = true;
+        }
+    }
+
+    /**
+     * @return true if this is a lazy connection that hasn't been used yet.
+     */
+    public boolean isConnectPending()
+    {
+        return connectPending_;
+    }
+
+    /**
+     * @return true if there is a physical connection, and it hasn't been closed or given up on - as last seen
+     *         by the thread using the connection; the driver isn't asked.
+     */
+    boolean isConnected()
+    {
+        return connected_;
+    }
+
+    /**
+     * Make the physical connections of lazy connections, several at a time - at startup, say, so they are
+     * ready without connecting to each database in turn. The ones that fail are logged, and left to connect
+     * on first use.
+     * 
+     * @param parallelism the most connections to make at once
+     * @return the number that failed
+     */
+    public static int prewarm(Collection<WrappedConnection> connections, int parallelism)
+            throws InterruptedException
+    {
+        List<WrappedConnection> pending = new ArrayList<WrappedConnection>();
+        for (Iterator<WrappedConnection> it = connections.iterator(); it.hasNext();)
+        {
+            WrappedConnection connection = it.next();
+            if (connection.isConnectPending())
+            {
+                pending.add(connection);
+            }
+        }
+        if (pending.isEmpty())
+        {
+            return 0;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, pending
+                .size())), new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "WrappedConnection prewarm");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try
+        {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int i = 0; i < pending.size(); i++)
+            {
+                final WrappedConnection connection = pending.get(i);
+                futures.add(executor.submit(new Callable<Object>()
+                {
+                    @Override
+                    public Object call() throws SQLException
+                    {
+                        connection.connectNow();
+                        return null;
+                    }
+                }));
+            }
+            int failed = 0;
+            for (int i = 0; i < futures.size(); i++)
+            {
+                try
+                {
+                    futures.get(i).get();
+                }
+                catch (ExecutionException e)
+                {
+                    failed++;
+                    WrappedConnection connection = pending.get(i);
+                    connection.logger.warn("Couldn't prewarm the connection to " + connection.server_ + " - "
+                            + e.getCause().toString());
+                }
+            }
+            return failed;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private volatile long connectTimeoutMillis_ = 5000;
+    /**
+     * @param millis how long to wait for a new physical connection, on connect and reconnect (5 seconds by
+     *            default). This applies to this connection only - the global DriverManager login timeout is
+     *            left alone. A thread's {@link Deadline} shortens it further.
+     */
+    public void setConnectTimeout(long millis)
+    {
+        connectTimeoutMillis_ = millis;
+    }
+
+    public long getConnectTimeout()
+    {
+        return connectTimeoutMillis_;
+    }
+
+    private static ExecutorService connector_ = Executors.newCachedThreadPool(new ThreadFactory()
+                                               {
+                                                   @Override
+                                                   public Thread newThread(Runnable r)
+                                                   {
+                                                       Thread thread = new Thread(r, "WrappedConnection connect");
+                                                       thread.setDaemon(true);
+                                                       return thread;
+                                                   }
+                                               });
+
+    /**
+     * Open a physical connection, giving up after the connect timeout (or the thread's deadline). Where
+     * the driver is known, the timeout is passed to it as well. Otherwise (or if the driver doesn't honour
+     * it) the connect is left to finish in the background, and the connection is closed if it ever arrives.
+     */
+    private Connection openConnection() throws SQLException
+    {
+        long timeout = Deadline.remainingMillis(connectTimeoutMillis_);
+        if (timeout <= 0)
+        {
+            throw new SQLTimeoutException("Deadline exceeded before connecting to " + server_,
+                    Deadline.DEADLINE_EXCEEDED);
+        }
         Properties props = new Properties();
         props.setProperty("user", userName_);
         props.setProperty("password", password_);
@@ -301,8 +758,576 @@ public class WrappedConnection implements Connection
         {
             setUTFCharsetForDB(props, server_);
         }
+        setConnectTimeoutForDB(props, server_, timeout);
+
+        ConnectTask task = new ConnectTask(server_, props);
+        Future<Connection> future = connector_.submit(task);
+        try
+        {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            task.abandon();
+            throw new SQLTimeoutException("Timed out after " + timeout + "ms connecting to " + server_, "08001");
+        }
+        catch (InterruptedException e)
+        {
+            task.abandon();
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while connecting to " + server_, "08001");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof SQLException)
+            {
+                throw (SQLException) e.getCause();
+            }
+            SQLException temp = new SQLException("Unexpected Error " + e.getCause().toString());
+            temp.initCause(e.getCause());
+            throw temp;
+        }
+    }
+
+    private static class ConnectTask implements Callable<Connection>
+    {
+        private String     url_;
+        private Properties props_;
+        private boolean    abandoned_ = false;
+        private Connection connection_;
+
+        ConnectTask(String url, Properties props)
+        {
+            url_ = url;
+            props_ = props;
+        }
+
+        @Override
+        public Connection call() throws SQLException
+        {
+            Connection connection = DriverManager.getConnection(url_, props_);
+            synchronized (this)
+            {
+                if (!abandoned_)
+                {
+                    connection_ = connection;
+                    return connection;
+                }
+            }
+            connection.close();
+            return null;
+        }
+
+        synchronized void abandon()
+        {
+            abandoned_ = true;
+            if (connection_ != null)
+            {
+                // it arrived just too late
+                try
+                {
+                    connection_.close();
+                }
+                catch (SQLException e)
+                {
+                    // nothing useful to do
+                }
+            }
+        }
+    }
+
+    private volatile long reconnectCount_ = 0;
+    /**
+     * @return the number of times this connection has been reestablished.
+     */
+    public long getReconnectCount()
+    {
+        return reconnectCount_;
+    }
+
+    private volatile boolean reconnectRequested_ = false;
+    /**
+     * Ask for the connection to be reestablished - by the thread using it, before its next statement in auto
+     * commit mode, or after its current transaction commits or rolls back. Safe to call from any thread.
+     */
+    public void requestReconnect()
+    {
+        reconnectRequested_ = true;
+    }
+
+    boolean isReconnectRequested()
+    {
+        return reconnectRequested_;
+    }
+
+    /**
+     * Called by the thread using the connection, where a reconnect can't lose any work.
+     * 
+     * @param betweenTransactions true if a transaction has just ended - otherwise the reconnect only happens in
+     *            auto commit mode
+     */
+    void reconnectIfRequested(boolean betweenTransactions) throws SQLException
+    {
+        if (reconnectRequested_ && (betweenTransactions || isAutoCommitMode()))
+        {
+            reconnectRequested_ = false;
+            if (connectPending_)
+            {
+                // it will be a new connection anyway
+                return;
+            }
+            logger.info("Reconnecting to " + server_ + ", as requested");
+            reconnect();
+        }
+    }
+
+    private volatile int statementGeneration_ = 0;
+    /**
+     * @return a number that changes whenever the statements have to be prepared again - after a reconnect, or
+     *         a {@link #flushCaches()}.
+     */
+    int getStatementGeneration()
+    {
+        return statementGeneration_;
+    }
+
+    /**
+     * Forget the cached database product name, and have every statement prepared again before its next
+     * execution - for after the database has been upgraded, or its schema changed. Safe to call from any
+     * thread.
+     */
+    public void flushCaches()
+    {
+        databaseProductName_ = null;
+        statementGeneration_++;
+        MetaDataCache metaDataCache = metaDataCache_;
+        if (metaDataCache != null)
+        {
+            metaDataCache.invalidate();
+        }
+    }
+
+    /**
+     * Note sql that has been executed for this connection - through its statements, or by its write behind
+     * queue or update spool - so that DDL drops the meta data snapshot.
+     */
+    void sqlExecuted(String sql)
+    {
+        MetaDataCache metaDataCache = metaDataCache_;
+        if (metaDataCache != null)
+        {
+            metaDataCache.executed(sql);
+        }
+    }
+
+    // only tracked while the MBean is registered - see registerMBean()
+    private volatile Set<WrappedPreparedStatement> statements_;
+    private AtomicLong                             executions_ = new AtomicLong();
+    private AtomicLong                             failures_   = new AtomicLong();
+
+    void statementOpened(WrappedPreparedStatement statement)
+    {
+        Set<WrappedPreparedStatement> statements = statements_;
+        if (statements != null)
+        {
+            statements.add(statement);
+        }
+    }
+
+    void statementClosed(WrappedPreparedStatement statement)
+    {
+        Set<WrappedPreparedStatement> statements = statements_;
+        if (statements != null)
+        {
+            statements.remove(statement);
+        }
+    }
+
+    /**
+     * @return the statements prepared on this connection since the MBean was registered that haven't been
+     *         closed (or garbage collected) - none, if it isn't registered.
+     */
+    WrappedPreparedStatement[] getOpenStatements()
+    {
+        Set<WrappedPreparedStatement> statements = statements_;
+        if (statements == null)
+        {
+            return new WrappedPreparedStatement[0];
+        }
+        synchronized (statements)
+        {
+            return statements.toArray(new WrappedPreparedStatement[statements.size()]);
+        }
+    }
+
+    void statementCompleted(boolean failed)
+    {
+        executions_.incrementAndGet();
+        if (failed)
+        {
+            failures_.incrementAndGet();
+        }
+    }
+
+    public long getExecutionCount()
+    {
+        return executions_.get();
+    }
+
+    public long getFailedExecutionCount()
+    {
+        return failures_.get();
+    }
+
+    String getServer()
+    {
+        return server_;
+    }
+
+    String getUserName()
+    {
+        return userName_;
+    }
 
-        connection_ = DriverManager.getConnection(server_, props);
+    Boolean getAutoCommitSetting()
+    {
+        return autoCommit_;
+    }
+
+    Integer getTransactionIsolationSetting()
+    {
+        return transactionIsoloation_;
+    }
+
+    Boolean getReadOnlySetting()
+    {
+        return readOnly_;
+    }
+
+    private volatile LeakDetector leakDetector_;
+    /**
+     * Turn on leak detection for the statements prepared on this connection from now on - see
+     * {@link LeakDetector}. If it is already on, the settings are changed.
+     * 
+     * @param thresholdMillis how long a statement or result set can be open before it is reported as a
+     *            possible leak
+     * @param sampleRate capture the stack that opened the statement for one in this many statements - 1 for
+     *            all of them, 0 for none
+     */
+    public synchronized LeakDetector enableLeakDetection(long thresholdMillis, int sampleRate)
+    {
+        if (leakDetector_ == null)
+        {
+            leakDetector_ = new LeakDetector(server_, thresholdMillis, sampleRate);
+        }
+        else
+        {
+            leakDetector_.setThreshold(thresholdMillis);
+            leakDetector_.setSampleRate(sampleRate);
+        }
+        return leakDetector_;
+    }
+
+    /**
+     * @return the leak detector, or null if leak detection isn't on.
+     */
+    public LeakDetector getLeakDetector()
+    {
+        return leakDetector_;
+    }
+
+    private volatile StatementListeners listeners_;
+    /**
+     * Have listener called around the statements prepared and executed on this connection, and its
+     * reconnects. When there are no listeners, the cost is one field read per call.
+     */
+    public synchronized void addStatementListener(StatementListener listener)
+    {
+        listeners_ = StatementListeners.add(listeners_, listener);
+    }
+
+    public synchronized void removeStatementListener(StatementListener listener)
+    {
+        listeners_ = StatementListeners.remove(listeners_, listener);
+    }
+
+    /**
+     * @return the listeners, or null if there aren't any.
+     */
+    StatementListeners getStatementListeners()
+    {
+        return listeners_;
+    }
+
+    private volatile SQLCommenter commenter_;
+    /**
+     * @param commenter adds trace tags, as a comment, to the sql of the statements prepared (and the ad-hoc sql
+     *            executed) from now on - null (the default) for none.
+     */
+    public void setSQLCommenter(SQLCommenter commenter)
+    {
+        commenter_ = commenter;
+    }
+
+    public SQLCommenter getSQLCommenter()
+    {
+        return commenter_;
+    }
+
+    /**
+     * @param prepared true for the sql of a prepared statement, which is reused by other threads - so it
+     *            doesn't get the current thread's tags
+     * @return sql as it should be sent to the database - with the comment of the {@link SQLCommenter}, if
+     *         there is one.
+     */
+    String commented(String sql, boolean prepared)
+    {
+        SQLCommenter commenter = commenter_;
+        return commenter == null ? sql : commenter.apply(sql, !prepared);
+    }
+
+    private static AtomicInteger mbeanIds_ = new AtomicInteger();
+    private ObjectName           mbeanName_;
+    /**
+     * Register a {@link ConnectionMonitor} for this connection with the platform MBean server, so that its
+     * state can be watched (and a reconnect forced) from jconsole and the like. It is unregistered by
+     * {@link #close()}. The statements are only tracked from here on, so the open and in flight statement
+     * counts leave out the ones prepared before it was registered.
+     * 
+     * @return the name it was registered under
+     */
+    public synchronized ObjectName registerMBean() throws SQLException
+    {
+        if (mbeanName_ == null)
+        {
+            try
+            {
+                ObjectName name = new ObjectName("sqlWrapper:type=WrappedConnection,server="
+                        + ObjectName.quote(server_) + ",id=" + mbeanIds_.incrementAndGet());
+                statements_ = Collections.synchronizedSet(Collections
+                        .newSetFromMap(new WeakHashMap<WrappedPreparedStatement, Boolean>()));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new ConnectionMonitor(this), name);
+                mbeanName_ = name;
+            }
+            catch (Exception e)
+            {
+                statements_ = null;
+                throw new SQLException("Couldn't register the MBean for " + server_ + ": " + e.toString(), e);
+            }
+        }
+        return mbeanName_;
+    }
+
+    private synchronized void unregisterMBean()
+    {
+        if (mbeanName_ != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName_);
+            }
+            catch (Exception e)
+            {
+                logger.warn("Couldn't unregister the MBean " + mbeanName_ + ": " + e.toString());
+            }
+            mbeanName_ = null;
+            statements_ = null;
+        }
+    }
+
+    /**
+     * @return a new, independent connection to the same database, with the same credentials.
+     */
+    WrappedConnection newSiblingConnection() throws SQLException
+    {
+        try
+        {
+            return new WrappedConnection(userName_, password_, driver_, server_, useUTF8_);
+        }
+        catch (ClassNotFoundException e)
+        {
+            // can't happen - the driver was loaded to create this connection.
+            throw new SQLException("Unexpected Error " + e.toString());
+        }
+    }
+
+    private volatile WriteBehindQueue writeBehindQueue_;
+    /**
+     * Turn on write behind mode, which allows {@link WrappedPreparedStatement#executeUpdateAsync()} to be
+     * used for updates that don't need to be synchronous (audit rows, counters). The updates are executed by
+     * a writer thread on a separate connection to the same database, in one transaction per batch.
+     * 
+     * @param capacity the maximum number of queued updates - executeUpdateAsync blocks when the queue is full
+     * @param maxBatchRows the maximum number of updates per transaction
+     * @param maxDelayMillis the longest the writer waits for more updates before committing a batch
+     */
+    public synchronized void enableWriteBehind(int capacity, int maxBatchRows, long maxDelayMillis)
+            throws SQLException
+    {
+        if (writeBehindQueue_ != null)
+        {
+            throw new SQLException("Write behind is already enabled");
+        }
+        writeBehindQueue_ = new WriteBehindQueue(this, newSiblingConnection(), capacity, maxBatchRows,
+                                                 maxDelayMillis);
+    }
+
+    /**
+     * @return the write behind queue, or null if write behind isn't enabled.
+     */
+    public WriteBehindQueue getWriteBehindQueue()
+    {
+        return writeBehindQueue_;
+    }
+
+    private volatile FlightRecorder flightRecorder_;
+    /**
+     * Replace the connection's {@link FlightRecorder} - by default it keeps the last 128 executions, with 64
+     * bytes of parameters each.
+     * 
+     * @param entries the number of executions to keep - 0 turns the recorder off
+     * @param parameterBytes the space for the parameter values of each execution
+     */
+    public void setFlightRecorder(int entries, int parameterBytes)
+    {
+        flightRecorder_ = entries <= 0 ? null : new FlightRecorder(server_, entries, parameterBytes);
+    }
+
+    /**
+     * @return the flight recorder, or null if it has been turned off.
+     */
+    public FlightRecorder getFlightRecorder()
+    {
+        return flightRecorder_;
+    }
+
+    private volatile WorkloadStatistics workloadStatistics_;
+    /**
+     * @param workloadStatistics where to count the executions of statements created by this connection, by
+     *            {@link SQLFingerprint} - null (the default) for no counting.
+     */
+    public void setWorkloadStatistics(WorkloadStatistics workloadStatistics)
+    {
+        workloadStatistics_ = workloadStatistics;
+    }
+
+    public WorkloadStatistics getWorkloadStatistics()
+    {
+        return workloadStatistics_;
+    }
+
+    private volatile WorkloadCapture workloadCapture_;
+    /**
+     * @param workloadCapture where to record the statements executed on this connection, for
+     *            {@link WorkloadReplay} - null (the default) for no recording.
+     */
+    public void setWorkloadCapture(WorkloadCapture workloadCapture)
+    {
+        workloadCapture_ = workloadCapture;
+    }
+
+    public WorkloadCapture getWorkloadCapture()
+    {
+        return workloadCapture_;
+    }
+
+    private volatile long slowStatementThreshold_ = 0;
+    /**
+     * @param millis statements that run longer than this are cancelled by the {@link StatementWatchdog} (and
+     *            logged, with the stack of the waiting thread). 0, the default, turns this off - though a thread's
+     *            {@link Deadline} is still enforced.
+     */
+    public void setSlowStatementThreshold(long millis)
+    {
+        slowStatementThreshold_ = Math.max(0, millis);
+    }
+
+    public long getSlowStatementThreshold()
+    {
+        return slowStatementThreshold_;
+    }
+
+    private volatile RetryPolicy retryPolicy_ = new SQLStateRetryPolicy();
+    /**
+     * @param retryPolicy decides whether, and how, statements created by this connection are retried when they
+     *            fail. The default is a {@link SQLStateRetryPolicy}.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        retryPolicy_ = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy()
+    {
+        return retryPolicy_;
+    }
+
+    private TransactionJournal journal_ = new TransactionJournal();
+    /**
+     * Turn on transaction replay. Without it, if the connection has to be reestablished part way through a
+     * transaction that has made changes, the statement that hit the failure throws an SQLException with
+     * SQLState 08007, as the earlier statements of the transaction were rolled back with the old connection.
+     * With it, the statements of the transaction so far are replayed on the new connection first. See
+     * {@link TransactionJournal} for which transactions can be replayed.
+     * 
+     * @param maxStatements the most statements kept for a transaction - larger transactions can't be replayed
+     * @param maxBytes the most memory (roughly) kept for a transaction
+     * @return the journal, for setting the non idempotent statement policy, and for its metrics.
+     */
+    public TransactionJournal enableTransactionReplay(int maxStatements, long maxBytes)
+    {
+        journal_.setLimits(maxStatements, maxBytes);
+        return journal_;
+    }
+
+    public TransactionJournal getTransactionJournal()
+    {
+        return journal_;
+    }
+
+    /**
+     * Note a statement that completed - used for transaction replay.
+     */
+    void statementExecuted(String sql, Hashtable<Integer, QueryParameter> variables, boolean query)
+    {
+        if (!isAutoCommitMode())
+        {
+            journal_.record(sql, variables, query);
+        }
+    }
+
+    private volatile UpdateSpool updateSpool_;
+    /**
+     * Turn on the update spool. When the database can't be reached (the reconnect attempts have all failed),
+     * executeUpdate on an auto commit connection appends the update to a spool on disk, and returns
+     * {@link java.sql.Statement#SUCCESS_NO_INFO} rather than throwing. The spooled updates are replayed in
+     * order, on a separate connection, once the database is back. While the spool holds updates, new updates
+     * are spooled behind them, so that they are applied in order. Updates inside a transaction are never
+     * spooled.
+     * 
+     * @param directory where the spool segments are kept - updates left by an earlier run are replayed.
+     * @param segmentBytes the size of each spool file
+     * @param maxBytes the most disk space the spool may use - once it is full, updates fail as they would
+     *            without a spool.
+     * @return the spool, for setting the fsync policy and replay rate.
+     */
+    public synchronized UpdateSpool enableUpdateSpool(File directory, int segmentBytes, long maxBytes)
+            throws SQLException
+    {
+        if (updateSpool_ != null)
+        {
+            throw new SQLException("The update spool is already enabled");
+        }
+        updateSpool_ = new UpdateSpool(this, directory, segmentBytes, maxBytes);
+        return updateSpool_;
+    }
+
+    /**
+     * @return the update spool, or null if it isn't enabled.
+     */
+    public UpdateSpool getUpdateSpool()
+    {
+        return updateSpool_;
     }
 
     protected void reconnect() throws SQLException
@@ -311,6 +1336,17 @@ public class WrappedConnection implements Connection
         int failCount = 0;
         while (true)
         {
+            if (closed_)
+            {
+                throw new SQLException("The connection to " + server_ + " has been closed", "08003");
+            }
+            Deadline deadline = Deadline.current();
+            if (deadline != null)
+            {
+                deadline.check("reconnecting to " + server_);
+            }
+
+            connected_ = false;
             try
             {
                 // try to clean up, but don't fail if we can't...
@@ -324,22 +1360,44 @@ public class WrappedConnection implements Connection
             {
             }
 
+            Object event = DiagnosticEvents.begin(DiagnosticEvents.RECONNECT);
+            StatementListeners listeners = listeners_;
+            Object[] contexts = listeners == null ? null : listeners.reconnecting(this, failCount + 1);
             try
             {
-                Properties props = new Properties();
-                props.setProperty("user", userName_);
-                props.setProperty("password", password_);
-                if (useUTF8_)
+                synchronized (connectLock_)
                 {
-                    setUTFCharsetForDB(props, server_);
+                    connection_ = openConnection();
+                    connectPending_ = false;
                 }
-                connection_ = DriverManager.getConnection(server_, props);
+                connected_ = true;
+                reconnectCount_++;
+                statementGeneration_++;
                 setAllParameters();
+                DiagnosticEvents.reconnectAttempted(event, server_, failCount + 1, null);
+                if (listeners != null)
+                {
+                    listeners.reconnected(contexts, this, null);
+                }
+                if (leakDetector_ != null)
+                {
+                    leakDetector_.connectionReplaced();
+                }
+                UpdateSpool updateSpool = updateSpool_;
+                if (updateSpool != null)
+                {
+                    updateSpool.wakeUp();
+                }
                 break;
 
             }
             catch (SQLException e)
             {
+                DiagnosticEvents.reconnectAttempted(event, server_, failCount + 1, e);
+                if (listeners != null)
+                {
+                    listeners.reconnected(contexts, this, e);
+                }
                 logger.warn("Reconnect failed on attempt " + failCount);
                 failCount++;
                 if (failCount > maxFailCount_)
@@ -348,6 +1406,35 @@ public class WrappedConnection implements Connection
                 }
             }
         }
+
+        // the transaction in progress went with the old connection - replay it, or fail
+        if (!isAutoCommitMode())
+        {
+            journal_.replay(connection_);
+        }
+    }
+
+    private static void setConnectTimeoutForDB(Properties props, String URL, long millis)
+    {
+        String tempURL = URL.toLowerCase();
+        String seconds = Long.toString(Math.max(1, (millis + 999) / 1000));
+        if (tempURL.indexOf("postgresql") != -1)
+        {
+            props.setProperty("loginTimeout", seconds);
+            props.setProperty("connectTimeout", seconds);
+        }
+        else if (tempURL.indexOf("mysql") != -1)
+        {
+            props.setProperty("connectTimeout", Long.toString(millis));
+        }
+        else if (tempURL.indexOf("sqlserver") != -1 || tempURL.indexOf("jtds") != -1)
+        {
+            props.setProperty("loginTimeout", seconds);
+        }
+        else if (tempURL.indexOf("oracle") != -1)
+        {
+            props.setProperty("oracle.net.CONNECT_TIMEOUT", Long.toString(millis));
+        }
     }
 
     private static void setUTFCharsetForDB(Properties props, String URL)
@@ -373,13 +1460,14 @@ public class WrappedConnection implements Connection
     @Override
     public Savepoint setSavepoint() throws SQLException
     {
-        throw new java.lang.UnsupportedOperationException("Method setSavepoint not yet implemented.");
+        journal_.savepointUsed();
+        return getPhysicalConnection().setSavepoint();
     }
 
     @Override
     public void releaseSavepoint(Savepoint savepoint) throws SQLException
     {
-        throw new java.lang.UnsupportedOperationException("Method releaseSavepoint not yet implemented.");
+        getPhysicalConnection().releaseSavepoint(savepoint);
     }
 
     @Override
@@ -453,7 +1541,8 @@ public class WrappedConnection implements Connection
     @Override
     public Savepoint setSavepoint(String name) throws SQLException
     {
-        throw new java.lang.UnsupportedOperationException("Method setSavepoint not yet implemented.");
+        journal_.savepointUsed();
+        return getPhysicalConnection().setSavepoint(name);
     }
 
     @Override
@@ -503,7 +1592,7 @@ public class WrappedConnection implements Connection
 	@Override
 	public Properties getClientInfo() throws SQLException
 	{
-		return connection_.getClientInfo();
+		return getPhysicalConnection().getClientInfo();
 	}
 
 	@Override
@@ -515,7 +1604,7 @@ public class WrappedConnection implements Connection
 	@Override
 	public boolean isValid(int arg0) throws SQLException
 	{
-		return connection_.isValid(arg0);
+		return getPhysicalConnection().isValid(arg0);
 	}
 
 	@Override
@@ -534,13 +1623,13 @@ public class WrappedConnection implements Connection
 	@Override
 	public boolean isWrapperFor(Class<?> iface) throws SQLException
 	{
-		return connection_.isWrapperFor(iface);
+		return getPhysicalConnection().isWrapperFor(iface);
 	}
 
 	@Override
 	public <T> T unwrap(Class<T> iface) throws SQLException
 	{
-		return connection_.unwrap(iface);
+		return getPhysicalConnection().unwrap(iface);
 	}
 	
 	public static void main(String[] args) throws ClassNotFoundException, SQLException
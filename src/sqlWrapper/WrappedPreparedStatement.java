@@ -31,13 +31,20 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.RowId;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.SQLWarning;
 import java.sql.SQLXML;
+import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -58,6 +65,14 @@ public class WrappedPreparedStatement implements PreparedStatement
 
     private Hashtable<Integer, QueryParameter>  setVariables_;
     private String                              sql_;
+    private String                              preparedSql_;
+    private int                                 sqlId_;
+    private SQLFingerprint                      fingerprint_;
+    private int                                 statementGeneration_;
+    private LeakDetector.Tracked                tracked_, resultSetTracked_;
+    private volatile long                       executingSince_ = 0;
+    private volatile Thread                     executingThread_;
+    private volatile String                     executingSql_;
     private Integer                             fetchDirection_, fetchSize_, maxFieldSize_, maxRows_, queryTimeout_;
 
     private Integer                             resultSetType_, resultSetConcurrency_;
@@ -67,20 +82,39 @@ public class WrappedPreparedStatement implements PreparedStatement
     public WrappedPreparedStatement(WrappedConnection connection, String sql) throws SQLException
     {
         sql_ = sql;
+        sqlId_ = SQLCatalog.idOf(sql);
         setVariables_ = new Hashtable<Integer, QueryParameter>();
         wrappedConnection_ = connection;
-        statement_ = wrappedConnection_.connection_.prepareStatement(sql_);
+        statementGeneration_ = wrappedConnection_.getStatementGeneration();
+        preparedSql_ = wrappedConnection_.commented(sql, true);
+        statement_ = wrappedConnection_.getPhysicalConnection().prepareStatement(preparedSql_);
+        opened();
     }
 
     public WrappedPreparedStatement(WrappedConnection connection, String sql, int resultSetType,
             int resultSetConcurrency) throws SQLException
     {
         sql_ = sql;
+        sqlId_ = SQLCatalog.idOf(sql);
         resultSetType_ = new Integer(resultSetType);
         resultSetConcurrency_ = new Integer(resultSetConcurrency);
         setVariables_ = new Hashtable<Integer, QueryParameter>();
         wrappedConnection_ = connection;
-        statement_ = wrappedConnection_.connection_.prepareStatement(sql_, resultSetType, resultSetConcurrency);
+        statementGeneration_ = wrappedConnection_.getStatementGeneration();
+        preparedSql_ = wrappedConnection_.commented(sql, true);
+        statement_ = wrappedConnection_.getPhysicalConnection().prepareStatement(preparedSql_, resultSetType,
+                                                                                 resultSetConcurrency);
+        opened();
+    }
+
+    private void opened()
+    {
+        wrappedConnection_.statementOpened(this);
+        LeakDetector detector = wrappedConnection_.getLeakDetector();
+        if (detector != null)
+        {
+            tracked_ = detector.statementOpened(this, statement_, sql_);
+        }
     }
 
 	@Override
@@ -256,113 +290,245 @@ public class WrappedPreparedStatement implements PreparedStatement
         setVariables_.put(parameterIndex, temp);
     }
 
-    private void setType(int parameterIndex, QueryParameter value) throws SQLException
-    {
-        switch (value.type)
+    /**
+     * Bind the values for an {IN_LIST:n} token that was translated by the GenericSQLModifier. On PostgreSQL
+     * the values are bound as a single array parameter. Everywhere else, they are bound to the bucket of
+     * placeholders that the token was expanded to, padded out with the last value - so there can be up to
+     * as many values as the bucket for n holds.
+     * 
+     * @param parameterIndex the index of the first placeholder of the list
+     * @param values the values - must not be empty
+     * @return the index of the first placeholder following the list
+     */
+    public int setInList(int parameterIndex, Collection<?> values) throws SQLException
+    {
+        return setInList(parameterIndex, values, null);
+    }
+
+    /**
+     * @param arrayTypeName the database type name of the elements, used for the array on PostgreSQL. If
+     *            null, it is picked based on the class of the first value.
+     * @see #setInList(int, Collection)
+     */
+    public int setInList(int parameterIndex, Collection<?> values, String arrayTypeName) throws SQLException
+    {
+        if (values == null || values.size() == 0)
         {
-            case WrapperConstants.STRING : {
-                statement_.setString(parameterIndex, (String) value.value);
-                break;
-            }
-            case WrapperConstants.BOOLEAN : {
-                statement_.setBoolean(parameterIndex, ((Boolean) value.value).booleanValue());
-                break;
-            }
-            case WrapperConstants.NULL : {
-                statement_.setNull(parameterIndex, ((Integer) value.value).intValue());
-                break;
-            }
-            case WrapperConstants.TIME : {
-                statement_.setTime(parameterIndex, ((Time) value.value));
-                break;
-            }
+            throw new SQLException("An IN list requires at least one value");
+        }
+        Object[] temp = values.toArray();
+        if ("PostgreSQL".equals(wrappedConnection_.getDatabaseProductName()))
+        {
+            QueryParameter para = new QueryParameter(WrapperConstants.IN_LIST, temp);
+            para.typeName = (arrayTypeName == null ? getArrayTypeName(temp[0]) : arrayTypeName);
+            setType(parameterIndex, para);
+            setVariables_.put(parameterIndex, para);
+            return parameterIndex + 1;
+        }
 
-            case WrapperConstants.TIMESTAMP : {
-                statement_.setTimestamp(parameterIndex, ((Timestamp) value.value));
-                break;
-            }
-            case WrapperConstants.BYTE : {
-                statement_.setByte(parameterIndex, ((Byte) value.value).byteValue());
-                break;
-            }
-            case WrapperConstants.DOUBLE : {
-                statement_.setDouble(parameterIndex, ((Double) value.value).doubleValue());
-                break;
+        int bucket = getInListPlaceholderCount(parameterIndex);
+        if (temp.length > bucket)
+        {
+            throw new SQLException("The IN list at parameter " + parameterIndex + " has " + bucket
+                    + " placeholders - too few for " + temp.length + " values: " + sql_);
+        }
+        for (int i = 0; i < bucket; i++)
+        {
+            setObject(parameterIndex + i, temp[Math.min(i, temp.length - 1)]);
+        }
+        return parameterIndex + bucket;
+    }
+
+    /**
+     * @return the number of placeholders in the IN list that starts at parameterIndex - what the
+     *         {IN_LIST:n} token was expanded to.
+     */
+    private int getInListPlaceholderCount(int parameterIndex) throws SQLException
+    {
+        int i = indexOfPlaceholder(sql_, parameterIndex);
+        if (i == -1)
+        {
+            throw new SQLException("There is no parameter " + parameterIndex + ": " + sql_);
+        }
+        int before = i - 1;
+        while (before >= 0 && Character.isWhitespace(sql_.charAt(before)))
+        {
+            before--;
+        }
+        if (before < 0 || sql_.charAt(before) != '(')
+        {
+            throw new SQLException("Parameter " + parameterIndex + " isn't the start of an IN list: " + sql_);
+        }
+        int count = 1;
+        for (i++; i < sql_.length(); i++)
+        {
+            char c = sql_.charAt(i);
+            if (c == '?')
+            {
+                count++;
             }
-            case WrapperConstants.FLOAT : {
-                statement_.setFloat(parameterIndex, ((Float) value.value).floatValue());
+            else if (c != ',' && !Character.isWhitespace(c))
+            {
                 break;
             }
-            case WrapperConstants.INT : {
-                statement_.setInt(parameterIndex, ((Integer) value.value).intValue());
-                break;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of placeholders in sql - not counting a ? in a string literal, a quoted identifier or a
+     *         comment.
+     */
+    static int getPlaceholderCount(String sql)
+    {
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++)
+        {
+            int end = skipQuotedOrComment(sql, i);
+            if (end != i)
+            {
+                i = end - 1;
             }
-            case WrapperConstants.LONG : {
-                statement_.setLong(parameterIndex, ((Long) value.value).longValue());
-                break;
+            else if (sql.charAt(i) == '?')
+            {
+                count++;
             }
-            case WrapperConstants.SHORT : {
-                statement_.setShort(parameterIndex, ((Short) value.value).shortValue());
-                break;
+        }
+        return count;
+    }
+
+    /**
+     * @return the position in sql of placeholder parameterIndex (counting from 1), or -1 if there isn't one.
+     *         A ? in a string literal, a quoted identifier or a comment isn't a placeholder.
+     */
+    static int indexOfPlaceholder(String sql, int parameterIndex)
+    {
+        int parameter = 0;
+        for (int i = 0; i < sql.length(); i++)
+        {
+            int end = skipQuotedOrComment(sql, i);
+            if (end != i)
+            {
+                i = end - 1;
             }
-            case WrapperConstants.BYTES : {
-                Byte[] temp = ((Byte[]) value.value);
-                byte[] temp1 = new byte[temp.length];
-                for (int i = 0; i < temp1.length; i++)
-                {
-                    temp1[i] = temp[i].byteValue();
-                }
-                statement_.setBytes(parameterIndex, temp1);
-                break;
+            else if (sql.charAt(i) == '?' && ++parameter == parameterIndex)
+            {
+                return i;
             }
-            case WrapperConstants.OBJECT : {
-                if (value.targetType != Integer.MIN_VALUE)
-                {
-                    statement_.setObject(parameterIndex, value.value, value.targetType);
-                }
-                else
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position just past the string literal, quoted identifier or comment that starts at i - or i
+     *         if none starts there.
+     */
+    static int skipQuotedOrComment(String sql, int i)
+    {
+        char c = sql.charAt(i);
+        if (c == '\'' || c == '"')
+        {
+            for (int j = i + 1; j < sql.length(); j++)
+            {
+                if (sql.charAt(j) == c)
                 {
-                    statement_.setObject(parameterIndex, value.value);
+                    // a doubled quote is an escaped quote
+                    if (j + 1 < sql.length() && sql.charAt(j + 1) == c)
+                    {
+                        j++;
+                    }
+                    else
+                    {
+                        return j + 1;
+                    }
                 }
-                break;
             }
-            case WrapperConstants.BIGDECIMAL : {
-                statement_.setBigDecimal(parameterIndex, (BigDecimal) value.value);
-                break;
-            }
-            case WrapperConstants.URL : {
-                statement_.setURL(parameterIndex, (URL) value.value);
-                break;
-            }
-            case WrapperConstants.ARRAY : {
-                statement_.setArray(parameterIndex, (Array) value.value);
-                break;
-            }
-            case WrapperConstants.BLOB : {
-                statement_.setBlob(parameterIndex, (Blob) value.value);
-                break;
-            }
-            case WrapperConstants.CLOB : {
-                statement_.setClob(parameterIndex, (Clob) value.value);
-                break;
-            }
-            case WrapperConstants.DATE : {
-                statement_.setDate(parameterIndex, (Date) value.value);
-                break;
-            }
-            case WrapperConstants.REF : {
-                statement_.setRef(parameterIndex, (Ref) value.value);
-                break;
-            }
-            default : {
-                throw new SQLException("Unknown object type passed through WrappedPreparedStatment");
+            return sql.length();
+        }
+        else if (c == '-' && sql.startsWith("--", i))
+        {
+            int end = sql.indexOf('\n', i);
+            return end == -1 ? sql.length() : end + 1;
+        }
+        else if (c == '/' && sql.startsWith("/*", i))
+        {
+            int end = sql.indexOf("*/", i + 2);
+            return end == -1 ? sql.length() : end + 2;
+        }
+        return i;
+    }
 
-            }
+    private static String getArrayTypeName(Object value) throws SQLException
+    {
+        if (value instanceof String)
+        {
+            return "varchar";
+        }
+        else if (value instanceof Integer)
+        {
+            return "int4";
+        }
+        else if (value instanceof Long)
+        {
+            return "int8";
+        }
+        else if (value instanceof Short)
+        {
+            return "int2";
+        }
+        else if (value instanceof Double)
+        {
+            return "float8";
+        }
+        else if (value instanceof Float)
+        {
+            return "float4";
+        }
+        else if (value instanceof BigDecimal)
+        {
+            return "numeric";
+        }
+        else if (value instanceof Boolean)
+        {
+            return "bool";
+        }
+        else if (value instanceof Date)
+        {
+            return "date";
+        }
+        else if (value instanceof Timestamp)
+        {
+            return "timestamp";
+        }
+        else if (value instanceof UUID)
+        {
+            return "uuid";
+        }
+        throw new SQLException("Can't determine the array type for an IN list of " + value.getClass().getName()
+                + " - pass the arrayTypeName");
+    }
+
+    private void setType(int parameterIndex, QueryParameter value) throws SQLException
+    {
+        value.bind(statement_, parameterIndex, wrappedConnection_.getPhysicalConnection());
+        StatementListeners listeners = wrappedConnection_.getStatementListeners();
+        if (listeners != null)
+        {
+            listeners.parameterBound(this, parameterIndex, value.value);
         }
     }
 
     public void close() throws SQLException
     {
+        wrappedConnection_.statementClosed(this);
+        if (tracked_ != null)
+        {
+            tracked_.closed();
+        }
+        if (resultSetTracked_ != null)
+        {
+            resultSetTracked_.closed();
+        }
         statement_.close();
     }
 
@@ -575,14 +741,20 @@ public class WrappedPreparedStatement implements PreparedStatement
     private void rebuildStatement() throws SQLException
     {
         logger.debug("recreating the prepared statement");
+        statementGeneration_ = wrappedConnection_.getStatementGeneration();
         if (resultSetConcurrency_ != null && resultSetType_ != null)
         {
-            statement_ = wrappedConnection_.connection_.prepareStatement(sql_, resultSetType_.intValue(),
-                                                                         resultSetConcurrency_.intValue());
+            statement_ = wrappedConnection_.getPhysicalConnection().prepareStatement(preparedSql_,
+                                                                                     resultSetType_.intValue(),
+                                                                                     resultSetConcurrency_.intValue());
         }
         else
         {
-            statement_ = wrappedConnection_.connection_.prepareStatement(sql_);
+            statement_ = wrappedConnection_.getPhysicalConnection().prepareStatement(preparedSql_);
+        }
+        if (tracked_ != null)
+        {
+            tracked_.setStatement(statement_);
         }
     }
 
@@ -639,7 +811,18 @@ public class WrappedPreparedStatement implements PreparedStatement
         setAllParameters();
     }
 
-    private String toString(String sql, boolean throwException) throws SQLException
+    /**
+     * @return the values currently set, by parameter index (references to them - nothing is copied).
+     */
+    private QueryParameter[] snapshotParameters()
+    {
+        return QueryParameter.toArray(setVariables_);
+    }
+
+    /**
+     * @return sql, with the parameter values in place of the question marks.
+     */
+    static String describe(String sql, QueryParameter[] parameters)
     {
         if (sql == null)
         {
@@ -651,17 +834,11 @@ public class WrappedPreparedStatement implements PreparedStatement
         {
             if (temp.charAt(i) == '?')
             {
-                QueryParameter para = ((QueryParameter) setVariables_.get(new Integer(parameterIndex++)));
+                QueryParameter para = parameterIndex < parameters.length ? parameters[parameterIndex] : null;
+                parameterIndex++;
                 if (para == null)
                 {
-                    if (throwException)
-                    {
-                        throw new SQLException("You forgot to set parameter " + parameterIndex);
-                    }
-                    else
-                    {
-                        para = new QueryParameter(0, "--UNSET_PARAMETER--");
-                    }
+                    para = new QueryParameter(0, "--UNSET_PARAMETER--");
                 }
                 
                 String replacementValue = "";
@@ -671,7 +848,8 @@ public class WrappedPreparedStatement implements PreparedStatement
                 }
                 else
                 {
-                    replacementValue = "'" + (para.value == null ? "null" : para.value.toString()) + "'";
+                    replacementValue = "'" + (para.value == null ? "null" : (para.type == WrapperConstants.IN_LIST
+                            ? Arrays.asList((Object[]) para.value).toString() : para.value.toString())) + "'";
                 }
                 temp.replace(i, i + 1, replacementValue);
                 i = i + replacementValue.length();
@@ -683,22 +861,17 @@ public class WrappedPreparedStatement implements PreparedStatement
 	@Override
     public String toString()
     {
-        try
-        {
-            return toString(this.sql_, false);
-        }
-        catch (SQLException e)
-        {
-            // this exception actually won't be thrown because of the above false param.
-            return null;
-        }
+        return describe(sql_, snapshotParameters());
     }
 
-    private void debugQuery(String sql) throws SQLException
+    /**
+     * Hand the statement to the {@link QueryLog} - it is rendered and written on the log thread.
+     */
+    private void debugQuery(String sql)
     {
         if (logger.isDebugEnabled())
         {
-            logger.debug("Executing query: " + this.toString(sql, true));
+            QueryLog.getShared().statementExecuting(sql, snapshotParameters());
         }
     }
 
@@ -706,181 +879,442 @@ public class WrappedPreparedStatement implements PreparedStatement
     public ResultSet executeQuery() throws SQLException
     {
         debugQuery(sql_);
-        try
-        {
-            return statement_.executeQuery();
-        }
-        catch (Exception e)
-        {
-            // try the query again.
-            try
-            {
-                rebuildAll();
-                return statement_.executeQuery();
-            }
-            catch (SQLException e1)
-            {
-                // if anything goes wrong in retrying the query, lets just throw the origional exception
-                if (e instanceof SQLException)
-                {
-                    throw (SQLException) e;
-                }
-                else
-                {
-                    throw new SQLException("Unexpected Error " + e.toString());
-                }
-            }
-        }
+        return (ResultSet) execute(QUERY, null);
     }
 
 	@Override
     public ResultSet executeQuery(String sql) throws SQLException
     {
         debugQuery(sql);
-        try
+        return (ResultSet) execute(QUERY, sql);
+    }
+
+	@Override
+    public boolean execute(String sql) throws SQLException
+    {
+        debugQuery(sql);
+        return ((Boolean) execute(EXECUTE, sql)).booleanValue();
+    }
+
+	@Override
+    public int executeUpdate() throws SQLException
+    {
+        debugQuery(sql_);
+        if (mustSpool())
         {
-            return statement_.executeQuery(sql);
+            return spoolUpdate(sql_, setVariables_, null);
         }
-        catch (Exception e)
+        return ((Integer) execute(UPDATE, null)).intValue();
+    }
+
+    static final int              QUERY      = 0;
+    static final int              UPDATE     = 1;
+    static final int              EXECUTE    = 2;
+    private static final String[] OPERATIONS = {"query", "update", "execute"};
+
+    private Object run(int operation, String sql) throws SQLException
+    {
+        if (sql != null)
         {
-            // try the query again.
-            try
-            {
-                rebuildAll();
-                return statement_.executeQuery(sql);
-            }
-            catch (SQLException e1)
-            {
-                // if anything goes wrong in retrying the query, lets just throw the origional exception
-                if (e instanceof SQLException)
-                {
-                    throw (SQLException) e;
-                }
-                else
-                {
-                    throw new SQLException("Unexpected Error " + e.toString());
-                }
-            }
+            sql = wrappedConnection_.commented(sql, false);
+        }
+        switch (operation)
+        {
+            case QUERY :
+                return sql == null ? statement_.executeQuery() : statement_.executeQuery(sql);
+            case UPDATE :
+                return new Integer(sql == null ? statement_.executeUpdate() : statement_.executeUpdate(sql));
+            default :
+                return new Boolean(sql == null ? statement_.execute() : statement_.execute(sql));
+        }
+    }
 
+    /**
+     * Have the watchdog cancel this execution if it runs past the connection's slow statement threshold, or
+     * the thread's deadline.
+     * 
+     * @return the watch, or null if there is no limit
+     */
+    private StatementWatchdog.Watch startWatch(Deadline deadline)
+    {
+        long threshold = wrappedConnection_.getSlowStatementThreshold();
+        long limit = threshold > 0 ? TimeUnit.MILLISECONDS.toNanos(threshold) : Long.MAX_VALUE;
+        if (deadline != null)
+        {
+            limit = Math.min(limit, deadline.remainingNanos());
         }
+        return limit == Long.MAX_VALUE ? null : StatementWatchdog.getShared().watch(this, limit);
     }
-
-	@Override
-    public boolean execute(String sql) throws SQLException
+
+    private SQLTimeoutException deadlineExceeded(int attempts, SQLException original)
     {
-        debugQuery(sql);
+        SQLTimeoutException temp = new SQLTimeoutException("Deadline exceeded after " + attempts
+                + " attempt(s) at: " + sql_, Deadline.DEADLINE_EXCEEDED);
+        if (original != null)
+        {
+            temp.initCause(original);
+        }
+        return temp;
+    }
+
+    /**
+     * Run the statement, retrying as the connection's {@link RetryPolicy} says.
+     * 
+     * @param sql the sql to run, or null to run the prepared statement
+     * @return the ResultSet, Integer update count or Boolean from the underlying call
+     */
+    private Object execute(int operation, String sql) throws SQLException
+    {
+        WorkloadStatistics statistics = wrappedConnection_.getWorkloadStatistics();
+        WorkloadCapture capture = wrappedConnection_.getWorkloadCapture();
+        long started = statistics == null && capture == null ? 0 : System.nanoTime();
+        QueryParameter[] parameters = capture == null || sql != null ? null : snapshotParameters();
+        Object event = DiagnosticEvents.begin(DiagnosticEvents.EXECUTE);
+        StatementListeners listeners = wrappedConnection_.getStatementListeners();
+        Object[] contexts = listeners == null ? null : listeners.executing(this, sql == null ? sql_ : sql,
+                                                                           OPERATIONS[operation]);
+        executingThread_ = Thread.currentThread();
+        executingSql_ = sql;
+        executingSince_ = System.currentTimeMillis();
         try
         {
-            return statement_.execute(sql);
+            Object result = executeWithRetries(operation, sql, listeners, contexts);
+            wrappedConnection_.statementCompleted(false);
+            wrappedConnection_.sqlExecuted(sql == null ? sql_ : sql);
+            if (result instanceof ResultSet)
+            {
+                trackResultSet((ResultSet) result);
+            }
+            int rows = result instanceof Integer ? ((Integer) result).intValue() : 0;
+            if (listeners != null)
+            {
+                listeners.executed(contexts, this, rows, null);
+            }
+            if (statistics != null)
+            {
+                statistics.record(getFingerprint(sql), System.nanoTime() - started, rows, false);
+            }
+            if (capture != null)
+            {
+                capture.executed(sql == null ? sql_ : sql, parameters, operation, started, System.nanoTime()
+                        - started, rows, false);
+            }
+            if (event != null)
+            {
+                DiagnosticEvents.executed(event, getFingerprint(sql), OPERATIONS[operation], rows, null);
+            }
+            return result;
         }
         catch (SQLException e)
         {
-            // try the query again.
-            try
+            wrappedConnection_.statementCompleted(true);
+            if (listeners != null)
             {
-                rebuildAll();
-                return statement_.execute(sql);
+                listeners.executed(contexts, this, 0, e);
             }
-            catch (SQLException e1)
+            if (statistics != null)
             {
-                // if anything goes wrong in retrying the query, lets just throw the original exception
-                if (e instanceof SQLException)
-                {
-                    throw (SQLException) e;
-                }
-                else
-                {
-                    throw new SQLException("Unexpected Error " + e.toString());
-                }
+                statistics.record(getFingerprint(sql), System.nanoTime() - started, 0, true);
+            }
+            if (capture != null)
+            {
+                capture.executed(sql == null ? sql_ : sql, parameters, operation, started, System.nanoTime()
+                        - started, 0, true);
+            }
+            if (event != null)
+            {
+                DiagnosticEvents.executed(event, getFingerprint(sql), OPERATIONS[operation], 0, e);
             }
+            FlightRecorder recorder = wrappedConnection_.getFlightRecorder();
+            if (recorder != null)
+            {
+                recorder.statementFailed(e);
+            }
+            throw e;
+        }
+        finally
+        {
+            executingSince_ = 0;
+        }
+    }
 
+    private void trackResultSet(ResultSet resultSet)
+    {
+        LeakDetector detector = wrappedConnection_.getLeakDetector();
+        if (detector != null)
+        {
+            if (resultSetTracked_ != null)
+            {
+                // executing the statement again closed the last one
+                resultSetTracked_.closed();
+            }
+            resultSetTracked_ = detector.resultSetOpened(resultSet, tracked_, sql_);
         }
     }
-
-	@Override
-    public int executeUpdate() throws SQLException
+
+    /**
+     * @return when the statement started executing, or 0 if it isn't.
+     */
+    long getExecutingSince()
     {
-        debugQuery(sql_);
+        return executingSince_;
+    }
 
-        try
+    /**
+     * @return how long the statement has been executing, on which thread, and the sql with the parameter
+     *         values - or null if it isn't executing.
+     */
+    String describeExecution(long now)
+    {
+        long since = executingSince_;
+        if (since == 0)
         {
-            return statement_.executeUpdate();
+            return null;
         }
-        catch (SQLException e)
+        String sql = executingSql_;
+        return (now - since) + "ms on thread \"" + executingThread_.getName() + "\": "
+                + (sql == null ? describe(sql_, snapshotParameters()) : sql);
+    }
+
+    /**
+     * @param sql the sql passed to execute, or null for the sql of this statement (whose fingerprint is kept)
+     */
+    private SQLFingerprint getFingerprint(String sql)
+    {
+        if (sql != null)
         {
-            // try the query again.
-            try
+            return SQLFingerprint.of(sql);
+        }
+        if (fingerprint_ == null)
+        {
+            fingerprint_ = SQLFingerprint.of(sql_);
+        }
+        return fingerprint_;
+    }
+
+    /**
+     * @param listeners the listeners to tell about retries, or null
+     * @param contexts the contexts they returned for the execution
+     */
+    private Object executeWithRetries(int operation, String sql, StatementListeners listeners, Object[] contexts)
+            throws SQLException
+    {
+        FlightRecorder recorder = wrappedConnection_.getFlightRecorder();
+        int sqlId = sqlId_;
+        if (sql != null)
+        {
+            // ad-hoc sql is recorded by its fingerprint - there can be any number of distinct strings, not of those
+            sqlId = recorder == null ? SQLCatalog.UNKNOWN : SQLCatalog.idOf(getFingerprint(sql).getText());
+        }
+        RetryPolicy policy = wrappedConnection_.getRetryPolicy();
+        boolean readOnly = operation == QUERY;
+        SQLException original = null;
+        int attempt = 0;
+        wrappedConnection_.reconnectIfRequested(false);
+        // prepare it again first if the connection has been reestablished, or the caches flushed, since
+        boolean rebuild = statementGeneration_ != wrappedConnection_.getStatementGeneration();
+        while (true)
+        {
+            Deadline deadline = Deadline.current();
+            if (deadline != null && deadline.isExpired())
             {
-                rebuildAll();
-                return statement_.executeUpdate();
+                throw deadlineExceeded(attempt, original);
             }
-            catch (SQLException e1)
+            if (rebuild)
             {
-                // if anything goes wrong in retrying the query, lets just throw the original exception
-                if (e instanceof SQLException)
+                Object event = DiagnosticEvents.begin(DiagnosticEvents.REBUILD);
+                try
                 {
-                    throw (SQLException) e;
+                    rebuildAll();
+                    DiagnosticEvents.rebuilt(event, sql_, null);
                 }
-                else
+                catch (SQLException e)
                 {
-                    throw new SQLException("Unexpected Error " + e.toString());
+                    DiagnosticEvents.rebuilt(event, sql_, e);
+                    if (TransactionJournal.TRANSACTION_LOST.equals(e.getSQLState()))
+                    {
+                        // the reconnect worked, but took the transaction with it
+                        throw e;
+                    }
+                    if (original == null)
+                    {
+                        // preparing it again, before the first attempt, failed
+                        original = e;
+                    }
+                    if (deadline != null && deadline.isExpired())
+                    {
+                        throw deadlineExceeded(attempt, original);
+                    }
+                    // couldn't get back to the database at all - no point trying again
+                    if (operation == UPDATE)
+                    {
+                        return new Integer(spoolUpdate(sql == null ? sql_ : sql, sql == null ? setVariables_
+                                : new Hashtable<Integer, QueryParameter>(), original));
+                    }
+                    throw original;
                 }
             }
-
-        }
-    }
-
-	@Override
-    public int executeUpdate(String sql) throws SQLException
-    {
-        debugQuery(sql);
-        try
-        {
-            return statement_.executeUpdate(sql);
-        }
-        catch (SQLException e)
-        {
-            // try the query again.
+            StatementWatchdog.Watch watch = startWatch(deadline);
+            long started = System.nanoTime();
             try
             {
-                rebuildAll();
-                return statement_.executeUpdate(sql);
+                Object result = run(operation, sql);
+                if (watch != null)
+                {
+                    watch.finish();
+                }
+                if (recorder != null)
+                {
+                    recorder.record(sqlId, sql == null ? setVariables_ : null, started,
+                                    result instanceof Integer ? ((Integer) result).intValue() : -1,
+                                    FlightRecorder.OK, null);
+                }
+                wrappedConnection_.statementExecuted(sql == null ? sql_ : sql, sql == null ? setVariables_ : null,
+                                                     readOnly);
+                return result;
             }
-            catch (SQLException e1)
+            catch (SQLException e)
             {
-                // if anything goes wrong in retrying the query, lets just throw the original exception
-                if (e instanceof SQLException)
+                boolean cancelled = watch != null && !watch.finish();
+                if (recorder != null)
                 {
-                    throw (SQLException) e;
+                    recorder.record(sqlId, sql == null ? setVariables_ : null, started, e.getErrorCode(),
+                                    cancelled ? FlightRecorder.CANCELLED : FlightRecorder.FAILED, e.getSQLState());
+                }
+                if (cancelled)
+                {
+                    // it was cancelled for running too long - running it again would just do the same
+                    SQLTimeoutException temp = new SQLTimeoutException("Statement cancelled after "
+                            + watch.getElapsedMillis() + "ms: " + sql_, Deadline.DEADLINE_EXCEEDED);
+                    temp.initCause(e);
+                    throw temp;
+                }
+                if (original == null)
+                {
+                    original = e;
                 }
                 else
                 {
-                    throw new SQLException("Unexpected Error " + e.toString());
+                    logger.debug("Attempt " + (attempt + 1) + " failed as well: " + e.toString());
+                }
+                attempt++;
+                int decision = policy.decide(e, attempt, readOnly, !wrappedConnection_.isAutoCommitMode());
+                if (decision == RetryPolicy.FAIL)
+                {
+                    // throw the error the caller would have got without any retries
+                    throw original;
+                }
+                rebuild = decision == RetryPolicy.RECONNECT;
+                if (listeners != null)
+                {
+                    listeners.retrying(contexts, this, attempt, e);
+                }
+                long backoff = policy.getBackoffMillis(e, attempt);
+                if (deadline != null && backoff >= deadline.remainingMillis())
+                {
+                    // no point waiting for a retry there won't be time for
+                    throw deadlineExceeded(attempt, original);
+                }
+                if (backoff > 0)
+                {
+                    try
+                    {
+                        Thread.sleep(backoff);
+                    }
+                    catch (InterruptedException e1)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw original;
+                    }
+                }
+            }
+            finally
+            {
+                // a runtime exception mustn't leave the watch to cancel a later execution
+                if (watch != null)
+                {
+                    watch.finish();
                 }
             }
-
         }
     }
 
-    private class QueryParameter
+    /**
+     * @return true if updates have to go to the connection's spool, to stay behind the updates already there.
+     */
+    private boolean mustSpool()
     {
-        int    type;
-        Object value;
-        int targetType;
+        UpdateSpool spool = wrappedConnection_.getUpdateSpool();
+        return spool != null && spool.getPendingCount() > 0 && wrappedConnection_.isAutoCommitMode();
+    }
 
-        public QueryParameter(int type, Object value)
+    /**
+     * Put the update on the connection's spool, if it has one - otherwise throw failure. See
+     * {@link WrappedConnection#enableUpdateSpool(java.io.File, int, long)}.
+     */
+    private int spoolUpdate(String sql, Hashtable<Integer, QueryParameter> variables, SQLException failure)
+            throws SQLException
+    {
+        UpdateSpool spool = wrappedConnection_.getUpdateSpool();
+        if (spool == null || !wrappedConnection_.isAutoCommitMode())
+        {
+            if (failure == null)
+            {
+                throw new SQLException("Unexpected Error - no update spool");
+            }
+            throw failure;
+        }
+        try
         {
-            this.type = type;
-            this.value = value;
-            this.targetType = Integer.MIN_VALUE;
+            spool.append(sql, new Hashtable<Integer, QueryParameter>(variables));
         }
-        
-        public QueryParameter(int type, Object value, int targetSqlType)
+        catch (SQLException e)
+        {
+            logger.warn("Couldn't spool the update: " + e.getMessage());
+            throw failure == null ? e : failure;
+        }
+        logger.debug("Update spooled for later replay");
+        return Statement.SUCCESS_NO_INFO;
+    }
+
+    /**
+     * Queue this update (with the currently set parameters) on the connection's write behind queue, rather
+     * than executing it now. The parameters may be changed, and the statement reused, as soon as this
+     * returns. See {@link WrappedConnection#enableWriteBehind(int, int, long)}.
+     * 
+     * @return a future that gives the update count once the update has been committed.
+     * @throws SQLException if write behind isn't enabled on the connection.
+     */
+    public Future<Integer> executeUpdateAsync() throws SQLException
+    {
+        WriteBehindQueue queue = wrappedConnection_.getWriteBehindQueue();
+        if (queue == null)
+        {
+            throw new SQLException("Write behind is not enabled on the connection");
+        }
+        return queue.submit(sql_, new Hashtable<Integer, QueryParameter>(setVariables_));
+    }
+
+    /**
+     * Replace the current parameters with variables.
+     */
+    void bindVariables(Hashtable<Integer, QueryParameter> variables) throws SQLException
+    {
+        setVariables_.clear();
+        statement_.clearParameters();
+        setVariables_.putAll(variables);
+        setAllVariables();
+    }
+
+	@Override
+    public int executeUpdate(String sql) throws SQLException
+    {
+        debugQuery(sql);
+        if (mustSpool())
         {
-            this.type = type;
-            this.value = value;
-            this.targetType = targetSqlType;
+            return spoolUpdate(sql, new Hashtable<Integer, QueryParameter>(), null);
         }
+        return ((Integer) execute(UPDATE, sql)).intValue();
     }
 
 	@Override
@@ -893,32 +1327,7 @@ public class WrappedPreparedStatement implements PreparedStatement
     public boolean execute() throws SQLException
     {
         debugQuery(sql_);
-        try
-        {
-            return statement_.execute();
-        }
-        catch (SQLException e)
-        {
-            // try the query again.
-            try
-            {
-                rebuildAll();
-                return statement_.execute();
-            }
-            catch (SQLException e1)
-            {
-                // if anything goes wrong in retrying the query, lets just throw the original exception
-                if (e instanceof SQLException)
-                {
-                    throw (SQLException) e;
-                }
-                else
-                {
-                    throw new SQLException("Unexpected Error " + e.toString());
-                }
-            }
-
-        }
+        return ((Boolean) execute(EXECUTE, null)).booleanValue();
     }
 
 	@Override
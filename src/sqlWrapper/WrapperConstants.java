@@ -41,4 +41,5 @@ public class WrapperConstants
     protected static final int CLOB       = 17;
     protected static final int DATE       = 18;
     protected static final int REF        = 19;
+    protected static final int IN_LIST    = 20;
 }
\ No newline at end of file
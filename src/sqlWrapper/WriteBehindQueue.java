@@ -0,0 +1,464 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Executes updates asynchronously on a dedicated writer thread and connection, grouping them into one
+ * transaction per batch. See {@link WrappedConnection#enableWriteBehind(int, int, long)}.
+ *
+ * Updates are queued on a lock free queue. The queue is bounded by a semaphore - once capacity updates
+ * are waiting, submitting blocks until the writer catches up. The writer commits a batch once it holds
+ * maxBatchRows updates, or maxDelayMillis after it took the first update of the batch.
+ *
+ * If a batch fails (or the writer connection had to reconnect part way through it, which loses the
+ * earlier statements of the transaction) the batch is rolled back and run again. If it fails a second time,
+ * each update is run in its own transaction so that one bad update only fails its own future. A commit that
+ * fails is different - it may have been applied all the same, so the futures of its updates fail with it and
+ * nothing is run again.
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+public class WriteBehindQueue
+{
+    private static final int                          MAX_CACHED_STATEMENTS = 100;
+
+    private WrappedConnection                         owner_;
+    private WrappedConnection                         connection_;
+    private int                                       maxBatchRows_;
+    private long                                      maxDelayNanos_;
+
+    private ConcurrentLinkedQueue<PendingUpdate>      queue_     = new ConcurrentLinkedQueue<PendingUpdate>();
+    private AtomicInteger                             size_      = new AtomicInteger();
+    private Semaphore                                 capacity_;
+    private volatile boolean                          closed_    = false;
+    // submitters share it to queue, close takes it alone - so nothing is queued once closed_ is set
+    private ReentrantReadWriteLock                    closeLock_ = new ReentrantReadWriteLock();
+    private Thread                                    writer_;
+
+    private Map<String, WrappedPreparedStatement>     statements_;
+
+    private Log                                       logger     = LogFactory.getLog("sqlWrapper.WriteBehindQueue");
+
+    /**
+     * @param owner the connection the updates are submitted to
+     * @param connection the connection that the writer thread uses - owned by the queue from here on.
+     */
+    WriteBehindQueue(WrappedConnection owner, WrappedConnection connection, int capacity, int maxBatchRows,
+            long maxDelayMillis) throws SQLException
+    {
+        owner_ = owner;
+        connection_ = connection;
+        connection_.setAutoCommit(false);
+        maxBatchRows_ = Math.max(1, maxBatchRows);
+        maxDelayNanos_ = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+        capacity_ = new Semaphore(Math.max(1, capacity));
+        statements_ = new LinkedHashMap<String, WrappedPreparedStatement>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, WrappedPreparedStatement> eldest)
+            {
+                if (size() > MAX_CACHED_STATEMENTS)
+                {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        writer_ = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "WriteBehindQueue writer");
+        writer_.setDaemon(true);
+        writer_.start();
+    }
+
+    /**
+     * Queue an update - blocks while the queue is full.
+     *
+     * @param sql the update statement
+     * @param variables the parameter values (the caller must not modify the map afterwards)
+     * @return a future that gives the update count once the update's batch is committed.
+     */
+    Future<Integer> submit(String sql, Hashtable<Integer, QueryParameter> variables) throws SQLException
+    {
+        if (closed_)
+        {
+            throw new SQLException("The write behind queue has been closed");
+        }
+        try
+        {
+            if (!capacity_.tryAcquire())
+            {
+                Object event = DiagnosticEvents.begin(DiagnosticEvents.WAIT);
+                capacity_.acquire();
+                DiagnosticEvents.waited(event, "write behind queue");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for space in the write behind queue");
+        }
+        PendingUpdate update = new PendingUpdate(sql, variables);
+        closeLock_.readLock().lock();
+        try
+        {
+            if (closed_)
+            {
+                capacity_.release();
+                throw new SQLException("The write behind queue has been closed");
+            }
+            queue_.offer(update);
+        }
+        finally
+        {
+            closeLock_.readLock().unlock();
+        }
+        if (size_.getAndIncrement() == 0)
+        {
+            LockSupport.unpark(writer_);
+        }
+        return update;
+    }
+
+    /**
+     * @return the number of updates waiting to be written
+     */
+    public int getQueuedCount()
+    {
+        return size_.get();
+    }
+
+    /**
+     * Stop accepting updates, write out the ones that are queued, and close the writer connection.
+     */
+    public void close() throws SQLException
+    {
+        closeLock_.writeLock().lock();
+        try
+        {
+            closed_ = true;
+        }
+        finally
+        {
+            closeLock_.writeLock().unlock();
+        }
+        LockSupport.unpark(writer_);
+        try
+        {
+            writer_.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        Iterator<WrappedPreparedStatement> it = statements_.values().iterator();
+        while (it.hasNext())
+        {
+            closeQuietly(it.next());
+        }
+        statements_.clear();
+        connection_.close();
+    }
+
+    private PendingUpdate take()
+    {
+        PendingUpdate update = queue_.poll();
+        if (update != null)
+        {
+            size_.decrementAndGet();
+            capacity_.release();
+        }
+        return update;
+    }
+
+    private void writeLoop()
+    {
+        List<PendingUpdate> batch = new ArrayList<PendingUpdate>(maxBatchRows_);
+        while (true)
+        {
+            PendingUpdate first = take();
+            if (first == null && closed_)
+            {
+                // an update queued just before the close may have arrived since the take - look once more
+                first = take();
+                if (first == null)
+                {
+                    return;
+                }
+            }
+            if (first == null)
+            {
+                // the timeout is only a safety net - submit unparks the writer
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+            batch.add(first);
+            long deadline = System.nanoTime() + maxDelayNanos_;
+            while (batch.size() < maxBatchRows_)
+            {
+                PendingUpdate next = take();
+                if (next != null)
+                {
+                    batch.add(next);
+                    continue;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || closed_)
+                {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            try
+            {
+                write(batch);
+            }
+            catch (RuntimeException e)
+            {
+                // don't let the writer thread die - fail whatever wasn't completed.
+                logger.error("Unexpected error in the write behind writer", e);
+                rollbackQuietly();
+                for (int i = 0; i < batch.size(); i++)
+                {
+                    if (!batch.get(i).isDone())
+                    {
+                        SQLException temp = new SQLException("Unexpected Error " + e.toString());
+                        temp.initCause(e);
+                        batch.get(i).fail(temp);
+                    }
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(List<PendingUpdate> batch)
+    {
+        try
+        {
+            writeTransaction(batch);
+            return;
+        }
+        catch (SQLException e)
+        {
+            logger.warn("Write behind batch of " + batch.size() + " updates failed, retrying", e);
+            rollbackQuietly();
+        }
+
+        try
+        {
+            writeTransaction(batch);
+            return;
+        }
+        catch (SQLException e)
+        {
+            logger.warn("Write behind batch of " + batch.size() + " updates failed again, writing individually", e);
+            rollbackQuietly();
+        }
+
+        List<PendingUpdate> single = new ArrayList<PendingUpdate>(1);
+        for (int i = 0; i < batch.size(); i++)
+        {
+            single.clear();
+            single.add(batch.get(i));
+            try
+            {
+                writeTransaction(single);
+            }
+            catch (SQLException e)
+            {
+                rollbackQuietly();
+                batch.get(i).fail(e);
+            }
+        }
+    }
+
+    /**
+     * Run the updates in one transaction, and complete their futures if it commits - or fail them, if the
+     * commit fails.
+     *
+     * @throws SQLException if an update failed, before the commit
+     */
+    private void writeTransaction(List<PendingUpdate> batch) throws SQLException
+    {
+        long reconnects = connection_.getReconnectCount();
+        int[] results = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++)
+        {
+            PendingUpdate update = batch.get(i);
+            WrappedPreparedStatement statement = statements_.get(update.sql);
+            if (statement == null)
+            {
+                statement = (WrappedPreparedStatement) connection_.prepareStatement(update.sql);
+                statements_.put(update.sql, statement);
+            }
+            statement.bindVariables(update.variables);
+            results[i] = statement.executeUpdate();
+        }
+        if (connection_.getReconnectCount() != reconnects)
+        {
+            throw new SQLException("The connection was reestablished during the batch - the earlier updates of the "
+                    + "transaction were lost");
+        }
+        try
+        {
+            connection_.commit();
+        }
+        catch (SQLException e)
+        {
+            // it may have been applied all the same - running the updates again could apply them twice
+            logger.warn("Commit of a write behind batch of " + batch.size() + " updates failed", e);
+            rollbackQuietly();
+            for (int i = 0; i < batch.size(); i++)
+            {
+                batch.get(i).fail(e);
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++)
+        {
+            owner_.sqlExecuted(batch.get(i).sql);
+            batch.get(i).complete(results[i]);
+        }
+    }
+
+    private void rollbackQuietly()
+    {
+        try
+        {
+            connection_.rollback();
+        }
+        catch (SQLException e)
+        {
+            // the next attempt will reconnect if it needs to
+        }
+    }
+
+    private static void closeQuietly(WrappedPreparedStatement statement)
+    {
+        try
+        {
+            statement.close();
+        }
+        catch (SQLException e)
+        {
+            // nothing useful to do
+        }
+    }
+
+    /**
+     * An update waiting in the queue - and the future for its result.
+     */
+    private static class PendingUpdate implements Future<Integer>
+    {
+        String                             sql;
+        Hashtable<Integer, QueryParameter> variables;
+        private CountDownLatch             done_ = new CountDownLatch(1);
+        private int                        result_;
+        private SQLException               failure_;
+
+        PendingUpdate(String sql, Hashtable<Integer, QueryParameter> variables)
+        {
+            this.sql = sql;
+            this.variables = variables;
+        }
+
+        void complete(int result)
+        {
+            result_ = result;
+            done_.countDown();
+        }
+
+        void fail(SQLException failure)
+        {
+            failure_ = failure;
+            done_.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isDone()
+        {
+            return done_.getCount() == 0;
+        }
+
+        @Override
+        public Integer get() throws InterruptedException, ExecutionException
+        {
+            done_.await();
+            return result();
+        }
+
+        @Override
+        public Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException,
+                TimeoutException
+        {
+            if (!done_.await(timeout, unit))
+            {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private Integer result() throws ExecutionException
+        {
+            if (failure_ != null)
+            {
+                throw new ExecutionException(failure_);
+            }
+            return new Integer(result_);
+        }
+    }
+}
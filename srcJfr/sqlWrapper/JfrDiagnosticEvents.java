@@ -0,0 +1,223 @@
+/*
+ * Copyright 2007-2011 Daniel Armbrust
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sqlWrapper;
+
+import java.sql.SQLException;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * The Java Flight Recorder events behind {@link DiagnosticEvents}. Needs Java 11 - built by the jfr ant
+ * target, and found by DiagnosticEvents at runtime if it is on the classpath.
+ *
+ * The default thresholds can be changed in the recording settings, e.g.
+ * sqlWrapper.StatementExecute#threshold=50 ms
+ *
+ * @author <A HREF="mailto:daniel.armbrust@gmail.com">Dan Armbrust</A>
+ */
+final class JfrDiagnosticEvents implements DiagnosticEvents.Sink
+{
+    private final EventType prepare_   = EventType.getEventType(Prepare.class);
+    private final EventType execute_   = EventType.getEventType(Execute.class);
+    private final EventType rebuild_   = EventType.getEventType(Rebuild.class);
+    private final EventType reconnect_ = EventType.getEventType(Reconnect.class);
+    private final EventType wait_      = EventType.getEventType(Wait.class);
+
+    @Override
+    public Object begin(int type)
+    {
+        Event event;
+        switch (type)
+        {
+            case DiagnosticEvents.PREPARE :
+                event = prepare_.isEnabled() ? new Prepare() : null;
+                break;
+            case DiagnosticEvents.EXECUTE :
+                event = execute_.isEnabled() ? new Execute() : null;
+                break;
+            case DiagnosticEvents.REBUILD :
+                event = rebuild_.isEnabled() ? new Rebuild() : null;
+                break;
+            case DiagnosticEvents.RECONNECT :
+                event = reconnect_.isEnabled() ? new Reconnect() : null;
+                break;
+            case DiagnosticEvents.WAIT :
+                event = wait_.isEnabled() ? new Wait() : null;
+                break;
+            default :
+                event = null;
+        }
+        if (event != null)
+        {
+            event.begin();
+        }
+        return event;
+    }
+
+    @Override
+    public void prepared(Object event, String sql)
+    {
+        Prepare temp = (Prepare) event;
+        temp.end();
+        if (temp.shouldCommit())
+        {
+            temp.sql = sql;
+            temp.commit();
+        }
+    }
+
+    @Override
+    public void executed(Object event, SQLFingerprint fingerprint, String operation, long rows, SQLException error)
+    {
+        Execute temp = (Execute) event;
+        temp.end();
+        if (temp.shouldCommit())
+        {
+            temp.fingerprint = Long.toHexString(fingerprint.getId());
+            temp.sql = fingerprint.getText();
+            temp.operation = operation;
+            temp.rows = rows;
+            temp.sqlState = error == null ? null : error.getSQLState();
+            temp.failed = error != null;
+            temp.commit();
+        }
+    }
+
+    @Override
+    public void rebuilt(Object event, String sql, SQLException error)
+    {
+        Rebuild temp = (Rebuild) event;
+        temp.end();
+        if (temp.shouldCommit())
+        {
+            temp.sql = sql;
+            temp.failed = error != null;
+            temp.error = error == null ? null : error.toString();
+            temp.commit();
+        }
+    }
+
+    @Override
+    public void reconnectAttempted(Object event, String server, int attempt, SQLException error)
+    {
+        Reconnect temp = (Reconnect) event;
+        temp.end();
+        if (temp.shouldCommit())
+        {
+            temp.server = server;
+            temp.attempt = attempt;
+            temp.failed = error != null;
+            temp.error = error == null ? null : error.toString();
+            temp.commit();
+        }
+    }
+
+    @Override
+    public void waited(Object event, String resource)
+    {
+        Wait temp = (Wait) event;
+        temp.end();
+        if (temp.shouldCommit())
+        {
+            temp.resource = resource;
+            temp.commit();
+        }
+    }
+
+    @Name("sqlWrapper.StatementPrepare")
+    @Label("Statement Prepare")
+    @Category({"SQL Wrapper"})
+    @Description("A WrappedConnection prepared a statement")
+    @Threshold("1 ms")
+    static class Prepare extends Event
+    {
+        @Label("SQL")
+        String sql;
+    }
+
+    @Name("sqlWrapper.StatementExecute")
+    @Label("Statement Execute")
+    @Category({"SQL Wrapper"})
+    @Description("A WrappedPreparedStatement execution, including any retries and reconnects")
+    @Threshold("10 ms")
+    @StackTrace(true)
+    static class Execute extends Event
+    {
+        @Label("Fingerprint")
+        String  fingerprint;
+        @Label("SQL")
+        @Description("The normalized sql")
+        String  sql;
+        @Label("Operation")
+        String  operation;
+        @Label("Rows")
+        @Description("The update count of an update")
+        long    rows;
+        @Label("Failed")
+        boolean failed;
+        @Label("SQLState")
+        String  sqlState;
+    }
+
+    @Name("sqlWrapper.StatementRebuild")
+    @Label("Statement Rebuild")
+    @Category({"SQL Wrapper"})
+    @Description("A WrappedPreparedStatement was rebuilt (reconnecting if need be) after a failure")
+    @Threshold("0 ms")
+    static class Rebuild extends Event
+    {
+        @Label("SQL")
+        String  sql;
+        @Label("Failed")
+        boolean failed;
+        @Label("Error")
+        String  error;
+    }
+
+    @Name("sqlWrapper.Reconnect")
+    @Label("Reconnect Attempt")
+    @Category({"SQL Wrapper"})
+    @Description("An attempt by a WrappedConnection to reestablish its connection")
+    @Threshold("0 ms")
+    static class Reconnect extends Event
+    {
+        @Label("Server")
+        String  server;
+        @Label("Attempt")
+        int     attempt;
+        @Label("Failed")
+        boolean failed;
+        @Label("Error")
+        String  error;
+    }
+
+    @Name("sqlWrapper.Wait")
+    @Label("Queue Wait")
+    @Category({"SQL Wrapper"})
+    @Description("A thread blocked waiting for space in a bounded queue")
+    @Threshold("1 ms")
+    @StackTrace(true)
+    static class Wait extends Event
+    {
+        @Label("Resource")
+        String resource;
+    }
+}